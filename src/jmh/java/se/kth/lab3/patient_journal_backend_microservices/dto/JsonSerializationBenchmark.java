@@ -0,0 +1,101 @@
+package se.kth.lab3.patient_journal_backend_microservices.dto;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.kafka.support.serializer.JsonDeserializer;
+import org.springframework.kafka.support.serializer.JsonSerializer;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON för DTO:erna, dels med den ObjectMapper som Spring Boot bygger för HTTP-svaren,
+ * dels med Kafkas JsonSerializer/JsonDeserializer som producenten och konsumenten använder.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonSerializationBenchmark {
+
+    private static final String TOPIC = "patient.commands";
+
+    private ObjectMapper httpMapper;
+    private JsonSerializer<Object> kafkaSerializer;
+    private JsonDeserializer<PatientCommandDTO> kafkaDeserializer;
+    private PatientDTO patient;
+    private JournalEntryDTO journalEntry;
+    private PatientCommandDTO command;
+    private byte[] commandBytes;
+
+    @Setup
+    public void setUp() {
+        httpMapper = Jackson2ObjectMapperBuilder.json().build();
+        kafkaSerializer = new JsonSerializer<>();
+        kafkaDeserializer = new JsonDeserializer<>(PatientCommandDTO.class);
+        kafkaDeserializer.addTrustedPackages("*");
+        kafkaDeserializer.setUseTypeHeaders(false);
+
+        patient = new PatientDTO(1L, "Anna", "Andersson", "19900101-1234", LocalDate.of(1990, 1, 1),
+                "anna@example.com", "0701234567", "Storgatan 1, Stockholm", null);
+        journalEntry = new JournalEntryDTO(1L, 1L, "Patienten har haft huvudvärk i tre dagar.",
+                LocalDateTime.of(2024, 3, 1, 10, 15), "Spänningshuvudvärk", "Vila och paracetamol", null);
+        command = new PatientCommandDTO("UPDATE", 1L, patient);
+        commandBytes = kafkaSerializer.serialize(TOPIC, command);
+    }
+
+    @TearDown
+    public void tearDown() {
+        kafkaSerializer.close();
+        kafkaDeserializer.close();
+    }
+
+    @Benchmark
+    public byte[] httpPatient() throws Exception {
+        return httpMapper.writeValueAsBytes(patient);
+    }
+
+    @Benchmark
+    public byte[] httpJournalEntry() throws Exception {
+        return httpMapper.writeValueAsBytes(journalEntry);
+    }
+
+    @Benchmark
+    public byte[] httpPatientCommand() throws Exception {
+        return httpMapper.writeValueAsBytes(command);
+    }
+
+    @Benchmark
+    public byte[] kafkaPatient() {
+        return kafkaSerializer.serialize(TOPIC, patient);
+    }
+
+    @Benchmark
+    public byte[] kafkaJournalEntry() {
+        return kafkaSerializer.serialize(TOPIC, journalEntry);
+    }
+
+    @Benchmark
+    public byte[] kafkaPatientCommand() {
+        return kafkaSerializer.serialize(TOPIC, command);
+    }
+
+    @Benchmark
+    public PatientCommandDTO kafkaPatientCommandRead() {
+        return kafkaDeserializer.deserialize(TOPIC, commandBytes);
+    }
+}
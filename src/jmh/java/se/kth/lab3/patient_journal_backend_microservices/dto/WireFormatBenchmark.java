@@ -0,0 +1,118 @@
+package se.kth.lab3.patient_journal_backend_microservices.dto;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Svarsformaten mot varandra för en patientsida (100 patienter) och en tidslinje
+ * (20 anteckningar): JSON, CBOR och Smile med samma mapperinställningar som Spring Boot
+ * ger HTTP-svaren, och Protobuf via DtoProtobufCodec. Storleken per svar skrivs ut i
+ * setup; kör med -prof gc för allokeringar per anrop.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireFormatBenchmark {
+
+    private static final int PAGE_SIZE = 100;
+    private static final int ENTRIES_PER_PATIENT = 20;
+
+    private ObjectMapper jsonMapper;
+    private ObjectMapper cborMapper;
+    private ObjectMapper smileMapper;
+    private List<PatientDTO> patientPage;
+    private List<JournalEntryDTO> timeline;
+
+    @Setup
+    public void setUp() throws Exception {
+        jsonMapper = bootMapper().build();
+        cborMapper = bootMapper().factory(new CBORFactory()).build();
+        smileMapper = bootMapper().factory(new SmileFactory()).build();
+
+        patientPage = new ArrayList<>();
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            patientPage.add(new PatientDTO(1000L + i, "Anna", "Andersson", String.format("19900101-%04d", i),
+                    LocalDate.of(1990, 1, 1), "anna@example.com", "0701234567", "Storgatan 1, Stockholm", 2L));
+        }
+        timeline = new ArrayList<>();
+        for (int i = 0; i < ENTRIES_PER_PATIENT; i++) {
+            timeline.add(new JournalEntryDTO(50_000L + i, 1000L, "Patienten har haft huvudvärk i tre dagar.",
+                    LocalDateTime.of(2024, 3, 1, 10, 15).plusDays(i), "Spänningshuvudvärk", "Vila och paracetamol", 0L));
+        }
+
+        System.out.printf("%nBytes patientsida: json=%d cbor=%d smile=%d protobuf=%d%n",
+                jsonMapper.writeValueAsBytes(patientPage).length, cborMapper.writeValueAsBytes(patientPage).length,
+                smileMapper.writeValueAsBytes(patientPage).length, DtoProtobufCodec.encodePatients(patientPage).length);
+        System.out.printf("Bytes tidslinje:   json=%d cbor=%d smile=%d protobuf=%d%n",
+                jsonMapper.writeValueAsBytes(timeline).length, cborMapper.writeValueAsBytes(timeline).length,
+                smileMapper.writeValueAsBytes(timeline).length, DtoProtobufCodec.encodeJournalEntries(timeline).length);
+    }
+
+    // Som Boots spring.jackson-standard: datum som ISO-strängar
+    private static Jackson2ObjectMapperBuilder bootMapper() {
+        return new Jackson2ObjectMapperBuilder()
+                .featuresToDisable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+    }
+
+    @Benchmark
+    public byte[] patientPageJson() throws Exception {
+        return jsonMapper.writeValueAsBytes(patientPage);
+    }
+
+    @Benchmark
+    public byte[] patientPageCbor() throws Exception {
+        return cborMapper.writeValueAsBytes(patientPage);
+    }
+
+    @Benchmark
+    public byte[] patientPageSmile() throws Exception {
+        return smileMapper.writeValueAsBytes(patientPage);
+    }
+
+    @Benchmark
+    public byte[] patientPageProtobuf() {
+        return DtoProtobufCodec.encodePatients(patientPage);
+    }
+
+    @Benchmark
+    public byte[] timelineJson() throws Exception {
+        return jsonMapper.writeValueAsBytes(timeline);
+    }
+
+    @Benchmark
+    public byte[] timelineCbor() throws Exception {
+        return cborMapper.writeValueAsBytes(timeline);
+    }
+
+    @Benchmark
+    public byte[] timelineSmile() throws Exception {
+        return smileMapper.writeValueAsBytes(timeline);
+    }
+
+    @Benchmark
+    public byte[] timelineProtobuf() {
+        return DtoProtobufCodec.encodeJournalEntries(timeline);
+    }
+}
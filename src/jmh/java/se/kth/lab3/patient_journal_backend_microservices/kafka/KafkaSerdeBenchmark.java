@@ -0,0 +1,114 @@
+package se.kth.lab3.patient_journal_backend_microservices.kafka;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.kafka.support.serializer.JsonDeserializer;
+import se.kth.lab3.patient_journal_backend_microservices.dto.JournalEntryDTO;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientCommandDTO;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kafka-värden som JSON (JsonSerializer/JsonDeserializer som före DtoSerializer) mot den
+ * binära ramen med schema-id. Storleken per meddelande skrivs ut i setup; kör med -prof gc
+ * för allokeringar per anrop.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KafkaSerdeBenchmark {
+
+    private static final String TOPIC = "patient.commands";
+
+    private DtoSerializer jsonSerializer;
+    private DtoSerializer binarySerializer;
+    private JsonDeserializer<PatientCommandDTO> jsonDeserializer;
+    private DtoDeserializer<PatientCommandDTO> deserializer;
+    private PatientCommandDTO command;
+    private JournalEntryDTO journalEntry;
+    private byte[] jsonCommand;
+    private byte[] binaryCommand;
+
+    @Setup
+    public void setUp() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+        SchemaRegistry schemaRegistry = new SchemaRegistry(objectMapper, new ClassPathResource("kafka-schemas.json"));
+        jsonSerializer = new DtoSerializer(schemaRegistry, false);
+        binarySerializer = new DtoSerializer(schemaRegistry, true);
+        jsonDeserializer = new JsonDeserializer<>(PatientCommandDTO.class);
+        jsonDeserializer.addTrustedPackages("*");
+        deserializer = new DtoDeserializer<>(schemaRegistry, objectMapper, PatientCommandDTO.class);
+
+        command = new PatientCommandDTO("UPDATE", 1L, new PatientDTO(1L, "Anna", "Andersson", "19900101-1234",
+                LocalDate.of(1990, 1, 1), "anna@example.com", "0701234567", "Storgatan 1, Stockholm", 2L));
+        journalEntry = new JournalEntryDTO(1L, 1L, "Patienten har haft huvudvärk i tre dagar.",
+                LocalDateTime.of(2024, 3, 1, 10, 15), "Spänningshuvudvärk", "Vila och paracetamol", 0L);
+        jsonCommand = jsonSerializer.serialize(TOPIC, command);
+        binaryCommand = binarySerializer.serialize(TOPIC, command);
+
+        System.out.printf("%nBytes kommando: json=%d binary=%d, anteckning: json=%d binary=%d%n",
+                jsonCommand.length, binaryCommand.length,
+                jsonSerializer.serialize(TOPIC, journalEntry).length, binarySerializer.serialize(TOPIC, journalEntry).length);
+    }
+
+    @TearDown
+    public void tearDown() {
+        jsonSerializer.close();
+        binarySerializer.close();
+        jsonDeserializer.close();
+    }
+
+    // Med headers som i producenten, så att JSON-vägen får med sina typheaders
+    @Benchmark
+    public byte[] commandJson() {
+        return jsonSerializer.serialize(TOPIC, new RecordHeaders(), command);
+    }
+
+    @Benchmark
+    public byte[] commandBinary() {
+        return binarySerializer.serialize(TOPIC, new RecordHeaders(), command);
+    }
+
+    @Benchmark
+    public byte[] journalEntryJson() {
+        return jsonSerializer.serialize(TOPIC, new RecordHeaders(), journalEntry);
+    }
+
+    @Benchmark
+    public byte[] journalEntryBinary() {
+        return binarySerializer.serialize(TOPIC, new RecordHeaders(), journalEntry);
+    }
+
+    @Benchmark
+    public PatientCommandDTO commandReadJsonDeserializer() {
+        return jsonDeserializer.deserialize(TOPIC, jsonCommand);
+    }
+
+    @Benchmark
+    public PatientCommandDTO commandReadJson() {
+        return deserializer.deserialize(TOPIC, jsonCommand);
+    }
+
+    @Benchmark
+    public PatientCommandDTO commandReadBinary() {
+        return deserializer.deserialize(TOPIC, binaryCommand);
+    }
+}
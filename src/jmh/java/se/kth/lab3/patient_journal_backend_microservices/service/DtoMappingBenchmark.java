@@ -0,0 +1,74 @@
+package se.kth.lab3.patient_journal_backend_microservices.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.kth.lab3.patient_journal_backend_microservices.dto.JournalEntryDTO;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
+import se.kth.lab3.patient_journal_backend_microservices.entity.JournalEntry;
+import se.kth.lab3.patient_journal_backend_microservices.entity.Patient;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mappningen mellan entiteter och DTO:er som varje anrop mot patienter och journaler går igenom.
+ * Tjänsterna skapas utan beroenden eftersom mapparna inte använder dem.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DtoMappingBenchmark {
+
+    private PatientService patientService;
+    private JournalEntryService journalEntryService;
+    private Patient patient;
+    private PatientDTO patientDTO;
+    private JournalEntry journalEntry;
+    private JournalEntryDTO journalEntryDTO;
+
+    @Setup
+    public void setUp() {
+        patientService = new PatientService(null, null, null, null, null, null, null, null, null);
+        journalEntryService = new JournalEntryService(null, null, null, null, null, null, null);
+        patient = new Patient(1L, "Anna", "Andersson", "19900101-1234", LocalDate.of(1990, 1, 1),
+                "anna@example.com", "0701234567", "Storgatan 1, Stockholm", 0);
+        patientDTO = new PatientDTO(1L, "Anna", "Andersson", "19900101-1234", LocalDate.of(1990, 1, 1),
+                "anna@example.com", "0701234567", "Storgatan 1, Stockholm", null);
+        journalEntry = new JournalEntry(1L, patient, "Patienten har haft huvudvärk i tre dagar.",
+                LocalDateTime.of(2024, 3, 1, 10, 15), "Spänningshuvudvärk", "Vila och paracetamol", 1, false, 0);
+        journalEntryDTO = new JournalEntryDTO(1L, 1L, "Patienten har haft huvudvärk i tre dagar.",
+                LocalDateTime.of(2024, 3, 1, 10, 15), "Spänningshuvudvärk", "Vila och paracetamol", null);
+    }
+
+    @Benchmark
+    public PatientDTO patientToDTO() {
+        return patientService.convertToDTO(patient);
+    }
+
+    @Benchmark
+    public Patient patientToEntity() {
+        return patientService.convertToEntity(patientDTO);
+    }
+
+    @Benchmark
+    public JournalEntryDTO journalEntryToDTO() {
+        return journalEntryService.convertToDTO(journalEntry);
+    }
+
+    @Benchmark
+    public JournalEntry journalEntryToEntity() {
+        return journalEntryService.convertToEntity(journalEntryDTO, patient);
+    }
+}
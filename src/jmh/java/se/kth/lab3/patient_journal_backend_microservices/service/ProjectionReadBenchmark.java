@@ -0,0 +1,140 @@
+package se.kth.lab3.patient_journal_backend_microservices.service;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.boot.model.naming.CamelCaseToUnderscoresNamingStrategy;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.cfg.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import se.kth.lab3.patient_journal_backend_microservices.dto.JournalEntryDTO;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
+import se.kth.lab3.patient_journal_backend_microservices.entity.JournalEntry;
+import se.kth.lab3.patient_journal_backend_microservices.entity.Patient;
+import se.kth.lab3.patient_journal_backend_microservices.repository.JournalEntryRepository;
+import se.kth.lab3.patient_journal_backend_microservices.repository.PatientRepository;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Läsvägarna före och efter projektionerna: entiteter som laddas in i persistenskontexten
+ * och mappas till DTO:er, mot konstruktoruttryck direkt i JPQL. Körs mot H2 i minnet med
+ * samma frågor som repositoryna, så siffrorna visar Hibernates overhead och inte nätverket.
+ * Kör med -prof gc för allokeringar per anrop.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProjectionReadBenchmark {
+
+    private static final int PATIENTS = 1000;
+    private static final int ENTRIES_PER_PATIENT = 20;
+    private static final int PAGE_SIZE = 100;
+
+    private SessionFactory sessionFactory;
+    private PatientService patientService;
+    private JournalEntryService journalEntryService;
+    private long patientId;
+
+    @Setup
+    public void setUp() {
+        sessionFactory = new Configuration()
+                .addAnnotatedClass(Patient.class)
+                .addAnnotatedClass(JournalEntry.class)
+                .setProperty(AvailableSettings.JAKARTA_JDBC_URL, "jdbc:h2:mem:projection;DB_CLOSE_DELAY=-1")
+                .setProperty(AvailableSettings.JAKARTA_JDBC_USER, "sa")
+                .setProperty(AvailableSettings.HBM2DDL_AUTO, "create-drop")
+                // Samma tabell- och kolumnnamn som Spring Boot ger, så att indexen skapas
+                .setPhysicalNamingStrategy(new CamelCaseToUnderscoresNamingStrategy())
+                .setProperty(AvailableSettings.STATEMENT_BATCH_SIZE, "50")
+                .buildSessionFactory();
+        patientService = new PatientService(null, null, null, null, null, null, null, null, null);
+        journalEntryService = new JournalEntryService(null, null, null, null, null, null, null);
+
+        sessionFactory.inTransaction(session -> {
+            for (int i = 0; i < PATIENTS; i++) {
+                Patient patient = new Patient(null, "Anna", "Andersson", String.format("19900101-%04d", i),
+                        LocalDate.of(1990, 1, 1), "anna@example.com", "0701234567", "Storgatan 1, Stockholm", 0);
+                session.persist(patient);
+                for (int j = 0; j < ENTRIES_PER_PATIENT; j++) {
+                    session.persist(new JournalEntry(null, patient, "Patienten har haft huvudvärk i tre dagar.",
+                            null, "Spänningshuvudvärk", "Vila och paracetamol", j + 1, false, 0));
+                }
+                if (i % 50 == 49) {
+                    session.flush();
+                    session.clear();
+                }
+            }
+        });
+        patientId = sessionFactory.fromSession(session ->
+                session.createQuery("SELECT min(p.id) FROM Patient p", Long.class).getSingleResult()) + PATIENTS / 2;
+    }
+
+    @TearDown
+    public void tearDown() {
+        sessionFactory.close();
+    }
+
+    // Skrivbar transaktion som tidigare: entiteterna snapshottas och dirty-checkas vid commit
+
+    @Benchmark
+    public List<PatientDTO> patientPageEntities() {
+        return sessionFactory.fromTransaction(session -> session
+                .createQuery("SELECT p FROM Patient p ORDER BY p.id", Patient.class)
+                .setMaxResults(PAGE_SIZE + 1)
+                .getResultList().stream()
+                .map(patientService::convertToDTO)
+                .toList());
+    }
+
+    @Benchmark
+    public List<PatientDTO> patientPageProjection() {
+        return readOnly(session -> session
+                .createQuery(PatientRepository.SELECT_DTO + "ORDER BY p.id", PatientDTO.class)
+                .setMaxResults(PAGE_SIZE + 1)
+                .getResultList());
+    }
+
+    @Benchmark
+    public List<JournalEntryDTO> timelineEntities() {
+        return sessionFactory.fromTransaction(session -> session
+                .createQuery("SELECT j FROM JournalEntry j WHERE j.deleted = false AND j.patient.id = :patientId "
+                        + "ORDER BY j.createdAt DESC",
+                        JournalEntry.class)
+                .setParameter("patientId", patientId)
+                .getResultList().stream()
+                .map(journalEntryService::convertToDTO)
+                .toList());
+    }
+
+    @Benchmark
+    public List<JournalEntryDTO> timelineProjection() {
+        return readOnly(session -> session
+                .createQuery(JournalEntryRepository.SELECT_DTO
+                        + "AND j.patient.id = :patientId ORDER BY j.createdAt DESC", JournalEntryDTO.class)
+                .setParameter("patientId", patientId)
+                .getResultList());
+    }
+
+    private <T> T readOnly(Function<Session, T> work) {
+        return sessionFactory.fromTransaction(session -> {
+            session.setDefaultReadOnly(true);
+            return work.apply(session);
+        });
+    }
+}
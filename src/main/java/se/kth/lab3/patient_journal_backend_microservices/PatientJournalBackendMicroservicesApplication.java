@@ -2,8 +2,10 @@ package se.kth.lab3.patient_journal_backend_microservices;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class PatientJournalBackendMicroservicesApplication {
 
 	public static void main(String[] args) {
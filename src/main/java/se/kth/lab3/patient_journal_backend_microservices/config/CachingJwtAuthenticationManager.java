@@ -0,0 +1,108 @@
+package se.kth.lab3.patient_journal_backend_microservices.config;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.oauth2.server.resource.authentication.BearerTokenAuthenticationToken;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+
+/**
+ * Cachar resultatet av JWT-verifieringen (signatur, claims och rollmappning) per token,
+ * så att klienter som skickar samma token anrop efter anrop bara verifieras en gång.
+ * <p>
+ * Nyckeln är SHA-256 av tokenet, så att inga token ligger i klartext i minnet. En post
+ * lever till tokenets exp, dock högst max-ttl, så att en nyckel som dras tillbaka i Keycloak
+ * slår igenom inom den tiden. Ogiltiga token cachas inte utan verifieras varje gång.
+ * Träffar och missar syns under cache.* med cache=jwt.authentications.
+ */
+public class CachingJwtAuthenticationManager implements AuthenticationManager {
+
+    private final AuthenticationManager delegate;
+    private final Cache<String, JwtAuthenticationToken> authentications;
+
+    public CachingJwtAuthenticationManager(
+            AuthenticationManager delegate, MeterRegistry meterRegistry, long maxSize, Duration maxTtl) {
+        this.delegate = delegate;
+        this.authentications = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfter(new UntilTokenExpires(maxTtl))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, authentications, "jwt.authentications");
+    }
+
+    @Override
+    public Authentication authenticate(Authentication authentication) throws AuthenticationException {
+        if (!(authentication instanceof BearerTokenAuthenticationToken bearer)) {
+            return delegate.authenticate(authentication);
+        }
+        String key = hash(bearer.getToken());
+        JwtAuthenticationToken cached = authentications.getIfPresent(key);
+        if (cached != null) {
+            return copyFor(cached, bearer);
+        }
+        Authentication result = delegate.authenticate(bearer);
+        if (result instanceof JwtAuthenticationToken jwtAuthentication
+                && jwtAuthentication.getToken().getExpiresAt() != null) {
+            authentications.put(key, jwtAuthentication);
+        }
+        return result;
+    }
+
+    /**
+     * Ny instans per anrop: Authentication är muterbar och details (t.ex. klientadress)
+     * hör till det aktuella anropet.
+     */
+    private static JwtAuthenticationToken copyFor(JwtAuthenticationToken cached, BearerTokenAuthenticationToken bearer) {
+        JwtAuthenticationToken copy = new JwtAuthenticationToken(cached.getToken(), cached.getAuthorities(), cached.getName());
+        copy.setDetails(bearer.getDetails());
+        return copy;
+    }
+
+    private static String hash(String token) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.US_ASCII));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 saknas i JVM:en", e);
+        }
+    }
+
+    private static final class UntilTokenExpires implements Expiry<String, JwtAuthenticationToken> {
+
+        private final long maxTtlNanos;
+
+        UntilTokenExpires(Duration maxTtl) {
+            this.maxTtlNanos = maxTtl.toNanos();
+        }
+
+        @Override
+        public long expireAfterCreate(String key, JwtAuthenticationToken value, long currentTime) {
+            Instant expiresAt = value.getToken().getExpiresAt();
+            long untilExpiry = Duration.between(Instant.now(), expiresAt).toNanos();
+            return Math.max(0, Math.min(untilExpiry, maxTtlNanos));
+        }
+
+        @Override
+        public long expireAfterUpdate(String key, JwtAuthenticationToken value, long currentTime, long currentDuration) {
+            return expireAfterCreate(key, value, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(String key, JwtAuthenticationToken value, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package se.kth.lab3.patient_journal_backend_microservices.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tak för samtidiga /api-anrop när Tomcat kör på virtuella trådar. Med plattformstrådar
+ * begränsar trådpoolen (server.tomcat.threads.max) hur många anrop som samtidigt kan stå
+ * och vänta på Hikari; med virtuella trådar finns ingen sådan gräns, och tusentals anrop
+ * skulle i stället köa i Hikari och få connection-timeout efter 20 s.
+ * <p>
+ * Antalet platser är poolstorleken gånger app.concurrency.requests-per-connection. Anrop
+ * som inte får plats inom app.concurrency.queue-timeout får 503 med Retry-After, så att
+ * klienten backar i stället för att väntan växer obegränsat.
+ */
+@Component
+@ConditionalOnProperty(name = "spring.threads.virtual.enabled", havingValue = "true")
+@Slf4j
+public class ConcurrencyLimitFilter extends OncePerRequestFilter {
+
+    private final Semaphore permits;
+    private final long queueTimeoutNanos;
+    private final Counter rejected;
+
+    public ConcurrencyLimitFilter(
+            MeterRegistry meterRegistry,
+            @Value("${spring.datasource.hikari.maximum-pool-size:10}") int poolSize,
+            @Value("${app.concurrency.requests-per-connection:2}") int requestsPerConnection,
+            @Value("${app.concurrency.queue-timeout:5s}") Duration queueTimeout) {
+        int limit = Math.max(1, poolSize * requestsPerConnection);
+        this.permits = new Semaphore(limit, true);
+        this.queueTimeoutNanos = queueTimeout.toNanos();
+        this.rejected = Counter.builder("http.server.requests.rejected")
+                .description("Anrop som avvisades för att för många redan pågick")
+                .register(meterRegistry);
+        Gauge.builder("http.server.requests.active.limited", permits, p -> limit - p.availablePermits())
+                .description("Pågående /api-anrop innanför samtidighetstaket")
+                .register(meterRegistry);
+        Gauge.builder("http.server.requests.queued", permits, Semaphore::getQueueLength)
+                .description("Anrop som väntar på en plats innanför samtidighetstaket")
+                .register(meterRegistry);
+        log.info("Samtidighetstak för /api: {} anrop ({} anslutningar x {})", limit, poolSize, requestsPerConnection);
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !request.getRequestURI().startsWith("/api/");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(queueTimeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            rejected.increment();
+            response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+            response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value(), "För många samtidiga anrop, försök igen senare");
+            return;
+        }
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            permits.release();
+        }
+    }
+}
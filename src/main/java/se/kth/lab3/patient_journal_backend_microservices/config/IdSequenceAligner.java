@@ -0,0 +1,68 @@
+package se.kth.lab3.patient_journal_backend_microservices.config;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.persistence.EntityManagerFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import se.kth.lab3.patient_journal_backend_microservices.entity.JournalEntry;
+import se.kth.lab3.patient_journal_backend_microservices.entity.Patient;
+
+import java.util.List;
+
+/**
+ * Flyttar id-sekvenserna förbi befintliga rader vid uppstart. När en databas som skapats med
+ * IDENTITY uppdateras med ddl-auto=update skapar Hibernate sekvenserna från 1, och de första
+ * INSERTs skulle då återanvända befintliga primärnycklar. Pooled-optimeraren delar ut
+ * nextval - allocationSize + 1 .. nextval, så sekvensen måste ligga minst allocationSize över
+ * MAX(id). Körs efter att EntityManagerFactory (och därmed schemauppdateringen) är klar och
+ * mot primären, eftersom JdbcTemplate utanför en read-only-transaktion aldrig routas till en replik.
+ */
+@Component
+@Slf4j
+public class IdSequenceAligner {
+
+    record IdSequence(String table, String sequence, int allocationSize) {
+    }
+
+    static final List<IdSequence> SEQUENCES = List.of(
+            new IdSequence("patients", Patient.ID_SEQUENCE, Patient.ID_ALLOCATION_SIZE),
+            new IdSequence("journal_entries", JournalEntry.ID_SEQUENCE, JournalEntry.ID_ALLOCATION_SIZE));
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Dialect dialect;
+
+    @Autowired
+    public IdSequenceAligner(JdbcTemplate jdbcTemplate, EntityManagerFactory entityManagerFactory) {
+        this(jdbcTemplate, entityManagerFactory.unwrap(SessionFactoryImplementor.class)
+                .getJdbcServices().getDialect());
+    }
+
+    IdSequenceAligner(JdbcTemplate jdbcTemplate, Dialect dialect) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.dialect = dialect;
+    }
+
+    @PostConstruct
+    public void alignAll() {
+        SEQUENCES.forEach(this::align);
+    }
+
+    void align(IdSequence id) {
+        Long maxId = jdbcTemplate.queryForObject(
+                "SELECT COALESCE(MAX(id), 0) FROM " + id.table(), Long.class);
+        // nextval förbrukar ett block, men det är bara ett glapp i id-serien
+        Long next = jdbcTemplate.queryForObject(
+                dialect.getSequenceSupport().getSequenceNextValString(id.sequence()), Long.class);
+        if (maxId == null || next == null || next - id.allocationSize() >= maxId) {
+            return;
+        }
+        long restart = maxId + id.allocationSize() + 1;
+        log.warn("Sekvensen {} ({}) ligger efter {} (MAX(id)={}), startar om på {}",
+                id.sequence(), next, id.table(), maxId, restart);
+        jdbcTemplate.execute("ALTER SEQUENCE " + id.sequence() + " RESTART WITH " + restart);
+    }
+}
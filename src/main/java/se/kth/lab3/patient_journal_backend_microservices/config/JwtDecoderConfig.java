@@ -0,0 +1,139 @@
+package se.kth.lab3.patient_journal_backend_microservices.config;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.KeySourceException;
+import com.nimbusds.jose.jwk.JWKMatcher;
+import com.nimbusds.jose.jwk.JWKSelector;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.source.ImmutableJWKSet;
+import com.nimbusds.jose.jwk.source.JWKSource;
+import com.nimbusds.jose.jwk.source.JWKSourceBuilder;
+import com.nimbusds.jose.proc.JWSVerificationKeySelector;
+import com.nimbusds.jose.proc.SecurityContext;
+import com.nimbusds.jose.util.health.HealthStatus;
+import com.nimbusds.jwt.proc.DefaultJWTProcessor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.Resource;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.security.oauth2.jwt.JwtValidators;
+import org.springframework.security.oauth2.jwt.NimbusJwtDecoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.text.ParseException;
+import java.time.Duration;
+
+/**
+ * JwtDecoder med Keycloaks nycklar (JWKS) cachade i minnet. Nycklarna hämtas i bakgrunden
+ * efter start och förnyas av en schemalagd tråd innan cachen går ut, så att varken en
+ * nyckelrotation eller en långsam Keycloak blockerar request-trådarna. Är Keycloak nere
+ * används senast hämtade nycklar i upp till app.security.jwks.outage-tolerance.
+ * <p>
+ * Med app.security.jwks-location (t.ex. file:/tmp/jwks.json eller classpath:jwks.json)
+ * läses nycklarna i stället från fil en gång, för tester och lokal körning utan Keycloak.
+ */
+@Configuration
+@Slf4j
+public class JwtDecoderConfig {
+
+    @Value("${spring.security.oauth2.resourceserver.jwt.jwk-set-uri:}")
+    private String jwkSetUri;
+
+    @Value("${spring.security.oauth2.resourceserver.jwt.issuer-uri:}")
+    private String issuerUri;
+
+    @Value("${app.security.jwks-location:}")
+    private String jwksLocation;
+
+    @Value("${app.security.jwks.ttl:15m}")
+    private Duration jwksTtl;
+
+    @Value("${app.security.jwks.refresh-ahead:1m}")
+    private Duration jwksRefreshAhead;
+
+    @Value("${app.security.jwks.outage-tolerance:1h}")
+    private Duration jwksOutageTolerance;
+
+    private JWKSource<SecurityContext> jwkSource;
+
+    @Bean
+    public JwtDecoder jwtDecoder() {
+        jwkSource = jwksLocation.isBlank() ? remoteJwkSource() : localJwkSource();
+        DefaultJWTProcessor<SecurityContext> processor = new DefaultJWTProcessor<>();
+        processor.setJWSKeySelector(new JWSVerificationKeySelector<>(JWSAlgorithm.RS256, jwkSource));
+        // Claims valideras av Spring nedan (exp/nbf med klocktolerans, issuer)
+        processor.setJWTClaimsSetVerifier((claims, context) -> { });
+        NimbusJwtDecoder decoder = new NimbusJwtDecoder(processor);
+        decoder.setJwtValidator(issuerUri.isBlank()
+                ? JwtValidators.createDefault()
+                : JwtValidators.createDefaultWithIssuer(issuerUri));
+        return decoder;
+    }
+
+    private JWKSource<SecurityContext> remoteJwkSource() {
+        if (jwkSetUri.isBlank()) {
+            throw new IllegalStateException(
+                    "Varken spring.security.oauth2.resourceserver.jwt.jwk-set-uri eller app.security.jwks-location är satt");
+        }
+        try {
+            return JWKSourceBuilder.<SecurityContext>create(URI.create(jwkSetUri).toURL())
+                    .cache(jwksTtl.toMillis(), JWKSourceBuilder.DEFAULT_CACHE_REFRESH_TIMEOUT)
+                    // scheduled = true: förnyelsen körs på en egen tråd, inte på den som frågar
+                    .refreshAheadCache(jwksRefreshAhead.toMillis(), true)
+                    .retrying(true)
+                    .outageTolerant(jwksOutageTolerance.toMillis())
+                    .healthReporting(report -> {
+                        if (report.getHealthStatus() == HealthStatus.NOT_HEALTHY) {
+                            log.warn("Kunde inte hämta JWKS från {}: {}", jwkSetUri,
+                                    report.getException() != null ? report.getException().getMessage() : "okänt fel");
+                        }
+                    })
+                    .build();
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException("Ogiltig jwk-set-uri: " + jwkSetUri, e);
+        }
+    }
+
+    private JWKSource<SecurityContext> localJwkSource() {
+        Resource resource = new DefaultResourceLoader().getResource(jwksLocation);
+        try (InputStream in = resource.getInputStream()) {
+            JWKSet keys = JWKSet.load(in);
+            log.info("JWKS läst från {}: {} nycklar", jwksLocation, keys.size());
+            return new ImmutableJWKSet<>(keys);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Kunde inte läsa JWKS från " + jwksLocation, e);
+        } catch (ParseException e) {
+            throw new IllegalStateException("Ogiltig JWKS i " + jwksLocation, e);
+        }
+    }
+
+    /**
+     * Fyller nyckelcachen i bakgrunden, så att första anropet efter start inte får vänta
+     * på Keycloak. Därefter håller refresh-ahead cachen varm.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    void prefetchKeys() {
+        if (jwkSource == null || !jwksLocation.isBlank()) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                int keys = jwkSource.get(new JWKSelector(new JWKMatcher.Builder().build()), null).size();
+                log.info("JWKS hämtat från {}: {} nycklar", jwkSetUri, keys);
+            } catch (KeySourceException e) {
+                log.warn("Kunde inte förhämta JWKS från {}: {}", jwkSetUri, e.getMessage());
+            }
+        }, "jwks-prefetch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
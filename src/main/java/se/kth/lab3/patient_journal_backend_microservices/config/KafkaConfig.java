@@ -1,24 +1,35 @@
 package se.kth.lab3.patient_journal_backend_microservices.config;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
 import org.apache.kafka.common.serialization.StringDeserializer;
 import org.apache.kafka.common.serialization.StringSerializer;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.kafka.annotation.EnableKafka;
 import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
 import org.springframework.kafka.core.*;
+import org.springframework.kafka.listener.ConsumerAwareRebalanceListener;
 import org.springframework.kafka.listener.ContainerProperties;
 import org.springframework.kafka.listener.DefaultErrorHandler;
-import org.springframework.kafka.support.serializer.JsonDeserializer;
-import org.springframework.kafka.support.serializer.JsonSerializer;
-import org.springframework.util.backoff.FixedBackOff;
-import se.kth.lab3.patient_journal_backend_microservices.dto.JournalEntryDTO;
+import org.springframework.kafka.support.ExponentialBackOffWithMaxRetries;
+import org.springframework.kafka.support.serializer.ErrorHandlingDeserializer;
 import se.kth.lab3.patient_journal_backend_microservices.dto.PatientCommandDTO;
-import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
+import se.kth.lab3.patient_journal_backend_microservices.kafka.DtoDeserializer;
+import se.kth.lab3.patient_journal_backend_microservices.kafka.DtoSerializer;
+import se.kth.lab3.patient_journal_backend_microservices.kafka.PatientCommandDeadLetters;
+import se.kth.lab3.patient_journal_backend_microservices.kafka.PatientCommandParallelConsumer;
+import se.kth.lab3.patient_journal_backend_microservices.kafka.SchemaRegistry;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -34,74 +45,183 @@ public class KafkaConfig {
     @Value("${spring.kafka.consumer.group-id:patient-journal-group}")
     private String groupId;
 
+    // "record" = en post per anrop, "batch" = en hel poll per anrop (PatientCommandBatchConsumer),
+    // "parallel" = en hel poll fördelad per patient på en tråd-pool (PatientCommandParallelConsumer)
+    @Value("${kafka.consumer.mode:record}")
+    private String consumerMode;
+
+    @Value("${kafka.consumer.max-poll-records:500}")
+    private int maxPollRecords;
+
+    // Hur länge den parallella konsumenten får vara utan nya poster innan klart arbete committas
+    @Value("${kafka.consumer.parallel.commit-interval-ms:1000}")
+    private long parallelCommitIntervalMs;
+
+    // Lyssnarnas konsumenttrådar blir virtuella, som Spring Boots egna containrar
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+
+    // "throughput" eller "latency", se KafkaProducerProfile
+    @Value("${kafka.producer.profile:throughput}")
+    private String producerProfile;
+
+    // "json" eller "binary" (se DtoSerializer). Konsumenterna läser båda, så binary slås på
+    // först när alla läsare av topicen kör en version med DtoDeserializer
+    @Value("${kafka.producer.value-format:json}")
+    private String valueFormat;
+
+    // Klientmetriker (kafka.producer.*, kafka.consumer.* inklusive records.lag) under /actuator/metrics
+    private final MeterRegistry meterRegistry;
+    private final SchemaRegistry schemaRegistry;
+    private final ObjectMapper objectMapper;
+
+    public KafkaConfig(MeterRegistry meterRegistry, SchemaRegistry schemaRegistry, ObjectMapper objectMapper) {
+        this.meterRegistry = meterRegistry;
+        this.schemaRegistry = schemaRegistry;
+        this.objectMapper = objectMapper;
+    }
+
     // --- PRODUCER CONFIG ---
     private Map<String, Object> producerConfigs() {
         Map<String, Object> props = new HashMap<>();
         props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
         props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
-        props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, JsonSerializer.class);
         props.put(ProducerConfig.MAX_BLOCK_MS_CONFIG, 5000);
         props.put(ProducerConfig.REQUEST_TIMEOUT_MS_CONFIG, 5000);
         props.put(ProducerConfig.DELIVERY_TIMEOUT_MS_CONFIG, 10000);
+        props.putAll(KafkaProducerProfile.from(producerProfile).settings());
         return props;
     }
 
+    // En producent för alla topics och DTO-typer: en buffert, en I/O-tråd och gemensamma block
     @Bean
-    public ProducerFactory<String, PatientDTO> patientProducerFactory() {
-        return new DefaultKafkaProducerFactory<>(producerConfigs());
+    public ProducerFactory<String, Object> producerFactory() {
+        DefaultKafkaProducerFactory<String, Object> factory = new DefaultKafkaProducerFactory<>(producerConfigs(),
+                new StringSerializer(), new DtoSerializer(schemaRegistry, "binary".equalsIgnoreCase(valueFormat)));
+        factory.addListener(new MicrometerProducerListener<>(meterRegistry));
+        return factory;
     }
 
     @Bean
-    public KafkaTemplate<String, PatientDTO> patientKafkaTemplate() {
-        return new KafkaTemplate<>(patientProducerFactory());
+    public KafkaTemplate<String, Object> kafkaTemplate() {
+        return new KafkaTemplate<>(producerFactory());
     }
 
+    // --- CONSUMER CONFIG ---
+    // ErrorHandlingDeserializer: en post som inte går att läsa blir null med felet i en header,
+    // i stället för ett undantag i poll() som stoppar containern på samma offset för alltid
     @Bean
-    public ProducerFactory<String, JournalEntryDTO> journalProducerFactory() {
-        return new DefaultKafkaProducerFactory<>(producerConfigs());
+    public ConsumerFactory<String, PatientCommandDTO> consumerFactory() {
+        Map<String, Object> props = new HashMap<>();
+        props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        props.put(ConsumerConfig.GROUP_ID_CONFIG, groupId);
+        props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
+        props.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+        props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, maxPollRecords);
+
+        DefaultKafkaConsumerFactory<String, PatientCommandDTO> factory = new DefaultKafkaConsumerFactory<>(props,
+                new StringDeserializer(), new ErrorHandlingDeserializer<>(
+                        new DtoDeserializer<>(schemaRegistry, objectMapper, PatientCommandDTO.class)));
+        factory.addListener(new MicrometerConsumerListener<>(meterRegistry));
+        return factory;
     }
 
-    @Bean
-    public KafkaTemplate<String, JournalEntryDTO> journalKafkaTemplate() {
-        return new KafkaTemplate<>(journalProducerFactory());
+    // Kommandofel hanteras i konsumenterna (PatientCommandDeadLetters); hit kommer poster som
+    // inte gick att läsa, som går direkt till DLT:n, och fel då posten inte kunde skickas vidare,
+    // som provas några gånger med ökande väntetid innan posten ändå skickas till DLT:n
+    private DefaultErrorHandler commandErrorHandler(PatientCommandDeadLetters deadLetters) {
+        ExponentialBackOffWithMaxRetries backOff = new ExponentialBackOffWithMaxRetries(3);
+        backOff.setInitialInterval(500L);
+        backOff.setMultiplier(2.0);
+        return new DefaultErrorHandler(deadLetters::deadLetter, backOff);
     }
 
     @Bean
-    public ProducerFactory<String, PatientCommandDTO> commandProducerFactory() {
-        return new DefaultKafkaProducerFactory<>(producerConfigs());
+    public ConcurrentKafkaListenerContainerFactory<String, PatientCommandDTO> kafkaListenerContainerFactory(
+            PatientCommandDeadLetters deadLetters,
+            ObjectProvider<PatientCommandParallelConsumer> parallelConsumer) {
+        ConcurrentKafkaListenerContainerFactory<String, PatientCommandDTO> factory =
+                new ConcurrentKafkaListenerContainerFactory<>();
+        factory.setConsumerFactory(consumerFactory());
+        factory.setCommonErrorHandler(commandErrorHandler(deadLetters));
+        factory.getContainerProperties().setMissingTopicsFatal(false);
+        boolean parallelMode = "parallel".equalsIgnoreCase(consumerMode);
+        boolean batchMode = "batch".equalsIgnoreCase(consumerMode) || parallelMode;
+        factory.setBatchListener(batchMode);
+        factory.getContainerProperties().setAckMode(
+                batchMode ? ContainerProperties.AckMode.BATCH : ContainerProperties.AckMode.RECORD);
+        if (parallelMode) {
+            // PatientCommandParallelConsumer committar själv, upp till det som körts klart;
+            // idle-händelserna låter den committa även när inga nya poster kommer
+            factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.MANUAL);
+            factory.getContainerProperties().setIdleEventInterval(parallelCommitIntervalMs);
+            // Slås upp först vid rebalanseringen: konsumenten skapas med den här fabriken
+            factory.getContainerProperties().setConsumerRebalanceListener(new ConsumerAwareRebalanceListener() {
+                @Override
+                public void onPartitionsRevokedBeforeCommit(Consumer<?, ?> consumer,
+                                                            Collection<TopicPartition> partitions) {
+                    parallelConsumer.ifAvailable(c -> c.onPartitionsRevokedBeforeCommit(consumer, partitions));
+                }
+
+                @Override
+                public void onPartitionsLost(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+                    parallelConsumer.ifAvailable(c -> c.onPartitionsLost(consumer, partitions));
+                }
+            });
+        }
+        useVirtualThreads(factory, "patient-command-listener-");
+        return factory;
     }
 
+    // Alltid en post per anrop oavsett kafka.consumer.mode: retry-topicsen (se
+    // PatientCommandRetryConsumer) pausar partitionen per post tills dess väntetid gått
     @Bean
-    public KafkaTemplate<String, PatientCommandDTO> commandKafkaTemplate() {
-        return new KafkaTemplate<>(commandProducerFactory());
+    public ConcurrentKafkaListenerContainerFactory<String, PatientCommandDTO> commandRetryListenerContainerFactory(
+            PatientCommandDeadLetters deadLetters) {
+        ConcurrentKafkaListenerContainerFactory<String, PatientCommandDTO> factory =
+                new ConcurrentKafkaListenerContainerFactory<>();
+        factory.setConsumerFactory(consumerFactory());
+        factory.setCommonErrorHandler(commandErrorHandler(deadLetters));
+        factory.getContainerProperties().setMissingTopicsFatal(false);
+        factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.RECORD);
+        useVirtualThreads(factory, "patient-command-retry-");
+        return factory;
     }
 
-    // --- CONSUMER CONFIG ---
+    // --- EGNA HÄNDELSER (cache-invalidering, sökindex) ---
+    // Varje replika läser patient.events och journal.events i egna konsumentgrupper. Värdet
+    // läses som rå bytes så att tombstones (null) går igenom och lyssnaren tolkar själv,
+    // post för post med DtoDeserializer, och hoppar över poster som inte går att läsa.
     @Bean
-    public ConsumerFactory<String, PatientCommandDTO> consumerFactory() {
+    public ConsumerFactory<String, byte[]> eventConsumerFactory() {
         Map<String, Object> props = new HashMap<>();
         props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
-        props.put(ConsumerConfig.GROUP_ID_CONFIG, groupId);
         props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
-        props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, JsonDeserializer.class);
-        props.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
-
-        JsonDeserializer<PatientCommandDTO> deserializer = new JsonDeserializer<>(PatientCommandDTO.class);
-        deserializer.setRemoveTypeHeaders(false);
-        deserializer.addTrustedPackages("*");
-        deserializer.setUseTypeMapperForKey(true);
-
-        return new DefaultKafkaConsumerFactory<>(props, new StringDeserializer(), deserializer);
+        props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class);
+        // En ny replika startar med tom cache och behöver bara händelser från och med nu
+        props.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "latest");
+        props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, maxPollRecords);
+        DefaultKafkaConsumerFactory<String, byte[]> factory = new DefaultKafkaConsumerFactory<>(props);
+        factory.addListener(new MicrometerConsumerListener<>(meterRegistry));
+        return factory;
     }
 
     @Bean
-    public ConcurrentKafkaListenerContainerFactory<String, PatientCommandDTO> kafkaListenerContainerFactory() {
-        ConcurrentKafkaListenerContainerFactory<String, PatientCommandDTO> factory =
+    public ConcurrentKafkaListenerContainerFactory<String, byte[]> eventListenerContainerFactory() {
+        ConcurrentKafkaListenerContainerFactory<String, byte[]> factory =
                 new ConcurrentKafkaListenerContainerFactory<>();
-        factory.setConsumerFactory(consumerFactory());
-        factory.setCommonErrorHandler(new DefaultErrorHandler(new FixedBackOff(1000L, 3L)));
+        factory.setConsumerFactory(eventConsumerFactory());
         factory.getContainerProperties().setMissingTopicsFatal(false);
-        factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.RECORD);
+        factory.setBatchListener(true);
+        useVirtualThreads(factory, "event-listener-");
         return factory;
     }
-}
\ No newline at end of file
+
+    private void useVirtualThreads(ConcurrentKafkaListenerContainerFactory<?, ?> factory, String threadNamePrefix) {
+        if (virtualThreads) {
+            SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor(threadNamePrefix);
+            executor.setVirtualThreads(true);
+            factory.getContainerProperties().setListenerTaskExecutor(executor);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package se.kth.lab3.patient_journal_backend_microservices.config;
+
+import org.apache.kafka.clients.producer.ProducerConfig;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Förinställningar för den gemensamma producenten, väljs med kafka.producer.profile.
+ * <ul>
+ *     <li>THROUGHPUT: väntar upp till 10 ms för att fylla stora, lz4-komprimerade block;
+ *     idempotent med acks=all så att omsändningar varken dubblerar eller kastar om.</li>
+ *     <li>LATENCY: skickar direkt i små okomprimerade block och kvitteras av ledaren
+ *     (acks=1), utan idempotens.</li>
+ * </ul>
+ */
+public enum KafkaProducerProfile {
+
+    THROUGHPUT(Map.of(
+            ProducerConfig.LINGER_MS_CONFIG, 10,
+            ProducerConfig.BATCH_SIZE_CONFIG, 131072,
+            ProducerConfig.COMPRESSION_TYPE_CONFIG, "lz4",
+            ProducerConfig.ACKS_CONFIG, "all",
+            ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true,
+            ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION, 5)),
+
+    LATENCY(Map.of(
+            ProducerConfig.LINGER_MS_CONFIG, 0,
+            ProducerConfig.BATCH_SIZE_CONFIG, 16384,
+            ProducerConfig.COMPRESSION_TYPE_CONFIG, "none",
+            ProducerConfig.ACKS_CONFIG, "1",
+            ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, false));
+
+    private final Map<String, Object> settings;
+
+    KafkaProducerProfile(Map<String, Object> settings) {
+        this.settings = settings;
+    }
+
+    public Map<String, Object> settings() {
+        return settings;
+    }
+
+    public static KafkaProducerProfile from(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Okänd kafka.producer.profile: " + name
+                    + " (giltiga: throughput, latency)", e);
+        }
+    }
+}
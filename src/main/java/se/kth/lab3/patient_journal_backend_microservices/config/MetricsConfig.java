@@ -0,0 +1,20 @@
+package se.kth.lab3.patient_journal_backend_microservices.config;
+
+import io.micrometer.core.aop.TimedAspect;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Gör @Timed verksamt på Spring-bönor. Tjänsterna är annoterade på klassnivå och ger
+ * timern service.method med taggarna class, method och exception; percentiler och
+ * histogram styrs per meter via management.metrics.distribution.* i application.properties.
+ */
+@Configuration
+public class MetricsConfig {
+
+    @Bean
+    public TimedAspect timedAspect(MeterRegistry meterRegistry) {
+        return new TimedAspect(meterRegistry);
+    }
+}
@@ -0,0 +1,103 @@
+package se.kth.lab3.patient_journal_backend_microservices.config;
+
+import org.springframework.core.ResolvableType;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractGenericHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import se.kth.lab3.patient_journal_backend_microservices.dto.DtoProtobufCodec;
+import se.kth.lab3.patient_journal_backend_microservices.dto.JournalChangesDTO;
+import se.kth.lab3.patient_journal_backend_microservices.dto.JournalEntryDTO;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Skriver PatientDTO, JournalEntryDTO, JournalChangesDTO och listor av de två första som
+ * application/x-protobuf. Bara svar: requestkroppar är fortfarande JSON (eller CBOR/Smile).
+ * Listor känns igen på den deklarerade typen, så även en tom lista får rätt meddelande.
+ */
+public class ProtobufDtoHttpMessageConverter extends AbstractGenericHttpMessageConverter<Object> {
+
+    public static final MediaType APPLICATION_PROTOBUF = new MediaType("application", "x-protobuf");
+
+    public ProtobufDtoHttpMessageConverter() {
+        super(APPLICATION_PROTOBUF);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return encoderFor(clazz) != null;
+    }
+
+    @Override
+    public boolean canWrite(Type type, Class<?> clazz, MediaType mediaType) {
+        return canWrite(mediaType) && encoderFor(type != null ? type : clazz) != null;
+    }
+
+    // Listornas elementtyp syns inte i klassen; canWrite med typen har redan avgjort saken
+    @Override
+    public List<MediaType> getSupportedMediaTypes(Class<?> clazz) {
+        return getSupportedMediaTypes();
+    }
+
+    @Override
+    public boolean canRead(Class<?> clazz, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    public boolean canRead(Type type, Class<?> contextClass, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected void writeInternal(Object value, Type type, HttpOutputMessage outputMessage) throws IOException {
+        Function<Object, byte[]> encoder = encoderFor(type != null ? type : value.getClass());
+        if (encoder == null) {
+            encoder = encoderFor(value.getClass());
+        }
+        byte[] bytes = encoder.apply(value);
+        outputMessage.getHeaders().setContentLength(bytes.length);
+        outputMessage.getBody().write(bytes);
+    }
+
+    @Override
+    protected Object readInternal(Class<?> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Protobuf stods bara i svar", inputMessage);
+    }
+
+    @Override
+    public Object read(Type type, Class<?> contextClass, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Protobuf stods bara i svar", inputMessage);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Function<Object, byte[]> encoderFor(Type type) {
+        ResolvableType resolved = ResolvableType.forType(type);
+        Class<?> clazz = resolved.toClass();
+        if (clazz == PatientDTO.class) {
+            return value -> DtoProtobufCodec.encode((PatientDTO) value);
+        }
+        if (clazz == JournalEntryDTO.class) {
+            return value -> DtoProtobufCodec.encode((JournalEntryDTO) value);
+        }
+        if (clazz == JournalChangesDTO.class) {
+            return value -> DtoProtobufCodec.encode((JournalChangesDTO) value);
+        }
+        if (List.class.isAssignableFrom(clazz)) {
+            Class<?> element = resolved.getGeneric(0).toClass();
+            if (element == PatientDTO.class) {
+                return value -> DtoProtobufCodec.encodePatients((List<PatientDTO>) value);
+            }
+            if (element == JournalEntryDTO.class) {
+                return value -> DtoProtobufCodec.encodeJournalEntries((List<JournalEntryDTO>) value);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,93 @@
+package se.kth.lab3.patient_journal_backend_microservices.config;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.micrometer.MicrometerMetricsTrackerFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Läsrepliker, aktiveras när app.datasource.replicas.urls är satt. Primären byggs som vanligt
+ * från spring.datasource.* (inklusive spring.datasource.hikari.*), varje replik får en egen
+ * Hikari-pool med samma inställningar men egen storlek, och JPA/JdbcTemplate får
+ * {@link ReplicaRoutingDataSource} bakom en LazyConnectionDataSourceProxy.
+ * Utan replikor används Spring Boots vanliga DataSource och allt går till primären.
+ */
+@Configuration
+@ConditionalOnExpression("!'${app.datasource.replicas.urls:}'.isBlank()")
+@Slf4j
+public class ReadReplicaConfig {
+
+    @Value("${app.datasource.replicas.urls}")
+    private String replicaUrls;
+
+    @Value("${app.datasource.replicas.username:${spring.datasource.username:}}")
+    private String replicaUsername;
+
+    @Value("${app.datasource.replicas.password:${spring.datasource.password:}}")
+    private String replicaPassword;
+
+    @Value("${app.datasource.replicas.maximum-pool-size:10}")
+    private int replicaPoolSize;
+
+    @Value("${app.datasource.replicas.max-lag:1s}")
+    private Duration maxLag;
+
+    @Value("${app.datasource.replicas.lag-query:SHOW REPLICA STATUS}")
+    private String lagQuery;
+
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariConfig primaryPoolConfig() {
+        return new HikariConfig();
+    }
+
+    @Bean
+    public ReplicaRoutingDataSource replicaRoutingDataSource(
+            DataSourceProperties properties, HikariConfig primaryPoolConfig, MeterRegistry meterRegistry) {
+        primaryPoolConfig.setJdbcUrl(properties.determineUrl());
+        primaryPoolConfig.setUsername(properties.determineUsername());
+        primaryPoolConfig.setPassword(properties.determinePassword());
+        primaryPoolConfig.setDriverClassName(properties.determineDriverClassName());
+        primaryPoolConfig.setPoolName("primary");
+        primaryPoolConfig.setMetricsTrackerFactory(new MicrometerMetricsTrackerFactory(meterRegistry));
+
+        List<HikariDataSource> replicas = new ArrayList<>();
+        List<String> urls = Arrays.stream(replicaUrls.split(",")).map(String::trim).filter(url -> !url.isEmpty()).toList();
+        for (int i = 0; i < urls.size(); i++) {
+            HikariConfig replicaConfig = new HikariConfig();
+            primaryPoolConfig.copyStateTo(replicaConfig);
+            replicaConfig.setJdbcUrl(urls.get(i));
+            replicaConfig.setUsername(replicaUsername);
+            replicaConfig.setPassword(replicaPassword);
+            replicaConfig.setPoolName("replica-" + (i + 1));
+            replicaConfig.setMaximumPoolSize(replicaPoolSize);
+            replicaConfig.setMinimumIdle(Math.min(replicaConfig.getMinimumIdle(), replicaPoolSize));
+            replicaConfig.setReadOnly(true);
+            replicas.add(new HikariDataSource(replicaConfig));
+        }
+        log.info("Läsningar i read-only-transaktioner går till {} replik(er), högst {} fördröjning",
+                replicas.size(), maxLag);
+        return new ReplicaRoutingDataSource(new HikariDataSource(primaryPoolConfig), replicas, maxLag, lagQuery, meterRegistry);
+    }
+
+    @Bean
+    @Primary
+    public DataSource dataSource(ReplicaRoutingDataSource replicaRoutingDataSource) {
+        return new LazyConnectionDataSourceProxy(replicaRoutingDataSource);
+    }
+}
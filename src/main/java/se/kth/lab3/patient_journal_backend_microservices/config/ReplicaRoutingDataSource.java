@@ -0,0 +1,183 @@
+package se.kth.lab3.patient_journal_backend_microservices.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Skickar read-only-transaktioner till en läsreplik och allt annat till primären. Replikerna
+ * turas om; en replik vars fördröjning överstiger maxLag, eller som inte svarar, hoppas över
+ * tills nästa kontroll visar att den kommit ikapp. Finns ingen sådan replik går läsningen
+ * till primären.
+ * <p>
+ * Måste ligga bakom en LazyConnectionDataSourceProxy: JpaTransactionManager hämtar
+ * anslutningen innan transaktionen markerats read-only, proxyn skjuter upp det till första
+ * frågan. Fördröjningen mäts med lagQuery, som standard SHOW REPLICA STATUS
+ * (kolumnen Seconds_Behind_Master), annars första kolumnen i sekunder.
+ */
+@Slf4j
+public class ReplicaRoutingDataSource extends AbstractRoutingDataSource implements Closeable {
+
+    static final String PRIMARY = "primary";
+
+    private static final ThreadLocal<Boolean> FORCE_PRIMARY = new ThreadLocal<>();
+
+    private final HikariDataSource primary;
+    private final List<Replica> replicas;
+    private final Duration maxLag;
+    private final String lagQuery;
+    private final AtomicInteger next = new AtomicInteger();
+    private final Counter routedToPrimary;
+    private final Counter routedToReplica;
+
+    public ReplicaRoutingDataSource(HikariDataSource primary, List<HikariDataSource> replicaPools,
+                                    Duration maxLag, String lagQuery, MeterRegistry meterRegistry) {
+        this.primary = primary;
+        this.replicas = replicaPools.stream().map(Replica::new).toList();
+        this.maxLag = maxLag;
+        this.lagQuery = lagQuery;
+
+        Map<Object, Object> targets = new HashMap<>();
+        targets.put(PRIMARY, primary);
+        for (Replica replica : replicas) {
+            targets.put(replica.name, replica.dataSource);
+            Gauge.builder("db.replica.lag", replica, r -> r.lagSeconds)
+                    .description("Replikens fördröjning mot primären i sekunder (NaN = okänd)")
+                    .tag("replica", replica.name)
+                    .register(meterRegistry);
+            Gauge.builder("db.replica.available", replica, r -> r.available ? 1 : 0)
+                    .description("1 om repliken får läsningar, 0 om den hoppas över")
+                    .tag("replica", replica.name)
+                    .register(meterRegistry);
+        }
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(primary);
+        this.routedToPrimary = Counter.builder("db.routing").tag("target", PRIMARY)
+                .description("Anslutningar per mål").register(meterRegistry);
+        this.routedToReplica = Counter.builder("db.routing").tag("target", "replica")
+                .description("Anslutningar per mål").register(meterRegistry);
+    }
+
+    /**
+     * Kör work med läsningar från primären även i en read-only-transaktion, för data som
+     * cachas och inte får fastna i ett inaktuellt tillstånd från en replik som ligger efter.
+     * Gäller bara om transaktionen inte redan har hämtat sin anslutning.
+     */
+    public static <T> T onPrimary(Supplier<T> work) {
+        if (Boolean.TRUE.equals(FORCE_PRIMARY.get())) {
+            return work.get();
+        }
+        FORCE_PRIMARY.set(true);
+        try {
+            return work.get();
+        } finally {
+            FORCE_PRIMARY.remove();
+        }
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        if (TransactionSynchronizationManager.isCurrentTransactionReadOnly() && FORCE_PRIMARY.get() == null) {
+            int size = replicas.size();
+            int start = Math.floorMod(next.getAndIncrement(), size);
+            for (int i = 0; i < size; i++) {
+                Replica replica = replicas.get((start + i) % size);
+                if (replica.available) {
+                    routedToReplica.increment();
+                    return replica.name;
+                }
+            }
+        }
+        routedToPrimary.increment();
+        return PRIMARY;
+    }
+
+    @Scheduled(fixedDelayString = "${app.datasource.replicas.lag-check-interval-ms:2000}")
+    public void checkLag() {
+        for (Replica replica : replicas) {
+            boolean wasAvailable = replica.available;
+            try {
+                Double lag = measureLagSeconds(replica.dataSource);
+                replica.lagSeconds = lag == null ? Double.NaN : lag;
+                replica.available = lag != null && lag <= maxLag.toMillis() / 1000.0;
+            } catch (SQLException | RuntimeException e) {
+                replica.lagSeconds = Double.NaN;
+                replica.available = false;
+                if (wasAvailable || !replica.checked) {
+                    log.warn("Kunde inte mäta fördröjning för {}: {}", replica.name, e.getMessage());
+                }
+            }
+            if (wasAvailable != replica.available) {
+                log.info("Replik {} {} (fördröjning {} s)", replica.name,
+                        replica.available ? "tar emot läsningar" : "hoppas över, läsningar går till primären",
+                        replica.lagSeconds);
+            }
+            replica.checked = true;
+        }
+    }
+
+    /**
+     * @return fördröjningen i sekunder, 0 om frågan inte ger någon rad (inte en replik),
+     * eller null om replikeringen står still
+     */
+    private Double measureLagSeconds(DataSource dataSource) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery(lagQuery)) {
+            if (!rs.next()) {
+                return 0.0;
+            }
+            Object value = rs.getObject(lagColumn(rs.getMetaData()));
+            return value == null ? null : Double.valueOf(value.toString());
+        }
+    }
+
+    private static int lagColumn(ResultSetMetaData meta) throws SQLException {
+        for (int i = 1; i <= meta.getColumnCount(); i++) {
+            if ("Seconds_Behind_Master".equalsIgnoreCase(meta.getColumnLabel(i))) {
+                return i;
+            }
+        }
+        return 1;
+    }
+
+    @Override
+    public void close() {
+        replicas.forEach(replica -> replica.dataSource.close());
+        primary.close();
+    }
+
+    private static final class Replica {
+
+        private final String name;
+        private final HikariDataSource dataSource;
+        // Får läsningar först när första kontrollen visat att den ligger i fas
+        private volatile boolean available;
+        private volatile double lagSeconds = Double.NaN;
+        private volatile boolean checked;
+
+        Replica(HikariDataSource dataSource) {
+            this.name = dataSource.getPoolName();
+            this.dataSource = dataSource;
+        }
+    }
+}
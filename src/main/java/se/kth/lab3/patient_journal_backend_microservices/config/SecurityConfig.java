@@ -1,9 +1,12 @@
 package se.kth.lab3.patient_journal_backend_microservices.config;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.convert.converter.Converter;
+import org.springframework.http.HttpHeaders;
+import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.config.annotation.method.configuration.EnableMethodSecurity;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
@@ -11,12 +14,17 @@ import org.springframework.security.config.http.SessionCreationPolicy;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
 import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationConverter;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationProvider;
 import org.springframework.security.web.SecurityFilterChain;
 import org.springframework.web.cors.CorsConfiguration;
 import org.springframework.web.cors.CorsConfigurationSource;
 import org.springframework.web.cors.UrlBasedCorsConfigurationSource;
+import se.kth.lab3.patient_journal_backend_microservices.dto.CursorPageDTO;
+import se.kth.lab3.patient_journal_backend_microservices.service.PatientReadModel;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -32,15 +40,27 @@ public class SecurityConfig {
     @Value("${app.frontend.url:https://lab3-frontend1.app.cloud.cbh.kth.se}")
     private String frontendUrl;
 
+    @Value("${app.security.token-cache.max-size:10000}")
+    private long tokenCacheMaxSize;
+
+    @Value("${app.security.token-cache.max-ttl:5m}")
+    private Duration tokenCacheMaxTtl;
+
     @Bean
-    public SecurityFilterChain securityFilterChain(HttpSecurity http) throws Exception {
+    public SecurityFilterChain securityFilterChain(
+            HttpSecurity http, JwtDecoder jwtDecoder, MeterRegistry meterRegistry) throws Exception {
         http
                 .cors(cors -> cors.configurationSource(corsConfigurationSource()))
                 .csrf(csrf -> csrf.disable())
                 .sessionManagement(session -> session.sessionCreationPolicy(SessionCreationPolicy.STATELESS))
                 .authorizeHttpRequests(auth -> auth
-                        .requestMatchers("/actuator/**").permitAll()
+                        // Bara probarna är öppna; metrics, läsmodellens läge och DLT-posterna
+                        // (patientdata som kan spelas upp igen) kräver STAFF
+                        .requestMatchers("/actuator/health/liveness", "/actuator/health/readiness").permitAll()
+                        .requestMatchers("/actuator/**").hasRole("STAFF")
                         .requestMatchers("/api/public/**").permitAll()
+                        // Sök över alla patienter är inte för patientrollen
+                        .requestMatchers("/api/patients/search").hasAnyRole("DOCTOR", "STAFF")
                         .requestMatchers("/api/patients/**").hasAnyRole("DOCTOR", "STAFF", "PATIENT")
                         .requestMatchers("/api/kafka/patients/**").hasAnyRole("DOCTOR", "STAFF")
                         .requestMatchers("/api/journal-entries/**").hasAnyRole("DOCTOR", "STAFF")
@@ -50,12 +70,22 @@ public class SecurityConfig {
                         .anyRequest().authenticated()
                 )
                 .oauth2ResourceServer(oauth2 -> oauth2
-                        .jwt(jwt -> jwt.jwtAuthenticationConverter(jwtAuthenticationConverter()))
+                        .jwt(jwt -> jwt.authenticationManager(jwtAuthenticationManager(jwtDecoder, meterRegistry)))
                 );
 
         return http.build();
     }
 
+    /**
+     * Verifiering med nycklarna från JwtDecoderConfig och rollmappning nedan, med
+     * resultatet cachat per token (se CachingJwtAuthenticationManager).
+     */
+    private AuthenticationManager jwtAuthenticationManager(JwtDecoder jwtDecoder, MeterRegistry meterRegistry) {
+        JwtAuthenticationProvider provider = new JwtAuthenticationProvider(jwtDecoder);
+        provider.setJwtAuthenticationConverter(jwtAuthenticationConverter());
+        return new CachingJwtAuthenticationManager(provider::authenticate, meterRegistry, tokenCacheMaxSize, tokenCacheMaxTtl);
+    }
+
     @Bean
     public JwtAuthenticationConverter jwtAuthenticationConverter() {
         JwtAuthenticationConverter converter = new JwtAuthenticationConverter();
@@ -96,8 +126,11 @@ public class SecurityConfig {
         ));
 
         configuration.setAllowedMethods(List.of("GET", "POST", "PUT", "DELETE", "OPTIONS"));
-        configuration.setAllowedHeaders(List.of("Authorization", "Content-Type", "Origin", "Accept"));
-        configuration.setExposedHeaders(List.of("Authorization"));
+        // Villkorliga anrop: If-None-Match för 304, If-Match för optimistisk läsning
+        configuration.setAllowedHeaders(List.of("Authorization", "Content-Type", "Origin", "Accept",
+                HttpHeaders.IF_MATCH, HttpHeaders.IF_NONE_MATCH, PatientReadModel.POSITION_HEADER, "Idempotency-Key"));
+        configuration.setExposedHeaders(List.of("Authorization", HttpHeaders.ETAG, CursorPageDTO.NEXT_CURSOR_HEADER,
+                PatientReadModel.POSITION_HEADER));
         configuration.setAllowCredentials(true);
 
         UrlBasedCorsConfigurationSource source = new UrlBasedCorsConfigurationSource();
@@ -0,0 +1,91 @@
+package se.kth.lab3.patient_journal_backend_microservices.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Vakt mot att virtuella trådar läses fast vid sin bärtråd (blockering inuti synchronized
+ * eller native-anrop). Lyssnar på JFR-händelsen jdk.VirtualThreadPinned, räknar den i
+ * jvm.threads.virtual.pinned och loggar översta ramarna, så att en ny synchronized-väg
+ * syns i loggen innan den hinner strypa alla bärtrådar under last.
+ */
+@Component
+@ConditionalOnProperty(name = "spring.threads.virtual.enabled", havingValue = "true")
+@Slf4j
+public class VirtualThreadPinningMonitor {
+
+    private static final String EVENT = "jdk.VirtualThreadPinned";
+    private static final int LOGGED_FRAMES = 8;
+
+    private final Counter pinned;
+    private final Duration threshold;
+    private RecordingStream stream;
+
+    public VirtualThreadPinningMonitor(
+            MeterRegistry meterRegistry,
+            @Value("${app.virtual-threads.pinning-threshold:20ms}") Duration threshold) {
+        this.threshold = threshold;
+        this.pinned = Counter.builder("jvm.threads.virtual.pinned")
+                .description("Virtuella trådar som blockerade sin bärtråd längre än tröskeln")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    void start() {
+        stream = new RecordingStream();
+        stream.enable(EVENT).withThreshold(threshold).withStackTrace();
+        stream.onEvent(EVENT, this::onPinned);
+        stream.startAsync();
+    }
+
+    private void onPinned(RecordedEvent event) {
+        pinned.increment();
+        log.warn("Virtuell tråd fastlåst i {} ms vid {}", event.getDuration().toMillis(), topFrames(event));
+    }
+
+    private static String topFrames(RecordedEvent event) {
+        if (event.getStackTrace() == null) {
+            return "okänd plats";
+        }
+        List<RecordedFrame> frames = event.getStackTrace().getFrames();
+        StringBuilder sb = new StringBuilder();
+        int logged = 0;
+        for (RecordedFrame frame : frames) {
+            if (logged == LOGGED_FRAMES) {
+                break;
+            }
+            String type = frame.getMethod().getType().getName();
+            // Parkeringsramarna i JDK:n är desamma för alla händelser, det är anroparen som är intressant
+            if (type.startsWith("java.lang.") || type.startsWith("jdk.internal.")) {
+                continue;
+            }
+            logged++;
+            sb.append("\n\tat ")
+                    .append(type)
+                    .append('.')
+                    .append(frame.getMethod().getName())
+                    .append(':')
+                    .append(frame.getLineNumber());
+        }
+        return sb.toString();
+    }
+
+    @PreDestroy
+    void stop() {
+        if (stream != null) {
+            stream.close();
+        }
+    }
+}
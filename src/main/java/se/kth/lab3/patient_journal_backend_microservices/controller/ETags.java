@@ -0,0 +1,106 @@
+package se.kth.lab3.patient_journal_backend_microservices.controller;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.server.ResponseStatusException;
+import se.kth.lab3.patient_journal_backend_microservices.config.ProtobufDtoHttpMessageConverter;
+
+import java.util.Map;
+
+/**
+ * Starka ETags av entiteternas @Version, t.ex. "3". Ingen hash av kroppen behövs: versionen
+ * räknas upp vid varje ändring. Varje format har egna bytes och därmed en egen tagg: JSON
+ * har "3", de binära formaten får formatet som suffix, t.ex. "3-cbor" (se
+ * RepresentationHeadersAdvice). Alla varianter av samma version jämförs som samma version.
+ */
+final class ETags {
+
+    private static final Map<MediaType, String> SUFFIXES = Map.of(
+            MediaType.APPLICATION_CBOR, "cbor",
+            new MediaType("application", "x-jackson-smile"), "smile",
+            ProtobufDtoHttpMessageConverter.APPLICATION_PROTOBUF, "protobuf");
+
+    private ETags() {
+    }
+
+    static String of(long version) {
+        return "\"" + version + "\"";
+    }
+
+    /**
+     * Taggen för versionen i formatet contentType; JSON och okända format får grundtaggen.
+     */
+    static String of(long version, MediaType contentType) {
+        String suffix = contentType == null ? null
+                : SUFFIXES.get(new MediaType(contentType.getType(), contentType.getSubtype()));
+        return suffix == null ? of(version) : "\"" + version + "-" + suffix + "\"";
+    }
+
+    /**
+     * Byter en av våra taggar mot samma versions tagg i formatet contentType. Andra taggar
+     * lämnas som de är.
+     */
+    static String forContentType(String etag, MediaType contentType) {
+        Long version = version(etag);
+        return version == null ? etag : of(version, contentType);
+    }
+
+    /**
+     * If-None-Match med svag jämförelse (RFC 9110): matchar "*" eller någon tagg i listan,
+     * med eller utan W/, för versionen i något format. Svaret får sedan taggen för det
+     * format som väljs, och Vary: Accept.
+     */
+    static boolean noneMatchHits(String ifNoneMatch, long version) {
+        for (String tag : ifNoneMatch.split(",")) {
+            String trimmed = tag.trim();
+            if (trimmed.equals("*")) {
+                return true;
+            }
+            Long tagVersion = version(trimmed.startsWith("W/") ? trimmed.substring(2) : trimmed);
+            if (tagVersion != null && tagVersion == version) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Versionen i en If-Match-header, eller null om headern saknas eller är "*" (då räcker
+     * det att resursen finns). If-Match kräver stark jämförelse, så svaga taggar kan aldrig
+     * matcha; de och listor med flera taggar ger 412.
+     */
+    static Long ifMatchVersion(String ifMatch) {
+        if (ifMatch == null || ifMatch.trim().equals("*")) {
+            return null;
+        }
+        Long version = version(ifMatch.trim());
+        if (version == null) {
+            throw new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, "If-Match matchar inte: " + ifMatch);
+        }
+        return version;
+    }
+
+    /**
+     * Versionen i en stark tagg "3" eller "3-cbor", annars null.
+     */
+    private static Long version(String tag) {
+        if (tag.length() <= 2 || !tag.startsWith("\"") || !tag.endsWith("\"")
+                || tag.indexOf('"', 1) != tag.length() - 1) {
+            return null;
+        }
+        String value = tag.substring(1, tag.length() - 1);
+        int dash = value.indexOf('-');
+        if (dash >= 0) {
+            if (!SUFFIXES.containsValue(value.substring(dash + 1))) {
+                return null;
+            }
+            value = value.substring(0, dash);
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            // Kan inte vara en av våra ETags
+            return null;
+        }
+    }
+}
@@ -1,13 +1,23 @@
 package se.kth.lab3.patient_journal_backend_microservices.controller;
 
 import jakarta.validation.Valid;
+import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.Size;
 import lombok.RequiredArgsConstructor;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import se.kth.lab3.patient_journal_backend_microservices.dto.CursorPageDTO;
+import se.kth.lab3.patient_journal_backend_microservices.dto.JournalChangesDTO;
 import se.kth.lab3.patient_journal_backend_microservices.dto.JournalEntryDTO;
 import se.kth.lab3.patient_journal_backend_microservices.service.JournalEntryService;
 
+import java.time.LocalDateTime;
 import java.util.List;
 
 @RestController
@@ -16,6 +26,8 @@ import java.util.List;
 // OBS: @CrossOrigin borttagen har
 public class JournalEntryController {
 
+    private static final int MAX_BATCH_SIZE = 10_000;
+
     private final JournalEntryService journalEntryService;
 
     @PostMapping
@@ -24,16 +36,85 @@ public class JournalEntryController {
         return new ResponseEntity<>(createdEntry, HttpStatus.CREATED);
     }
 
+    /**
+     * Bulkimport. Hela batchen valideras innan något sparas; ett fel avvisar hela batchen.
+     */
+    @PostMapping("/batch")
+    public ResponseEntity<List<JournalEntryDTO>> createJournalEntries(
+            @RequestBody @NotEmpty @Size(max = MAX_BATCH_SIZE) List<@Valid JournalEntryDTO> entries) {
+        List<JournalEntryDTO> created = journalEntryService.createJournalEntries(entries);
+        return new ResponseEntity<>(created, HttpStatus.CREATED);
+    }
+
+    /**
+     * Fritextsökning, bäst rankade först. Citattecken runt frågan kräver exakt fras.
+     */
+    @GetMapping("/search")
+    public ResponseEntity<List<JournalEntryDTO>> searchJournalEntries(
+            @RequestParam("q") String query,
+            @RequestParam(defaultValue = "20") int limit) {
+        return ResponseEntity.ok(journalEntryService.searchJournalEntries(query, limit));
+    }
+
+    /**
+     * Svarar med ETag. If-None-Match besvaras från versionen ensam: 304 utan att anteckningen
+     * laddas eller serialiseras.
+     */
     @GetMapping("/{id}")
-    public ResponseEntity<JournalEntryDTO> getJournalEntryById(@PathVariable Long id) {
+    public ResponseEntity<JournalEntryDTO> getJournalEntryById(
+            @PathVariable Long id,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        if (ifNoneMatch != null) {
+            long version = journalEntryService.getJournalEntryVersion(id);
+            if (ETags.noneMatchHits(ifNoneMatch, version)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(ETags.of(version)).build();
+            }
+        }
         JournalEntryDTO entry = journalEntryService.getJournalEntryById(id);
-        return ResponseEntity.ok(entry);
+        return ResponseEntity.ok().eTag(ETags.of(entry.getVersion())).body(entry);
     }
 
+    /**
+     * Listningen är keyset-paginerad, med {@link CursorPageDTO#DEFAULT_LIMIT} anteckningar per
+     * sida om limit saknas: nästa sidas cursor returneras i headern {@code X-Next-Cursor} och
+     * saknas när sista sidan är nådd. Hela listan på en gång fås bara med {@code all=true};
+     * för stora uttag finns /export.
+     */
     @GetMapping
-    public ResponseEntity<List<JournalEntryDTO>> getAllJournalEntries() {
-        List<JournalEntryDTO> entries = journalEntryService.getAllJournalEntries();
-        return ResponseEntity.ok(entries);
+    public ResponseEntity<List<JournalEntryDTO>> getAllJournalEntries(
+            @RequestParam(required = false) String after,
+            @RequestParam(required = false) Integer limit,
+            @RequestParam(defaultValue = "false") boolean all) {
+        if (all) {
+            if (after != null || limit != null) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                        "all=true går inte att kombinera med after eller limit");
+            }
+            return ResponseEntity.ok(journalEntryService.getAllJournalEntries());
+        }
+        CursorPageDTO<JournalEntryDTO> page = journalEntryService.getJournalEntriesPage(after,
+                limit == null ? CursorPageDTO.DEFAULT_LIMIT : limit);
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        if (page.getNextCursor() != null) {
+            response.header(CursorPageDTO.NEXT_CURSOR_HEADER, page.getNextCursor());
+        }
+        return response.body(page.getItems());
+    }
+
+    /**
+     * Bulkexport som NDJSON, en anteckning per rad. Filtrering på patient och
+     * tidsintervall [from, to) är valfri.
+     */
+    @GetMapping(value = "/export", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> exportJournalEntries(
+            @RequestParam(required = false) Long patientId,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to) {
+        StreamingResponseBody body = out -> journalEntryService.exportJournalEntries(patientId, from, to, out);
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"journal-entries.ndjson\"")
+                .body(body);
     }
 
     @GetMapping("/patient/{patientId}")
@@ -42,12 +123,33 @@ public class JournalEntryController {
         return ResponseEntity.ok(entries);
     }
 
+    /**
+     * Delta-synk av tidslinjen: det som skapats, ändrats eller tagits bort efter synktoken
+     * since. Första synken görs med since=0, därefter med syncToken från föregående svar.
+     */
+    @GetMapping(value = "/patient/{patientId}", params = "since")
+    public ResponseEntity<JournalChangesDTO> getJournalEntryChanges(
+            @PathVariable Long patientId,
+            @RequestParam long since) {
+        return ResponseEntity.ok(journalEntryService.getJournalEntryChanges(patientId, since));
+    }
+
+    /**
+     * Med If-Match uppdateras anteckningen bara om ETag:en fortfarande stämmer (annars 412),
+     * och svaret är 204 med den nya ETag:en.
+     */
     @PutMapping("/{id}")
     public ResponseEntity<JournalEntryDTO> updateJournalEntry(
             @PathVariable Long id,
-            @Valid @RequestBody JournalEntryDTO journalEntryDTO) {
+            @Valid @RequestBody JournalEntryDTO journalEntryDTO,
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+        if (ifMatch != null) {
+            JournalEntryDTO updatedEntry = journalEntryService.updateJournalEntry(
+                    id, journalEntryDTO, ETags.ifMatchVersion(ifMatch));
+            return ResponseEntity.noContent().eTag(ETags.of(updatedEntry.getVersion())).build();
+        }
         JournalEntryDTO updatedEntry = journalEntryService.updateJournalEntry(id, journalEntryDTO);
-        return ResponseEntity.ok(updatedEntry);
+        return ResponseEntity.ok().eTag(ETags.of(updatedEntry.getVersion())).body(updatedEntry);
     }
 
     @DeleteMapping("/{id}")
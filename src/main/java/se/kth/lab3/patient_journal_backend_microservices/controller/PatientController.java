@@ -1,11 +1,17 @@
 package se.kth.lab3.patient_journal_backend_microservices.controller;
 
 import jakarta.validation.Valid;
+import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.Size;
 import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import se.kth.lab3.patient_journal_backend_microservices.dto.CursorPageDTO;
 import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
+import se.kth.lab3.patient_journal_backend_microservices.service.PatientReadModel;
 import se.kth.lab3.patient_journal_backend_microservices.service.PatientService;
 
 import java.util.List;
@@ -16,6 +22,8 @@ import java.util.List;
 // OBS: @CrossOrigin borttagen här för att SecurityConfig ska styra
 public class PatientController {
 
+    private static final int MAX_BATCH_SIZE = 10_000;
+
     private final PatientService patientService;
 
     @PostMapping
@@ -24,24 +32,104 @@ public class PatientController {
         return new ResponseEntity<>(createdPatient, HttpStatus.CREATED);
     }
 
+    /**
+     * Bulkimport. Hela batchen valideras innan något sparas; ett fel avvisar hela batchen.
+     */
+    @PostMapping("/batch")
+    public ResponseEntity<List<PatientDTO>> createPatients(
+            @RequestBody @NotEmpty @Size(max = MAX_BATCH_SIZE) List<@Valid PatientDTO> patients) {
+        List<PatientDTO> created = patientService.createPatients(patients);
+        return new ResponseEntity<>(created, HttpStatus.CREATED);
+    }
+
+    /**
+     * Svarar med ETag. If-None-Match besvaras från versionen ensam: 304 utan att patienten
+     * laddas eller serialiseras. Svar från läsmodellen har dess position i
+     * {@code X-Patient-Events-Offset}; skickas den med i nästa anrop, även till en annan
+     * replika, är svaret minst lika nytt.
+     */
     @GetMapping("/{id}")
-    public ResponseEntity<PatientDTO> getPatientById(@PathVariable Long id) {
-        PatientDTO patient = patientService.getPatientById(id);
+    public ResponseEntity<PatientDTO> getPatientById(
+            @PathVariable Long id,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+            @RequestHeader(value = PatientReadModel.POSITION_HEADER, required = false) String minPosition) {
+        if (ifNoneMatch != null) {
+            long version = patientService.getPatientVersion(id, minPosition);
+            if (ETags.noneMatchHits(ifNoneMatch, version)) {
+                return withPosition(ResponseEntity.status(HttpStatus.NOT_MODIFIED)).eTag(ETags.of(version)).build();
+            }
+        }
+        PatientDTO patient = patientService.getPatientById(id, minPosition);
+        return withPosition(ResponseEntity.ok()).eTag(ETags.of(patient.getVersion())).body(patient);
+    }
+
+    /**
+     * Sök medan man skriver: del av namn eller personnummer, tal för stavfel.
+     */
+    @GetMapping("/search")
+    public ResponseEntity<List<PatientDTO>> searchPatients(
+            @RequestParam("q") String query,
+            @RequestParam(defaultValue = "10") int limit) {
+        return ResponseEntity.ok(patientService.searchPatients(query, limit));
+    }
+
+    @GetMapping("/personal-number/{personalNumber}")
+    public ResponseEntity<PatientDTO> getPatientByPersonalNumber(@PathVariable String personalNumber) {
+        PatientDTO patient = patientService.getPatientByPersonalNumber(personalNumber);
         return ResponseEntity.ok(patient);
     }
 
+    /**
+     * Listningen är keyset-paginerad, med {@link CursorPageDTO#DEFAULT_LIMIT} patienter per sida
+     * om limit saknas: nästa sidas cursor returneras i headern {@code X-Next-Cursor} och saknas
+     * när sista sidan är nådd. Hela listan på en gång fås bara med {@code all=true}.
+     */
     @GetMapping
-    public ResponseEntity<List<PatientDTO>> getAllPatients() {
-        List<PatientDTO> patients = patientService.getAllPatients();
-        return ResponseEntity.ok(patients);
+    public ResponseEntity<List<PatientDTO>> getAllPatients(
+            @RequestParam(required = false) String after,
+            @RequestParam(required = false) Integer limit,
+            @RequestParam(defaultValue = "false") boolean all,
+            @RequestHeader(value = PatientReadModel.POSITION_HEADER, required = false) String minPosition) {
+        if (all) {
+            if (after != null || limit != null) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                        "all=true går inte att kombinera med after eller limit");
+            }
+            return withPosition(ResponseEntity.ok()).body(patientService.getAllPatients(minPosition));
+        }
+        CursorPageDTO<PatientDTO> page = patientService.getPatientsPage(after,
+                limit == null ? CursorPageDTO.DEFAULT_LIMIT : limit, minPosition);
+        ResponseEntity.BodyBuilder response = withPosition(ResponseEntity.ok());
+        if (page.getNextCursor() != null) {
+            response.header(CursorPageDTO.NEXT_CURSOR_HEADER, page.getNextCursor());
+        }
+        return response.body(page.getItems());
     }
 
+    /**
+     * Med If-Match uppdateras patienten bara om ETag:en fortfarande stämmer (annars 412), och
+     * svaret är 204 med den nya ETag:en: klienten har redan kroppen den skickade.
+     */
     @PutMapping("/{id}")
     public ResponseEntity<PatientDTO> updatePatient(
             @PathVariable Long id,
-            @Valid @RequestBody PatientDTO patientDTO) {
+            @Valid @RequestBody PatientDTO patientDTO,
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+        if (ifMatch != null) {
+            PatientDTO updatedPatient = patientService.updatePatient(id, patientDTO, ETags.ifMatchVersion(ifMatch));
+            return ResponseEntity.noContent().eTag(ETags.of(updatedPatient.getVersion())).build();
+        }
         PatientDTO updatedPatient = patientService.updatePatient(id, patientDTO);
-        return ResponseEntity.ok(updatedPatient);
+        return ResponseEntity.ok().eTag(ETags.of(updatedPatient.getVersion())).body(updatedPatient);
+    }
+
+    // Positionen läses efter datat, så den är aldrig äldre än svaret
+    private ResponseEntity.BodyBuilder withPosition(ResponseEntity.BodyBuilder response) {
+        String position = patientService.getReadModelPosition();
+        if (position != null) {
+            response.header(PatientReadModel.POSITION_HEADER, position);
+        }
+        return response;
     }
 
     @DeleteMapping("/{id}")
@@ -2,11 +2,17 @@ package se.kth.lab3.patient_journal_backend_microservices.controller;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
-import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
 import se.kth.lab3.patient_journal_backend_microservices.dto.PatientCommandDTO;
 import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
+import se.kth.lab3.patient_journal_backend_microservices.kafka.EventPublisher;
+import se.kth.lab3.patient_journal_backend_microservices.service.PatientService;
+
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
 
 @RestController
 @RequestMapping("/api/kafka/patients")
@@ -15,14 +21,24 @@ import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
 // OBS: @CrossOrigin borttagen här
 public class PatientKafkaController {
 
-    private final KafkaTemplate<String, PatientCommandDTO> commandKafkaTemplate;
+    private final EventPublisher eventPublisher;
+    private final PatientService patientService;
 
     private static final String TOPIC = "patient.commands";
+    private static final String IDEMPOTENCY_KEY = "Idempotency-Key";
 
+    /**
+     * Varje kommando får ett commandId, klientens Idempotency-Key om den skickas med: då
+     * utförs ett omskickat anrop bara en gång, precis som en omleverans från Kafka.
+     */
     @PostMapping
-    public ResponseEntity<String> createPatientViaKafka(@RequestBody PatientDTO patientDTO) {
-        PatientCommandDTO command = new PatientCommandDTO("CREATE", null, patientDTO);
-        commandKafkaTemplate.send(TOPIC, command);
+    public ResponseEntity<String> createPatientViaKafka(
+            @RequestBody PatientDTO patientDTO,
+            @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        PatientCommandDTO command = new PatientCommandDTO("CREATE", null, patientDTO, commandId(idempotencyKey));
+        // Alla kommandon om en patient har personnumret som nyckel, så de hamnar i samma
+        // partition och körs i ordning
+        send(patientDTO.getPersonalNumber(), command);
         return ResponseEntity.accepted()
                 .body("CREATE-kommando skickat till Kafka topic '" + TOPIC + "'.");
     }
@@ -30,18 +46,51 @@ public class PatientKafkaController {
     @PutMapping("/{id}")
     public ResponseEntity<String> updatePatientViaKafka(
             @PathVariable Long id,
-            @RequestBody PatientDTO patientDTO) {
-        PatientCommandDTO command = new PatientCommandDTO("UPDATE", id, patientDTO);
-        commandKafkaTemplate.send(TOPIC, id.toString(), command);
+            @RequestBody PatientDTO patientDTO,
+            @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        PatientCommandDTO command = new PatientCommandDTO("UPDATE", id, patientDTO, commandId(idempotencyKey));
+        send(commandKey(id), command);
         return ResponseEntity.accepted()
                 .body("UPDATE-kommando skickat till Kafka topic '" + TOPIC + "'.");
     }
 
     @DeleteMapping("/{id}")
-    public ResponseEntity<String> deletePatientViaKafka(@PathVariable Long id) {
-        PatientCommandDTO command = new PatientCommandDTO("DELETE", id, null);
-        commandKafkaTemplate.send(TOPIC, id.toString(), command);
+    public ResponseEntity<String> deletePatientViaKafka(
+            @PathVariable Long id,
+            @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        PatientCommandDTO command = new PatientCommandDTO("DELETE", id, null, commandId(idempotencyKey));
+        send(commandKey(id), command);
         return ResponseEntity.accepted()
                 .body("DELETE-kommando skickat till Kafka topic '" + TOPIC + "'.");
     }
-}
\ No newline at end of file
+
+    /**
+     * Samma nyckel som CREATE gav patienten. Finns patienten inte kommer kommandot att
+     * misslyckas ändå, och id:t duger som nyckel.
+     */
+    private String commandKey(Long id) {
+        return patientService.findPersonalNumber(id).orElse(id.toString());
+    }
+
+    private static String commandId(String idempotencyKey) {
+        if (idempotencyKey == null || idempotencyKey.isBlank()) {
+            return UUID.randomUUID().toString();
+        }
+        if (idempotencyKey.length() > 64) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, IDEMPOTENCY_KEY + " får vara högst 64 tecken");
+        }
+        return idempotencyKey.trim();
+    }
+
+    /**
+     * Svaret (202) väntar inte på brokern; fel loggas och mäts av EventPublisher. Är kön
+     * full svarar vi 503 direkt i stället för att hålla request-tråden.
+     */
+    private void send(String key, PatientCommandDTO command) {
+        try {
+            eventPublisher.publish(TOPIC, key, command);
+        } catch (RejectedExecutionException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage());
+        }
+    }
+}
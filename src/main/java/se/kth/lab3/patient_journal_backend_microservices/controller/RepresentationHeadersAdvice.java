@@ -0,0 +1,48 @@
+package se.kth.lab3.patient_journal_backend_microservices.controller;
+
+import org.springframework.core.MethodParameter;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.http.server.ServletServerHttpResponse;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+/**
+ * Formatet (JSON, CBOR, Smile, Protobuf) väljs först när svaret skrivs, efter Accept. Har
+ * är det valt: ETag:en byts mot formatets egen tagg, så att olika bytes aldrig delar en stark
+ * tagg, och Vary: Accept säger till cacher att svaret beror på Accept.
+ */
+@ControllerAdvice(assignableTypes = {PatientController.class, JournalEntryController.class})
+class RepresentationHeadersAdvice implements ResponseBodyAdvice<Object> {
+
+    @Override
+    public boolean supports(MethodParameter returnType, Class<? extends HttpMessageConverter<?>> converterType) {
+        return true;
+    }
+
+    @Override
+    public Object beforeBodyWrite(Object body, MethodParameter returnType, MediaType selectedContentType,
+                                  Class<? extends HttpMessageConverter<?>> selectedConverterType,
+                                  ServerHttpRequest request, ServerHttpResponse response) {
+        HttpHeaders headers = response.getHeaders();
+        if (!headers.getVary().contains(HttpHeaders.ACCEPT)) {
+            headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        }
+        String etag = headers.getETag();
+        if (etag != null) {
+            String tag = ETags.forContentType(etag, selectedContentType);
+            if (response instanceof ServletServerHttpResponse servletResponse) {
+                // Vid 200 har Spring redan skrivit ETag:en direkt på servlet-svaret
+                // (checkNotModified); den ska bytas ut, inte få en andra tagg bredvid sig
+                servletResponse.getServletResponse().setHeader(HttpHeaders.ETAG, tag);
+                headers.remove(HttpHeaders.ETAG);
+            } else {
+                headers.setETag(tag);
+            }
+        }
+        return body;
+    }
+}
@@ -0,0 +1,27 @@
+package se.kth.lab3.patient_journal_backend_microservices.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CursorPageDTO<T> {
+
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+    /**
+     * Sidstorlek när limit inte anges
+     */
+    public static final int DEFAULT_LIMIT = 50;
+
+    private List<T> items;
+
+    /**
+     * Opak cursor för nästa sida, eller null om detta var sista sidan
+     */
+    private String nextCursor;
+}
@@ -0,0 +1,400 @@
+package se.kth.lab3.patient_journal_backend_microservices.dto;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Protobuf-kodning av DTO:erna enligt src/main/proto/patient_journal.proto, skriven direkt
+ * med CodedOutputStream/CodedInputStream istället för protoc-genererade klasser. Då behövs
+ * ingen kopia av varje DTO till ett meddelandeobjekt, och null-fält skrivs inte alls.
+ * Storleken räknas först, så att svaret kodas rakt in i en byte-array av exakt rätt längd.
+ */
+public final class DtoProtobufCodec {
+
+    private DtoProtobufCodec() {
+    }
+
+    private interface MessageCodec<T> {
+        int size(T value);
+
+        void write(CodedOutputStream out, T value) throws IOException;
+
+        T read(CodedInputStream in) throws IOException;
+    }
+
+    private static final MessageCodec<PatientDTO> PATIENT = new MessageCodec<>() {
+        @Override
+        public int size(PatientDTO patient) {
+            return int64Size(1, patient.getId())
+                    + stringSize(2, patient.getFirstName())
+                    + stringSize(3, patient.getLastName())
+                    + stringSize(4, patient.getPersonalNumber())
+                    + (patient.getDateOfBirth() == null ? 0
+                        : CodedOutputStream.computeSInt32Size(5, (int) patient.getDateOfBirth().toEpochDay()))
+                    + stringSize(6, patient.getEmail())
+                    + stringSize(7, patient.getPhoneNumber())
+                    + stringSize(8, patient.getAddress())
+                    + int64Size(9, patient.getVersion());
+        }
+
+        @Override
+        public void write(CodedOutputStream out, PatientDTO patient) throws IOException {
+            writeInt64(out, 1, patient.getId());
+            writeString(out, 2, patient.getFirstName());
+            writeString(out, 3, patient.getLastName());
+            writeString(out, 4, patient.getPersonalNumber());
+            if (patient.getDateOfBirth() != null) {
+                out.writeSInt32(5, (int) patient.getDateOfBirth().toEpochDay());
+            }
+            writeString(out, 6, patient.getEmail());
+            writeString(out, 7, patient.getPhoneNumber());
+            writeString(out, 8, patient.getAddress());
+            writeInt64(out, 9, patient.getVersion());
+        }
+
+        @Override
+        public PatientDTO read(CodedInputStream in) throws IOException {
+            PatientDTO patient = new PatientDTO();
+            int tag;
+            while ((tag = in.readTag()) != 0) {
+                switch (WireFormat.getTagFieldNumber(tag)) {
+                    case 1 -> patient.setId(in.readInt64());
+                    case 2 -> patient.setFirstName(in.readStringRequireUtf8());
+                    case 3 -> patient.setLastName(in.readStringRequireUtf8());
+                    case 4 -> patient.setPersonalNumber(in.readStringRequireUtf8());
+                    case 5 -> patient.setDateOfBirth(LocalDate.ofEpochDay(in.readSInt32()));
+                    case 6 -> patient.setEmail(in.readStringRequireUtf8());
+                    case 7 -> patient.setPhoneNumber(in.readStringRequireUtf8());
+                    case 8 -> patient.setAddress(in.readStringRequireUtf8());
+                    case 9 -> patient.setVersion(in.readInt64());
+                    default -> in.skipField(tag);
+                }
+            }
+            return patient;
+        }
+    };
+
+    private static final MessageCodec<JournalEntryDTO> JOURNAL_ENTRY = new MessageCodec<>() {
+        @Override
+        public int size(JournalEntryDTO entry) {
+            return int64Size(1, entry.getId())
+                    + int64Size(2, entry.getPatientId())
+                    + stringSize(3, entry.getNote())
+                    + (entry.getCreatedAt() == null ? 0
+                        : CodedOutputStream.computeSInt64Size(4, epochMicros(entry.getCreatedAt())))
+                    + stringSize(5, entry.getDiagnosis())
+                    + stringSize(6, entry.getTreatment())
+                    + int64Size(7, entry.getVersion())
+                    + boolSize(8, entry.getDeleted());
+        }
+
+        @Override
+        public void write(CodedOutputStream out, JournalEntryDTO entry) throws IOException {
+            writeInt64(out, 1, entry.getId());
+            writeInt64(out, 2, entry.getPatientId());
+            writeString(out, 3, entry.getNote());
+            if (entry.getCreatedAt() != null) {
+                out.writeSInt64(4, epochMicros(entry.getCreatedAt()));
+            }
+            writeString(out, 5, entry.getDiagnosis());
+            writeString(out, 6, entry.getTreatment());
+            writeInt64(out, 7, entry.getVersion());
+            writeBool(out, 8, entry.getDeleted());
+        }
+
+        @Override
+        public JournalEntryDTO read(CodedInputStream in) throws IOException {
+            JournalEntryDTO entry = new JournalEntryDTO();
+            int tag;
+            while ((tag = in.readTag()) != 0) {
+                switch (WireFormat.getTagFieldNumber(tag)) {
+                    case 1 -> entry.setId(in.readInt64());
+                    case 2 -> entry.setPatientId(in.readInt64());
+                    case 3 -> entry.setNote(in.readStringRequireUtf8());
+                    case 4 -> entry.setCreatedAt(fromEpochMicros(in.readSInt64()));
+                    case 5 -> entry.setDiagnosis(in.readStringRequireUtf8());
+                    case 6 -> entry.setTreatment(in.readStringRequireUtf8());
+                    case 7 -> entry.setVersion(in.readInt64());
+                    case 8 -> entry.setDeleted(in.readBool());
+                    default -> in.skipField(tag);
+                }
+            }
+            return entry;
+        }
+    };
+
+    private static final MessageCodec<PatientCommandDTO> PATIENT_COMMAND = new MessageCodec<>() {
+        @Override
+        public int size(PatientCommandDTO command) {
+            return stringSize(1, command.getCommandType())
+                    + int64Size(2, command.getPatientId())
+                    + (command.getPatient() == null ? 0 : embeddedSize(3, PATIENT.size(command.getPatient())))
+                    + stringSize(4, command.getCommandId());
+        }
+
+        @Override
+        public void write(CodedOutputStream out, PatientCommandDTO command) throws IOException {
+            writeString(out, 1, command.getCommandType());
+            writeInt64(out, 2, command.getPatientId());
+            if (command.getPatient() != null) {
+                out.writeTag(3, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                out.writeUInt32NoTag(PATIENT.size(command.getPatient()));
+                PATIENT.write(out, command.getPatient());
+            }
+            writeString(out, 4, command.getCommandId());
+        }
+
+        @Override
+        public PatientCommandDTO read(CodedInputStream in) throws IOException {
+            PatientCommandDTO command = new PatientCommandDTO();
+            int tag;
+            while ((tag = in.readTag()) != 0) {
+                switch (WireFormat.getTagFieldNumber(tag)) {
+                    case 1 -> command.setCommandType(in.readStringRequireUtf8());
+                    case 2 -> command.setPatientId(in.readInt64());
+                    case 3 -> command.setPatient(readEmbedded(PATIENT, in));
+                    case 4 -> command.setCommandId(in.readStringRequireUtf8());
+                    default -> in.skipField(tag);
+                }
+            }
+            return command;
+        }
+    };
+
+    public static byte[] encode(PatientDTO patient) {
+        return encode(PATIENT, patient);
+    }
+
+    public static byte[] encode(JournalEntryDTO entry) {
+        return encode(JOURNAL_ENTRY, entry);
+    }
+
+    public static byte[] encode(PatientCommandDTO command) {
+        return encode(PATIENT_COMMAND, command);
+    }
+
+    // PatientList
+    public static byte[] encodePatients(List<PatientDTO> patients) {
+        return encodeList(PATIENT, patients);
+    }
+
+    // JournalEntryList
+    public static byte[] encodeJournalEntries(List<JournalEntryDTO> entries) {
+        return encodeList(JOURNAL_ENTRY, entries);
+    }
+
+    public static byte[] encode(JournalChangesDTO changes) {
+        List<JournalEntryDTO> changed = changes.getChanged() == null ? List.of() : changes.getChanged();
+        List<Long> deleted = changes.getDeleted() == null ? List.of() : changes.getDeleted();
+        int[] sizes = new int[changed.size()];
+        int size = repeatedSize(JOURNAL_ENTRY, 1, changed, sizes);
+        int deletedSize = 0;
+        for (Long id : deleted) {
+            deletedSize += CodedOutputStream.computeInt64SizeNoTag(id);
+        }
+        if (!deleted.isEmpty()) {
+            size += embeddedSize(2, deletedSize);
+        }
+        if (changes.getSyncToken() != 0) {
+            size += CodedOutputStream.computeInt64Size(3, changes.getSyncToken());
+        }
+
+        byte[] bytes = new byte[size];
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        try {
+            writeRepeated(out, JOURNAL_ENTRY, 1, changed, sizes);
+            // Packad som standard i proto3
+            if (!deleted.isEmpty()) {
+                out.writeTag(2, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                out.writeUInt32NoTag(deletedSize);
+                for (Long id : deleted) {
+                    out.writeInt64NoTag(id);
+                }
+            }
+            if (changes.getSyncToken() != 0) {
+                out.writeInt64(3, changes.getSyncToken());
+            }
+            out.checkNoSpaceLeft();
+        } catch (IOException e) {
+            throw new IllegalStateException("Protobuf-kodningen gav fel storlek", e);
+        }
+        return bytes;
+    }
+
+    public static PatientDTO decodePatient(byte[] bytes) throws IOException {
+        return decodePatient(bytes, 0, bytes.length);
+    }
+
+    // offset/length: meddelandet efter ett eget huvud, t.ex. schema-id:t på Kafka, utan kopiering
+    public static PatientDTO decodePatient(byte[] bytes, int offset, int length) throws IOException {
+        return PATIENT.read(CodedInputStream.newInstance(bytes, offset, length));
+    }
+
+    public static JournalEntryDTO decodeJournalEntry(byte[] bytes) throws IOException {
+        return decodeJournalEntry(bytes, 0, bytes.length);
+    }
+
+    public static JournalEntryDTO decodeJournalEntry(byte[] bytes, int offset, int length) throws IOException {
+        return JOURNAL_ENTRY.read(CodedInputStream.newInstance(bytes, offset, length));
+    }
+
+    public static PatientCommandDTO decodePatientCommand(byte[] bytes) throws IOException {
+        return decodePatientCommand(bytes, 0, bytes.length);
+    }
+
+    public static PatientCommandDTO decodePatientCommand(byte[] bytes, int offset, int length) throws IOException {
+        return PATIENT_COMMAND.read(CodedInputStream.newInstance(bytes, offset, length));
+    }
+
+    public static List<PatientDTO> decodePatients(byte[] bytes) throws IOException {
+        return decodeList(PATIENT, bytes);
+    }
+
+    public static List<JournalEntryDTO> decodeJournalEntries(byte[] bytes) throws IOException {
+        return decodeList(JOURNAL_ENTRY, bytes);
+    }
+
+    public static JournalChangesDTO decodeJournalChanges(byte[] bytes) throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(bytes);
+        JournalChangesDTO changes = new JournalChangesDTO(new ArrayList<>(), new ArrayList<>(), 0);
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case 1 -> changes.getChanged().add(readEmbedded(JOURNAL_ENTRY, in));
+                case 2 -> {
+                    // Parsers ska klara både packad och opackad form
+                    if (WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                        int limit = in.pushLimit(in.readRawVarint32());
+                        while (in.getBytesUntilLimit() > 0) {
+                            changes.getDeleted().add(in.readInt64());
+                        }
+                        in.popLimit(limit);
+                    } else {
+                        changes.getDeleted().add(in.readInt64());
+                    }
+                }
+                case 3 -> changes.setSyncToken(in.readInt64());
+                default -> in.skipField(tag);
+            }
+        }
+        return changes;
+    }
+
+    private static <T> byte[] encode(MessageCodec<T> codec, T value) {
+        byte[] bytes = new byte[codec.size(value)];
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        try {
+            codec.write(out, value);
+            out.checkNoSpaceLeft();
+        } catch (IOException e) {
+            throw new IllegalStateException("Protobuf-kodningen gav fel storlek", e);
+        }
+        return bytes;
+    }
+
+    // Listorna är meddelanden med ett enda repeated-fält, nummer 1
+    private static <T> byte[] encodeList(MessageCodec<T> codec, List<T> values) {
+        int[] sizes = new int[values.size()];
+        byte[] bytes = new byte[repeatedSize(codec, 1, values, sizes)];
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        try {
+            writeRepeated(out, codec, 1, values, sizes);
+            out.checkNoSpaceLeft();
+        } catch (IOException e) {
+            throw new IllegalStateException("Protobuf-kodningen gav fel storlek", e);
+        }
+        return bytes;
+    }
+
+    private static <T> List<T> decodeList(MessageCodec<T> codec, byte[] bytes) throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(bytes);
+        List<T> values = new ArrayList<>();
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            if (WireFormat.getTagFieldNumber(tag) == 1) {
+                values.add(readEmbedded(codec, in));
+            } else {
+                in.skipField(tag);
+            }
+        }
+        return values;
+    }
+
+    // Fyller sizes med varje elements storlek, så att de inte behöver räknas om när de skrivs
+    private static <T> int repeatedSize(MessageCodec<T> codec, int field, List<T> values, int[] sizes) {
+        int total = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = codec.size(values.get(i));
+            total += embeddedSize(field, sizes[i]);
+        }
+        return total;
+    }
+
+    private static <T> void writeRepeated(CodedOutputStream out, MessageCodec<T> codec, int field, List<T> values,
+                                          int[] sizes) throws IOException {
+        for (int i = 0; i < sizes.length; i++) {
+            out.writeTag(field, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            out.writeUInt32NoTag(sizes[i]);
+            codec.write(out, values.get(i));
+        }
+    }
+
+    private static <T> T readEmbedded(MessageCodec<T> codec, CodedInputStream in) throws IOException {
+        int limit = in.pushLimit(in.readRawVarint32());
+        T value = codec.read(in);
+        in.popLimit(limit);
+        return value;
+    }
+
+    private static int embeddedSize(int field, int size) {
+        return CodedOutputStream.computeTagSize(field) + CodedOutputStream.computeUInt32SizeNoTag(size) + size;
+    }
+
+    private static int int64Size(int field, Long value) {
+        return value == null ? 0 : CodedOutputStream.computeInt64Size(field, value);
+    }
+
+    private static int stringSize(int field, String value) {
+        return value == null ? 0 : CodedOutputStream.computeStringSize(field, value);
+    }
+
+    private static int boolSize(int field, Boolean value) {
+        return value == null ? 0 : CodedOutputStream.computeBoolSize(field, value);
+    }
+
+    private static void writeBool(CodedOutputStream out, int field, Boolean value) throws IOException {
+        if (value != null) {
+            out.writeBool(field, value);
+        }
+    }
+
+    private static void writeInt64(CodedOutputStream out, int field, Long value) throws IOException {
+        if (value != null) {
+            out.writeInt64(field, value);
+        }
+    }
+
+    private static void writeString(CodedOutputStream out, int field, String value) throws IOException {
+        if (value != null) {
+            out.writeString(field, value);
+        }
+    }
+
+    // LocalDateTime har ingen zon; räknas som om den vore UTC, med mikrosekundsupplösning
+    private static long epochMicros(LocalDateTime time) {
+        return time.toEpochSecond(ZoneOffset.UTC) * 1_000_000 + time.getNano() / 1_000;
+    }
+
+    private static LocalDateTime fromEpochMicros(long micros) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(micros, 1_000_000),
+                (int) Math.floorMod(micros, 1_000_000) * 1_000, ZoneOffset.UTC);
+    }
+}
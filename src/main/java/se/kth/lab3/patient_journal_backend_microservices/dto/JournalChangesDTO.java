@@ -0,0 +1,24 @@
+package se.kth.lab3.patient_journal_backend_microservices.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Ändringarna i en patients tidslinje sedan en synktoken. syncToken skickas som since
+ * i nästa anrop.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class JournalChangesDTO {
+
+    // Skapade eller ändrade sedan since, i ändringsordning
+    private List<JournalEntryDTO> changed;
+
+    private List<Long> deleted;
+
+    private long syncToken;
+}
@@ -1,5 +1,6 @@
 package se.kth.lab3.patient_journal_backend_microservices.dto;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.NotNull;
 import lombok.AllArgsConstructor;
@@ -26,4 +27,16 @@ public class JournalEntryDTO {
     private String diagnosis;
 
     private String treatment;
+
+    // Sätts av servern; samma värde som i ETag-headern
+    private Long version;
+
+    // Bara satt (true) på journal.events när anteckningen tagits bort; finns aldrig i API-svaren
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Boolean deleted;
+
+    public JournalEntryDTO(Long id, Long patientId, String note, LocalDateTime createdAt, String diagnosis,
+                           String treatment, Long version) {
+        this(id, patientId, note, createdAt, diagnosis, treatment, version, null);
+    }
 }
\ No newline at end of file
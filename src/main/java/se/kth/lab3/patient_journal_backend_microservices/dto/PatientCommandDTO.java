@@ -23,4 +23,14 @@ public class PatientCommandDTO {
      * Patient-data (används för CREATE och UPDATE)
      */
     private PatientDTO patient;
+
+    /**
+     * Unikt id per kommando (UUID eller klientens Idempotency-Key). Ett kommando som
+     * levereras igen med samma id utförs inte en gång till; null = ingen deduplicering
+     */
+    private String commandId;
+
+    public PatientCommandDTO(String commandType, Long patientId, PatientDTO patient) {
+        this(commandType, patientId, patient, null);
+    }
 }
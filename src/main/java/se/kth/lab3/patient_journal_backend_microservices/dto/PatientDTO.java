@@ -32,4 +32,7 @@ public class PatientDTO {
     private String phoneNumber;
 
     private String address;
+
+    // Sätts av servern; samma värde som i ETag-headern
+    private Long version;
 }
\ No newline at end of file
@@ -1,30 +1,39 @@
 package se.kth.lab3.patient_journal_backend_microservices.entity;
 
 import jakarta.persistence.*;
-import jakarta.validation.constraints.NotBlank;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
 
 @Entity
-@Table(name = "journal_entries")
+@Table(name = "journal_entries", indexes = {
+        @Index(name = "idx_journal_entries_created_at_id", columnList = "created_at, id"),
+        @Index(name = "idx_journal_entries_patient_change_seq", columnList = "patient_id, change_seq")
+})
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
 public class JournalEntry {
 
+    // Pooled sekvens istället för IDENTITY så att Hibernate kan batcha INSERTs.
+    // IdSequenceAligner flyttar sekvensen förbi befintliga rader vid uppstart.
+    public static final String ID_SEQUENCE = "journal_entries_seq";
+    public static final int ID_ALLOCATION_SIZE = 50;
+
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "journal_entry_seq")
+    @SequenceGenerator(name = "journal_entry_seq", sequenceName = ID_SEQUENCE, allocationSize = ID_ALLOCATION_SIZE)
     private Long id;
 
     @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "patient_id", nullable = false)
     private Patient patient;
 
-    @NotBlank(message = "Anteckning krävs")
-    @Column(nullable = false, columnDefinition = "TEXT")
+    // Krävs för levande anteckningar (JournalEntryDTO), men töms vid mjuk borttagning
+    @Column(columnDefinition = "TEXT")
     private String note;
 
     @Column(nullable = false)
@@ -34,8 +43,22 @@ public class JournalEntry {
 
     private String treatment;
 
+    // Stiger med varje ändring av patientens anteckningar, se JournalEntryService
+    @Column(nullable = false)
+    private long changeSeq;
+
+    // Mjuk borttagning: raden finns kvar så att synkande klienter får veta att den tagits bort
+    @Column(nullable = false)
+    private boolean deleted;
+
+    // Optimistisk läsning; exponeras som ETag
+    @Version
+    @Column(nullable = false)
+    private long version;
+
     @PrePersist
     protected void onCreate() {
-        createdAt = LocalDateTime.now();
+        // Trunkeras till databasens precision så att keyset-cursors matchar lagrat värde
+        createdAt = LocalDateTime.now().truncatedTo(ChronoUnit.MICROS);
     }
 }
\ No newline at end of file
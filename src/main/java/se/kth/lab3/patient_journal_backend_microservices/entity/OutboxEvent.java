@@ -0,0 +1,41 @@
+package se.kth.lab3.patient_journal_backend_microservices.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Händelse som väntar på att skickas till Kafka (transactional outbox).
+ * Skrivs i samma transaktion som ändringen den beskriver och skickas sedan av OutboxRelay.
+ */
+@Entity
+@Table(name = "outbox_events")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class OutboxEvent {
+
+    // IDENTITY ger id:n i insert-ordning över alla repliker, vilket relayn använder
+    // för att bevara ordningen per nyckel. Inserts batchas via JDBC i OutboxService.
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(nullable = false)
+    private String topic;
+
+    @Column(name = "event_key", nullable = false)
+    private String eventKey;
+
+    /**
+     * JSON-serialiserat DTO, eller null för en tombstone
+     */
+    @Column(columnDefinition = "TEXT")
+    private String payload;
+
+    @Column(nullable = false)
+    private LocalDateTime createdAt;
+}
@@ -15,8 +15,14 @@ import java.time.LocalDate;
 @AllArgsConstructor
 public class Patient {
 
+    // Pooled sekvens istället för IDENTITY så att Hibernate kan batcha INSERTs.
+    // IdSequenceAligner flyttar sekvensen förbi befintliga rader vid uppstart.
+    public static final String ID_SEQUENCE = "patients_seq";
+    public static final int ID_ALLOCATION_SIZE = 50;
+
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "patient_seq")
+    @SequenceGenerator(name = "patient_seq", sequenceName = ID_SEQUENCE, allocationSize = ID_ALLOCATION_SIZE)
     private Long id;
 
     @NotBlank(message = "Förnamn krävs")
@@ -38,6 +44,11 @@ public class Patient {
     private String phoneNumber;
 
     private String address;
+
+    // Optimistisk läsning; exponeras som ETag
+    @Version
+    @Column(nullable = false)
+    private long version;
 }
 
 
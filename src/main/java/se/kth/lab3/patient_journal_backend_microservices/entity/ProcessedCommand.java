@@ -0,0 +1,40 @@
+package se.kth.lab3.patient_journal_backend_microservices.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.domain.Persistable;
+
+import java.time.LocalDateTime;
+
+/**
+ * Ett utfört patient-kommando, skrivet i samma transaktion som kommandots ändringar.
+ * Primärnyckeln gör att samma kommando aldrig kan committas två gånger, även om två
+ * repliker får det samtidigt efter en rebalansering. Rader äldre än retentionen rensas.
+ */
+@Entity
+@Table(name = "processed_commands", indexes = @Index(name = "idx_processed_commands_at", columnList = "processedAt"))
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ProcessedCommand implements Persistable<String> {
+
+    @Id
+    @Column(length = 64)
+    private String commandId;
+
+    @Column(nullable = false)
+    private LocalDateTime processedAt;
+
+    // Alltid ny: save() gör persist utan att först SELECT:a id:t, så inserts kan batchas
+    @Override
+    public String getId() {
+        return commandId;
+    }
+
+    @Override
+    public boolean isNew() {
+        return true;
+    }
+}
@@ -0,0 +1,68 @@
+package se.kth.lab3.patient_journal_backend_microservices.kafka;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Deserializer;
+import se.kth.lab3.patient_journal_backend_microservices.kafka.SchemaRegistry.RegisteredSchema;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Läser både binära meddelanden från DtoSerializer och JSON, och avgör vilket på första
+ * byten. Måltypen är fast: varken typheaders eller betrodda paket styr vad som skapas.
+ * Binärt slås skrivarens schema upp i SchemaRegistry och måste vara en version av samma
+ * subject; äldre och nyare versioner läses tack vare reglerna där.
+ */
+public class DtoDeserializer<T> implements Deserializer<T> {
+
+    private final SchemaRegistry schemaRegistry;
+    private final ObjectMapper objectMapper;
+    private final Class<T> type;
+    private final DtoSchema schema;
+
+    public DtoDeserializer(SchemaRegistry schemaRegistry, ObjectMapper objectMapper, Class<T> type) {
+        this.schemaRegistry = schemaRegistry;
+        this.objectMapper = objectMapper;
+        this.type = type;
+        this.schema = DtoSchema.of(type);
+        if (schema == null) {
+            throw new IllegalArgumentException("Inget Kafka-schema för " + type.getSimpleName());
+        }
+    }
+
+    @Override
+    public T deserialize(String topic, byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        if (data.length > 0 && data[0] == DtoSerializer.MAGIC_BYTE) {
+            return readBinary(topic, data);
+        }
+        try {
+            return objectMapper.readValue(data, type);
+        } catch (IOException e) {
+            throw new SerializationException("Kunde inte läsa JSON på " + topic + ": " + e.getMessage(), e);
+        }
+    }
+
+    private T readBinary(String topic, byte[] data) {
+        if (data.length < DtoSerializer.HEADER_SIZE) {
+            throw new SerializationException("För kort binärt meddelande på " + topic);
+        }
+        int id = ByteBuffer.wrap(data, 1, 4).getInt();
+        RegisteredSchema writer = schemaRegistry.byId(id);
+        if (writer == null) {
+            throw new SerializationException("Okänt schema-id " + id + " på " + topic);
+        }
+        if (!writer.subject().equals(schema.subject())) {
+            throw new SerializationException(writer.subject() + " på " + topic + " kan inte läsas som "
+                    + type.getSimpleName());
+        }
+        try {
+            return type.cast(schema.decode(data, DtoSerializer.HEADER_SIZE, data.length - DtoSerializer.HEADER_SIZE));
+        } catch (IOException e) {
+            throw new SerializationException("Kunde inte läsa " + writer.subject() + " på " + topic, e);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package se.kth.lab3.patient_journal_backend_microservices.kafka;
+
+import se.kth.lab3.patient_journal_backend_microservices.dto.DtoProtobufCodec;
+import se.kth.lab3.patient_journal_backend_microservices.dto.JournalEntryDTO;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientCommandDTO;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
+import se.kth.lab3.patient_journal_backend_microservices.kafka.SchemaRegistry.SchemaField;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * DTO:erna som kan skickas binärt på Kafka och det schema DtoProtobufCodec skriver just nu.
+ * Fältlistorna ska motsvara patient_journal.proto; SchemaRegistry vägrar starta om de inte
+ * finns registrerade som någon version i kafka-schemas.json.
+ */
+enum DtoSchema {
+
+    PATIENT("patientjournal.v1.Patient", PatientDTO.class, List.of(
+            new SchemaField(1, "id", "int64"),
+            new SchemaField(2, "first_name", "string"),
+            new SchemaField(3, "last_name", "string"),
+            new SchemaField(4, "personal_number", "string"),
+            new SchemaField(5, "date_of_birth", "sint32"),
+            new SchemaField(6, "email", "string"),
+            new SchemaField(7, "phone_number", "string"),
+            new SchemaField(8, "address", "string"),
+            new SchemaField(9, "version", "int64")),
+            value -> DtoProtobufCodec.encode((PatientDTO) value),
+            DtoProtobufCodec::decodePatient),
+
+    JOURNAL_ENTRY("patientjournal.v1.JournalEntry", JournalEntryDTO.class, List.of(
+            new SchemaField(1, "id", "int64"),
+            new SchemaField(2, "patient_id", "int64"),
+            new SchemaField(3, "note", "string"),
+            new SchemaField(4, "created_at", "sint64"),
+            new SchemaField(5, "diagnosis", "string"),
+            new SchemaField(6, "treatment", "string"),
+            new SchemaField(7, "version", "int64"),
+            new SchemaField(8, "deleted", "bool")),
+            value -> DtoProtobufCodec.encode((JournalEntryDTO) value),
+            DtoProtobufCodec::decodeJournalEntry),
+
+    PATIENT_COMMAND("patientjournal.v1.PatientCommand", PatientCommandDTO.class, List.of(
+            new SchemaField(1, "command_type", "string"),
+            new SchemaField(2, "patient_id", "int64"),
+            new SchemaField(3, "patient", "patientjournal.v1.Patient"),
+            new SchemaField(4, "command_id", "string")),
+            value -> DtoProtobufCodec.encode((PatientCommandDTO) value),
+            DtoProtobufCodec::decodePatientCommand);
+
+    interface Decoder {
+        Object decode(byte[] bytes, int offset, int length) throws IOException;
+    }
+
+    private final String subject;
+    private final Class<?> type;
+    private final List<SchemaField> fields;
+    private final Function<Object, byte[]> encoder;
+    private final Decoder decoder;
+
+    DtoSchema(String subject, Class<?> type, List<SchemaField> fields, Function<Object, byte[]> encoder, Decoder decoder) {
+        this.subject = subject;
+        this.type = type;
+        this.fields = fields;
+        this.encoder = encoder;
+        this.decoder = decoder;
+    }
+
+    // null om typen inte har något binärt schema
+    static DtoSchema of(Class<?> type) {
+        for (DtoSchema schema : values()) {
+            if (schema.type == type) {
+                return schema;
+            }
+        }
+        return null;
+    }
+
+    String subject() {
+        return subject;
+    }
+
+    List<SchemaField> fields() {
+        return fields;
+    }
+
+    byte[] encode(Object value) {
+        return encoder.apply(value);
+    }
+
+    Object decode(byte[] bytes, int offset, int length) throws IOException {
+        return decoder.decode(bytes, offset, length);
+    }
+}
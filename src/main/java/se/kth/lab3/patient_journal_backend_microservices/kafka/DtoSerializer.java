@@ -0,0 +1,66 @@
+package se.kth.lab3.patient_journal_backend_microservices.kafka;
+
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.Serializer;
+import org.springframework.kafka.support.serializer.JsonSerializer;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Värdeserializer för KafkaTemplate. Binärt skrivs en DTO med schema i DtoSchema som
+ * [0x00][schema-id, 4 byte big-endian][protobuf], samma ram som Confluents serializers.
+ * Allt annat, och allt när binärt är avslaget, går genom JsonSerializer som tidigare. JSON
+ * börjar aldrig med 0x00, så DtoDeserializer läser båda formaten under en migrering.
+ * Rå bytes skickas som de är: poster som inte gick att läsa och DLT-poster som spelas upp
+ * igen ska fram oförändrade.
+ */
+public class DtoSerializer implements Serializer<Object> {
+
+    static final byte MAGIC_BYTE = 0;
+    static final int HEADER_SIZE = 5;
+
+    private final JsonSerializer<Object> json = new JsonSerializer<>();
+    private final SchemaRegistry schemaRegistry;
+    private final boolean binary;
+
+    public DtoSerializer(SchemaRegistry schemaRegistry, boolean binary) {
+        this.schemaRegistry = schemaRegistry;
+        this.binary = binary;
+    }
+
+    @Override
+    public void configure(Map<String, ?> configs, boolean isKey) {
+        json.configure(configs, isKey);
+    }
+
+    @Override
+    public byte[] serialize(String topic, Object data) {
+        return serialize(topic, null, data);
+    }
+
+    @Override
+    public byte[] serialize(String topic, Headers headers, Object data) {
+        if (data == null) {
+            return null;
+        }
+        if (data instanceof byte[] bytes) {
+            return bytes;
+        }
+        DtoSchema schema = binary ? DtoSchema.of(data.getClass()) : null;
+        if (schema == null) {
+            return json.serialize(topic, headers, data);
+        }
+        byte[] payload = schema.encode(data);
+        return ByteBuffer.allocate(HEADER_SIZE + payload.length)
+                .put(MAGIC_BYTE)
+                .putInt(schemaRegistry.currentId(schema))
+                .put(payload)
+                .array();
+    }
+
+    @Override
+    public void close() {
+        json.close();
+    }
+}
@@ -0,0 +1,122 @@
+package se.kth.lab3.patient_journal_backend_microservices.kafka;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enda vägen ut till Kafka. Anroparen blockeras aldrig: send() körs på en egen tråd, så
+ * att producentens väntan på metadata eller buffertutrymme (max.block.ms) inte hamnar på
+ * en request-tråd, och i submit-ordning så att ordningen per nyckel bevaras.
+ * <p>
+ * Antalet okvitterade meddelanden är begränsat till kafka.producer.max-in-flight. När
+ * gränserna är nådda, t.ex. för att brokern är långsam eller nere, avvisas nya meddelanden
+ * direkt med {@link RejectedExecutionException} i stället för att köa upp obegränsat.
+ * Kvitton och fel mäts i kafka.publish{topic, result}.
+ */
+@Component
+@Slf4j
+public class EventPublisher {
+
+    private final KafkaTemplate<String, Object> kafkaTemplate;
+    private final MeterRegistry meterRegistry;
+    private final Semaphore inFlight;
+    private final Counter rejected;
+    // Medvetet en plattformstråd även med spring.threads.virtual.enabled: KafkaProducer
+    // väntar på metadata med Object.wait() inuti synchronized, vilket låser fast en
+    // virtuell tråd vid sin bärtråd
+    private final ExecutorService sender = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "kafka-publisher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public EventPublisher(
+            KafkaTemplate<String, Object> kafkaTemplate,
+            MeterRegistry meterRegistry,
+            @Value("${kafka.producer.max-in-flight:10000}") int maxInFlight) {
+        this.kafkaTemplate = kafkaTemplate;
+        this.meterRegistry = meterRegistry;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.rejected = Counter.builder("kafka.publish.rejected")
+                .description("Meddelanden som avvisades för att för många väntade på kvitto")
+                .register(meterRegistry);
+        Gauge.builder("kafka.publish.in.flight", inFlight, permits -> maxInFlight - permits.availablePermits())
+                .description("Skickade meddelanden som inte kvitterats än")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Lägger meddelandet i kön och returnerar direkt. Framtiden avslutas när Kafka har
+     * kvitterat eller sändningen misslyckats.
+     *
+     * @throws RejectedExecutionException om för många meddelanden redan väntar på kvitto
+     */
+    public CompletableFuture<SendResult<String, Object>> publish(String topic, String key, Object value) {
+        if (!inFlight.tryAcquire()) {
+            rejected.increment();
+            throw new RejectedExecutionException("För många meddelanden väntar på Kafka, försök igen senare");
+        }
+        long start = System.nanoTime();
+        CompletableFuture<SendResult<String, Object>> result = new CompletableFuture<>();
+        try {
+            sender.execute(() -> {
+                try {
+                    kafkaTemplate.send(topic, key, value)
+                            .whenComplete((sendResult, error) -> complete(topic, key, start, result, sendResult, error));
+                } catch (RuntimeException e) {
+                    complete(topic, key, start, result, null, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Endast vid nedstängning
+            inFlight.release();
+            throw e;
+        }
+        return result;
+    }
+
+    private void complete(String topic, String key, long start,
+                          CompletableFuture<SendResult<String, Object>> result,
+                          SendResult<String, Object> sendResult, Throwable error) {
+        inFlight.release();
+        Timer.builder("kafka.publish")
+                .description("Tid från publish till kvitto från Kafka")
+                .tag("topic", topic)
+                .tag("result", error == null ? "success" : "failure")
+                .register(meterRegistry)
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        if (error == null) {
+            result.complete(sendResult);
+        } else {
+            log.warn("Kafka: kunde inte skicka till '{}' med nyckel {}: {}", topic, key, error.getMessage());
+            result.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Skickar det som redan ligger i kön innan producenten stängs.
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        sender.shutdown();
+        if (!sender.awaitTermination(5, TimeUnit.SECONDS)) {
+            sender.shutdownNow();
+        }
+        kafkaTemplate.flush();
+    }
+}
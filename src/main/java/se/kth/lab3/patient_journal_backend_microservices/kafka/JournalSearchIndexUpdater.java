@@ -0,0 +1,65 @@
+package se.kth.lab3.patient_journal_backend_microservices.kafka;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.errors.SerializationException;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.stereotype.Service;
+import se.kth.lab3.patient_journal_backend_microservices.dto.JournalEntryDTO;
+import se.kth.lab3.patient_journal_backend_microservices.service.JournalSearchIndex;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Håller JournalSearchIndex i varje replika uppdaterat med anteckningar som skapats eller
+ * ändrats på andra repliker. Egna skrivningar finns redan i indexet; att indexera dem igen
+ * ger samma resultat. Ett event med deleted = true tar bort anteckningen ur indexet.
+ */
+@Service
+@ConditionalOnProperty(name = "journal.search.events.enabled", havingValue = "true", matchIfMissing = true)
+@Slf4j
+public class JournalSearchIndexUpdater {
+
+    private final JournalSearchIndex searchIndex;
+    private final DtoDeserializer<JournalEntryDTO> deserializer;
+
+    public JournalSearchIndexUpdater(JournalSearchIndex searchIndex, SchemaRegistry schemaRegistry,
+                                     ObjectMapper objectMapper) {
+        this.searchIndex = searchIndex;
+        this.deserializer = new DtoDeserializer<>(schemaRegistry, objectMapper, JournalEntryDTO.class);
+    }
+
+    @KafkaListener(
+            topics = "${kafka.topic.journal:journal.events}",
+            groupId = "journal-search-#{T(java.util.UUID).randomUUID()}",
+            containerFactory = "eventListenerContainerFactory"
+    )
+    public void onJournalEvents(List<ConsumerRecord<String, byte[]>> records) {
+        List<JournalEntryDTO> entries = new ArrayList<>(records.size());
+        for (ConsumerRecord<String, byte[]> record : records) {
+            if (record.value() == null) {
+                continue;
+            }
+            try {
+                JournalEntryDTO entry = deserializer.deserialize(record.topic(), record.value());
+                if (entry.getId() == null) {
+                    continue;
+                }
+                if (Boolean.TRUE.equals(entry.getDeleted())) {
+                    // Det som lästs före borttagningen indexeras först, så att ordningen håller
+                    searchIndex.putAll(entries);
+                    entries.clear();
+                    searchIndex.remove(entry.getId());
+                } else {
+                    entries.add(entry);
+                }
+            } catch (SerializationException e) {
+                log.warn("Kunde inte läsa journal-event på offset {}: {}", record.offset(), e.getMessage());
+            }
+        }
+        searchIndex.putAll(entries);
+    }
+}
@@ -0,0 +1,75 @@
+package se.kth.lab3.patient_journal_backend_microservices.kafka;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.errors.SerializationException;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.stereotype.Service;
+import se.kth.lab3.patient_journal_backend_microservices.dto.JournalEntryDTO;
+import se.kth.lab3.patient_journal_backend_microservices.service.JournalTimelineCache;
+
+import java.util.List;
+
+/**
+ * Håller JournalTimelineCache i varje replika i synk genom att läsa journal.events i en egen
+ * konsumentgrupp. Skapade och ändrade anteckningar läggs in i patientens cachade tidslinje;
+ * egna skrivningar som redan finns där känns igen på id och version. Ett event med
+ * deleted = true tar bort anteckningen ur tidslinjen. Äldre tombstones (null med patient-ID
+ * som nyckel) släpper fortfarande patientens tidslinje.
+ */
+@Service
+@ConditionalOnProperty(name = "journal.timeline-cache.events.enabled", havingValue = "true", matchIfMissing = true)
+@Slf4j
+public class JournalTimelineCacheUpdater {
+
+    private final JournalTimelineCache timelineCache;
+    private final DtoDeserializer<JournalEntryDTO> deserializer;
+
+    public JournalTimelineCacheUpdater(JournalTimelineCache timelineCache, SchemaRegistry schemaRegistry,
+                                       ObjectMapper objectMapper) {
+        this.timelineCache = timelineCache;
+        this.deserializer = new DtoDeserializer<>(schemaRegistry, objectMapper, JournalEntryDTO.class);
+    }
+
+    @KafkaListener(
+            topics = "${kafka.topic.journal:journal.events}",
+            groupId = "journal-timeline-#{T(java.util.UUID).randomUUID()}",
+            containerFactory = "eventListenerContainerFactory"
+    )
+    public void onJournalEvents(List<ConsumerRecord<String, byte[]>> records) {
+        for (ConsumerRecord<String, byte[]> record : records) {
+            if (record.value() == null) {
+                evict(record.key());
+                continue;
+            }
+            try {
+                JournalEntryDTO entry = deserializer.deserialize(record.topic(), record.value());
+                if (entry.getId() == null || entry.getPatientId() == null) {
+                    continue;
+                }
+                if (Boolean.TRUE.equals(entry.getDeleted())) {
+                    timelineCache.remove(entry.getPatientId(), entry.getId());
+                } else {
+                    timelineCache.put(entry);
+                }
+            } catch (SerializationException e) {
+                // Vi vet inte vad som ändrades; släpp hellre tidslinjen än att visa en inaktuell
+                log.warn("Kunde inte läsa journal-event på offset {}: {}", record.offset(), e.getMessage());
+                evict(record.key());
+            }
+        }
+    }
+
+    private void evict(String key) {
+        if (key == null) {
+            return;
+        }
+        try {
+            timelineCache.evict(Long.valueOf(key));
+        } catch (NumberFormatException e) {
+            log.warn("Ogiltig nyckel på journal-event: {}", key);
+        }
+    }
+}
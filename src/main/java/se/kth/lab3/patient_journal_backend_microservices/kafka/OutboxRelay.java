@@ -0,0 +1,155 @@
+package se.kth.lab3.patient_journal_backend_microservices.kafka;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Limit;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+import se.kth.lab3.patient_journal_backend_microservices.dto.JournalEntryDTO;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
+import se.kth.lab3.patient_journal_backend_microservices.entity.OutboxEvent;
+import se.kth.lab3.patient_journal_backend_microservices.repository.OutboxEventRepository;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Tömmer outbox-tabellen till Kafka i block.
+ * Raderna läses med SELECT ... FOR UPDATE i id-ordning och tas bort först när Kafka
+ * har kvitterat hela blocket, så ordningen per nyckel bevaras även med flera repliker.
+ * Leveransen är at-least-once: misslyckas ett block skickas det om i sin helhet.
+ */
+@Component
+@ConditionalOnProperty(name = "outbox.relay.enabled", havingValue = "true", matchIfMissing = true)
+@Slf4j
+public class OutboxRelay {
+
+    private final OutboxEventRepository outboxEventRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final EventPublisher eventPublisher;
+    private final ObjectMapper objectMapper;
+
+    private final Counter sentCounter;
+    private final Counter failedBatchCounter;
+    private final Counter discardedCounter;
+    private final Timer batchTimer;
+    private final AtomicLong backlog = new AtomicLong();
+
+    @Value("${kafka.topic.patient:patient.events}")
+    private String patientTopic;
+
+    @Value("${kafka.topic.journal:journal.events}")
+    private String journalTopic;
+
+    @Value("${outbox.relay.batch-size:500}")
+    private int batchSize;
+
+    @Value("${outbox.relay.send-timeout-ms:10000}")
+    private long sendTimeoutMs;
+
+    public OutboxRelay(
+            OutboxEventRepository outboxEventRepository,
+            TransactionTemplate transactionTemplate,
+            EventPublisher eventPublisher,
+            ObjectMapper objectMapper,
+            MeterRegistry meterRegistry) {
+        this.outboxEventRepository = outboxEventRepository;
+        this.transactionTemplate = transactionTemplate;
+        this.eventPublisher = eventPublisher;
+        this.objectMapper = objectMapper;
+
+        this.sentCounter = Counter.builder("outbox.relay.sent")
+                .description("Antal outbox-händelser som kvitterats av Kafka")
+                .register(meterRegistry);
+        this.failedBatchCounter = Counter.builder("outbox.relay.failed.batches")
+                .description("Antal block som misslyckades och kommer skickas om")
+                .register(meterRegistry);
+        this.discardedCounter = Counter.builder("outbox.relay.discarded")
+                .description("Antal händelser som inte kunde tolkas och togs bort utan att skickas")
+                .register(meterRegistry);
+        this.batchTimer = Timer.builder("outbox.relay.batch")
+                .description("Tid för att skicka och kvittera ett block")
+                .register(meterRegistry);
+        Gauge.builder("outbox.backlog", backlog, AtomicLong::get)
+                .description("Antal händelser som väntar i outboxen")
+                .register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${outbox.relay.interval-ms:200}")
+    public void relay() {
+        try {
+            int relayed;
+            do {
+                relayed = batchTimer.record(() -> transactionTemplate.execute(status -> relayBatch()));
+            } while (relayed == batchSize);
+        } catch (Exception e) {
+            failedBatchCounter.increment();
+            log.warn("Outbox: kunde inte skicka block till Kafka, försöker igen: {}", e.getMessage());
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${outbox.relay.backlog-refresh-ms:10000}")
+    public void refreshBacklog() {
+        backlog.set(outboxEventRepository.count());
+    }
+
+    int relayBatch() {
+        List<OutboxEvent> batch = outboxEventRepository.findNextBatchForUpdate(Limit.of(batchSize));
+        if (batch.isEmpty()) {
+            return 0;
+        }
+
+        List<CompletableFuture<?>> futures = batch.stream()
+                .map(this::send)
+                .collect(Collectors.toList());
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                    .get(sendTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            throw new IllegalStateException("Kafka kvitterade inte blocket", e);
+        }
+
+        outboxEventRepository.deleteAllByIdInBatch(batch.stream()
+                .map(OutboxEvent::getId)
+                .collect(Collectors.toList()));
+        sentCounter.increment(batch.size());
+        log.debug("Outbox: skickade {} händelser", batch.size());
+        return batch.size();
+    }
+
+    private CompletableFuture<?> send(OutboxEvent event) {
+        try {
+            return doSend(event);
+        } catch (IOException | IllegalArgumentException e) {
+            // En rad som aldrig kan skickas får inte blockera resten av outboxen
+            discardedCounter.increment();
+            log.error("Outbox: tar bort händelse {} som inte kan skickas: {}", event.getId(), e.getMessage());
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    private CompletableFuture<?> doSend(OutboxEvent event) throws IOException {
+        if (event.getTopic().equals(patientTopic)) {
+            PatientDTO dto = event.getPayload() == null ? null
+                    : objectMapper.readValue(event.getPayload(), PatientDTO.class);
+            return eventPublisher.publish(event.getTopic(), event.getEventKey(), dto);
+        }
+        if (event.getTopic().equals(journalTopic)) {
+            JournalEntryDTO dto = event.getPayload() == null ? null
+                    : objectMapper.readValue(event.getPayload(), JournalEntryDTO.class);
+            return eventPublisher.publish(event.getTopic(), event.getEventKey(), dto);
+        }
+        throw new IllegalArgumentException("Okänt topic: " + event.getTopic());
+    }
+}
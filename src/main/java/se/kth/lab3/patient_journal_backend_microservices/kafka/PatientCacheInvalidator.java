@@ -0,0 +1,51 @@
+package se.kth.lab3.patient_journal_backend_microservices.kafka;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.stereotype.Service;
+import se.kth.lab3.patient_journal_backend_microservices.service.JournalTimelineCache;
+import se.kth.lab3.patient_journal_backend_microservices.service.PatientCache;
+
+import java.util.List;
+
+/**
+ * Håller PatientCache i varje replika i synk genom att läsa patient.events.
+ * Gruppnamnet är unikt per process, så alla repliker får alla händelser (inklusive
+ * tombstones från deletePatient) istället för att dela partitionerna mellan sig.
+ */
+@Service
+@ConditionalOnProperty(name = "patient.cache.invalidation.enabled", havingValue = "true", matchIfMissing = true)
+@RequiredArgsConstructor
+@Slf4j
+public class PatientCacheInvalidator {
+
+    private final PatientCache patientCache;
+    private final JournalTimelineCache timelineCache;
+
+    @KafkaListener(
+            topics = "${kafka.topic.patient:patient.events}",
+            groupId = "patient-cache-#{T(java.util.UUID).randomUUID()}",
+            containerFactory = "eventListenerContainerFactory"
+    )
+    public void onPatientEvents(List<ConsumerRecord<String, byte[]>> records) {
+        for (ConsumerRecord<String, byte[]> record : records) {
+            if (record.key() == null) {
+                continue;
+            }
+            try {
+                Long patientId = Long.valueOf(record.key());
+                patientCache.evict(patientId);
+                // Tombstone = patienten är borttagen, och med den tidslinjen
+                if (record.value() == null) {
+                    timelineCache.evict(patientId);
+                }
+            } catch (NumberFormatException e) {
+                log.warn("Ogiltig nyckel på patient-event: {}", record.key());
+            }
+        }
+        log.debug("Invaliderade {} patienter från patient.events", records.size());
+    }
+}
@@ -0,0 +1,161 @@
+package se.kth.lab3.patient_journal_backend_microservices.kafka;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.support.serializer.DeserializationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientCommandDTO;
+import se.kth.lab3.patient_journal_backend_microservices.service.PatientService;
+import se.kth.lab3.patient_journal_backend_microservices.service.PatientService.AppliedCommands;
+import se.kth.lab3.patient_journal_backend_microservices.service.PatientService.SkippedCommand;
+import se.kth.lab3.patient_journal_backend_microservices.service.ProcessedCommandStore;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Batch-konsument för patient.commands, aktiv när kafka.consumer.mode=batch.
+ * En hel poll slås ihop till högst ett kommando per patient och utförs i en transaktion;
+ * offsets committas en gång per batch (AckMode.BATCH). Transaktionens tid mäts i
+ * patient.commands.batch; faller batchen tillbaka till ett och ett mäts varje kommando
+ * som vanligt i PatientCommandHandler.
+ * <p>
+ * Kommandon vars commandId redan utförts filtreras bort före sammanslagningen. Övriga id:n,
+ * även för kommandon som slagits ihop bort, markeras i batchens transaktion: en omleverans
+ * av batchen eller en del av den gör då ingenting.
+ * <p>
+ * Poster som inte går att läsa, kommandon som batchen hoppat över (dubblett, patient saknas)
+ * och kommandon som misslyckas även ett och ett skickas till omförsök eller DLT
+ * (PatientCommandDeadLetters) i stället för att läsas om med resten av batchen.
+ */
+@Service
+@ConditionalOnProperty(name = "kafka.consumer.mode", havingValue = "batch")
+@RequiredArgsConstructor
+@Slf4j
+public class PatientCommandBatchConsumer {
+
+    private final PatientService patientService;
+    private final PatientCommandHandler commandHandler;
+    private final MeterRegistry meterRegistry;
+    private final ProcessedCommandStore processedCommands;
+    private final TransactionTemplate transactionTemplate;
+    private final PatientCommandDeadLetters deadLetters;
+
+    @KafkaListener(
+            topics = "patient.commands",
+            groupId = "patient-journal-group",
+            containerFactory = "kafkaListenerContainerFactory",
+            batch = "true"
+    )
+    public void handlePatientCommands(List<ConsumerRecord<String, PatientCommandDTO>> records) {
+        // Sammanslagningen behåller kommandoobjekten, så posten hittas via identitet
+        Map<PatientCommandDTO, ConsumerRecord<String, PatientCommandDTO>> recordsByCommand = new IdentityHashMap<>();
+        List<PatientCommandDTO> received = new ArrayList<>(records.size());
+        for (ConsumerRecord<String, PatientCommandDTO> record : records) {
+            DeserializationException unreadable = PatientCommandDeadLetters.deserializationFailure(record);
+            if (unreadable != null) {
+                deadLetters.deadLetter(record, unreadable);
+            } else if (record.value() != null) {
+                recordsByCommand.put(record.value(), record);
+                received.add(record.value());
+            }
+        }
+        List<PatientCommandDTO> commands = withoutProcessed(received);
+        List<PatientCommandDTO> coalesced = PatientCommandCoalescer.coalesce(commands);
+        log.info("Mottog {} Kafka-kommandon, {} nya, {} efter sammanslagning",
+                records.size(), commands.size(), coalesced.size());
+        if (commands.isEmpty()) {
+            return;
+        }
+        List<String> commandIds = commandIds(commands);
+
+        Timer.Sample sample = Timer.start(meterRegistry);
+        AppliedCommands result;
+        try {
+            result = transactionTemplate.execute(status -> {
+                AppliedCommands applied = patientService.applyCommands(coalesced);
+                // Överhoppade kommandon markeras inte, så att de kan spelas upp från DLT:n
+                Set<String> skippedIds = new HashSet<>(commandIds(applied.skipped().stream()
+                        .map(SkippedCommand::command)
+                        .toList()));
+                processedCommands.record(commandIds.stream().filter(id -> !skippedIds.contains(id)).toList());
+                return applied;
+            });
+            sample.stop(batchTimer("success"));
+        } catch (Exception e) {
+            sample.stop(batchTimer("failure"));
+            // Något kommando spräcker hela transaktionen (t.ex. en FK vid DELETE).
+            // Kör om kommandona ett och ett så att resten av batchen inte går förlorad.
+            log.warn("Batch-transaktionen misslyckades ({}), kör kommandona ett och ett", e.getMessage());
+            for (PatientCommandDTO command : coalesced) {
+                try {
+                    commandHandler.apply(command);
+                } catch (Exception commandError) {
+                    deadLetters.handleFailure(recordsByCommand.get(command), commandError);
+                }
+            }
+            recordSuperseded(commands, coalesced);
+            return;
+        }
+        log.info("KAFKA: {} kommandon utförda i en transaktion, {} överhoppade.",
+                result.applied(), result.skipped().size());
+        for (SkippedCommand skipped : result.skipped()) {
+            deadLetters.deadLetter(recordsByCommand.get(skipped.command()), new IllegalStateException(skipped.reason()));
+        }
+    }
+
+    private List<PatientCommandDTO> withoutProcessed(List<PatientCommandDTO> received) {
+        Set<String> processed = processedCommands.findProcessed(commandIds(received));
+        Set<String> seen = new HashSet<>();
+        List<PatientCommandDTO> commands = new ArrayList<>(received.size());
+        for (PatientCommandDTO command : received) {
+            String commandId = command == null ? null : command.getCommandId();
+            // Samma id två gånger i samma poll är också en omleverans
+            if (commandId == null || (!processed.contains(commandId) && seen.add(commandId))) {
+                commands.add(command);
+            }
+        }
+        return commands;
+    }
+
+    private static List<String> commandIds(List<PatientCommandDTO> commands) {
+        return commands.stream()
+                .filter(Objects::nonNull)
+                .map(PatientCommandDTO::getCommandId)
+                .filter(Objects::nonNull)
+                .distinct()
+                .toList();
+    }
+
+    /**
+     * Efter ett och ett har de kvarvarande kommandona markerat sig själva. De som slogs ihop
+     * bort markeras här, annars skulle en omleverans köra dem utan sina efterföljare.
+     */
+    private void recordSuperseded(List<PatientCommandDTO> commands, List<PatientCommandDTO> coalesced) {
+        Set<String> kept = new HashSet<>(commandIds(coalesced));
+        List<String> superseded = commandIds(commands).stream().filter(id -> !kept.contains(id)).toList();
+        try {
+            transactionTemplate.executeWithoutResult(status -> processedCommands.record(superseded));
+        } catch (Exception e) {
+            log.warn("Kunde inte markera {} sammanslagna kommandon som utförda: {}", superseded.size(), e.getMessage());
+        }
+    }
+
+    private Timer batchTimer(String result) {
+        return Timer.builder("patient.commands.batch")
+                .description("Tid för en sammanslagen batch av patient-kommandon i en transaktion")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,89 @@
+package se.kth.lab3.patient_journal_backend_microservices.kafka;
+
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientCommandDTO;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Slår ihop redundanta kommandon i en poll till ett kommando per patient.
+ * <ul>
+ *     <li>UPDATE, UPDATE blir den sista UPDATE (uppdateringar skriver över alla fält)</li>
+ *     <li>UPDATE följt av DELETE blir DELETE</li>
+ *     <li>UPDATE eller DELETE efter DELETE stryks, de skulle ändå misslyckas</li>
+ *     <li>CREATE har inget id och behålls, men bara första per personnummer sedan senaste DELETE</li>
+ * </ul>
+ * Resultatet behåller ordningen mellan kommandona, även mellan olika typer: ett kommando
+ * som slagits ihop står på platsen för det kommando som behålls. En DELETE följd av en
+ * CREATE med samma personnummer utförs alltså i den ordningen. Efter en DELETE vet vi inte
+ * vilket personnummer som frigjordes, så då släpps CREATE för alla personnummer igen.
+ * <p>
+ * Kommandon utan giltig typ, utan patient-ID för UPDATE/DELETE eller utan patientdata
+ * för CREATE/UPDATE stryks, eftersom de ändå inte kan utföras.
+ */
+public final class PatientCommandCoalescer {
+
+    private PatientCommandCoalescer() {
+    }
+
+    public static List<PatientCommandDTO> coalesce(List<PatientCommandDTO> commands) {
+        // Platser som tömts när ett senare kommando ersatt dem är null och filtreras bort sist
+        List<PatientCommandDTO> kept = new ArrayList<>(commands.size());
+        Set<String> createdPersonalNumbers = new HashSet<>();
+        Map<Long, Integer> positionByPatient = new HashMap<>();
+
+        for (PatientCommandDTO command : commands) {
+            if (command == null || command.getCommandType() == null) {
+                continue;
+            }
+            switch (command.getCommandType().toUpperCase()) {
+                case "CREATE":
+                    if (command.getPatient() != null
+                            && createdPersonalNumbers.add(command.getPatient().getPersonalNumber())) {
+                        kept.add(command);
+                    }
+                    break;
+
+                case "UPDATE":
+                    if (command.getPatientId() != null && command.getPatient() != null) {
+                        keepLatest(kept, positionByPatient, command);
+                    }
+                    break;
+
+                case "DELETE":
+                    if (command.getPatientId() != null) {
+                        keepLatest(kept, positionByPatient, command);
+                        createdPersonalNumbers.clear();
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+        }
+
+        return kept.stream().filter(Objects::nonNull).toList();
+    }
+
+    private static void keepLatest(List<PatientCommandDTO> kept, Map<Long, Integer> positionByPatient,
+                                   PatientCommandDTO command) {
+        Integer previous = positionByPatient.get(command.getPatientId());
+        if (previous != null) {
+            if (isDelete(kept.get(previous))) {
+                return;
+            }
+            kept.set(previous, null);
+        }
+        positionByPatient.put(command.getPatientId(), kept.size());
+        kept.add(command);
+    }
+
+    static boolean isDelete(PatientCommandDTO command) {
+        return "DELETE".equalsIgnoreCase(command.getCommandType());
+    }
+}
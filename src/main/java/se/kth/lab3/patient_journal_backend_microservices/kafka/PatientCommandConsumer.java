@@ -2,59 +2,44 @@ package se.kth.lab3.patient_journal_backend_microservices.kafka;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.stereotype.Service;
 import se.kth.lab3.patient_journal_backend_microservices.dto.PatientCommandDTO;
-import se.kth.lab3.patient_journal_backend_microservices.service.PatientService;
 
 /**
  * Kafka Consumer som hanterar kommandon for patienter.
  * Uppfyller kravet for hogre betyg genom att moijliggora asynkron hantering via Kafka.
+ * Aktiv när kafka.consumer.mode=record (en post per anrop).
+ * Ett kommando som misslyckas skickas vidare till omförsök eller DLT (PatientCommandDeadLetters)
+ * och håller inte upp partitionen.
  */
 @Service
+@ConditionalOnProperty(name = "kafka.consumer.mode", havingValue = "record", matchIfMissing = true)
 @RequiredArgsConstructor
 @Slf4j
 public class PatientCommandConsumer {
 
-    // VIKTIGT: Vi använder Service, inte Repository.
-    // Detta gor att när en patient skapas här, skickas OCKSa ett event till Search Service.
-    private final PatientService patientService;
+    private final PatientCommandHandler commandHandler;
+    private final PatientCommandDeadLetters deadLetters;
 
     @KafkaListener(
             topics = "patient.commands",
             groupId = "patient-journal-group",
             containerFactory = "kafkaListenerContainerFactory"
     )
-    public void handlePatientCommand(PatientCommandDTO command) {
+    public void handlePatientCommand(ConsumerRecord<String, PatientCommandDTO> record) {
+        PatientCommandDTO command = record.value();
+        if (command == null) {
+            return;
+        }
         log.info("Mottog Kafka-kommando: {} for patient-ID: {}", command.getCommandType(), command.getPatientId());
 
         try {
-            switch (command.getCommandType().toUpperCase()) {
-                case "CREATE":
-                    // Anropar service -> Sparar i DB -> Skickar event till Search Service
-                    patientService.createPatient(command.getPatient());
-                    log.info("KAFKA: Patient skapad via Service (Event skickat).");
-                    break;
-
-                case "UPDATE":
-                    if (command.getPatientId() != null) {
-                        patientService.updatePatient(command.getPatientId(), command.getPatient());
-                        log.info("KAFKA: Patient uppdaterad via Service (Event skickat).");
-                    }
-                    break;
-
-                case "DELETE":
-                    if (command.getPatientId() != null) {
-                        patientService.deletePatient(command.getPatientId());
-                        log.info("KAFKA: Patient borttagen via Service (Tombstone skickad).");
-                    }
-                    break;
-
-                default:
-                    log.warn("Okänd kommandotyp: {}", command.getCommandType());
-            }
+            commandHandler.apply(command);
         } catch (Exception e) {
-            log.error("Fel vid hantering av Kafka-kommando: {}", e.getMessage(), e);
+            deadLetters.handleFailure(record, e);
         }
     }
-}
\ No newline at end of file
+}
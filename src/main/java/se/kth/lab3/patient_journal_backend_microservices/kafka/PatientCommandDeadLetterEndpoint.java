@@ -0,0 +1,261 @@
+package se.kth.lab3.patient_journal_backend_microservices.kafka;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.http.HttpStatus;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.kafka.support.serializer.SerializationUtils;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientCommandDTO;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * /actuator/deadletters: de senaste posterna i DLT:n för patient-kommandon, och uppspelning
+ * av en post till patient.commands igen (POST med partition och offset) när felet är åtgärdat.
+ * Posten skickas som den ligger, med sina ursprungliga headers utom DLT- och retry-headers.
+ * Ett kommando som hunnit utföras hoppas över tack vare commandId. Läser utan konsumentgrupp,
+ * så varken DLT-hanterarens offsets eller något annat påverkas. Kräver rollen STAFF (SecurityConfig).
+ */
+@Component
+@Endpoint(id = "deadletters")
+@Slf4j
+public class PatientCommandDeadLetterEndpoint {
+
+    private static final int DEFAULT_LIMIT = 20;
+    private static final int MAX_LIMIT = 200;
+    private static final Duration READ_TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration POLL_TIMEOUT = Duration.ofMillis(200);
+    private static final long SEND_TIMEOUT_SECONDS = 10;
+    private static final String DLT_HEADER_PREFIX = KafkaHeaders.PREFIX + "dlt-";
+    private static final String RETRY_HEADER_PREFIX = "retry_topic-";
+
+    /**
+     * En post i DLT:n. original* är var kommandot först lästes, error felet som skickade hit det.
+     */
+    public record DeadLetter(
+            int partition,
+            long offset,
+            String key,
+            Instant timestamp,
+            String originalTopic,
+            Integer originalPartition,
+            Long originalOffset,
+            String errorType,
+            String error,
+            PatientCommandDTO command) {
+    }
+
+    private final ConsumerFactory<String, byte[]> consumerFactory;
+    private final KafkaTemplate<String, Object> kafkaTemplate;
+    private final PatientCommandDeadLetters deadLetters;
+    private final DtoDeserializer<PatientCommandDTO> deserializer;
+    // Unikt client.id per anrop: samtidiga anrop krockar annars i JMX-registreringen
+    private final AtomicLong consumerCount = new AtomicLong();
+
+    @Value("${kafka.topic.patient-commands:patient.commands}")
+    private String commandsTopic;
+
+    public PatientCommandDeadLetterEndpoint(
+            @Qualifier("eventConsumerFactory") ConsumerFactory<String, byte[]> consumerFactory,
+            KafkaTemplate<String, Object> kafkaTemplate,
+            PatientCommandDeadLetters deadLetters,
+            SchemaRegistry schemaRegistry,
+            ObjectMapper objectMapper) {
+        this.consumerFactory = consumerFactory;
+        this.kafkaTemplate = kafkaTemplate;
+        this.deadLetters = deadLetters;
+        this.deserializer = new DtoDeserializer<>(schemaRegistry, objectMapper, PatientCommandDTO.class);
+    }
+
+    /**
+     * Högst limit poster från slutet av varje partition, nyaste först.
+     */
+    @ReadOperation
+    public List<DeadLetter> deadLetters(@Nullable Integer limit) {
+        int perPartition = Math.clamp(limit == null ? DEFAULT_LIMIT : limit, 1, MAX_LIMIT);
+        List<DeadLetter> result = new ArrayList<>();
+        try (Consumer<String, byte[]> consumer = createConsumer()) {
+            List<TopicPartition> partitions = partitions(consumer);
+            if (partitions.isEmpty()) {
+                return result;
+            }
+            consumer.assign(partitions);
+            Map<TopicPartition, Long> beginning = consumer.beginningOffsets(partitions);
+            Map<TopicPartition, Long> end = consumer.endOffsets(partitions);
+            for (TopicPartition partition : partitions) {
+                consumer.seek(partition, Math.max(beginning.get(partition), end.get(partition) - perPartition));
+            }
+            long deadline = System.nanoTime() + READ_TIMEOUT.toNanos();
+            while (!reachedEnd(consumer, partitions, end) && System.nanoTime() < deadline) {
+                for (ConsumerRecord<String, byte[]> record : consumer.poll(POLL_TIMEOUT)) {
+                    if (record.offset() < end.get(new TopicPartition(record.topic(), record.partition()))) {
+                        result.add(toDeadLetter(record));
+                    }
+                }
+            }
+        }
+        result.sort(Comparator.comparing(DeadLetter::timestamp).reversed());
+        return result;
+    }
+
+    /**
+     * Skickar posten på partition/offset i DLT:n till patient.commands igen. Posten ligger
+     * kvar i DLT:n.
+     */
+    @WriteOperation
+    public Map<String, Object> replay(int partition, long offset) {
+        ConsumerRecord<String, byte[]> record = read(partition, offset);
+        if (record == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Ingen post i " + deadLetters.deadLetterTopic()
+                    + " på partition " + partition + ", offset " + offset);
+        }
+        ProducerRecord<String, Object> replayed = new ProducerRecord<>(commandsTopic, null,
+                record.key(), record.value(), replayHeaders(record.headers()));
+        try {
+            SendResult<String, Object> sent = kafkaTemplate.send(replayed).get(SEND_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            log.info("DLT-post {}-{}@{} uppspelad till {}-{}@{}", record.topic(), partition, offset,
+                    commandsTopic, sent.getRecordMetadata().partition(), sent.getRecordMetadata().offset());
+            return Map.of(
+                    "topic", commandsTopic,
+                    "partition", sent.getRecordMetadata().partition(),
+                    "offset", sent.getRecordMetadata().offset());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Avbruten under uppspelning av DLT-post", e);
+        } catch (Exception e) {
+            throw new IllegalStateException("Kunde inte spela upp DLT-post: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Headers för uppspelning: de ursprungliga, utan det som DLT, retry-topics och
+     * ErrorHandlingDeserializer lagt till, så att kommandot börjar om från första försöket.
+     */
+    static Headers replayHeaders(Headers headers) {
+        RecordHeaders replay = new RecordHeaders();
+        for (Header header : headers) {
+            String name = header.key();
+            if (!name.startsWith(DLT_HEADER_PREFIX)
+                    && !name.startsWith(RETRY_HEADER_PREFIX)
+                    && !name.startsWith(SerializationUtils.DESERIALIZER_EXCEPTION_HEADER_PREFIX)) {
+                replay.add(header);
+            }
+        }
+        return replay;
+    }
+
+    private ConsumerRecord<String, byte[]> read(int partition, long offset) {
+        TopicPartition topicPartition = new TopicPartition(deadLetters.deadLetterTopic(), partition);
+        try (Consumer<String, byte[]> consumer = createConsumer()) {
+            consumer.assign(List.of(topicPartition));
+            consumer.seek(topicPartition, offset);
+            long deadline = System.nanoTime() + READ_TIMEOUT.toNanos();
+            while (System.nanoTime() < deadline) {
+                for (ConsumerRecord<String, byte[]> record : consumer.poll(POLL_TIMEOUT)) {
+                    // Kompaktering eller retention kan ha tagit posten; då kommer en senare först
+                    return record.offset() == offset ? record : null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private Consumer<String, byte[]> createConsumer() {
+        return consumerFactory.createConsumer(null, "patient-command-dlt", "-" + consumerCount.incrementAndGet());
+    }
+
+    private List<TopicPartition> partitions(Consumer<String, byte[]> consumer) {
+        List<PartitionInfo> infos = consumer.partitionsFor(deadLetters.deadLetterTopic());
+        if (infos == null) {
+            return List.of();
+        }
+        return infos.stream().map(info -> new TopicPartition(info.topic(), info.partition())).toList();
+    }
+
+    private static boolean reachedEnd(Consumer<String, byte[]> consumer, List<TopicPartition> partitions,
+                                      Map<TopicPartition, Long> end) {
+        for (TopicPartition partition : partitions) {
+            if (consumer.position(partition) < end.get(partition)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private DeadLetter toDeadLetter(ConsumerRecord<String, byte[]> record) {
+        Headers headers = record.headers();
+        PatientCommandDTO command = null;
+        try {
+            command = deserializer.deserialize(record.topic(), record.value());
+        } catch (SerializationException e) {
+            // Posten kom hit för att den inte gick att läsa; felet står i headers
+        }
+        return new DeadLetter(
+                record.partition(),
+                record.offset(),
+                record.key(),
+                Instant.ofEpochMilli(record.timestamp()),
+                firstString(headers, KafkaHeaders.DLT_ORIGINAL_TOPIC),
+                firstInt(headers, KafkaHeaders.DLT_ORIGINAL_PARTITION),
+                firstLong(headers, KafkaHeaders.DLT_ORIGINAL_OFFSET),
+                lastString(headers, KafkaHeaders.DLT_EXCEPTION_FQCN),
+                lastString(headers, KafkaHeaders.DLT_EXCEPTION_MESSAGE),
+                command);
+    }
+
+    // Vid varje vidaresändning (omförsök, DLT) läggs ursprungs-headers till; den första är källan
+    private static byte[] first(Headers headers, String name) {
+        Iterator<Header> values = headers.headers(name).iterator();
+        return values.hasNext() ? values.next().value() : null;
+    }
+
+    private static String firstString(Headers headers, String name) {
+        byte[] value = first(headers, name);
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    private static Integer firstInt(Headers headers, String name) {
+        byte[] value = first(headers, name);
+        return value == null || value.length != Integer.BYTES ? null : ByteBuffer.wrap(value).getInt();
+    }
+
+    private static Long firstLong(Headers headers, String name) {
+        byte[] value = first(headers, name);
+        return value == null || value.length != Long.BYTES ? null : ByteBuffer.wrap(value).getLong();
+    }
+
+    private static String lastString(Headers headers, String name) {
+        Header header = headers.lastHeader(name);
+        return header == null || header.value() == null ? null : new String(header.value(), StandardCharsets.UTF_8);
+    }
+}
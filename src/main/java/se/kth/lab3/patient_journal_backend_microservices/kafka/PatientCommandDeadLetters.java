@@ -0,0 +1,124 @@
+package se.kth.lab3.patient_journal_backend_microservices.kafka;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.log.LogAccessor;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.listener.DeadLetterPublishingRecoverer;
+import org.springframework.kafka.support.serializer.DeserializationException;
+import org.springframework.kafka.support.serializer.SerializationUtils;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.CannotCreateTransactionException;
+
+/**
+ * Skickar patient-kommandon som inte gick att utföra vidare, så att de inte håller upp
+ * partitionen på patient.commands. Tillfälliga fel (databasen, transaktioner) går till
+ * kafka.topic.patient-commands-failed, där PatientCommandRetryConsumer försöker igen med
+ * ökande väntetid i retry-topics; övriga fel och poster som inte går att läsa går direkt
+ * till DLT:n (samma topic + DLT_SUFFIX). Värdet skickas som det lästes, rå bytes för poster
+ * som inte gick att läsa, med postens headers och kafka_dlt-* för ursprung och fel.
+ */
+@Component
+@Slf4j
+public class PatientCommandDeadLetters {
+
+    public static final String DLT_SUFFIX = "-dlt";
+
+    private static final LogAccessor LOG_ACCESSOR = new LogAccessor(PatientCommandDeadLetters.class);
+
+    private final String failedTopic;
+    private final String deadLetterTopic;
+    private final DeadLetterPublishingRecoverer retryPublisher;
+    private final DeadLetterPublishingRecoverer deadLetterPublisher;
+    private final Counter retried;
+    private final Counter deadLettered;
+
+    public PatientCommandDeadLetters(
+            KafkaTemplate<String, Object> kafkaTemplate,
+            MeterRegistry meterRegistry,
+            @Value("${kafka.topic.patient-commands-failed:patient.commands.failed}") String failedTopic) {
+        String deadLetterTopic = failedTopic + DLT_SUFFIX;
+        this.failedTopic = failedTopic;
+        this.deadLetterTopic = deadLetterTopic;
+        // Partition -1: producenten väljer på nyckeln, så en patients kommandon hamnar i samma partition
+        this.retryPublisher = new DeadLetterPublishingRecoverer(kafkaTemplate,
+                (record, e) -> new TopicPartition(failedTopic, -1));
+        this.deadLetterPublisher = new DeadLetterPublishingRecoverer(kafkaTemplate,
+                (record, e) -> new TopicPartition(deadLetterTopic, -1));
+        this.retried = failedCounter(meterRegistry, "retry");
+        this.deadLettered = failedCounter(meterRegistry, "dead_letter");
+    }
+
+    private static Counter failedCounter(MeterRegistry meterRegistry, String outcome) {
+        return Counter.builder("patient.commands.failed")
+                .description("Patient-kommandon som skickats vidare från patient.commands: till omförsök eller DLT")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    public String failedTopic() {
+        return failedTopic;
+    }
+
+    public String deadLetterTopic() {
+        return deadLetterTopic;
+    }
+
+    /**
+     * Tillfälliga fel till omförsök, allt annat till DLT:n. Kastar om posten inte kunde
+     * skickas, så att den inte committas förbi.
+     */
+    public void handleFailure(ConsumerRecord<?, ?> record, Exception e) {
+        if (isTransient(e)) {
+            retryLater(record, e);
+        } else {
+            deadLetter(record, e);
+        }
+    }
+
+    public void retryLater(ConsumerRecord<?, ?> record, Exception e) {
+        log.warn("Kafka-kommando på {}-{}@{} till omförsök på {}: {}",
+                record.topic(), record.partition(), record.offset(), failedTopic, e.getMessage());
+        retryPublisher.accept(record, e);
+        retried.increment();
+    }
+
+    public void deadLetter(ConsumerRecord<?, ?> record, Exception e) {
+        log.error("Kafka-kommando på {}-{}@{} till {}: {}",
+                record.topic(), record.partition(), record.offset(), deadLetterTopic, e.getMessage());
+        deadLetterPublisher.accept(record, e);
+        deadLettered.increment();
+    }
+
+    /**
+     * Felet från ErrorHandlingDeserializer om värdet inte gick att läsa, annars null.
+     */
+    public static DeserializationException deserializationFailure(ConsumerRecord<?, ?> record) {
+        if (record.value() != null) {
+            return null;
+        }
+        return SerializationUtils.getExceptionFromHeader(record,
+                SerializationUtils.VALUE_DESERIALIZER_EXCEPTION_HEADER, LOG_ACCESSOR);
+    }
+
+    /**
+     * Fel som kan gå över av sig själva; samma lista som retry-topicsen försöker om.
+     * Affärsfel (dubblett, patient saknas) blir inte bättre av ett nytt försök.
+     */
+    public static boolean isTransient(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TransientDataAccessException
+                    || cause instanceof RecoverableDataAccessException
+                    || cause instanceof CannotCreateTransactionException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
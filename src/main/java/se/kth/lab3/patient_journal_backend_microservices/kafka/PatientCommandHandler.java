@@ -0,0 +1,102 @@
+package se.kth.lab3.patient_journal_backend_microservices.kafka;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientCommandDTO;
+import se.kth.lab3.patient_journal_backend_microservices.service.PatientService;
+import se.kth.lab3.patient_journal_backend_microservices.service.ProcessedCommandStore;
+
+import java.util.List;
+
+/**
+ * Utför ett enskilt patient-kommando via PatientService.
+ * Delas av de olika konsumentlägena; fel kastas vidare till anroparen.
+ * Tiden per kommando mäts i patient.commands.processing med taggarna type och result.
+ * Kommandon med commandId som redan utförts hoppas över (result=duplicate) utan att något
+ * skrivs; annars markeras id:t i samma transaktion som kommandot, se ProcessedCommandStore.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class PatientCommandHandler {
+
+    // VIKTIGT: Vi använder Service, inte Repository.
+    // Detta gör att när en patient skapas här, skickas Också ett event till Search Service.
+    private final PatientService patientService;
+    private final MeterRegistry meterRegistry;
+    private final ProcessedCommandStore processedCommands;
+    private final TransactionTemplate transactionTemplate;
+
+    public void apply(PatientCommandDTO command) {
+        String type = command.getCommandType() == null ? "UNKNOWN" : command.getCommandType().toUpperCase();
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String result = "failure";
+        try {
+            result = executeOnce(type, command) ? "success" : "duplicate";
+        } finally {
+            sample.stop(Timer.builder("patient.commands.processing")
+                    .description("Tid för att utföra ett patient-kommando")
+                    .tag("type", type)
+                    .tag("result", result)
+                    .register(meterRegistry));
+        }
+    }
+
+    private boolean executeOnce(String type, PatientCommandDTO command) {
+        String commandId = command.getCommandId();
+        if (commandId == null) {
+            execute(type, command);
+            return true;
+        }
+        if (processedCommands.isProcessed(commandId)) {
+            log.info("KAFKA: Kommando {} redan utfört, hoppar över.", commandId);
+            return false;
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                processedCommands.record(List.of(commandId));
+                execute(type, command);
+            });
+            return true;
+        } catch (DataIntegrityViolationException e) {
+            // Samtidigt utfört av en annan replika, som filtret inte kände till
+            if (processedCommands.isRecorded(commandId)) {
+                log.info("KAFKA: Kommando {} utfört samtidigt på annat håll, hoppar över.", commandId);
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    private void execute(String type, PatientCommandDTO command) {
+        switch (type) {
+            case "CREATE":
+                // Anropar service -> Sparar i DB -> Skickar event till Search Service
+                patientService.createPatient(command.getPatient());
+                log.info("KAFKA: Patient skapad via Service (Event skickat).");
+                break;
+
+            case "UPDATE":
+                if (command.getPatientId() != null) {
+                    patientService.updatePatient(command.getPatientId(), command.getPatient());
+                    log.info("KAFKA: Patient uppdaterad via Service (Event skickat).");
+                }
+                break;
+
+            case "DELETE":
+                if (command.getPatientId() != null) {
+                    patientService.deletePatient(command.getPatientId());
+                    log.info("KAFKA: Patient borttagen via Service (Tombstone skickad).");
+                }
+                break;
+
+            default:
+                log.warn("Okänd kommandotyp: {}", command.getCommandType());
+        }
+    }
+}
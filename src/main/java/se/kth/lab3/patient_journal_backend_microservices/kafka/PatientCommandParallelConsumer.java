@@ -0,0 +1,350 @@
+package se.kth.lab3.patient_journal_backend_microservices.kafka;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.event.EventListener;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.event.ListenerContainerIdleEvent;
+import org.springframework.kafka.listener.ConsumerAwareRebalanceListener;
+import org.springframework.stereotype.Service;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientCommandDTO;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parallell konsument för patient.commands, aktiv när kafka.consumer.mode=parallel.
+ * Varje post läggs sist i sin nyckels (patients) kö och körs på en begränsad tråd-pool, så
+ * kommandon för olika patienter körs parallellt även inom en partition medan ordningen per
+ * patient bevaras. Lyssnaren väntar inte på köerna utan går direkt tillbaka till nästa poll;
+ * en långsam patient håller alltså bara upp sina egna kommandon.
+ * <p>
+ * Offset committas av den här klassen (AckMode MANUAL, se KafkaConfig), på konsumenttråden:
+ * per partition upp till den lägsta post som fortfarande körs, efter varje poll, när
+ * containern är sysslolös och innan partitioner lämnas vid en rebalansering. Högst
+ * kafka.consumer.parallel.max-in-flight poster är ute samtidigt; är gränsen nådd väntar
+ * lyssnaren på plats i stället för att polla mer.
+ * <p>
+ * Om en post misslyckas med ett tillfälligt fel skickas den och resten av nyckelns kö till
+ * omförsök (PatientCommandDeadLetters), i ordning, så att nyckelns ordning håller där; andra
+ * fel skickas till DLT:n och nyckeln fortsätter. Går en post inte att skicka vidare försöker
+ * nyckeln igen med växande väntetid; posten räknas som pågående, så partitionens offset
+ * committas inte förbi den, medan andra patienter fortsätter.
+ * Med spring.threads.virtual.enabled=true är arbetstrådarna virtuella; antalet är detsamma.
+ */
+@Service
+@ConditionalOnProperty(name = "kafka.consumer.mode", havingValue = "parallel")
+@Slf4j
+public class PatientCommandParallelConsumer implements ConsumerAwareRebalanceListener {
+
+    static final String LISTENER_ID = "patient-command-parallel";
+
+    private static final long FORWARD_INITIAL_BACKOFF_MS = 100;
+    private static final long FORWARD_MAX_BACKOFF_MS = 30_000;
+
+    private final PatientCommandHandler commandHandler;
+    private final PatientCommandDeadLetters deadLetters;
+    private final ExecutorService workers;
+    private final Semaphore inFlightPermits;
+    private final long revokeTimeoutMs;
+
+    // Köerna per nyckel; en nyckel finns bara här så länge den har poster kvar
+    private final Map<String, Lane> lanes = new HashMap<>();
+    private final Map<TopicPartition, PartitionProgress> progress = new ConcurrentHashMap<>();
+
+    public PatientCommandParallelConsumer(
+            PatientCommandHandler commandHandler,
+            PatientCommandDeadLetters deadLetters,
+            @Value("${kafka.consumer.parallel.workers:0}") int workerCount,
+            @Value("${kafka.consumer.parallel.max-in-flight:1000}") int maxInFlight,
+            @Value("${kafka.consumer.parallel.revoke-timeout-ms:10000}") long revokeTimeoutMs,
+            @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads) {
+        this.commandHandler = commandHandler;
+        this.deadLetters = deadLetters;
+        int threads = workerCount > 0 ? workerCount : Runtime.getRuntime().availableProcessors();
+        this.workers = Executors.newFixedThreadPool(threads, namedThreads(virtualThreads));
+        this.inFlightPermits = new Semaphore(maxInFlight);
+        this.revokeTimeoutMs = revokeTimeoutMs;
+        log.info("Parallell kommandokonsument startad med {} arbetstrådar ({}), högst {} poster samtidigt",
+                threads, virtualThreads ? "virtuella" : "plattform", maxInFlight);
+    }
+
+    @KafkaListener(
+            id = LISTENER_ID,
+            topics = "patient.commands",
+            groupId = "patient-journal-group",
+            containerFactory = "kafkaListenerContainerFactory",
+            batch = "true"
+    )
+    public void handlePatientCommands(List<ConsumerRecord<String, PatientCommandDTO>> records,
+                                      Consumer<?, ?> consumer) {
+        try {
+            for (ConsumerRecord<String, PatientCommandDTO> record : records) {
+                while (!inFlightPermits.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                    // Fullt: committa det som hunnit bli klart medan vi väntar på plats
+                    commitCompleted(consumer);
+                }
+                dispatch(record);
+            }
+        } catch (InterruptedException e) {
+            // Containern stoppas; poster som inte lagts i någon kö committas inte och läses om
+            Thread.currentThread().interrupt();
+        }
+        commitCompleted(consumer);
+        log.debug("Tog emot {} Kafka-kommandon, {} nycklar har poster kvar", records.size(), laneCount());
+    }
+
+    @EventListener(condition = "event.listenerId.startsWith('" + LISTENER_ID + "')")
+    public void onIdle(ListenerContainerIdleEvent event) {
+        // Publiceras på konsumenttråden, så konsumenten får användas här
+        commitCompleted(event.getConsumer());
+    }
+
+    @Override
+    public void onPartitionsRevokedBeforeCommit(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        // Låt pågående poster gå klart, så att nästa ägare inte kör en patients senare
+        // kommandon samtidigt som våra äldre
+        long deadline = System.currentTimeMillis() + revokeTimeoutMs;
+        for (TopicPartition partition : partitions) {
+            PartitionProgress partitionProgress = progress.get(partition);
+            while (partitionProgress != null && !partitionProgress.inFlight.isEmpty()
+                    && System.currentTimeMillis() < deadline) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        commitCompleted(consumer);
+        partitions.forEach(progress::remove);
+    }
+
+    @Override
+    public void onPartitionsLost(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        // Partitionerna har redan en ny ägare; det går inte längre att committa dem
+        partitions.forEach(progress::remove);
+    }
+
+    private void dispatch(ConsumerRecord<String, PatientCommandDTO> record) {
+        TopicPartition partition = new TopicPartition(record.topic(), record.partition());
+        PartitionProgress partitionProgress = progress.computeIfAbsent(partition,
+                p -> new PartitionProgress(record.offset()));
+        partitionProgress.inFlight.add(record.offset());
+        partitionProgress.next = record.offset() + 1;
+
+        String key = orderingKey(record);
+        synchronized (lanes) {
+            Lane lane = lanes.computeIfAbsent(key, k -> new Lane());
+            lane.pending++;
+            lane.tail = lane.tail.thenRunAsync(() -> run(key, lane, record, partitionProgress), workers);
+        }
+    }
+
+    private void run(String key, Lane lane, ConsumerRecord<String, PatientCommandDTO> record,
+                     PartitionProgress partitionProgress) {
+        try {
+            boolean divert;
+            synchronized (lanes) {
+                divert = lane.divertToRetry;
+            }
+            if (process(record, divert)) {
+                synchronized (lanes) {
+                    lane.divertToRetry = true;
+                }
+            }
+            partitionProgress.inFlight.remove(record.offset());
+        } catch (Exception e) {
+            // Bara vid avstängning: posten lämnas ocommittad och läses om av nästa ägare
+            log.warn("Kafka-kommando på {}-{}@{} avbröts: {}",
+                    record.topic(), record.partition(), record.offset(), e.getMessage());
+        } finally {
+            inFlightPermits.release();
+            synchronized (lanes) {
+                if (--lane.pending == 0) {
+                    lanes.remove(key, lane);
+                }
+            }
+        }
+    }
+
+    /**
+     * Kör posten, eller skickar den direkt till omförsök om nyckeln redan gjort det.
+     * Returnerar true om posten skickades till omförsök.
+     */
+    private boolean process(ConsumerRecord<String, PatientCommandDTO> record, boolean divert)
+            throws InterruptedException {
+        if (record.value() == null) {
+            forward(record, PatientCommandDeadLetters.deserializationFailure(record), false);
+            return false;
+        }
+        if (divert) {
+            forward(record, new IllegalStateException("Ett tidigare kommando för nyckeln väntar på omförsök"), true);
+            return true;
+        }
+        try {
+            commandHandler.apply(record.value());
+            return false;
+        } catch (Exception failure) {
+            if (PatientCommandDeadLetters.isTransient(failure)) {
+                log.warn("Tillfälligt fel vid Kafka-kommando, nyckelns följande kommandon följer med till omförsök");
+                forward(record, failure, true);
+                return true;
+            }
+            forward(record, failure, false);
+            return false;
+        }
+    }
+
+    /**
+     * Skickar posten till omförsök eller DLT. Misslyckas det försöker vi igen med växande
+     * väntetid; nyckelns senare poster väntar under tiden, andra nycklar gör det inte.
+     */
+    private void forward(ConsumerRecord<String, PatientCommandDTO> record, Exception failure, boolean retry)
+            throws InterruptedException {
+        long backoff = FORWARD_INITIAL_BACKOFF_MS;
+        while (true) {
+            try {
+                if (retry) {
+                    deadLetters.retryLater(record, failure);
+                } else {
+                    deadLetters.deadLetter(record, failure);
+                }
+                return;
+            } catch (Exception e) {
+                if (workers.isShutdown()) {
+                    throw new InterruptedException("Konsumenten stängs av");
+                }
+                log.warn("Kunde inte skicka Kafka-kommando på {}-{}@{} vidare, nytt försök om {} ms: {}",
+                        record.topic(), record.partition(), record.offset(), backoff, e.getMessage());
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, FORWARD_MAX_BACKOFF_MS);
+            }
+        }
+    }
+
+    /**
+     * Committar varje partition upp till den lägsta post som fortfarande körs, eller förbi
+     * den senast mottagna om inget körs. Måste anropas på konsumenttråden.
+     */
+    void commitCompleted(Consumer<?, ?> consumer) {
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        progress.forEach((partition, partitionProgress) -> {
+            long committable = partitionProgress.committable();
+            if (committable > partitionProgress.committed) {
+                offsets.put(partition, new OffsetAndMetadata(committable));
+            }
+        });
+        if (offsets.isEmpty()) {
+            return;
+        }
+        consumer.commitSync(offsets);
+        offsets.forEach((partition, offset) -> {
+            PartitionProgress partitionProgress = progress.get(partition);
+            if (partitionProgress != null) {
+                partitionProgress.committed = offset.offset();
+            }
+        });
+    }
+
+    /**
+     * Väntar tills inga poster körs, högst timeout. För tester och avstängning.
+     */
+    boolean awaitIdle(Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (progress.values().stream().anyMatch(p -> !p.inFlight.isEmpty())) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private int laneCount() {
+        synchronized (lanes) {
+            return lanes.size();
+        }
+    }
+
+    /**
+     * En nyckels kö: poster kedjas på tail och körs en i taget. divertToRetry sätts när en
+     * post gått till omförsök, så att nyckelns följande poster i kön hamnar efter den.
+     */
+    private static final class Lane {
+        CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+        int pending;
+        boolean divertToRetry;
+    }
+
+    /**
+     * Offsetläget för en partition. inFlight ändras av arbetstrådarna; next och committed
+     * bara av konsumenttråden.
+     */
+    private static final class PartitionProgress {
+        final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<>();
+        volatile long next;
+        long committed;
+
+        PartitionProgress(long firstOffset) {
+            this.next = firstOffset;
+            this.committed = firstOffset;
+        }
+
+        long committable() {
+            Long lowest = inFlight.ceiling(Long.MIN_VALUE);
+            return lowest != null ? lowest : next;
+        }
+    }
+
+    static String orderingKey(ConsumerRecord<String, PatientCommandDTO> record) {
+        if (record.key() != null) {
+            return record.key();
+        }
+        PatientCommandDTO command = record.value();
+        if (command != null && command.getPatient() != null && command.getPatient().getPersonalNumber() != null) {
+            return command.getPatient().getPersonalNumber();
+        }
+        if (command != null && command.getPatientId() != null) {
+            return command.getPatientId().toString();
+        }
+        // Utan nyckel finns ingen ordning att bevara; posten får en egen kö
+        return "offset-" + record.partition() + "-" + record.offset();
+    }
+
+    private static ThreadFactory namedThreads(boolean virtualThreads) {
+        if (virtualThreads) {
+            return Thread.ofVirtual().name("patient-command-worker-", 1).factory();
+        }
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "patient-command-worker-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    @PreDestroy
+    void shutdown() {
+        workers.shutdownNow();
+    }
+}
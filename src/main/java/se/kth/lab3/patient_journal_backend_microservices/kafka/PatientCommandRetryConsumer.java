@@ -0,0 +1,89 @@
+package se.kth.lab3.patient_journal_backend_microservices.kafka;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.kafka.annotation.DltHandler;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.annotation.RetryableTopic;
+import org.springframework.kafka.retrytopic.DltStrategy;
+import org.springframework.kafka.retrytopic.TopicSuffixingStrategy;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.handler.annotation.Header;
+import org.springframework.retry.annotation.Backoff;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.CannotCreateTransactionException;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientCommandDTO;
+
+/**
+ * Omförsök för patient-kommandon som misslyckats med ett tillfälligt fel, oavsett
+ * kafka.consumer.mode. Konsumenterna på patient.commands skickar dem till
+ * kafka.topic.patient-commands-failed (se PatientCommandDeadLetters) och går vidare; har
+ * provas de direkt en gång till och sedan i retry-topics med ökande väntetid
+ * (&lt;topic&gt;-retry-0, -1, ...), innan de hamnar i DLT:n. Bara tillfälliga fel provas
+ * igen, andra går direkt till DLT:n. En post som väntar pausar bara sin partition i sin
+ * retry-topic, aldrig patient.commands.
+ * <p>
+ * Ett kommando som provas om kan utföras efter senare kommandon för samma patient. Omleverans
+ * stoppas av commandId (ProcessedCommandStore), och en UPDATE efter DELETE misslyckas.
+ */
+@Service
+@Slf4j
+public class PatientCommandRetryConsumer {
+
+    private final PatientCommandHandler commandHandler;
+    private final Counter deadLetters;
+
+    public PatientCommandRetryConsumer(PatientCommandHandler commandHandler, MeterRegistry meterRegistry) {
+        this.commandHandler = commandHandler;
+        this.deadLetters = Counter.builder("patient.commands.dead_letter")
+                .description("Patient-kommandon som kommit till DLT:n")
+                .register(meterRegistry);
+    }
+
+    @RetryableTopic(
+            attempts = "${kafka.commands.retry.attempts:4}",
+            backoff = @Backoff(
+                    delayExpression = "${kafka.commands.retry.initial-delay-ms:1000}",
+                    multiplierExpression = "${kafka.commands.retry.multiplier:5}",
+                    maxDelayExpression = "${kafka.commands.retry.max-delay-ms:60000}"),
+            kafkaTemplate = "kafkaTemplate",
+            listenerContainerFactory = "commandRetryListenerContainerFactory",
+            autoCreateTopics = "${kafka.commands.retry.auto-create-topics:true}",
+            topicSuffixingStrategy = TopicSuffixingStrategy.SUFFIX_WITH_INDEX_VALUE,
+            dltTopicSuffix = PatientCommandDeadLetters.DLT_SUFFIX,
+            // Ett fel i DLT-hanteraren ska inte skicka posten till DLT:n igen
+            dltStrategy = DltStrategy.FAIL_ON_ERROR,
+            include = {
+                    TransientDataAccessException.class,
+                    RecoverableDataAccessException.class,
+                    CannotCreateTransactionException.class
+            },
+            traversingCauses = "true"
+    )
+    @KafkaListener(
+            topics = "${kafka.topic.patient-commands-failed:patient.commands.failed}",
+            groupId = "patient-journal-group-retry",
+            containerFactory = "commandRetryListenerContainerFactory"
+    )
+    public void retryPatientCommand(PatientCommandDTO command) {
+        log.info("Provar Kafka-kommando igen: {} för patient-ID: {}", command.getCommandType(), command.getPatientId());
+        commandHandler.apply(command);
+    }
+
+    @DltHandler
+    public void onDeadLetter(
+            ConsumerRecord<String, PatientCommandDTO> record,
+            @Header(name = KafkaHeaders.DLT_EXCEPTION_MESSAGE, required = false) String error) {
+        deadLetters.increment();
+        PatientCommandDTO command = record.value();
+        log.error("Kafka-kommando i DLT {}-{}@{}: {} för patient-ID {}, commandId {}: {}",
+                record.topic(), record.partition(), record.offset(),
+                command == null ? null : command.getCommandType(),
+                command == null ? null : command.getPatientId(),
+                command == null ? null : command.getCommandId(), error);
+    }
+}
@@ -0,0 +1,155 @@
+package se.kth.lab3.patient_journal_backend_microservices.kafka;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.errors.WakeupException;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.stereotype.Component;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
+import se.kth.lab3.patient_journal_backend_microservices.service.PatientReadModel;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bygger och följer PatientReadModel från patient.events. Konsumenten har ingen grupp:
+ * alla partitioner tilldelas med assign() och läses från början vid varje start, så att
+ * varje replika får hela changelogen, och inga offsets committas. Slutoffseten vid start
+ * är målet för ikappkörningen (readiness). Kräver cleanup.policy=compact på topicen,
+ * annars försvinner patienter som inte ändrats inom retention ur modellen.
+ */
+@Component
+@ConditionalOnProperty(name = "patient.read-model.enabled", havingValue = "true", matchIfMissing = true)
+@Slf4j
+public class PatientReadModelUpdater {
+
+    private static final Duration POLL_TIMEOUT = Duration.ofMillis(500);
+    private static final long RETRY_DELAY_MS = 5000;
+
+    private final ConsumerFactory<String, byte[]> consumerFactory;
+    private final PatientReadModel readModel;
+    private final DtoDeserializer<PatientDTO> deserializer;
+
+    @Value("${kafka.topic.patient:patient.events}")
+    private String patientTopic;
+
+    private volatile boolean running = true;
+    private volatile Consumer<String, byte[]> consumer;
+    private Thread thread;
+
+    public PatientReadModelUpdater(
+            @Qualifier("eventConsumerFactory") ConsumerFactory<String, byte[]> consumerFactory,
+            PatientReadModel readModel,
+            SchemaRegistry schemaRegistry,
+            ObjectMapper objectMapper) {
+        this.consumerFactory = consumerFactory;
+        this.readModel = readModel;
+        this.deserializer = new DtoDeserializer<>(schemaRegistry, objectMapper, PatientDTO.class);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    void onApplicationReady() {
+        thread = new Thread(this::run, "patient-read-model");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        running = false;
+        Consumer<String, byte[]> current = consumer;
+        if (current != null) {
+            current.wakeup();
+        }
+        if (thread != null) {
+            thread.join(RETRY_DELAY_MS);
+        }
+    }
+
+    private void run() {
+        while (running) {
+            try (Consumer<String, byte[]> created = consumerFactory.createConsumer(null, "patient-read-model", null)) {
+                consumer = created;
+                follow(created);
+            } catch (WakeupException e) {
+                // stop()
+            } catch (Exception e) {
+                log.error("Läsmodellen för patienter kunde inte läsa {}: {}", patientTopic, e.getMessage(), e);
+                sleepBeforeRetry();
+            } finally {
+                consumer = null;
+            }
+        }
+    }
+
+    private void follow(Consumer<String, byte[]> consumer) {
+        List<PartitionInfo> partitionInfos = consumer.partitionsFor(patientTopic);
+        if (partitionInfos == null || partitionInfos.isEmpty()) {
+            log.warn("Topicen {} finns inte än, läsmodellen väntar", patientTopic);
+            sleepBeforeRetry();
+            return;
+        }
+        List<TopicPartition> partitions = partitionInfos.stream()
+                .map(info -> new TopicPartition(info.topic(), info.partition()))
+                .toList();
+        consumer.assign(partitions);
+        consumer.seekToBeginning(partitions);
+        Map<Integer, Long> endOffsets = new HashMap<>();
+        consumer.endOffsets(partitions).forEach((partition, offset) -> endOffsets.put(partition.partition(), offset));
+        // Vid omstart efter fel läser vi om från början; äldre versioner hoppas över i modellen
+        readModel.begin(endOffsets);
+        long start = System.nanoTime();
+        boolean announced = false;
+
+        while (running) {
+            for (ConsumerRecord<String, byte[]> record : consumer.poll(POLL_TIMEOUT)) {
+                apply(record);
+            }
+            // position() och inte sista postens offset + 1: kompaktering och transaktionsmarkörer
+            // lämnar luckor, och tomma partitioner har inga poster alls
+            for (TopicPartition partition : partitions) {
+                readModel.advance(partition.partition(), consumer.position(partition));
+            }
+            if (!announced && readModel.isServing()) {
+                announced = true;
+                log.info("Läsmodellen för patienter ikapp: {} patienter på {} ms",
+                        readModel.size(), (System.nanoTime() - start) / 1_000_000);
+            }
+        }
+    }
+
+    private void apply(ConsumerRecord<String, byte[]> record) {
+        if (record.key() == null) {
+            return;
+        }
+        try {
+            long id = Long.parseLong(record.key());
+            readModel.apply(id, deserializer.deserialize(record.topic(), record.value()));
+        } catch (SerializationException | NumberFormatException e) {
+            log.warn("Kunde inte läsa patient-event på {}-{}@{}: {}",
+                    record.topic(), record.partition(), record.offset(), e.getMessage());
+        }
+    }
+
+    private void sleepBeforeRetry() {
+        try {
+            Thread.sleep(RETRY_DELAY_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+}
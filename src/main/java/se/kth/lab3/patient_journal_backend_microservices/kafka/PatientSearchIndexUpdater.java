@@ -0,0 +1,53 @@
+package se.kth.lab3.patient_journal_backend_microservices.kafka;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.errors.SerializationException;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.stereotype.Service;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
+import se.kth.lab3.patient_journal_backend_microservices.service.PatientSearchIndex;
+
+import java.util.List;
+
+/**
+ * Håller PatientSearchIndex i varje replika uppdaterat med andra replikors skrivningar
+ * från patient.events. Tombstones (null-värde) tar bort patienten ur indexet.
+ */
+@Service
+@ConditionalOnProperty(name = "patient.search.events.enabled", havingValue = "true", matchIfMissing = true)
+@Slf4j
+public class PatientSearchIndexUpdater {
+
+    private final PatientSearchIndex searchIndex;
+    private final DtoDeserializer<PatientDTO> deserializer;
+
+    public PatientSearchIndexUpdater(PatientSearchIndex searchIndex, SchemaRegistry schemaRegistry,
+                                     ObjectMapper objectMapper) {
+        this.searchIndex = searchIndex;
+        this.deserializer = new DtoDeserializer<>(schemaRegistry, objectMapper, PatientDTO.class);
+    }
+
+    @KafkaListener(
+            topics = "${kafka.topic.patient:patient.events}",
+            groupId = "patient-search-#{T(java.util.UUID).randomUUID()}",
+            containerFactory = "eventListenerContainerFactory"
+    )
+    public void onPatientEvents(List<ConsumerRecord<String, byte[]>> records) {
+        for (ConsumerRecord<String, byte[]> record : records) {
+            try {
+                if (record.value() == null) {
+                    if (record.key() != null) {
+                        searchIndex.remove(Long.valueOf(record.key()));
+                    }
+                    continue;
+                }
+                searchIndex.put(deserializer.deserialize(record.topic(), record.value()));
+            } catch (SerializationException | NumberFormatException e) {
+                log.warn("Kunde inte läsa patient-event på offset {}: {}", record.offset(), e.getMessage());
+            }
+        }
+    }
+}
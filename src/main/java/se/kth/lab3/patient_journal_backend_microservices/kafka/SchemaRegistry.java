@@ -0,0 +1,130 @@
+package se.kth.lab3.patient_journal_backend_microservices.kafka;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Filbaserad ersättare för ett schemaregister. Registret är en JSON-fil som checkas in
+ * (kafka-schemas.json), så att alla repliker ser samma id:n utan någon extern tjänst.
+ * Ett binärt Kafka-meddelande bär schema-id:t och kan alltid slås upp här.
+ * <p>
+ * Filen kontrolleras vid start mot reglerna för schemautveckling, som gör varje version
+ * både bakåt- och framåtkompatibel med de andra:
+ * <ul>
+ *     <li>alla fält är optional: gamla läsare hoppar över nya fält, nya läsare ser null
+ *     för fält som saknas;</li>
+ *     <li>ett fältnummer behåller sitt namn och sin typ i alla versioner, även efter att
+ *     fältet tagits bort, så att ett nummer aldrig återanvänds för något annat;</li>
+ *     <li>versionerna av ett subject numreras 1, 2, 3 ... och ett id används en gång.</li>
+ * </ul>
+ * Ett nytt fält läggs alltså till i DtoProtobufCodec, DtoSchema och som en ny version i filen.
+ */
+@Component
+@Slf4j
+public class SchemaRegistry {
+
+    private static final Set<String> SCALAR_TYPES = Set.of("bool", "int64", "sint32", "sint64", "string");
+
+    public record SchemaField(int number, String name, String type) {
+    }
+
+    public record RegisteredSchema(int id, String subject, int version, List<SchemaField> fields) {
+    }
+
+    record RegistryFile(List<RegisteredSchema> schemas) {
+    }
+
+    private final Map<Integer, RegisteredSchema> schemasById;
+    private final Map<DtoSchema, Integer> currentIds = new EnumMap<>(DtoSchema.class);
+
+    public SchemaRegistry(
+            ObjectMapper objectMapper,
+            @Value("${kafka.schema-registry.location:classpath:kafka-schemas.json}") Resource location) throws IOException {
+        List<RegisteredSchema> schemas;
+        try (InputStream in = location.getInputStream()) {
+            schemas = objectMapper.readValue(in, RegistryFile.class).schemas();
+        }
+        validate(schemas);
+        this.schemasById = schemas.stream().collect(Collectors.toMap(RegisteredSchema::id, schema -> schema));
+
+        for (DtoSchema schema : DtoSchema.values()) {
+            RegisteredSchema registered = schemas.stream()
+                    .filter(s -> s.subject().equals(schema.subject()) && s.fields().equals(schema.fields()))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalStateException(
+                            "Schemat för " + schema.subject() + " är inte registrerat i " + location));
+            currentIds.put(schema, registered.id());
+        }
+        log.info("Schemaregister: {} scheman från {}, aktuella id:n {}", schemas.size(), location, currentIds);
+    }
+
+    // null om id:t inte finns
+    public RegisteredSchema byId(int id) {
+        return schemasById.get(id);
+    }
+
+    int currentId(DtoSchema schema) {
+        return currentIds.get(schema);
+    }
+
+    static void validate(List<RegisteredSchema> schemas) {
+        Set<Integer> ids = new HashSet<>();
+        for (RegisteredSchema schema : schemas) {
+            if (!ids.add(schema.id())) {
+                throw new IllegalStateException("Schema-id " + schema.id() + " finns flera gånger");
+            }
+        }
+        Set<String> subjects = schemas.stream().map(RegisteredSchema::subject).collect(Collectors.toSet());
+
+        Map<String, List<RegisteredSchema>> bySubject = schemas.stream()
+                .collect(Collectors.groupingBy(RegisteredSchema::subject));
+        bySubject.forEach((subject, versions) -> {
+            versions.sort(Comparator.comparingInt(RegisteredSchema::version));
+            Map<Integer, SchemaField> fieldsByNumber = new HashMap<>();
+            for (int i = 0; i < versions.size(); i++) {
+                RegisteredSchema schema = versions.get(i);
+                if (schema.version() != i + 1) {
+                    throw new IllegalStateException(subject + " saknar version " + (i + 1));
+                }
+                Set<String> names = new HashSet<>();
+                Set<Integer> numbers = new HashSet<>();
+                for (SchemaField field : schema.fields()) {
+                    String where = subject + " v" + schema.version() + ", fält " + field.number();
+                    if (field.number() < 1 || !numbers.add(field.number()) || !names.add(field.name())) {
+                        throw new IllegalStateException(where + ": nummer och namn måste vara unika och positiva");
+                    }
+                    if (!SCALAR_TYPES.contains(field.type()) && !subjects.contains(field.type())) {
+                        throw new IllegalStateException(where + ": okänd typ " + field.type());
+                    }
+                    SchemaField earlier = fieldsByNumber.putIfAbsent(field.number(), field);
+                    if (earlier != null && !earlier.equals(field)) {
+                        throw new IllegalStateException(where + ": var " + earlier.name() + " (" + earlier.type()
+                                + "), ett fältnummer får inte byta namn eller typ");
+                    }
+                }
+            }
+            Map<String, Integer> numbersByName = new HashMap<>();
+            for (SchemaField field : fieldsByNumber.values()) {
+                Integer earlier = numbersByName.putIfAbsent(field.name(), field.number());
+                if (earlier != null) {
+                    throw new IllegalStateException(subject + ": " + field.name() + " har bytt nummer från "
+                            + earlier + " till " + field.number());
+                }
+            }
+        });
+    }
+}
@@ -1,13 +1,126 @@
 package se.kth.lab3.patient_journal_backend_microservices.repository;
 
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import se.kth.lab3.patient_journal_backend_microservices.dto.JournalEntryDTO;
 import se.kth.lab3.patient_journal_backend_microservices.entity.JournalEntry;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
 
 @Repository
 public interface JournalEntryRepository extends JpaRepository<JournalEntry, Long> {
 
-    List<JournalEntry> findByPatientIdOrderByCreatedAtDesc(Long patientId);
-}
\ No newline at end of file
+    int EXPORT_FETCH_SIZE = 500;
+
+    /**
+     * Läsvägarna väljer DTO:n direkt med ett konstruktoruttryck: inga entiteter i persistence
+     * context och ingen dirty checking. j.patient.id är själva kolumnen patient_id, så
+     * patienten varken joinas eller laddas. Mjukt borttagna anteckningar filtreras bort.
+     */
+    String SELECT_DTO = "SELECT new se.kth.lab3.patient_journal_backend_microservices.dto.JournalEntryDTO(" +
+            "j.id, j.patient.id, j.note, j.createdAt, j.diagnosis, j.treatment, j.version) " +
+            "FROM JournalEntry j WHERE j.deleted = false ";
+
+    Optional<JournalEntry> findByIdAndDeletedFalse(Long id);
+
+    @Query("SELECT j.patient.id FROM JournalEntry j WHERE j.id = :id AND j.deleted = false")
+    Optional<Long> findLivePatientId(@Param("id") Long id);
+
+    @Query(SELECT_DTO + "AND j.id = :id")
+    Optional<JournalEntryDTO> findDtoById(@Param("id") Long id);
+
+    @Query("SELECT j.version FROM JournalEntry j WHERE j.id = :id AND j.deleted = false")
+    Optional<Long> findVersionById(@Param("id") Long id);
+
+    @Query(SELECT_DTO + "AND j.id IN :ids")
+    List<JournalEntryDTO> findDtosByIdIn(@Param("ids") Collection<Long> ids);
+
+    @Query(SELECT_DTO)
+    List<JournalEntryDTO> findAllDtos();
+
+    @Query(SELECT_DTO + "AND j.patient.id = :patientId ORDER BY j.createdAt DESC")
+    List<JournalEntryDTO> findDtosByPatientId(@Param("patientId") Long patientId);
+
+    // Keyset-paginering på (createdAt, id), nyaste först
+    @Query(SELECT_DTO + "ORDER BY j.createdAt DESC, j.id DESC")
+    List<JournalEntryDTO> findDtoPage(Limit limit);
+
+    @Query(SELECT_DTO +
+            "AND (j.createdAt < :createdAt OR (j.createdAt = :createdAt AND j.id < :id)) " +
+            "ORDER BY j.createdAt DESC, j.id DESC")
+    List<JournalEntryDTO> findDtoPageAfter(@Param("createdAt") LocalDateTime createdAt,
+                                           @Param("id") Long id,
+                                           Limit limit);
+
+    /**
+     * Strömmar anteckningar för export. Fetch size gör att drivern hämtar rader i block
+     * istället för hela resultatet; DTO:erna hamnar aldrig i persistence context.
+     * Måste konsumeras inom en transaktion och stängas efter användning.
+     */
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "" + EXPORT_FETCH_SIZE))
+    @Query(SELECT_DTO +
+            "AND (:patientId IS NULL OR j.patient.id = :patientId) " +
+            "AND (:from IS NULL OR j.createdAt >= :from) " +
+            "AND (:to IS NULL OR j.createdAt < :to) " +
+            "ORDER BY j.id")
+    Stream<JournalEntryDTO> streamDtosForExport(@Param("patientId") Long patientId,
+                                                @Param("from") LocalDateTime from,
+                                                @Param("to") LocalDateTime to);
+
+    @Query("SELECT MAX(j.id) FROM JournalEntry j")
+    Long findMaxId();
+
+    /**
+     * Keyset-block inom ett id-intervall, för parallell ombyggnad av sökindexet.
+     */
+    @Query(SELECT_DTO + "AND j.id > :after AND j.id <= :upTo ORDER BY j.id")
+    List<JournalEntryDTO> findDtoIdRange(@Param("after") Long after, @Param("upTo") Long upTo, Limit limit);
+
+    /**
+     * Högsta ändringsnumret för patienten, 0 om hen saknar anteckningar. Används som synktoken.
+     */
+    @Query("SELECT COALESCE(MAX(j.changeSeq), 0) FROM JournalEntry j WHERE j.patient.id = :patientId")
+    long findLastChangeSeq(@Param("patientId") Long patientId);
+
+    @Query("SELECT j.patient.id AS patientId, MAX(j.changeSeq) AS changeSeq FROM JournalEntry j " +
+            "WHERE j.patient.id IN :patientIds GROUP BY j.patient.id")
+    List<LastChange> findLastChanges(@Param("patientIds") Collection<Long> patientIds);
+
+    // Delta-synk: båda frågorna går på indexet (patient_id, change_seq)
+    @Query(SELECT_DTO + "AND j.patient.id = :patientId AND j.changeSeq > :after AND j.changeSeq <= :upTo " +
+            "ORDER BY j.changeSeq")
+    List<JournalEntryDTO> findDtoChanges(@Param("patientId") Long patientId,
+                                         @Param("after") long after,
+                                         @Param("upTo") long upTo);
+
+    @Query("SELECT j.id FROM JournalEntry j WHERE j.deleted = true AND j.patient.id = :patientId " +
+            "AND j.changeSeq > :after AND j.changeSeq <= :upTo ORDER BY j.changeSeq")
+    List<Long> findDeletedIds(@Param("patientId") Long patientId,
+                              @Param("after") long after,
+                              @Param("upTo") long upTo);
+
+    /**
+     * Tar bort patienternas mjukt borttagna anteckningar på riktigt, före patienterna själva
+     * (patient_id är en FK). Levande anteckningar lämnas; finns sådana går patienten inte att ta bort.
+     */
+    @Modifying
+    @Query("DELETE FROM JournalEntry j WHERE j.deleted = true AND j.patient.id IN :patientIds")
+    int deleteSoftDeletedByPatientIds(@Param("patientIds") Collection<Long> patientIds);
+
+    interface LastChange {
+        Long getPatientId();
+
+        Long getChangeSeq();
+    }
+}
@@ -1,15 +1,64 @@
 package se.kth.lab3.patient_journal_backend_microservices.repository;
 
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
 import se.kth.lab3.patient_journal_backend_microservices.entity.Patient;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 @Repository
 public interface PatientRepository extends JpaRepository<Patient, Long> {
 
-    Optional<Patient> findByPersonalNumber(String personalNumber);
+    /**
+     * Läsvägarna väljer DTO:n direkt med ett konstruktoruttryck: inga entiteter i persistence
+     * context, ingen dirty checking och ingen kopiering i convertToDTO.
+     */
+    String SELECT_DTO = "SELECT new se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO(" +
+            "p.id, p.firstName, p.lastName, p.personalNumber, p.dateOfBirth, p.email, p.phoneNumber, p.address, " +
+            "p.version) " +
+            "FROM Patient p ";
+
+    @Query(SELECT_DTO + "WHERE p.id = :id")
+    Optional<PatientDTO> findDtoById(@Param("id") Long id);
+
+    @Query("SELECT p.version FROM Patient p WHERE p.id = :id")
+    Optional<Long> findVersionById(@Param("id") Long id);
+
+    @Query("SELECT p.personalNumber FROM Patient p WHERE p.id = :id")
+    Optional<String> findPersonalNumberById(@Param("id") Long id);
+
+    @Query(SELECT_DTO + "WHERE p.personalNumber = :personalNumber")
+    Optional<PatientDTO> findDtoByPersonalNumber(@Param("personalNumber") String personalNumber);
+
+    @Query(SELECT_DTO)
+    List<PatientDTO> findAllDtos();
 
     boolean existsByPersonalNumber(String personalNumber);
-}
\ No newline at end of file
+
+    // Dubblettkontroll för batch-import: en IN-fråga istället för en existsBy per patient
+    @Query("SELECT p.personalNumber FROM Patient p WHERE p.personalNumber IN :personalNumbers")
+    List<String> findExistingPersonalNumbers(@Param("personalNumbers") Collection<String> personalNumbers);
+
+    @Query("SELECT p.id FROM Patient p WHERE p.id IN :ids")
+    List<Long> findExistingIds(@Param("ids") Collection<Long> ids);
+
+    /**
+     * Som findExistingIds men läser raderna, i id-ordning, till transaktionens slut. Serialiserar
+     * skrivningar av en patients journalanteckningar så att ändringsnumren committas i ordning.
+     */
+    @Query(value = "SELECT id FROM patients WHERE id IN :ids ORDER BY id FOR UPDATE", nativeQuery = true)
+    List<Long> lockExistingIds(@Param("ids") Collection<Long> ids);
+
+    // Keyset-paginering: första sidan respektive sidan efter ett givet id
+    @Query(SELECT_DTO + "ORDER BY p.id")
+    List<PatientDTO> findDtoPage(Limit limit);
+
+    @Query(SELECT_DTO + "WHERE p.id > :id ORDER BY p.id")
+    List<PatientDTO> findDtoPageAfter(@Param("id") Long id, Limit limit);
+}
@@ -0,0 +1,28 @@
+package se.kth.lab3.patient_journal_backend_microservices.repository;
+
+import org.springframework.data.domain.Limit;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import se.kth.lab3.patient_journal_backend_microservices.entity.ProcessedCommand;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface ProcessedCommandRepository extends JpaRepository<ProcessedCommand, String> {
+
+    @Query("SELECT c.commandId FROM ProcessedCommand c WHERE c.commandId IN :ids")
+    List<String> findExistingIds(@Param("ids") Collection<String> ids);
+
+    // Keyset över alla id:n, för att fylla Bloom-filtret vid start
+    @Query("SELECT c.commandId FROM ProcessedCommand c WHERE c.commandId > :after ORDER BY c.commandId")
+    List<String> findIdsAfter(@Param("after") String after, Limit limit);
+
+    @Modifying
+    @Query("DELETE FROM ProcessedCommand c WHERE c.processedAt < :before")
+    int deleteOlderThan(@Param("before") LocalDateTime before);
+}
@@ -0,0 +1,28 @@
+package se.kth.lab3.patient_journal_backend_microservices.service;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Kör en åtgärd när den pågående transaktionen har committats, eller direkt om ingen
+ * transaktion är aktiv. Används av cacherna och sökindexet så att en rullad-tillbaka
+ * skrivning aldrig syns i dem.
+ */
+final class AfterCommit {
+
+    private AfterCommit() {
+    }
+
+    static void run(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+}
@@ -0,0 +1,31 @@
+package se.kth.lab3.patient_journal_backend_microservices.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Gemensamma konstanter och hjälpmetoder för batch-import.
+ */
+final class BatchSupport {
+
+    /**
+     * Antal rader per flush, samma som spring.jpa.properties.hibernate.jdbc.batch_size
+     */
+    static final int JDBC_BATCH_SIZE = 50;
+
+    /**
+     * Max antal parametrar per IN-fråga, för att hålla sig under drivrutinernas gränser
+     */
+    static final int IN_CLAUSE_CHUNK_SIZE = 1000;
+
+    private BatchSupport() {
+    }
+
+    static <T> List<List<T>> chunks(List<T> items, int size) {
+        List<List<T>> chunks = new ArrayList<>();
+        for (int i = 0; i < items.size(); i += size) {
+            chunks.add(items.subList(i, Math.min(i + size, items.size())));
+        }
+        return chunks;
+    }
+}
@@ -1,26 +1,51 @@
 package se.kth.lab3.patient_journal_backend_microservices.service;
 
-import org.springframework.beans.factory.annotation.Qualifier;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import io.micrometer.core.annotation.Timed;
+import jakarta.persistence.EntityManager;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.data.domain.Limit;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.server.ResponseStatusException;
+import se.kth.lab3.patient_journal_backend_microservices.config.ReplicaRoutingDataSource;
+import se.kth.lab3.patient_journal_backend_microservices.dto.CursorPageDTO;
+import se.kth.lab3.patient_journal_backend_microservices.dto.JournalChangesDTO;
 import se.kth.lab3.patient_journal_backend_microservices.dto.JournalEntryDTO;
 import se.kth.lab3.patient_journal_backend_microservices.entity.JournalEntry;
 import se.kth.lab3.patient_journal_backend_microservices.entity.Patient;
 import se.kth.lab3.patient_journal_backend_microservices.repository.JournalEntryRepository;
 import se.kth.lab3.patient_journal_backend_microservices.repository.PatientRepository;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Service
 @Transactional
+@Timed("service.method")
 public class JournalEntryService {
 
     private final JournalEntryRepository journalEntryRepository;
     private final PatientRepository patientRepository;
-    private final KafkaTemplate<String, JournalEntryDTO> kafkaTemplate;
+    private final OutboxService outboxService;
+    private final EntityManager entityManager;
+    private final ObjectMapper objectMapper;
+    private final JournalTimelineCache timelineCache;
+    private final JournalSearchIndex searchIndex;
 
     @Value("${kafka.topic.journal:journal.events}")
     private String journalTopic;
@@ -28,100 +53,358 @@ public class JournalEntryService {
     public JournalEntryService(
             JournalEntryRepository journalEntryRepository,
             PatientRepository patientRepository,
-            @Qualifier("journalKafkaTemplate") KafkaTemplate<String, JournalEntryDTO> kafkaTemplate) {
+            OutboxService outboxService,
+            EntityManager entityManager,
+            ObjectMapper objectMapper,
+            JournalTimelineCache timelineCache,
+            JournalSearchIndex searchIndex) {
         this.journalEntryRepository = journalEntryRepository;
         this.patientRepository = patientRepository;
-        this.kafkaTemplate = kafkaTemplate;
+        this.outboxService = outboxService;
+        this.entityManager = entityManager;
+        this.objectMapper = objectMapper;
+        this.timelineCache = timelineCache;
+        this.searchIndex = searchIndex;
     }
 
+    @Transactional(isolation = Isolation.READ_COMMITTED)
     public JournalEntryDTO createJournalEntry(JournalEntryDTO journalEntryDTO) {
-        Patient patient = patientRepository.findById(journalEntryDTO.getPatientId())
-                .orElseThrow(() -> new RuntimeException("Patient med ID " + journalEntryDTO.getPatientId() + " finns inte"));
+        Long patientId = journalEntryDTO.getPatientId();
+        Map<Long, Long> lastChanges = lockForChanges(List.of(patientId));
+        if (!lastChanges.containsKey(patientId)) {
+            throw new RuntimeException("Patient med ID " + patientId + " finns inte");
+        }
 
-        JournalEntry journalEntry = convertToEntity(journalEntryDTO, patient);
+        JournalEntry journalEntry = convertToEntity(journalEntryDTO, patientRepository.getReferenceById(patientId));
+        journalEntry.setChangeSeq(lastChanges.get(patientId) + 1);
         JournalEntry savedEntry = journalEntryRepository.save(journalEntry);
 
         JournalEntryDTO dto = convertToDTO(savedEntry);
 
-        // Skicka event till Kafka
-        try {
-            kafkaTemplate.send(journalTopic, dto.getPatientId().toString(), dto);
-            System.out.println("=== Kafka: Skickade journal-händelse till topic: " + journalTopic + " ===");
-        } catch (Exception e) {
-            System.err.println("=== Kafka: Kunde inte skicka journal-händelse: " + e.getMessage() + " ===");
-        }
+        // Event till Kafka via outboxen, i samma transaktion som anteckningen
+        outboxService.enqueue(journalTopic, dto.getPatientId().toString(), dto);
+        timelineCache.appendAfterCommit(List.of(dto));
+        AfterCommit.run(() -> searchIndex.put(dto));
 
         return dto;
     }
 
+    /**
+     * Skapar många anteckningar i en transaktion. Att alla patienter finns kontrolleras,
+     * och patienterna läses, med en IN-fråga per 1000 id:n, och patienterna refereras utan
+     * att laddas.
+     */
+    @Transactional(isolation = Isolation.READ_COMMITTED)
+    public List<JournalEntryDTO> createJournalEntries(List<JournalEntryDTO> journalEntryDTOs) {
+        List<Long> patientIds = journalEntryDTOs.stream()
+                .map(JournalEntryDTO::getPatientId)
+                .distinct()
+                .collect(Collectors.toList());
+
+        Map<Long, Long> lastChanges = lockForChanges(patientIds);
+        List<Long> missing = patientIds.stream()
+                .filter(id -> !lastChanges.containsKey(id))
+                .collect(Collectors.toList());
+        if (!missing.isEmpty()) {
+            throw new RuntimeException("Patienter med ID " + missing + " finns inte");
+        }
+
+        List<JournalEntryDTO> created = new ArrayList<>(journalEntryDTOs.size());
+        for (List<JournalEntryDTO> chunk : BatchSupport.chunks(journalEntryDTOs, BatchSupport.JDBC_BATCH_SIZE)) {
+            List<JournalEntry> saved = journalEntryRepository.saveAll(chunk.stream()
+                    .map(dto -> {
+                        JournalEntry entry = convertToEntity(dto, patientRepository.getReferenceById(dto.getPatientId()));
+                        entry.setChangeSeq(lastChanges.merge(dto.getPatientId(), 1L, Long::sum));
+                        return entry;
+                    })
+                    .collect(Collectors.toList()));
+            journalEntryRepository.flush();
+            saved.stream().map(this::convertToDTO).forEach(created::add);
+            entityManager.clear();
+        }
+
+        outboxService.enqueueAll(journalTopic, created, dto -> dto.getPatientId().toString());
+        timelineCache.appendAfterCommit(created);
+        AfterCommit.run(() -> searchIndex.putAll(created));
+
+        return created;
+    }
+
+    @Transactional(readOnly = true)
     public JournalEntryDTO getJournalEntryById(Long id) {
-        JournalEntry entry = journalEntryRepository.findById(id)
+        return journalEntryRepository.findDtoById(id)
                 .orElseThrow(() -> new RuntimeException("Journalanteckning med ID " + id + " finns inte"));
-        return convertToDTO(entry);
     }
 
+    /**
+     * Bara versionen, för villkorliga GET, utan att anteckningen laddas eller serialiseras.
+     */
+    @Transactional(readOnly = true)
+    public long getJournalEntryVersion(Long id) {
+        return journalEntryRepository.findVersionById(id)
+                .orElseThrow(() -> new RuntimeException("Journalanteckning med ID " + id + " finns inte"));
+    }
+
+    @Transactional(readOnly = true)
     public List<JournalEntryDTO> getAllJournalEntries() {
-        return journalEntryRepository.findAll().stream()
-                .map(this::convertToDTO)
-                .collect(Collectors.toList());
+        return journalEntryRepository.findAllDtos();
+    }
+
+    /**
+     * Hämtar en sida journalanteckningar, nyaste först, med keyset på (createdAt, id).
+     */
+    @Transactional(readOnly = true)
+    public CursorPageDTO<JournalEntryDTO> getJournalEntriesPage(String after, int limit) {
+        int pageSize = PageCursor.clampLimit(limit);
+        Limit fetchLimit = Limit.of(pageSize + 1);
+
+        List<JournalEntryDTO> entries;
+        if (after == null) {
+            entries = journalEntryRepository.findDtoPage(fetchLimit);
+        } else {
+            PageCursor.CreatedAtAndId cursor = PageCursor.decodeCreatedAtAndId(after);
+            entries = journalEntryRepository.findDtoPageAfter(cursor.createdAt(), cursor.id(), fetchLimit);
+        }
+
+        boolean hasMore = entries.size() > pageSize;
+        List<JournalEntryDTO> items = hasMore ? entries.subList(0, pageSize) : entries;
+        String nextCursor = null;
+        if (hasMore) {
+            JournalEntryDTO last = items.get(items.size() - 1);
+            nextCursor = PageCursor.encodeCreatedAtAndId(last.getCreatedAt(), last.getId());
+        }
+
+        return new CursorPageDTO<>(items, nextCursor);
+    }
+
+    /**
+     * Fritextsökning i note, diagnosis och treatment, bäst rankade först. En fråga inom
+     * citattecken kräver dessutom att orden står i följd. Träffarna laddas från databasen,
+     * så anteckningar som tagits bort på en annan replika faller bort här.
+     */
+    @Transactional(readOnly = true)
+    public List<JournalEntryDTO> searchJournalEntries(String query, int limit) {
+        if (!searchIndex.isReady()) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Sökindexet byggs fortfarande");
+        }
+        int pageSize = PageCursor.clampLimit(limit);
+        String trimmed = query.trim();
+        boolean phrase = trimmed.length() > 1 && trimmed.startsWith("\"") && trimmed.endsWith("\"");
+
+        // Frasvillkoret kontrolleras först efter laddning, så hämta fler kandidater
+        List<Long> ranked = searchIndex.search(trimmed, phrase ? pageSize * 4 : pageSize);
+        Map<Long, JournalEntryDTO> loaded = journalEntryRepository.findDtosByIdIn(ranked).stream()
+                .collect(Collectors.toMap(JournalEntryDTO::getId, Function.identity()));
+
+        List<JournalEntryDTO> results = new ArrayList<>(Math.min(pageSize, ranked.size()));
+        for (Long id : ranked) {
+            JournalEntryDTO entry = loaded.get(id);
+            if (entry == null) {
+                searchIndex.remove(id);
+                continue;
+            }
+            if (phrase && !JournalSearchIndex.matchesPhrase(trimmed,
+                    entry.getNote(), entry.getDiagnosis(), entry.getTreatment())) {
+                continue;
+            }
+            results.add(entry);
+            if (results.size() == pageSize) {
+                break;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Skriver alla anteckningar som matchar filtren som newline-delimited JSON.
+     * Raderna strömmas från databasen som DTO:er, utan att hamna i persistence context,
+     * så minnesanvändningen är konstant oavsett hur många rader som exporteras.
+     *
+     * @return antal exporterade anteckningar
+     */
+    @Transactional(readOnly = true)
+    public long exportJournalEntries(Long patientId, LocalDateTime from, LocalDateTime to,
+                                     OutputStream out) throws IOException {
+        ObjectWriter writer = objectMapper.writerFor(JournalEntryDTO.class);
+        long count = 0;
+
+        try (Stream<JournalEntryDTO> entries = journalEntryRepository.streamDtosForExport(patientId, from, to)) {
+            Iterator<JournalEntryDTO> iterator = entries.iterator();
+            while (iterator.hasNext()) {
+                out.write(writer.writeValueAsBytes(iterator.next()));
+                out.write('\n');
+
+                if (++count % JournalEntryRepository.EXPORT_FETCH_SIZE == 0) {
+                    out.flush();
+                }
+            }
+        }
+        out.flush();
+        return count;
     }
 
+    /**
+     * Patientens tidslinje, nyaste först. Träffar i JournalTimelineCache kostar inga frågor;
+     * vid miss laddas tidslinjen från primären (en replik som ligger efter skulle cacha en
+     * inaktuell tidslinje) och cachas om ingen skrivning hann emellan.
+     */
+    @Transactional(readOnly = true)
     public List<JournalEntryDTO> getJournalEntriesByPatientId(Long patientId) {
+        Optional<List<JournalEntryDTO>> cached = timelineCache.get(patientId);
+        if (cached.isPresent()) {
+            return cached.get();
+        }
+
+        long stamp = timelineCache.writeStamp();
+        List<JournalEntryDTO> entries = ReplicaRoutingDataSource.onPrimary(() -> {
+            if (!patientRepository.existsById(patientId)) {
+                throw new RuntimeException("Patient med ID " + patientId + " finns inte");
+            }
+            return journalEntryRepository.findDtosByPatientId(patientId);
+        });
+        timelineCache.putIfUnchanged(patientId, entries, stamp);
+        return entries;
+    }
+
+    /**
+     * Ändringarna i patientens tidslinje efter synktoken since: skapade och ändrade anteckningar
+     * i ändringsordning, id:n för borttagna och en ny token. since = 0 ger hela tidslinjen.
+     * Tokenen läses först och frågorna begränsas till den; allt till och med den är redan
+     * committat, och det som committas under tiden kommer med i nästa synk.
+     */
+    @Transactional(readOnly = true)
+    public JournalChangesDTO getJournalEntryChanges(Long patientId, long since) {
         if (!patientRepository.existsById(patientId)) {
             throw new RuntimeException("Patient med ID " + patientId + " finns inte");
         }
-        return journalEntryRepository.findByPatientIdOrderByCreatedAtDesc(patientId).stream()
-                .map(this::convertToDTO)
-                .collect(Collectors.toList());
+        long upTo = Math.max(since, journalEntryRepository.findLastChangeSeq(patientId));
+        // Anteckningar från före ändringsnumren har changeSeq 0 och ska med i en första synk
+        long after = since > 0 ? since : -1;
+
+        List<JournalEntryDTO> changed = journalEntryRepository.findDtoChanges(patientId, after, upTo);
+        List<Long> deleted = since > 0
+                ? journalEntryRepository.findDeletedIds(patientId, after, upTo)
+                : List.of();
+        return new JournalChangesDTO(changed, deleted, upTo);
     }
 
+    @Transactional(isolation = Isolation.READ_COMMITTED)
     public JournalEntryDTO updateJournalEntry(Long id, JournalEntryDTO journalEntryDTO) {
-        JournalEntry entry = journalEntryRepository.findById(id)
-                .orElseThrow(() -> new RuntimeException("Journalanteckning med ID " + id + " finns inte"));
+        return updateJournalEntry(id, journalEntryDTO, null);
+    }
+
+    /**
+     * Uppdaterar anteckningen om den fortfarande har expectedVersion (från If-Match), annars
+     * 412. Jämförelsen görs efter patientlåset, så ingen annan skrivning kan komma emellan.
+     */
+    @Transactional(isolation = Isolation.READ_COMMITTED)
+    public JournalEntryDTO updateJournalEntry(Long id, JournalEntryDTO journalEntryDTO, Long expectedVersion) {
+        JournalEntry entry = lockLiveEntry(id);
+        if (expectedVersion != null && expectedVersion != entry.getVersion()) {
+            throw new ResponseStatusException(HttpStatus.PRECONDITION_FAILED,
+                    "Journalanteckning med ID " + id + " har ändrats sedan version " + expectedVersion);
+        }
 
         entry.setNote(journalEntryDTO.getNote());
         entry.setDiagnosis(journalEntryDTO.getDiagnosis());
         entry.setTreatment(journalEntryDTO.getTreatment());
 
         JournalEntry updatedEntry = journalEntryRepository.save(entry);
-        JournalEntryDTO dto = convertToDTO(updatedEntry);
 
-        try {
-            kafkaTemplate.send(journalTopic, dto.getPatientId().toString(), dto);
-            System.out.println("=== Kafka: Skickade journal-uppdaterings-händelse till topic: " + journalTopic + " ===");
-        } catch (Exception e) {
-            System.err.println("=== Kafka: Kunde inte skicka journal-uppdaterings-händelse: " + e.getMessage() + " ===");
-        }
+        // Flush tar radlåset innan outbox-raden skrivs (ordning per nyckel) och räknar upp versionen
+        journalEntryRepository.flush();
+        JournalEntryDTO dto = convertToDTO(updatedEntry);
+        outboxService.enqueue(journalTopic, dto.getPatientId().toString(), dto);
+        timelineCache.replaceAfterCommit(dto);
+        AfterCommit.run(() -> searchIndex.put(dto));
 
         return dto;
     }
 
+    /**
+     * Mjuk borttagning: raden blir kvar som markering för delta-synken men syns inte i
+     * någon annan läsning. Anteckning, diagnos och behandling töms; markeringen behöver bara
+     * id, patient och ändringsnummer. Raden tas bort på riktigt med patienten. Andra repliker
+     * får veta om borttagningen via ett event med deleted = true på journal.events.
+     */
+    @Transactional(isolation = Isolation.READ_COMMITTED)
     public void deleteJournalEntry(Long id) {
-        if (!journalEntryRepository.existsById(id)) {
-            throw new RuntimeException("Journalanteckning med ID " + id + " finns inte");
+        JournalEntry entry = lockLiveEntry(id);
+        Long patientId = entry.getPatient().getId();
+        entry.setDeleted(true);
+        entry.setNote(null);
+        entry.setDiagnosis(null);
+        entry.setTreatment(null);
+        journalEntryRepository.save(entry);
+        // Som vid ändring: flush räknar upp versionen innan outbox-raden skrivs
+        journalEntryRepository.flush();
+        JournalEntryDTO deleted = convertToDTO(entry);
+        deleted.setDeleted(true);
+        outboxService.enqueue(journalTopic, patientId.toString(), deleted);
+        timelineCache.removeAfterCommit(patientId, id);
+        AfterCommit.run(() -> searchIndex.remove(id));
+    }
+
+    /**
+     * Läser patientens rad och laddar sedan anteckningen, med nästa ändringsnummer satt.
+     * Anteckningen laddas efter låset så att en samtidig borttagning inte skrivs över.
+     */
+    private JournalEntry lockLiveEntry(Long id) {
+        Long patientId = journalEntryRepository.findLivePatientId(id)
+                .orElseThrow(() -> new RuntimeException("Journalanteckning med ID " + id + " finns inte"));
+        long lastChange = lockForChanges(List.of(patientId)).getOrDefault(patientId, 0L);
+        JournalEntry entry = journalEntryRepository.findByIdAndDeletedFalse(id)
+                .orElseThrow(() -> new RuntimeException("Journalanteckning med ID " + id + " finns inte"));
+        entry.setChangeSeq(lastChange + 1);
+        return entry;
+    }
+
+    /**
+     * Läser de patienter som finns och returnerar deras högsta ändringsnummer (0 utan
+     * anteckningar). Patienter som inte finns saknas i resultatet.
+     * <p>
+     * Varje skrivning sätter anteckningens changeSeq till patientens högsta + 1 under låset,
+     * som hålls till commit, så en patients ändringsnummer committas i stigande ordning och
+     * en klient som synkat till N missar aldrig en ändring <= N. Skrivningarna körs med
+     * READ_COMMITTED så att MAX-frågan efter låset ser den senast committade ändringen även
+     * på MariaDB, där REPEATABLE READ annars läser från transaktionens ögonblicksbild.
+     */
+    private Map<Long, Long> lockForChanges(Collection<Long> patientIds) {
+        // Samma låsordning i alla transaktioner, så att batchar inte kan låsa varandra
+        List<Long> sorted = patientIds.stream().sorted().toList();
+        Map<Long, Long> lastChanges = new HashMap<>();
+        for (List<Long> chunk : BatchSupport.chunks(sorted, BatchSupport.IN_CLAUSE_CHUNK_SIZE)) {
+            patientRepository.lockExistingIds(chunk).forEach(id -> lastChanges.put(id, 0L));
+            for (JournalEntryRepository.LastChange last : journalEntryRepository.findLastChanges(chunk)) {
+                lastChanges.put(last.getPatientId(), last.getChangeSeq());
+            }
         }
-        journalEntryRepository.deleteById(id);
+        return lastChanges;
     }
 
-    private JournalEntryDTO convertToDTO(JournalEntry entry) {
+    JournalEntryDTO convertToDTO(JournalEntry entry) {
         return new JournalEntryDTO(
                 entry.getId(),
                 entry.getPatient().getId(),
                 entry.getNote(),
                 entry.getCreatedAt(),
                 entry.getDiagnosis(),
-                entry.getTreatment()
+                entry.getTreatment(),
+                entry.getVersion()
         );
     }
 
-    private JournalEntry convertToEntity(JournalEntryDTO dto, Patient patient) {
+    JournalEntry convertToEntity(JournalEntryDTO dto, Patient patient) {
         return new JournalEntry(
                 null,
                 patient,
                 dto.getNote(),
                 null,
                 dto.getDiagnosis(),
-                dto.getTreatment()
+                dto.getTreatment(),
+                0,
+                false,
+                0
         );
     }
 }
@@ -0,0 +1,512 @@
+package se.kth.lab3.patient_journal_backend_microservices.service;
+
+import org.springframework.stereotype.Component;
+import se.kth.lab3.patient_journal_backend_microservices.dto.JournalEntryDTO;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * Inverterat index över journalanteckningarnas note, diagnosis och treatment.
+ * Varje term har en postningslista (anteckning, version, termfrekvens) i primitiva arrayer
+ * sorterade på id, så att söktermerna snittas genom att stega fram i listorna med start i den
+ * ovanligaste termen. Träffarna rankas med BM25 och alla söktermer måste finnas i anteckningen.
+ * <p>
+ * En ändrad anteckning får en ny version och nya postningar; de gamla ignoreras vid sökning
+ * och rensas bort när mer än hälften av alla postningar är inaktuella. Indexet håller bara
+ * id:n, så träffarna laddas från databasen av JournalEntryService.
+ */
+@Component
+public class JournalSearchIndex {
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final long COMPACT_MIN_STALE = 100_000;
+
+    private static final Pattern TOKEN_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    // Vanliga svenska ord som ger enorma postningslistor men ingen rankning
+    private static final Set<String> STOP_WORDS = Set.of(
+            "och", "att", "det", "som", "en", "på", "är", "av", "för", "med", "till", "den",
+            "har", "de", "inte", "om", "ett", "men", "var", "sig", "från", "så", "kan", "vid");
+
+    // Dokumenttabellen är sidindelade primitiva arrayer indexerade på id, eftersom id:n kommer
+    // från en sekvens och ligger tätt; en HashMap<Long, ...> kostar flera gånger mer per anteckning
+    private static final int PAGE_BITS = 16;
+    private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Postings> postings = new HashMap<>();
+    // state = 0 för okänd anteckning, annars ((version + 1) << 1) | (levande ? 1 : 0)
+    private int[][] statePages = new int[16][];
+    private int[][] lengthPages = new int[16][];
+    private int[][] termCountPages = new int[16][];
+    private long liveLength;
+    private int liveDocs;
+    private long totalPostings;
+    private long stalePostings;
+    private volatile boolean ready;
+
+    /**
+     * Tokeniserad anteckning, framtagen utanför låset.
+     */
+    record Prepared(long id, Map<String, Integer> termFrequencies, int length) {
+    }
+
+    private record Scored(long id, double score) {
+    }
+
+    /**
+     * Postningar sorterade på id så att flera listor kan snittas genom att stega fram.
+     * Tillägg i slutet med lägre id (ändrade anteckningar, parallell ombyggnad) gör listan
+     * osorterad från sortedPrefix och fram; den sorteras om vid nästa sökning.
+     */
+    private static final class Postings {
+        long[] ids = new long[4];
+        int[] versions = new int[4];
+        int[] frequencies = new int[4];
+        int size;
+        int sortedPrefix;
+
+        void add(long id, int version, int frequency) {
+            if (size == ids.length) {
+                int capacity = size + (size >> 1);
+                ids = Arrays.copyOf(ids, capacity);
+                versions = Arrays.copyOf(versions, capacity);
+                frequencies = Arrays.copyOf(frequencies, capacity);
+            }
+            if (sortedPrefix == size && (size == 0 || id >= ids[size - 1])) {
+                sortedPrefix++;
+            }
+            ids[size] = id;
+            versions[size] = version;
+            frequencies[size] = frequency;
+            size++;
+        }
+
+        boolean isSorted() {
+            return sortedPrefix == size;
+        }
+
+        void sort() {
+            if (isSorted()) {
+                return;
+            }
+            quickSort(sortedPrefix, size - 1);
+            // Slå ihop den sorterade början med den nysorterade svansen
+            long[] mergedIds = new long[ids.length];
+            int[] mergedVersions = new int[ids.length];
+            int[] mergedFrequencies = new int[ids.length];
+            int left = 0;
+            int right = sortedPrefix;
+            for (int out = 0; out < size; out++) {
+                int from = right >= size || (left < sortedPrefix && ids[left] <= ids[right]) ? left++ : right++;
+                mergedIds[out] = ids[from];
+                mergedVersions[out] = versions[from];
+                mergedFrequencies[out] = frequencies[from];
+            }
+            ids = mergedIds;
+            versions = mergedVersions;
+            frequencies = mergedFrequencies;
+            sortedPrefix = size;
+        }
+
+        /**
+         * Första position från och med start där id >= target (galopperande sökning).
+         */
+        int advance(int start, long target) {
+            int step = 1;
+            int low = start;
+            int high = start;
+            while (high < size && ids[high] < target) {
+                low = high + 1;
+                high += step;
+                step <<= 1;
+            }
+            high = Math.min(high, size);
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (ids[mid] < target) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private void quickSort(int low, int high) {
+            while (high - low > 16) {
+                long pivot = ids[(low + high) >>> 1];
+                int i = low;
+                int j = high;
+                while (i <= j) {
+                    while (ids[i] < pivot) {
+                        i++;
+                    }
+                    while (ids[j] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        swap(i++, j--);
+                    }
+                }
+                // Rekursion på den mindre halvan håller stackdjupet logaritmiskt
+                if (j - low < high - i) {
+                    quickSort(low, j);
+                    low = i;
+                } else {
+                    quickSort(i, high);
+                    high = j;
+                }
+            }
+            for (int i = low + 1; i <= high; i++) {
+                for (int j = i; j > low && ids[j - 1] > ids[j]; j--) {
+                    swap(j - 1, j);
+                }
+            }
+        }
+
+        private void swap(int a, int b) {
+            long id = ids[a];
+            ids[a] = ids[b];
+            ids[b] = id;
+            int version = versions[a];
+            versions[a] = versions[b];
+            versions[b] = version;
+            int frequency = frequencies[a];
+            frequencies[a] = frequencies[b];
+            frequencies[b] = frequency;
+        }
+    }
+
+    /**
+     * Gemener, uppdelat på allt som inte är bokstav eller siffra, utan stoppord och
+     * enstaka tecken. Samma tokenisering används för anteckningar och frågor.
+     */
+    public static List<String> tokenize(String text) {
+        if (text == null || text.isBlank()) {
+            return List.of();
+        }
+        List<String> tokens = new ArrayList<>();
+        for (String token : TOKEN_SEPARATOR.split(text.toLowerCase(Locale.ROOT))) {
+            if (token.length() > 1 && !STOP_WORDS.contains(token)) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Sant om frågans termer förekommer i följd i något av fälten.
+     */
+    public static boolean matchesPhrase(String query, String... fields) {
+        List<String> phrase = tokenize(query);
+        if (phrase.isEmpty()) {
+            return false;
+        }
+        for (String field : fields) {
+            if (Collections.indexOfSubList(tokenize(field), phrase) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static Prepared prepare(long id, String... fields) {
+        Map<String, Integer> frequencies = new HashMap<>();
+        int length = 0;
+        for (String field : fields) {
+            for (String token : tokenize(field)) {
+                frequencies.merge(token, 1, Integer::sum);
+                length++;
+            }
+        }
+        return new Prepared(id, frequencies, length);
+    }
+
+    public void put(JournalEntryDTO entry) {
+        putAll(List.of(entry));
+    }
+
+    public void putAll(Collection<JournalEntryDTO> entries) {
+        List<Prepared> prepared = entries.stream()
+                .map(entry -> prepare(entry.getId(), entry.getNote(), entry.getDiagnosis(), entry.getTreatment()))
+                .toList();
+        apply(prepared, false);
+    }
+
+    /**
+     * Används av ombyggnaden: anteckningar som redan indexerats (eller tagits bort) från
+     * skrivvägen under tiden är nyare än databasraden och skrivs inte över.
+     */
+    void putAllIfAbsent(List<Prepared> prepared) {
+        apply(prepared, true);
+    }
+
+    public void remove(Long id) {
+        lock.writeLock().lock();
+        try {
+            int state = state(id);
+            if (isLive(state)) {
+                retire(id);
+            }
+            setDoc(id, state == 0 ? 0 : version(state) + 1, false, 0, 0);
+            maybeCompact();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Id:n för de högst rankade anteckningarna som innehåller alla termer i frågan.
+     */
+    public List<Long> search(String query, int limit) {
+        List<String> terms = tokenize(query).stream().distinct().toList();
+        if (terms.isEmpty() || limit <= 0) {
+            return List.of();
+        }
+
+        lock.readLock().lock();
+        try {
+            List<Postings> lists = listsFor(terms);
+            if (lists != null && lists.stream().anyMatch(list -> !list.isSorted())) {
+                // Sortering kräver skrivlåset; nedgradera till läslåset efteråt
+                lock.readLock().unlock();
+                lock.writeLock().lock();
+                try {
+                    lists = listsFor(terms);
+                    if (lists != null) {
+                        lists.forEach(Postings::sort);
+                    }
+                    lock.readLock().lock();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            return lists == null ? List.of() : intersect(lists, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private List<Postings> listsFor(List<String> terms) {
+        List<Postings> lists = new ArrayList<>(terms.size());
+        for (String term : terms) {
+            Postings list = postings.get(term);
+            if (list == null) {
+                return null;
+            }
+            lists.add(list);
+        }
+        return lists;
+    }
+
+    private List<Long> intersect(List<Postings> lists, int limit) {
+        // Den ovanligaste termen styr; de övriga listorna stegas fram till samma id
+        lists.sort(Comparator.comparingInt(list -> list.size));
+        int termCount = lists.size();
+        double[] idf = new double[termCount];
+        for (int k = 0; k < termCount; k++) {
+            idf[k] = idf(lists.get(k));
+        }
+        int[] positions = new int[termCount];
+        double averageLength = liveDocs == 0 ? 1.0 : (double) liveLength / liveDocs;
+
+        PriorityQueue<Scored> top = new PriorityQueue<>(Comparator.comparingDouble(Scored::score));
+        Postings rarest = lists.get(0);
+        candidates:
+        for (int i = 0; i < rarest.size; i++) {
+            long id = rarest.ids[i];
+            int state = state(id);
+            if (!isLive(state) || version(state) != rarest.versions[i]) {
+                continue;
+            }
+            int length = length(id);
+            double score = score(idf[0], rarest.frequencies[i], length, averageLength);
+            for (int k = 1; k < termCount; k++) {
+                Postings list = lists.get(k);
+                int position = list.advance(positions[k], id);
+                positions[k] = position;
+                int match = -1;
+                for (int q = position; q < list.size && list.ids[q] == id; q++) {
+                    if (list.versions[q] == version(state)) {
+                        match = q;
+                        break;
+                    }
+                }
+                if (match < 0) {
+                    continue candidates;
+                }
+                score += score(idf[k], list.frequencies[match], length, averageLength);
+            }
+            if (top.size() < limit) {
+                top.add(new Scored(id, score));
+            } else if (score > top.peek().score()) {
+                top.poll();
+                top.add(new Scored(id, score));
+            }
+        }
+
+        Long[] ranked = new Long[top.size()];
+        for (int i = ranked.length - 1; i >= 0; i--) {
+            ranked[i] = top.poll().id();
+        }
+        return Arrays.asList(ranked);
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    void markReady() {
+        ready = true;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return liveDocs;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void apply(List<Prepared> prepared, boolean onlyIfAbsent) {
+        lock.writeLock().lock();
+        try {
+            for (Prepared entry : prepared) {
+                int state = state(entry.id());
+                if (state != 0 && onlyIfAbsent) {
+                    continue;
+                }
+                if (isLive(state)) {
+                    retire(entry.id());
+                }
+                int version = state == 0 ? 0 : version(state) + 1;
+                setDoc(entry.id(), version, true, entry.length(), entry.termFrequencies().size());
+                liveDocs++;
+                liveLength += entry.length();
+                for (Map.Entry<String, Integer> term : entry.termFrequencies().entrySet()) {
+                    postings.computeIfAbsent(term.getKey(), key -> new Postings())
+                            .add(entry.id(), version, term.getValue());
+                }
+                totalPostings += entry.termFrequencies().size();
+            }
+            maybeCompact();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void retire(long id) {
+        liveDocs--;
+        liveLength -= length(id);
+        stalePostings += termCount(id);
+    }
+
+    private static boolean isLive(int state) {
+        return (state & 1) == 1;
+    }
+
+    private static int version(int state) {
+        return (state >>> 1) - 1;
+    }
+
+    private int state(long id) {
+        return read(statePages, id);
+    }
+
+    private int length(long id) {
+        return read(lengthPages, id);
+    }
+
+    private int termCount(long id) {
+        return read(termCountPages, id);
+    }
+
+    private static int read(int[][] pages, long id) {
+        long page = id >>> PAGE_BITS;
+        if (page >= pages.length || pages[(int) page] == null) {
+            return 0;
+        }
+        return pages[(int) page][(int) (id & PAGE_MASK)];
+    }
+
+    private void setDoc(long id, int version, boolean live, int length, int termCount) {
+        if (id < 0) {
+            throw new IllegalArgumentException("Ogiltigt id för sökindexet: " + id);
+        }
+        int page = Math.toIntExact(id >>> PAGE_BITS);
+        if (page >= statePages.length) {
+            int capacity = Math.max(page + 1, statePages.length * 2);
+            statePages = Arrays.copyOf(statePages, capacity);
+            lengthPages = Arrays.copyOf(lengthPages, capacity);
+            termCountPages = Arrays.copyOf(termCountPages, capacity);
+        }
+        if (statePages[page] == null) {
+            statePages[page] = new int[PAGE_MASK + 1];
+            lengthPages[page] = new int[PAGE_MASK + 1];
+            termCountPages[page] = new int[PAGE_MASK + 1];
+        }
+        int slot = (int) (id & PAGE_MASK);
+        statePages[page][slot] = ((version + 1) << 1) | (live ? 1 : 0);
+        lengthPages[page][slot] = length;
+        termCountPages[page][slot] = termCount;
+    }
+
+    private double idf(Postings list) {
+        // Listans längd inkluderar inaktuella postningar tills nästa kompaktering
+        double df = Math.min(list.size, Math.max(liveDocs, 1));
+        return Math.log(1 + (liveDocs - df + 0.5) / (df + 0.5));
+    }
+
+    private static double score(double idf, int frequency, int length, double averageLength) {
+        double norm = K1 * (1 - B + B * length / averageLength);
+        return idf * frequency * (K1 + 1) / (frequency + norm);
+    }
+
+    private void maybeCompact() {
+        if (stalePostings < COMPACT_MIN_STALE || stalePostings * 2 < totalPostings) {
+            return;
+        }
+        Iterator<Postings> lists = postings.values().iterator();
+        while (lists.hasNext()) {
+            Postings list = lists.next();
+            int kept = 0;
+            int sortedPrefix = 0;
+            for (int i = 0; i < list.size; i++) {
+                int state = state(list.ids[i]);
+                if (isLive(state) && version(state) == list.versions[i]) {
+                    if (sortedPrefix == kept && (kept == 0 || list.ids[kept - 1] <= list.ids[i])) {
+                        sortedPrefix++;
+                    }
+                    list.ids[kept] = list.ids[i];
+                    list.versions[kept] = list.versions[i];
+                    list.frequencies[kept] = list.frequencies[i];
+                    kept++;
+                }
+            }
+            list.size = kept;
+            list.sortedPrefix = sortedPrefix;
+            if (kept == 0) {
+                lists.remove();
+            }
+        }
+        // Borttagna anteckningar behåller sin markering i dokumenttabellen (används av ombyggnaden)
+        totalPostings -= stalePostings;
+        stalePostings = 0;
+    }
+}
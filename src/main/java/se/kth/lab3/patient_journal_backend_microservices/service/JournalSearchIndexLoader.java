@@ -0,0 +1,115 @@
+package se.kth.lab3.patient_journal_backend_microservices.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import se.kth.lab3.patient_journal_backend_microservices.dto.JournalEntryDTO;
+import se.kth.lab3.patient_journal_backend_microservices.repository.JournalEntryRepository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bygger JournalSearchIndex från databasen när applikationen har startat. Id-rymden delas
+ * i lika stora intervall som läses och tokeniseras parallellt i keyset-block; bara
+ * insättningen i indexet sker under dess lås. Sökningar svarar 503 tills bygget är klart.
+ */
+@Component
+@Slf4j
+class JournalSearchIndexLoader {
+
+    private static final int PAGE_SIZE = 1000;
+
+    private final JournalEntryRepository journalEntryRepository;
+    private final JournalSearchIndex searchIndex;
+    private final TransactionTemplate readOnlyTransaction;
+
+    @Value("${journal.search.rebuild-on-startup:true}")
+    private boolean rebuildOnStartup;
+
+    @Value("${journal.search.rebuild-threads:0}")
+    private int rebuildThreads;
+
+    JournalSearchIndexLoader(
+            JournalEntryRepository journalEntryRepository,
+            JournalSearchIndex searchIndex,
+            PlatformTransactionManager transactionManager) {
+        this.journalEntryRepository = journalEntryRepository;
+        this.searchIndex = searchIndex;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    void onApplicationReady() {
+        if (!rebuildOnStartup) {
+            // Indexet innehåller då bara det som skrivs efter start
+            searchIndex.markReady();
+            return;
+        }
+        Thread thread = new Thread(this::rebuild, "journal-search-rebuild");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void rebuild() {
+        long start = System.nanoTime();
+        int threads = rebuildThreads > 0 ? rebuildThreads : Runtime.getRuntime().availableProcessors();
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            Long maxId = journalEntryRepository.findMaxId();
+            AtomicLong indexed = new AtomicLong();
+            if (maxId != null) {
+                long rangeSize = maxId / threads + 1;
+                List<Future<?>> ranges = new ArrayList<>(threads);
+                for (int i = 0; i < threads; i++) {
+                    long after = i * rangeSize;
+                    long upTo = Math.min(maxId, after + rangeSize);
+                    ranges.add(workers.submit(() -> indexRange(after, upTo, indexed)));
+                }
+                for (Future<?> range : ranges) {
+                    range.get();
+                }
+            }
+            searchIndex.markReady();
+            log.info("Sökindexet byggt: {} anteckningar på {} ms med {} trådar",
+                    indexed.get(), (System.nanoTime() - start) / 1_000_000, threads);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("Kunde inte bygga sökindexet: {}", e.getMessage(), e);
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    private void indexRange(long after, long upTo, AtomicLong indexed) {
+        long cursor = after;
+        while (cursor < upTo) {
+            long from = cursor;
+            List<JournalSearchIndex.Prepared> page = readOnlyTransaction.execute(status -> journalEntryRepository
+                    .findDtoIdRange(from, upTo, Limit.of(PAGE_SIZE)).stream()
+                    .map(this::prepare)
+                    .toList());
+            if (page == null || page.isEmpty()) {
+                return;
+            }
+            searchIndex.putAllIfAbsent(page);
+            indexed.addAndGet(page.size());
+            cursor = page.get(page.size() - 1).id();
+        }
+    }
+
+    private JournalSearchIndex.Prepared prepare(JournalEntryDTO entry) {
+        return JournalSearchIndex.prepare(entry.getId(), entry.getNote(), entry.getDiagnosis(), entry.getTreatment());
+    }
+}
@@ -0,0 +1,376 @@
+package se.kth.lab3.patient_journal_backend_microservices.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import se.kth.lab3.patient_journal_backend_microservices.dto.JournalEntryDTO;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.UnaryOperator;
+
+/**
+ * Cache för patienters journaltidslinjer. Varje tidslinje lagras serialiserad i en direkt
+ * (off-heap) ByteBuffer som en följd av [längd][JSON] per anteckning, så att stora cacher
+ * inte belastar GC:n. Nya anteckningar läggs till i slutet av bufferten på plats; ändrade
+ * och borttagna anteckningar skriver om bara den patientens buffert.
+ * <p>
+ * Det totala minnet begränsas av journal.timeline-cache.max-bytes och minst nyligen använda
+ * tidslinjer tas bort först. Egna skrivningar uppdaterar cachen efter commit och alla
+ * repliker följer journal.events (JournalTimelineCacheUpdater), så samma anteckning kan komma
+ * flera gånger: en anteckning som redan finns i samma eller nyare version lämnas orörd.
+ * TTL:en är en sista gräns om en händelse skulle missas.
+ */
+@Component
+public class JournalTimelineCache {
+
+    private static final int MIN_CAPACITY = 1024;
+
+    private static final Comparator<JournalEntryDTO> NEWEST_FIRST = Comparator
+            .comparing(JournalEntryDTO::getCreatedAt, Comparator.nullsLast(Comparator.reverseOrder()))
+            .thenComparing(JournalEntryDTO::getId, Comparator.nullsLast(Comparator.reverseOrder()));
+
+    private final ObjectWriter writer;
+    private final ObjectReader reader;
+    private final long maxBytes;
+    private final long ttlNanos;
+
+    // ReentrantLock i stället för synchronized: en virtuell tråd som väntar på en monitor
+    // läser fast sin bärartråd (JDK 21), ett ReentrantLock gör det inte
+    private final ReentrantLock lock = new ReentrantLock();
+    // accessOrder = true ger LRU-ordning; alla åtkomster sker under lock
+    private final LinkedHashMap<Long, Timeline> timelines = new LinkedHashMap<>(16, 0.75f, true);
+    private long usedBytes;
+    private long writeSequence;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+
+    private static final class Timeline {
+        ByteBuffer buffer;
+        long expiresAt;
+        // Cachad version per anteckning, så att dubbletter kan kännas igen utan att avkoda bufferten
+        Map<Long, Long> versions;
+    }
+
+    public JournalTimelineCache(
+            ObjectMapper objectMapper,
+            MeterRegistry meterRegistry,
+            @Value("${journal.timeline-cache.max-bytes:67108864}") long maxBytes,
+            @Value("${journal.timeline-cache.ttl:5m}") Duration ttl) {
+        this.writer = objectMapper.writerFor(JournalEntryDTO.class);
+        this.reader = objectMapper.readerFor(JournalEntryDTO.class);
+        this.maxBytes = maxBytes;
+        this.ttlNanos = ttl.toNanos();
+
+        this.hits = meterRegistry.counter("journal.timeline.cache.requests", "result", "hit");
+        this.misses = meterRegistry.counter("journal.timeline.cache.requests", "result", "miss");
+        this.evictions = meterRegistry.counter("journal.timeline.cache.evictions");
+        Gauge.builder("journal.timeline.cache.bytes", this, JournalTimelineCache::usedBytes)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("journal.timeline.cache.size", this, JournalTimelineCache::size)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Tidslinjen för patienten, nyaste först, om den finns i cachen och inte har gått ut.
+     */
+    public Optional<List<JournalEntryDTO>> get(Long patientId) {
+        ByteBuffer snapshot;
+        lock.lock();
+        try {
+            Timeline timeline = timelines.get(patientId);
+            if (timeline == null || timeline.expiresAt - System.nanoTime() < 0) {
+                if (timeline != null) {
+                    remove(patientId);
+                }
+                misses.increment();
+                return Optional.empty();
+            }
+            // Tillägg skriver bara bortom nuvarande position och omskrivningar byter buffert,
+            // så en skrivskyddad vy kan avkodas utanför låset
+            snapshot = timeline.buffer.duplicate().flip().asReadOnlyBuffer();
+        } finally {
+            lock.unlock();
+        }
+        hits.increment();
+        List<JournalEntryDTO> entries = decode(snapshot);
+        entries.sort(NEWEST_FIRST);
+        return Optional.of(entries);
+    }
+
+    /**
+     * Markerar starten på en laddning från databasen. Skickas tillbaka till
+     * {@link #putIfUnchanged} så att en laddning som korsats av en skrivning inte cachas.
+     */
+    public long writeStamp() {
+        lock.lock();
+        try {
+            return writeSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void putIfUnchanged(Long patientId, List<JournalEntryDTO> entries, long stamp) {
+        List<JournalEntryDTO> oldestFirst = new ArrayList<>(entries);
+        oldestFirst.sort(NEWEST_FIRST.reversed());
+        List<byte[]> encoded = encodeAll(oldestFirst);
+        lock.lock();
+        try {
+            if (stamp != writeSequence) {
+                return;
+            }
+            store(patientId, oldestFirst, encoded);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void appendAfterCommit(Collection<JournalEntryDTO> entries) {
+        List<JournalEntryDTO> pending = List.copyOf(entries);
+        AfterCommit.run(() -> pending.forEach(this::put));
+    }
+
+    public void replaceAfterCommit(JournalEntryDTO entry) {
+        AfterCommit.run(() -> put(entry));
+    }
+
+    public void removeAfterCommit(Long patientId, Long entryId) {
+        AfterCommit.run(() -> remove(patientId, entryId));
+    }
+
+    // Tar bort anteckningen ur patientens cachade tidslinje, om tidslinjen är cachad
+    public void remove(Long patientId, Long entryId) {
+        rewrite(patientId, existing -> {
+            existing.removeIf(cached -> cached.getId().equals(entryId));
+            return existing;
+        });
+    }
+
+    public void evictAfterCommit(Long patientId) {
+        AfterCommit.run(() -> evict(patientId));
+    }
+
+    public void evict(Long patientId) {
+        lock.lock();
+        try {
+            writeSequence++;
+            remove(patientId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lägger till anteckningen i patientens cachade tidslinje, eller ersätter den om den redan
+     * finns i en äldre version. Finns den redan i samma eller nyare version görs ingenting; så
+     * blir det när en laddning efter commit hunnit före, eller när den egna skrivningen kommer
+     * tillbaka via journal.events.
+     */
+    public void put(JournalEntryDTO entry) {
+        byte[] bytes = encode(entry);
+        lock.lock();
+        try {
+            writeSequence++;
+            Timeline timeline = timelines.get(entry.getPatientId());
+            if (timeline == null) {
+                return;
+            }
+            Long cachedVersion = timeline.versions.get(entry.getId());
+            if (cachedVersion == null) {
+                append(entry, bytes, timeline);
+                return;
+            }
+            if (cachedVersion >= version(entry)) {
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        rewrite(entry.getPatientId(), existing -> {
+            existing.replaceAll(cached -> cached.getId().equals(entry.getId())
+                    && version(cached) < version(entry) ? entry : cached);
+            return existing;
+        });
+    }
+
+    private void append(JournalEntryDTO entry, byte[] bytes, Timeline timeline) {
+        if (timeline.buffer.remaining() >= Integer.BYTES + bytes.length) {
+            timeline.buffer.putInt(bytes.length).put(bytes);
+            timeline.versions.put(entry.getId(), version(entry));
+            return;
+        }
+        // Bufferten är full: flytta till en större och lägg till där
+        ByteBuffer old = timeline.buffer.duplicate().flip();
+        int needed = old.remaining() + Integer.BYTES + bytes.length;
+        ByteBuffer grown = allocate(needed);
+        if (grown == null) {
+            remove(entry.getPatientId());
+            return;
+        }
+        grown.put(old).putInt(bytes.length).put(bytes);
+        timeline.versions.put(entry.getId(), version(entry));
+        replaceBuffer(entry.getPatientId(), timeline, grown);
+    }
+
+    private void rewrite(Long patientId, UnaryOperator<List<JournalEntryDTO>> change) {
+        ByteBuffer original;
+        ByteBuffer snapshot;
+        lock.lock();
+        try {
+            writeSequence++;
+            Timeline timeline = timelines.get(patientId);
+            if (timeline == null) {
+                return;
+            }
+            original = timeline.buffer;
+            snapshot = original.duplicate().flip();
+        } finally {
+            lock.unlock();
+        }
+        int snapshotEnd = snapshot.limit();
+        List<JournalEntryDTO> changed = change.apply(decode(snapshot));
+        List<byte[]> encoded = encodeAll(changed);
+        lock.lock();
+        try {
+            Timeline timeline = timelines.get(patientId);
+            // En annan skrivning hann emellan; enklast och säkrast är att börja om från databasen
+            if (timeline == null || timeline.buffer != original || original.position() != snapshotEnd) {
+                remove(patientId);
+                return;
+            }
+            store(patientId, changed, encoded);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void store(Long patientId, List<JournalEntryDTO> entries, List<byte[]> encoded) {
+        int needed = encoded.stream().mapToInt(bytes -> Integer.BYTES + bytes.length).sum();
+        ByteBuffer buffer = allocate(needed);
+        remove(patientId);
+        if (buffer == null) {
+            return;
+        }
+        for (byte[] bytes : encoded) {
+            buffer.putInt(bytes.length).put(bytes);
+        }
+        Timeline timeline = new Timeline();
+        timeline.buffer = buffer;
+        timeline.expiresAt = System.nanoTime() + ttlNanos;
+        timeline.versions = new HashMap<>();
+        entries.forEach(entry -> timeline.versions.put(entry.getId(), version(entry)));
+        timelines.put(patientId, timeline);
+        usedBytes += buffer.capacity();
+        evictToBudget(patientId);
+    }
+
+    private void replaceBuffer(Long patientId, Timeline timeline, ByteBuffer buffer) {
+        usedBytes += buffer.capacity() - timeline.buffer.capacity();
+        timeline.buffer = buffer;
+        evictToBudget(patientId);
+    }
+
+    /**
+     * Allokerar med utrymme för fler tillägg, eller null om tidslinjen inte ryms i budgeten alls.
+     */
+    private ByteBuffer allocate(int needed) {
+        if (needed > maxBytes) {
+            return null;
+        }
+        long capacity = Math.min(maxBytes, Math.max(MIN_CAPACITY, needed + needed / 2L));
+        return ByteBuffer.allocateDirect((int) Math.min(capacity, Integer.MAX_VALUE));
+    }
+
+    private void evictToBudget(Long keep) {
+        Iterator<Map.Entry<Long, Timeline>> eldest = timelines.entrySet().iterator();
+        while (usedBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<Long, Timeline> entry = eldest.next();
+            if (entry.getKey().equals(keep)) {
+                continue;
+            }
+            usedBytes -= entry.getValue().buffer.capacity();
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    private void remove(Long patientId) {
+        Timeline removed = timelines.remove(patientId);
+        if (removed != null) {
+            usedBytes -= removed.buffer.capacity();
+        }
+    }
+
+    private static long version(JournalEntryDTO entry) {
+        return entry.getVersion() == null ? 0 : entry.getVersion();
+    }
+
+    private List<JournalEntryDTO> decode(ByteBuffer buffer) {
+        List<JournalEntryDTO> entries = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            try {
+                entries.add(reader.readValue(bytes));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return entries;
+    }
+
+    private List<byte[]> encodeAll(List<JournalEntryDTO> entries) {
+        List<byte[]> encoded = new ArrayList<>(entries.size());
+        for (JournalEntryDTO entry : entries) {
+            encoded.add(encode(entry));
+        }
+        return encoded;
+    }
+
+    private byte[] encode(JournalEntryDTO entry) {
+        try {
+            return writer.writeValueAsBytes(entry);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long usedBytes() {
+        lock.lock();
+        try {
+            return usedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int size() {
+        lock.lock();
+        try {
+            return timelines.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
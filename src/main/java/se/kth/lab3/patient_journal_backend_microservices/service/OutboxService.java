@@ -0,0 +1,78 @@
+package se.kth.lab3.patient_journal_backend_microservices.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Lägger händelser i outbox-tabellen inom anroparens transaktion.
+ * Själva Kafka-sändningen görs asynkront av OutboxRelay, så REST-anrop väntar aldrig på Kafka
+ * och en rollback tar även bort händelsen.
+ */
+@Service
+@Transactional(propagation = Propagation.MANDATORY)
+public class OutboxService {
+
+    private static final String INSERT_SQL =
+            "INSERT INTO outbox_events (topic, event_key, payload, created_at) VALUES (?, ?, ?, ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ObjectMapper objectMapper;
+
+    public OutboxService(JdbcTemplate jdbcTemplate, ObjectMapper objectMapper) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Lägger en händelse i outboxen. Ett null-payload blir en tombstone.
+     */
+    public void enqueue(String topic, String key, Object payload) {
+        jdbcTemplate.update(INSERT_SQL, topic, key, toJson(payload), Timestamp.valueOf(LocalDateTime.now()));
+    }
+
+    /**
+     * Lägger många händelser i outboxen med en JDBC-batch per block.
+     */
+    public <T> void enqueueAll(String topic, List<T> payloads, Function<T, String> keyExtractor) {
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        jdbcTemplate.batchUpdate(INSERT_SQL, payloads, BatchSupport.JDBC_BATCH_SIZE, (ps, payload) -> {
+            ps.setString(1, topic);
+            ps.setString(2, keyExtractor.apply(payload));
+            ps.setString(3, toJson(payload));
+            ps.setTimestamp(4, now);
+        });
+    }
+
+    /**
+     * Lägger tombstones (null-payload) för många nycklar med en JDBC-batch per block.
+     */
+    public void enqueueTombstones(String topic, List<String> keys) {
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        jdbcTemplate.batchUpdate(INSERT_SQL, keys, BatchSupport.JDBC_BATCH_SIZE, (ps, key) -> {
+            ps.setString(1, topic);
+            ps.setString(2, key);
+            ps.setString(3, null);
+            ps.setTimestamp(4, now);
+        });
+    }
+
+    private String toJson(Object payload) {
+        if (payload == null) {
+            return null;
+        }
+        try {
+            return objectMapper.writeValueAsString(payload);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Kunde inte serialisera outbox-händelse", e);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package se.kth.lab3.patient_journal_backend_microservices.service;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Base64;
+
+/**
+ * Kodar och avkodar opaka keyset-cursors.
+ * Patienter pagineras på id, journalanteckningar på (createdAt, id).
+ */
+final class PageCursor {
+
+    static final int MAX_LIMIT = 500;
+
+    private static final String SEPARATOR = "|";
+
+    private PageCursor() {
+    }
+
+    static int clampLimit(int limit) {
+        return Math.max(1, Math.min(limit, MAX_LIMIT));
+    }
+
+    static String encodeId(Long id) {
+        return encode(id.toString());
+    }
+
+    static Long decodeId(String cursor) {
+        try {
+            return Long.valueOf(decode(cursor));
+        } catch (IllegalArgumentException e) {
+            throw invalidCursor(cursor, e);
+        }
+    }
+
+    static String encodeCreatedAtAndId(LocalDateTime createdAt, Long id) {
+        return encode(createdAt + SEPARATOR + id);
+    }
+
+    static CreatedAtAndId decodeCreatedAtAndId(String cursor) {
+        try {
+            String raw = decode(cursor);
+            int separator = raw.lastIndexOf(SEPARATOR);
+            return new CreatedAtAndId(
+                    LocalDateTime.parse(raw.substring(0, separator)),
+                    Long.valueOf(raw.substring(separator + 1)));
+        } catch (RuntimeException e) {
+            throw invalidCursor(cursor, e);
+        }
+    }
+
+    private static ResponseStatusException invalidCursor(String cursor, Exception cause) {
+        return new ResponseStatusException(HttpStatus.BAD_REQUEST, "Ogiltig cursor: " + cursor, cause);
+    }
+
+    private static String encode(String raw) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decode(String cursor) {
+        return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+    }
+
+    record CreatedAtAndId(LocalDateTime createdAt, Long id) {
+    }
+}
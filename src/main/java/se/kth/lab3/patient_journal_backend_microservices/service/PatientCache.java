@@ -0,0 +1,86 @@
+package se.kth.lab3.patient_journal_backend_microservices.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Begränsad läsningscache för patienter i varje replika: id -> patient och personnummer -> id.
+ * Egna skrivningar tar bort posten efter commit, andra replikors skrivningar tas bort när
+ * deras event på patient.events kommer fram (PatientCacheInvalidator). TTL:en begränsar hur
+ * länge en post kan vara inaktuell om ett event skulle missas. Används bara när
+ * patient.read-model.enabled=false; annars svarar PatientReadModel för de cachade läsningarna.
+ * Träffar, missar och evictions syns under cache.* i actuator/metrics.
+ */
+@Component
+public class PatientCache {
+
+    private final Cache<Long, PatientDTO> patientsById;
+    private final Cache<String, Long> idsByPersonalNumber;
+
+    public PatientCache(
+            MeterRegistry meterRegistry,
+            @Value("${patient.cache.max-size:10000}") long maxSize,
+            @Value("${patient.cache.ttl:10m}") Duration ttl) {
+        this.patientsById = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        this.idsByPersonalNumber = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, patientsById, "patients.byId");
+        CaffeineCacheMetrics.monitor(meterRegistry, idsByPersonalNumber, "patients.byPersonalNumber");
+    }
+
+    /**
+     * Hämtar patienten från cachen eller laddar den med loader. Undantag från loader
+     * (t.ex. patient saknas) skickas vidare och cachas inte.
+     */
+    public PatientDTO getById(Long id, Function<Long, PatientDTO> loader) {
+        PatientDTO patient = patientsById.get(id, loader);
+        idsByPersonalNumber.put(patient.getPersonalNumber(), id);
+        return patient;
+    }
+
+    public Long getIdByPersonalNumber(String personalNumber) {
+        return idsByPersonalNumber.getIfPresent(personalNumber);
+    }
+
+    public void put(PatientDTO patient) {
+        patientsById.put(patient.getId(), patient);
+        idsByPersonalNumber.put(patient.getPersonalNumber(), patient.getId());
+    }
+
+    public void evict(Long id) {
+        PatientDTO removed = patientsById.asMap().remove(id);
+        if (removed != null) {
+            idsByPersonalNumber.asMap().remove(removed.getPersonalNumber(), id);
+        }
+    }
+
+    /**
+     * Tar bort posterna när den pågående transaktionen har committats, så att en samtidig
+     * läsning inte hinner cacha det gamla värdet igen. Utan transaktion tas de bort direkt.
+     */
+    public void evictAfterCommit(Collection<Long> ids) {
+        List<Long> pending = List.copyOf(ids);
+        AfterCommit.run(() -> pending.forEach(this::evict));
+    }
+
+    public void evictAfterCommit(Long id) {
+        evictAfterCommit(List.of(id));
+    }
+}
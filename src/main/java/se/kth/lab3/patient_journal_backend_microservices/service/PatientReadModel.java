@@ -0,0 +1,270 @@
+package se.kth.lab3.patient_journal_backend_microservices.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Patienterna i minnet, materialiserade från patient.events (CQRS-läsmodell). Topicen är en
+ * komprimerad changelog med hela PatientDTO:n per patient-id och tombstones vid borttagning,
+ * så att den läst från början ger alla patienter. PatientReadModelUpdater läser den vid start
+ * och följer den sedan; från att den hunnit ikapp slutet som det såg ut vid start svarar
+ * PatientService på patientläsningar härifrån i stället för från databasen.
+ *
+ * Positionen är nästa offset per partition, t.ex. "0:1234,1:987". En klient som skickar med
+ * en position får svar först när modellen nått den (consistency=offset), eller från databasen
+ * om det inte hinns inom max-wait.
+ */
+@Component
+public class PatientReadModel {
+
+    public static final String POSITION_HEADER = "X-Patient-Events-Offset";
+
+    private final ConcurrentSkipListMap<Long, PatientDTO> patients = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<String, Long> idsByPersonalNumber = new ConcurrentHashMap<>();
+    // Egna borttagningar vars tombstone ännu inte lästs: äldre händelser får inte återuppliva dem
+    private final Set<Long> pendingDeletes = ConcurrentHashMap.newKeySet();
+    private final Map<Integer, Long> positions = new ConcurrentHashMap<>();
+
+    // Skrivningar kommer både från uppdateraren och från commits i den här replikan
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ReentrantLock progressLock = new ReentrantLock();
+    private final Condition advanced = progressLock.newCondition();
+
+    private final boolean waitForOffsets;
+    private final Duration maxWait;
+
+    // Slutet på topicen när inläsningen började, null innan uppdateraren startat
+    private volatile Map<Integer, Long> catchUpTargets;
+    private volatile boolean serving;
+
+    public PatientReadModel(
+            @Value("${patient.read-model.consistency:offset}") String consistency,
+            @Value("${patient.read-model.max-wait:2s}") Duration maxWait) {
+        this.waitForOffsets = !"eventual".equalsIgnoreCase(consistency);
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Anropas av uppdateraren när partitionerna tilldelats, med slutoffset per partition.
+     */
+    public void begin(Map<Integer, Long> endOffsets) {
+        catchUpTargets = Map.copyOf(endOffsets);
+        checkCaughtUp();
+    }
+
+    public boolean isServing() {
+        return serving;
+    }
+
+    /**
+     * En post från topicen, i offsetordning per partition. patient null = tombstone.
+     */
+    public void apply(long id, PatientDTO patient) {
+        writeLock.lock();
+        try {
+            if (patient == null) {
+                pendingDeletes.remove(id);
+                removeEntry(id);
+            } else if (!pendingDeletes.contains(id)) {
+                putIfNewer(patient);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Nästa offset att läsa i partitionen, efter att allt före den applicerats.
+     */
+    public void advance(int partition, long nextOffset) {
+        positions.merge(partition, nextOffset, Math::max);
+        checkCaughtUp();
+        progressLock.lock();
+        try {
+            advanced.signalAll();
+        } finally {
+            progressLock.unlock();
+        }
+    }
+
+    /**
+     * Egen skrivning efter commit, så att replikan läser sina egna skrivningar innan
+     * händelsen gjort varvet via Kafka. Ignoreras om modellen inte är igång.
+     */
+    void put(PatientDTO patient) {
+        if (catchUpTargets == null) {
+            return;
+        }
+        writeLock.lock();
+        try {
+            putIfNewer(patient);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void putAll(Collection<PatientDTO> patients) {
+        patients.forEach(this::put);
+    }
+
+    void remove(Long id) {
+        if (catchUpTargets == null) {
+            return;
+        }
+        writeLock.lock();
+        try {
+            pendingDeletes.add(id);
+            removeEntry(id);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    PatientDTO get(Long id) {
+        return patients.get(id);
+    }
+
+    PatientDTO getByPersonalNumber(String personalNumber) {
+        Long id = idsByPersonalNumber.get(personalNumber);
+        PatientDTO patient = id != null ? patients.get(id) : null;
+        return patient != null && personalNumber.equals(patient.getPersonalNumber()) ? patient : null;
+    }
+
+    List<PatientDTO> all() {
+        return new ArrayList<>(patients.values());
+    }
+
+    /**
+     * Högst limit patienter med id större än afterId (alla om null), sorterade på id.
+     */
+    List<PatientDTO> page(Long afterId, int limit) {
+        Collection<PatientDTO> tail = afterId == null ? patients.values() : patients.tailMap(afterId, false).values();
+        return tail.stream().limit(limit).toList();
+    }
+
+    public int size() {
+        return patients.size();
+    }
+
+    /**
+     * Aktuell position, för POSITION_HEADER.
+     */
+    public String position() {
+        StringBuilder position = new StringBuilder();
+        new TreeMap<>(positions).forEach((partition, offset) -> {
+            if (!position.isEmpty()) {
+                position.append(',');
+            }
+            position.append(partition).append(':').append(offset);
+        });
+        return position.toString();
+    }
+
+    public Map<Integer, Long> positions() {
+        return new TreeMap<>(positions);
+    }
+
+    public Map<Integer, Long> catchUpTargets() {
+        Map<Integer, Long> targets = catchUpTargets;
+        return targets == null ? Map.of() : new TreeMap<>(targets);
+    }
+
+    /**
+     * Sant om modellen kan svara för en klient som sett minPosition (null = ingen krav):
+     * väntar högst max-wait på att uppdateraren när dit. Med consistency=eventual väntas aldrig.
+     */
+    boolean canServe(String minPosition) {
+        if (!serving) {
+            return false;
+        }
+        if (minPosition == null || minPosition.isBlank() || !waitForOffsets) {
+            return true;
+        }
+        return await(parsePosition(minPosition), maxWait);
+    }
+
+    boolean await(Map<Integer, Long> minPositions, Duration timeout) {
+        long remaining = timeout.toNanos();
+        progressLock.lock();
+        try {
+            while (!reached(minPositions)) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = advanced.awaitNanos(remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            progressLock.unlock();
+        }
+    }
+
+    static Map<Integer, Long> parsePosition(String position) {
+        Map<Integer, Long> parsed = new TreeMap<>();
+        try {
+            for (String part : position.split(",")) {
+                int colon = part.indexOf(':');
+                parsed.merge(Integer.parseInt(part.substring(0, colon).trim()),
+                        Long.parseLong(part.substring(colon + 1).trim()), Math::max);
+            }
+        } catch (RuntimeException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Ogiltig position: " + position);
+        }
+        return parsed;
+    }
+
+    private boolean reached(Map<Integer, Long> minPositions) {
+        for (Map.Entry<Integer, Long> min : minPositions.entrySet()) {
+            if (positions.getOrDefault(min.getKey(), 0L) < min.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void checkCaughtUp() {
+        Map<Integer, Long> targets = catchUpTargets;
+        if (!serving && targets != null && reached(targets)) {
+            serving = true;
+        }
+    }
+
+    // En patient-id byter aldrig ägare, så äldre versioner kan bara vara försenade händelser
+    private void putIfNewer(PatientDTO patient) {
+        PatientDTO current = patients.get(patient.getId());
+        if (current != null && current.getVersion() != null && patient.getVersion() != null
+                && current.getVersion() > patient.getVersion()) {
+            return;
+        }
+        patients.put(patient.getId(), patient);
+        if (current != null && !current.getPersonalNumber().equals(patient.getPersonalNumber())) {
+            idsByPersonalNumber.remove(current.getPersonalNumber(), current.getId());
+        }
+        idsByPersonalNumber.put(patient.getPersonalNumber(), patient.getId());
+    }
+
+    private void removeEntry(Long id) {
+        PatientDTO removed = patients.remove(id);
+        if (removed != null) {
+            idsByPersonalNumber.remove(removed.getPersonalNumber(), id);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package se.kth.lab3.patient_journal_backend_microservices.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * "patientReadModel" i readiness-gruppen: OUT_OF_SERVICE tills PatientReadModel hunnit
+ * ikapp patient.events, med position, mål och lag per partition. Avslagen
+ * läsmodell är alltid UP, då går läsningarna till databasen som tidigare.
+ */
+@Component
+class PatientReadModelHealthIndicator implements HealthIndicator {
+
+    private final PatientReadModel readModel;
+    private final boolean enabled;
+
+    PatientReadModelHealthIndicator(
+            PatientReadModel readModel,
+            @Value("${patient.read-model.enabled:true}") boolean enabled) {
+        this.readModel = readModel;
+        this.enabled = enabled;
+    }
+
+    @Override
+    public Health health() {
+        if (!enabled) {
+            return Health.up().withDetail("enabled", false).build();
+        }
+        Map<Integer, Long> positions = readModel.positions();
+        Map<Integer, Long> targets = readModel.catchUpTargets();
+        Map<Integer, Long> lag = new TreeMap<>();
+        targets.forEach((partition, target) ->
+                lag.put(partition, Math.max(0, target - positions.getOrDefault(partition, 0L))));
+        return (readModel.isServing() ? Health.up() : Health.outOfService())
+                .withDetail("patients", readModel.size())
+                .withDetail("position", positions)
+                .withDetail("catchUpTarget", targets)
+                .withDetail("catchUpLag", lag)
+                .build();
+    }
+}
@@ -0,0 +1,376 @@
+package se.kth.lab3.patient_journal_backend_microservices.service;
+
+import org.springframework.stereotype.Component;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * Minnesindex för patientsök medan man skriver, på för- och efternamn samt personnummer.
+ * Alla ord ligger i en sorterad ordlista (ord -> patienter) där ett prefix är ett intervall.
+ * Namnord finns dessutom i ett trigramindex ("^^a", "^an", "ann" ...) så att ord med något
+ * stavfel hittas och verifieras med prefix-editavstånd. Personnummer matchas bara på prefix;
+ * ett felskrivet personnummer ska inte ge en annan patient.
+ * <p>
+ * Det mest selektiva sökordet väljer kandidaterna och övriga sökord provas mot kandidatens
+ * egna ord. Träffarna rankas exakt ord före prefix före stavfel. Indexet håller hela
+ * PatientDTO:n, så en sökning går aldrig mot databasen.
+ */
+@Component
+public class PatientSearchIndex {
+
+    private static final String PAD = "^^";
+    private static final Pattern NON_ALPHANUMERIC = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+    // Bindestreck eller plus mellan siffror, t.ex. "19900101-1234"
+    private static final Pattern DIGIT_SEPARATOR = Pattern.compile("(?<=\\d)[-+](?=\\d)");
+
+    private static final int EXACT = 3;
+    private static final int PREFIX = 2;
+    private static final int FUZZY = 1;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final NavigableMap<String, Set<Long>> dictionary = new TreeMap<>();
+    private final Map<String, Set<String>> gramIndex = new HashMap<>();
+    private final Map<Long, Indexed> patients = new HashMap<>();
+    // Borttagna under uppbyggnaden, så att bygget inte lägger tillbaka dem
+    private final Set<Long> removedDuringBuild = new HashSet<>();
+    private volatile boolean ready;
+
+    private record Indexed(PatientDTO patient, List<String> tokens) {
+    }
+
+    private record Hit(PatientDTO patient, int score) {
+    }
+
+    /**
+     * Gemener utan accenter (så att "Ostlund" hittar "Östlund"), uppdelat på annat än
+     * bokstäver och siffror.
+     */
+    static List<String> tokens(String... fields) {
+        Set<String> tokens = new LinkedHashSet<>();
+        for (String field : fields) {
+            if (field == null || field.isBlank()) {
+                continue;
+            }
+            String normalized = DIACRITICS.matcher(Normalizer.normalize(field, Normalizer.Form.NFD))
+                    .replaceAll("")
+                    .toLowerCase(Locale.ROOT);
+            for (String token : NON_ALPHANUMERIC.split(normalized)) {
+                if (!token.isEmpty()) {
+                    tokens.add(token);
+                }
+            }
+        }
+        return new ArrayList<>(tokens);
+    }
+
+    /**
+     * Namnens ord plus personnumret som ett sifferord, med och utan sekel.
+     */
+    private static List<String> patientTokens(PatientDTO patient) {
+        List<String> tokens = tokens(patient.getFirstName(), patient.getLastName());
+        if (patient.getPersonalNumber() != null) {
+            String digits = patient.getPersonalNumber().replaceAll("\\D", "");
+            if (!digits.isEmpty()) {
+                tokens.add(digits);
+                // "19900101-1234" ska även hittas som "900101..."
+                if (digits.length() == 12) {
+                    tokens.add(digits.substring(2));
+                }
+            }
+        }
+        return tokens;
+    }
+
+    private static Set<String> grams(String token) {
+        String padded = PAD + token;
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            grams.add(padded.substring(i, i + 3));
+        }
+        return grams;
+    }
+
+    private static boolean isNumeric(String token) {
+        return Character.isDigit(token.charAt(0));
+    }
+
+    /**
+     * Hur många fel ett sökord får innehålla; korta ord och personnummer måste skrivas rätt.
+     */
+    static int allowedEdits(String token) {
+        if (token.length() <= 3 || isNumeric(token)) {
+            return 0;
+        }
+        return token.length() <= 7 ? 1 : 2;
+    }
+
+    public void put(PatientDTO patient) {
+        putAll(List.of(patient));
+    }
+
+    public void putAll(Collection<PatientDTO> updated) {
+        lock.writeLock().lock();
+        try {
+            updated.forEach(this::putLocked);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Används av uppbyggnaden: patienter som redan skrivits eller tagits bort från
+     * skrivvägen under tiden är nyare än sidan från databasen.
+     */
+    void putAllIfAbsent(Collection<PatientDTO> loaded) {
+        lock.writeLock().lock();
+        try {
+            for (PatientDTO patient : loaded) {
+                if (!patients.containsKey(patient.getId()) && !removedDuringBuild.contains(patient.getId())) {
+                    putLocked(patient);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(Long id) {
+        lock.writeLock().lock();
+        try {
+            removeLocked(id);
+            if (!ready) {
+                removedDuringBuild.add(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * De bästa träffarna där varje sökord matchar något ord hos patienten.
+     */
+    public List<PatientDTO> search(String query, int limit) {
+        List<String> queryTokens = tokens(DIGIT_SEPARATOR.matcher(query).replaceAll(""));
+        if (queryTokens.isEmpty() || limit <= 0) {
+            return List.of();
+        }
+
+        lock.readLock().lock();
+        try {
+            // Ord i ordlistan som varje sökord träffar, med poäng
+            List<Map<String, Integer>> matches = new ArrayList<>(queryTokens.size());
+            int driver = 0;
+            long driverSize = Long.MAX_VALUE;
+            for (String queryToken : queryTokens) {
+                Map<String, Integer> tokenMatches = matchingTokens(queryToken);
+                if (tokenMatches.isEmpty()) {
+                    return List.of();
+                }
+                long size = tokenMatches.keySet().stream().mapToLong(token -> dictionary.get(token).size()).sum();
+                if (size < driverSize) {
+                    driverSize = size;
+                    driver = matches.size();
+                }
+                matches.add(tokenMatches);
+            }
+
+            Map<Long, Integer> candidates = new HashMap<>();
+            for (Map.Entry<String, Integer> match : matches.get(driver).entrySet()) {
+                for (Long id : dictionary.get(match.getKey())) {
+                    candidates.merge(id, match.getValue(), Math::max);
+                }
+            }
+
+            Comparator<Hit> ranking = Comparator.comparingInt(Hit::score)
+                    .thenComparing(hit -> hit.patient().getLastName(), Comparator.nullsFirst(Comparator.reverseOrder()))
+                    .thenComparing(hit -> hit.patient().getFirstName(), Comparator.nullsFirst(Comparator.reverseOrder()));
+            PriorityQueue<Hit> top = new PriorityQueue<>(ranking);
+            candidates:
+            for (Map.Entry<Long, Integer> candidate : candidates.entrySet()) {
+                Indexed indexed = patients.get(candidate.getKey());
+                int score = candidate.getValue();
+                for (int k = 0; k < matches.size(); k++) {
+                    if (k == driver) {
+                        continue;
+                    }
+                    int best = 0;
+                    for (String token : indexed.tokens()) {
+                        best = Math.max(best, matches.get(k).getOrDefault(token, 0));
+                    }
+                    if (best == 0) {
+                        continue candidates;
+                    }
+                    score += best;
+                }
+                top.add(new Hit(indexed.patient(), score));
+                if (top.size() > limit) {
+                    top.poll();
+                }
+            }
+
+            List<PatientDTO> results = new ArrayList<>(top.size());
+            while (!top.isEmpty()) {
+                results.add(top.poll().patient());
+            }
+            Collections.reverse(results);
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    void markReady() {
+        lock.writeLock().lock();
+        try {
+            ready = true;
+            removedDuringBuild.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return patients.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Map<String, Integer> matchingTokens(String queryToken) {
+        Map<String, Integer> matches = new HashMap<>();
+        for (String token : dictionary.subMap(queryToken, true, queryToken + Character.MAX_VALUE, false).keySet()) {
+            matches.put(token, token.equals(queryToken) ? EXACT : PREFIX);
+        }
+
+        int edits = allowedEdits(queryToken);
+        if (edits == 0) {
+            return matches;
+        }
+        Set<String> queryGrams = grams(queryToken);
+        // Varje fel förstör högst tre trigram
+        int minShared = Math.max(1, queryGrams.size() - 3 * edits);
+        Map<String, Integer> shared = new HashMap<>();
+        for (String gram : queryGrams) {
+            for (String token : gramIndex.getOrDefault(gram, Set.of())) {
+                shared.merge(token, 1, Integer::sum);
+            }
+        }
+        for (Map.Entry<String, Integer> candidate : shared.entrySet()) {
+            String token = candidate.getKey();
+            if (candidate.getValue() >= minShared && !matches.containsKey(token)
+                    && prefixEditDistance(queryToken, token, edits) <= edits) {
+                matches.put(token, FUZZY);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Minsta editavstånd (med omkastning av grannar) mellan sökordet och något prefix av ordet,
+     * avbrutet så snart det överstiger max.
+     */
+    static int prefixEditDistance(String query, String token, int max) {
+        int[] previousPrevious = new int[token.length() + 1];
+        int[] previous = new int[token.length() + 1];
+        int[] current = new int[token.length() + 1];
+        for (int j = 0; j <= token.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= query.length(); i++) {
+            current[0] = i;
+            int rowMin = current[0];
+            for (int j = 1; j <= token.length(); j++) {
+                int cost = query.charAt(i - 1) == token.charAt(j - 1) ? 0 : 1;
+                int value = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1), previous[j - 1] + cost);
+                if (i > 1 && j > 1 && query.charAt(i - 1) == token.charAt(j - 2)
+                        && query.charAt(i - 2) == token.charAt(j - 1)) {
+                    value = Math.min(value, previousPrevious[j - 2] + 1);
+                }
+                current[j] = value;
+                rowMin = Math.min(rowMin, value);
+            }
+            if (rowMin > max) {
+                return rowMin;
+            }
+            int[] recycled = previousPrevious;
+            previousPrevious = previous;
+            previous = current;
+            current = recycled;
+        }
+        int best = Integer.MAX_VALUE;
+        for (int value : previous) {
+            best = Math.min(best, value);
+        }
+        return best;
+    }
+
+    private void putLocked(PatientDTO patient) {
+        removeLocked(patient.getId());
+        List<String> tokens = patientTokens(patient);
+        patients.put(patient.getId(), new Indexed(patient, tokens));
+        for (String token : tokens) {
+            dictionary.computeIfAbsent(token, this::addGrams).add(patient.getId());
+        }
+    }
+
+    private Set<Long> addGrams(String token) {
+        if (!isNumeric(token)) {
+            for (String gram : grams(token)) {
+                gramIndex.computeIfAbsent(gram, key -> new HashSet<>()).add(token);
+            }
+        }
+        return new HashSet<>();
+    }
+
+    private void removeLocked(Long id) {
+        Indexed old = patients.remove(id);
+        if (old == null) {
+            return;
+        }
+        for (String token : old.tokens()) {
+            Set<Long> ids = dictionary.get(token);
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                dictionary.remove(token);
+                removeGrams(token);
+            }
+        }
+    }
+
+    private void removeGrams(String token) {
+        if (isNumeric(token)) {
+            return;
+        }
+        for (String gram : grams(token)) {
+            Set<String> tokens = gramIndex.get(gram);
+            tokens.remove(token);
+            if (tokens.isEmpty()) {
+                gramIndex.remove(gram);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package se.kth.lab3.patient_journal_backend_microservices.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import se.kth.lab3.patient_journal_backend_microservices.dto.CursorPageDTO;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
+
+/**
+ * Fyller PatientSearchIndex från databasen efter start, sida för sida med samma
+ * keyset-paginering som listningen. Patientsök svarar 503 tills det är klart.
+ */
+@Component
+@Slf4j
+class PatientSearchIndexLoader {
+
+    private final PatientService patientService;
+    private final PatientSearchIndex searchIndex;
+
+    @Value("${patient.search.rebuild-on-startup:true}")
+    private boolean rebuildOnStartup;
+
+    PatientSearchIndexLoader(PatientService patientService, PatientSearchIndex searchIndex) {
+        this.patientService = patientService;
+        this.searchIndex = searchIndex;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    void onApplicationReady() {
+        if (!rebuildOnStartup) {
+            searchIndex.markReady();
+            return;
+        }
+        Thread thread = new Thread(this::rebuild, "patient-search-rebuild");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void rebuild() {
+        long start = System.nanoTime();
+        try {
+            String cursor = null;
+            do {
+                CursorPageDTO<PatientDTO> page = patientService.getPatientsPage(cursor, PageCursor.MAX_LIMIT);
+                // Patienter som ändrats under bygget finns redan med nyare data
+                searchIndex.putAllIfAbsent(page.getItems());
+                cursor = page.getNextCursor();
+            } while (cursor != null);
+            searchIndex.markReady();
+            log.info("Patientindexet byggt: {} patienter på {} ms",
+                    searchIndex.size(), (System.nanoTime() - start) / 1_000_000);
+        } catch (Exception e) {
+            log.error("Kunde inte bygga patientindexet: {}", e.getMessage(), e);
+        }
+    }
+}
@@ -1,32 +1,82 @@
 package se.kth.lab3.patient_journal_backend_microservices.service;
 
-import org.springframework.beans.factory.annotation.Qualifier;
+import io.micrometer.core.annotation.Timed;
+import jakarta.persistence.EntityManager;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.data.domain.Limit;
+import org.springframework.http.HttpStatus;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.server.ResponseStatusException;
+import se.kth.lab3.patient_journal_backend_microservices.config.ReplicaRoutingDataSource;
+import se.kth.lab3.patient_journal_backend_microservices.dto.CursorPageDTO;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientCommandDTO;
 import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
 import se.kth.lab3.patient_journal_backend_microservices.entity.Patient;
+import se.kth.lab3.patient_journal_backend_microservices.repository.JournalEntryRepository;
 import se.kth.lab3.patient_journal_backend_microservices.repository.PatientRepository;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 @Service
 @Transactional
+@Timed("service.method")
+@Slf4j
 public class PatientService {
 
     private final PatientRepository patientRepository;
-    private final KafkaTemplate<String, PatientDTO> kafkaTemplate;
+    private final JournalEntryRepository journalEntryRepository;
+    private final OutboxService outboxService;
+    private final EntityManager entityManager;
+    private final PatientCache patientCache;
+    private final JournalTimelineCache timelineCache;
+    private final PatientSearchIndex searchIndex;
+    private final PatientReadModel readModel;
+    // Läsningar som inte kan svaras från läsmodellen; då och bara då tas en anslutning
+    private final TransactionTemplate readOnlyTransaction;
 
     @Value("${kafka.topic.patient:patient.events}")
     private String patientTopic;
 
+    // Påslagen är läsmodellen enda källan för cachade patientläsningar och PatientCache används
+    // inte alls; det läsmodellen inte kan svara på läses direkt från databasen
+    @Value("${patient.read-model.enabled:true}")
+    private boolean readModelEnabled;
+
     public PatientService(
             PatientRepository patientRepository,
-            @Qualifier("patientKafkaTemplate") KafkaTemplate<String, PatientDTO> kafkaTemplate) {
+            JournalEntryRepository journalEntryRepository,
+            OutboxService outboxService,
+            EntityManager entityManager,
+            PatientCache patientCache,
+            JournalTimelineCache timelineCache,
+            PatientSearchIndex searchIndex,
+            PatientReadModel readModel,
+            PlatformTransactionManager transactionManager) {
         this.patientRepository = patientRepository;
-        this.kafkaTemplate = kafkaTemplate;
+        this.journalEntryRepository = journalEntryRepository;
+        this.outboxService = outboxService;
+        this.entityManager = entityManager;
+        this.patientCache = patientCache;
+        this.timelineCache = timelineCache;
+        this.searchIndex = searchIndex;
+        this.readModel = readModel;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
     }
 
     public PatientDTO createPatient(PatientDTO patientDTO) {
@@ -38,32 +88,234 @@ public class PatientService {
         Patient savedPatient = patientRepository.save(patient);
         PatientDTO dto = convertToDTO(savedPatient);
 
-        // Skicka event till Kafka
-        try {
-            kafkaTemplate.send(patientTopic, dto.getId().toString(), dto);
-            System.out.println("=== Kafka: Skickade patient-händelse (CREATE) till topic: " + patientTopic + " ===");
-        } catch (Exception e) {
-            System.err.println("=== Kafka: Kunde inte skicka patient-händelse: " + e.getMessage() + " ===");
-        }
+        // Event till Kafka via outboxen, i samma transaktion som patienten
+        outboxService.enqueue(patientTopic, dto.getId().toString(), dto);
+        AfterCommit.run(() -> {
+            searchIndex.put(dto);
+            readModel.put(dto);
+        });
 
         return dto;
     }
 
+    /**
+     * Skapar många patienter i en transaktion. Hela batchen valideras först: dubbletter
+     * inom batchen och mot databasen (en IN-fråga per 1000 personnummer) avvisar allt.
+     * Raderna sparas sedan med JDBC-batchning och persistence context töms mellan blocken.
+     */
+    public List<PatientDTO> createPatients(List<PatientDTO> patientDTOs) {
+        List<String> personalNumbers = patientDTOs.stream()
+                .map(PatientDTO::getPersonalNumber)
+                .collect(Collectors.toList());
+
+        Set<String> seen = new HashSet<>();
+        Set<String> duplicatesInBatch = personalNumbers.stream()
+                .filter(personalNumber -> !seen.add(personalNumber))
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+        if (!duplicatesInBatch.isEmpty()) {
+            throw new RuntimeException("Personnummer förekommer flera gånger i batchen: " + duplicatesInBatch);
+        }
+
+        List<String> existing = new ArrayList<>();
+        for (List<String> chunk : BatchSupport.chunks(personalNumbers, BatchSupport.IN_CLAUSE_CHUNK_SIZE)) {
+            existing.addAll(patientRepository.findExistingPersonalNumbers(chunk));
+        }
+        if (!existing.isEmpty()) {
+            throw new RuntimeException("Patienter med personnummer " + existing + " finns redan");
+        }
+
+        List<PatientDTO> created = new ArrayList<>(patientDTOs.size());
+        for (List<PatientDTO> chunk : BatchSupport.chunks(patientDTOs, BatchSupport.JDBC_BATCH_SIZE)) {
+            List<Patient> saved = patientRepository.saveAll(chunk.stream()
+                    .map(this::convertToEntity)
+                    .collect(Collectors.toList()));
+            patientRepository.flush();
+            saved.stream().map(this::convertToDTO).forEach(created::add);
+            entityManager.clear();
+        }
+
+        outboxService.enqueueAll(patientTopic, created, dto -> dto.getId().toString());
+        AfterCommit.run(() -> {
+            searchIndex.putAll(created);
+            readModel.putAll(created);
+        });
+
+        return created;
+    }
+
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public PatientDTO getPatientById(Long id) {
-        Patient patient = patientRepository.findById(id)
+        return getPatientById(id, null);
+    }
+
+    /**
+     * Patientläsningarna svaras från PatientReadModel utan transaktion när den är ikapp, och
+     * med minPosition (X-Patient-Events-Offset) först när den nått dit. Annars, och alltid
+     * innan läsmodellen byggts, direkt från databasen; PatientCache används bara när
+     * läsmodellen är avslagen.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public PatientDTO getPatientById(Long id, String minPosition) {
+        if (readModel.canServe(minPosition)) {
+            PatientDTO patient = readModel.get(id);
+            if (patient == null) {
+                throw new RuntimeException("Patient med ID " + id + " finns inte");
+            }
+            return patient;
+        }
+        return readOnlyTransaction.execute(status -> readModelEnabled
+                ? loadPatient(id)
+                : patientCache.getById(id, this::loadPatient));
+    }
+
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public long getPatientVersion(Long id) {
+        return getPatientVersion(id, null);
+    }
+
+    /**
+     * Bara versionen, för villkorliga GET: en uppslagning på primärnyckeln utan att
+     * patienten laddas, mappas eller serialiseras.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public long getPatientVersion(Long id, String minPosition) {
+        if (readModel.canServe(minPosition)) {
+            return getPatientById(id, null).getVersion();
+        }
+        return readOnlyTransaction.execute(status -> patientRepository.findVersionById(id))
+                .orElseThrow(() -> new RuntimeException("Patient med ID " + id + " finns inte"));
+    }
+
+    /**
+     * Läsmodellens position, för att en klient ska kunna kräva minst den vid nästa läsning
+     * (även mot en annan replika). null om läsmodellen inte svarar.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public String getReadModelPosition() {
+        return readModel.isServing() ? readModel.position() : null;
+    }
+
+    /**
+     * Personnumret ändras aldrig av en uppdatering och finns redan när CREATE skickas, så det
+     * är nyckeln för alla kommandon om en patient. Läses från primären: en patient som just
+     * skapats kanske inte hunnit till repliken.
+     */
+    public Optional<String> findPersonalNumber(Long id) {
+        return patientRepository.findPersonalNumberById(id);
+    }
+
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public PatientDTO getPatientByPersonalNumber(String personalNumber) {
+        if (readModel.isServing()) {
+            PatientDTO patient = readModel.getByPersonalNumber(personalNumber);
+            if (patient == null) {
+                throw new RuntimeException("Patient med personnummer " + personalNumber + " finns inte");
+            }
+            return patient;
+        }
+        return readOnlyTransaction.execute(status -> loadPatientByPersonalNumber(personalNumber));
+    }
+
+    private PatientDTO loadPatientByPersonalNumber(String personalNumber) {
+        Long cachedId = readModelEnabled ? null : patientCache.getIdByPersonalNumber(personalNumber);
+        if (cachedId != null) {
+            PatientDTO cached = patientCache.getById(cachedId, this::loadPatient);
+            // Personnumret kan ha ändrats sedan mappningen cachades
+            if (personalNumber.equals(cached.getPersonalNumber())) {
+                return cached;
+            }
+        }
+        PatientDTO dto = ReplicaRoutingDataSource.onPrimary(() -> patientRepository.findDtoByPersonalNumber(personalNumber))
+                .orElseThrow(() -> new RuntimeException("Patient med personnummer " + personalNumber + " finns inte"));
+        if (!readModelEnabled) {
+            patientCache.put(dto);
+        }
+        return dto;
+    }
+
+    private void evictCachedAfterCommit(Collection<Long> ids) {
+        if (!readModelEnabled) {
+            patientCache.evictAfterCommit(ids);
+        }
+    }
+
+    /**
+     * Laddar till PatientCache, därför från primären: en replik som ligger efter skulle
+     * annars kunna cacha en patient som just ändrats.
+     */
+    private PatientDTO loadPatient(Long id) {
+        return ReplicaRoutingDataSource.onPrimary(() -> patientRepository.findDtoById(id))
                 .orElseThrow(() -> new RuntimeException("Patient med ID " + id + " finns inte"));
-        return convertToDTO(patient);
     }
 
+    /**
+     * Sök på del av namn eller personnummer, tal för stavfel. Svaras helt från
+     * PatientSearchIndex, därför utan transaktion (och databasanslutning).
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public List<PatientDTO> searchPatients(String query, int limit) {
+        if (!searchIndex.isReady()) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Patientindexet byggs fortfarande");
+        }
+        return searchIndex.search(query, PageCursor.clampLimit(limit));
+    }
+
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public List<PatientDTO> getAllPatients() {
-        return patientRepository.findAll().stream()
-                .map(this::convertToDTO)
-                .collect(Collectors.toList());
+        return getAllPatients(null);
+    }
+
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public List<PatientDTO> getAllPatients(String minPosition) {
+        if (readModel.canServe(minPosition)) {
+            return readModel.all();
+        }
+        return readOnlyTransaction.execute(status -> patientRepository.findAllDtos());
+    }
+
+    /**
+     * Hämtar en sida patienter sorterade på id. Sökningen görs med keyset (id > cursor)
+     * istället för OFFSET, så att varje sida kostar lika mycket oavsett position.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public CursorPageDTO<PatientDTO> getPatientsPage(String after, int limit) {
+        return getPatientsPage(after, limit, null);
+    }
+
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public CursorPageDTO<PatientDTO> getPatientsPage(String after, int limit, String minPosition) {
+        int pageSize = PageCursor.clampLimit(limit);
+        Long afterId = after == null ? null : PageCursor.decodeId(after);
+
+        List<PatientDTO> patients = readModel.canServe(minPosition)
+                ? readModel.page(afterId, pageSize + 1)
+                : readOnlyTransaction.execute(status -> afterId == null
+                        ? patientRepository.findDtoPage(Limit.of(pageSize + 1))
+                        : patientRepository.findDtoPageAfter(afterId, Limit.of(pageSize + 1)));
+
+        boolean hasMore = patients.size() > pageSize;
+        List<PatientDTO> items = hasMore ? patients.subList(0, pageSize) : patients;
+        String nextCursor = hasMore ? PageCursor.encodeId(items.get(items.size() - 1).getId()) : null;
+
+        return new CursorPageDTO<>(items, nextCursor);
     }
 
     public PatientDTO updatePatient(Long id, PatientDTO patientDTO) {
+        return updatePatient(id, patientDTO, null);
+    }
+
+    /**
+     * Uppdaterar patienten om den fortfarande har expectedVersion (från If-Match), annars 412.
+     * Med expectedVersion null skrivs den senaste versionen över, men en samtidig uppdatering
+     * mellan läsning och skrivning ger 409 i stället för att tyst försvinna.
+     */
+    public PatientDTO updatePatient(Long id, PatientDTO patientDTO, Long expectedVersion) {
         Patient patient = patientRepository.findById(id)
                 .orElseThrow(() -> new RuntimeException("Patient med ID " + id + " finns inte"));
+        if (expectedVersion != null && expectedVersion != patient.getVersion()) {
+            throw new ResponseStatusException(HttpStatus.PRECONDITION_FAILED,
+                    "Patient med ID " + id + " har ändrats sedan version " + expectedVersion);
+        }
 
         patient.setFirstName(patientDTO.getFirstName());
         patient.setLastName(patientDTO.getLastName());
@@ -73,15 +325,26 @@ public class PatientService {
         patient.setAddress(patientDTO.getAddress());
 
         Patient updatedPatient = patientRepository.save(patient);
-        PatientDTO dto = convertToDTO(updatedPatient);
 
-        // Skicka uppdatering till Kafka
+        // Flush tar radlåset innan outbox-raden skrivs, så händelserna för samma
+        // patient hamnar i outboxen i samma ordning som transaktionerna committas.
+        // UPDATE:n villkoras på versionen, som räknas upp först här.
         try {
-            kafkaTemplate.send(patientTopic, dto.getId().toString(), dto);
-            System.out.println("=== Kafka: Skickade patient-händelse (UPDATE) till topic: " + patientTopic + " ===");
-        } catch (Exception e) {
-            System.err.println("=== Kafka: Kunde inte skicka patient-händelse: " + e.getMessage() + " ===");
+            patientRepository.flush();
+        } catch (ObjectOptimisticLockingFailureException e) {
+            throw new ResponseStatusException(
+                    expectedVersion != null ? HttpStatus.PRECONDITION_FAILED : HttpStatus.CONFLICT,
+                    "Patient med ID " + id + " ändrades samtidigt", e);
         }
+        PatientDTO dto = convertToDTO(updatedPatient);
+
+        // Uppdatering till Kafka via outboxen
+        outboxService.enqueue(patientTopic, dto.getId().toString(), dto);
+        evictCachedAfterCommit(List.of(id));
+        AfterCommit.run(() -> {
+            searchIndex.put(dto);
+            readModel.put(dto);
+        });
 
         return dto;
     }
@@ -90,18 +353,163 @@ public class PatientService {
         if (!patientRepository.existsById(id)) {
             throw new RuntimeException("Patient med ID " + id + " finns inte");
         }
+        // Mjukt borttagna anteckningar är kvar som rader och skulle annars stoppa borttagningen
+        journalEntryRepository.deleteSoftDeletedByPatientIds(List.of(id));
         patientRepository.deleteById(id);
+        patientRepository.flush();
 
-        // Skicka "tombstone" (null-värde) till Kafka för att signalera borttagning
-        try {
-            kafkaTemplate.send(patientTopic, id.toString(), null);
-            System.out.println("=== Kafka: Skickade patient-händelse (DELETE/Tombstone) till topic: " + patientTopic + " ===");
-        } catch (Exception e) {
-            System.err.println("=== Kafka: Kunde inte skicka delete-händelse: " + e.getMessage() + " ===");
+        // "Tombstone" (null-värde) via outboxen för att signalera borttagning
+        outboxService.enqueue(patientTopic, id.toString(), null);
+        evictCachedAfterCommit(List.of(id));
+        timelineCache.evictAfterCommit(id);
+        AfterCommit.run(() -> {
+            searchIndex.remove(id);
+            readModel.remove(id);
+        });
+    }
+
+    /**
+     * Resultat av applyCommands: antal utförda kommandon och de som hoppades över, med orsak.
+     */
+    public record AppliedCommands(int applied, List<SkippedCommand> skipped) {
+    }
+
+    public record SkippedCommand(PatientCommandDTO command, String reason) {
+    }
+
+    /**
+     * Utför en redan sammanslagen batch av kommandon (högst ett per patient) i en transaktion,
+     * med JDBC-batchade skrivningar och en IN-fråga per följd av kommandon av samma typ istället
+     * för en fråga per kommando. Följderna utförs i kommandonas ordning, så att t.ex. en DELETE
+     * hinner frigöra ett personnummer innan en senare CREATE med samma personnummer.
+     * Kommandon som skulle misslyckas var för sig (dubblett, patient saknas) hoppas över och
+     * returneras, så att anroparen kan skicka dem vidare.
+     */
+    public AppliedCommands applyCommands(List<PatientCommandDTO> commands) {
+        int applied = 0;
+        List<SkippedCommand> skipped = new ArrayList<>();
+        int start = 0;
+        while (start < commands.size()) {
+            String type = commands.get(start).getCommandType().toUpperCase();
+            int end = start + 1;
+            while (end < commands.size() && type.equalsIgnoreCase(commands.get(end).getCommandType())) {
+                end++;
+            }
+            List<PatientCommandDTO> run = commands.subList(start, end);
+            applied += switch (type) {
+                case "CREATE" -> applyCreates(run, skipped);
+                case "UPDATE" -> applyUpdates(run, skipped);
+                case "DELETE" -> applyDeletes(run, skipped);
+                default -> 0;
+            };
+            start = end;
+        }
+        return new AppliedCommands(applied, skipped);
+    }
+
+    private int applyCreates(List<PatientCommandDTO> commands, List<SkippedCommand> skipped) {
+        List<String> personalNumbers = commands.stream()
+                .map(command -> command.getPatient().getPersonalNumber())
+                .collect(Collectors.toList());
+        Set<String> existing = new HashSet<>();
+        for (List<String> chunk : BatchSupport.chunks(personalNumbers, BatchSupport.IN_CLAUSE_CHUNK_SIZE)) {
+            existing.addAll(patientRepository.findExistingPersonalNumbers(chunk));
+        }
+
+        List<PatientDTO> toCreate = new ArrayList<>(commands.size());
+        for (PatientCommandDTO command : commands) {
+            String personalNumber = command.getPatient().getPersonalNumber();
+            if (existing.contains(personalNumber)) {
+                skipped.add(new SkippedCommand(command, "Patient med personnummer " + personalNumber + " finns redan"));
+            } else {
+                toCreate.add(command.getPatient());
+            }
+        }
+
+        List<PatientDTO> created = new ArrayList<>(toCreate.size());
+        for (List<PatientDTO> chunk : BatchSupport.chunks(toCreate, BatchSupport.JDBC_BATCH_SIZE)) {
+            List<Patient> saved = patientRepository.saveAll(chunk.stream()
+                    .map(this::convertToEntity)
+                    .collect(Collectors.toList()));
+            patientRepository.flush();
+            saved.stream().map(this::convertToDTO).forEach(created::add);
+            entityManager.clear();
+        }
+        outboxService.enqueueAll(patientTopic, created, dto -> dto.getId().toString());
+        AfterCommit.run(() -> {
+            searchIndex.putAll(created);
+            readModel.putAll(created);
+        });
+        return created.size();
+    }
+
+    private int applyUpdates(List<PatientCommandDTO> commands, List<SkippedCommand> skipped) {
+        Map<Long, Patient> patients = new HashMap<>();
+        List<Long> ids = commands.stream().map(PatientCommandDTO::getPatientId).collect(Collectors.toList());
+        for (List<Long> chunk : BatchSupport.chunks(ids, BatchSupport.IN_CLAUSE_CHUNK_SIZE)) {
+            patientRepository.findAllById(chunk).forEach(patient -> patients.put(patient.getId(), patient));
+        }
+
+        List<Patient> changed = new ArrayList<>(patients.size());
+        for (PatientCommandDTO command : commands) {
+            Patient patient = patients.get(command.getPatientId());
+            if (patient == null) {
+                skipped.add(new SkippedCommand(command, "Patient med ID " + command.getPatientId() + " finns inte"));
+                continue;
+            }
+            PatientDTO patientDTO = command.getPatient();
+            patient.setFirstName(patientDTO.getFirstName());
+            patient.setLastName(patientDTO.getLastName());
+            patient.setDateOfBirth(patientDTO.getDateOfBirth());
+            patient.setEmail(patientDTO.getEmail());
+            patient.setPhoneNumber(patientDTO.getPhoneNumber());
+            patient.setAddress(patientDTO.getAddress());
+            changed.add(patient);
+        }
+        // Dirty checking skriver alla UPDATEs som en JDBC-batch och räknar upp versionerna
+        patientRepository.flush();
+        List<PatientDTO> updated = changed.stream().map(this::convertToDTO).collect(Collectors.toList());
+        outboxService.enqueueAll(patientTopic, updated, dto -> dto.getId().toString());
+        evictCachedAfterCommit(updated.stream().map(PatientDTO::getId).collect(Collectors.toList()));
+        AfterCommit.run(() -> {
+            searchIndex.putAll(updated);
+            readModel.putAll(updated);
+        });
+        return updated.size();
+    }
+
+    private int applyDeletes(List<PatientCommandDTO> commands, List<SkippedCommand> skipped) {
+        List<Long> ids = commands.stream().map(PatientCommandDTO::getPatientId).collect(Collectors.toList());
+        Set<Long> found = new HashSet<>();
+        for (List<Long> chunk : BatchSupport.chunks(ids, BatchSupport.IN_CLAUSE_CHUNK_SIZE)) {
+            found.addAll(patientRepository.findExistingIds(chunk));
+        }
+        List<Long> existing = new ArrayList<>(found.size());
+        for (PatientCommandDTO command : commands) {
+            if (found.contains(command.getPatientId())) {
+                existing.add(command.getPatientId());
+            } else {
+                skipped.add(new SkippedCommand(command, "Patient med ID " + command.getPatientId() + " finns inte"));
+            }
+        }
+
+        for (List<Long> chunk : BatchSupport.chunks(existing, BatchSupport.IN_CLAUSE_CHUNK_SIZE)) {
+            journalEntryRepository.deleteSoftDeletedByPatientIds(chunk);
+            patientRepository.deleteAllByIdInBatch(chunk);
         }
+        outboxService.enqueueTombstones(patientTopic, existing.stream()
+                .map(String::valueOf)
+                .collect(Collectors.toList()));
+        evictCachedAfterCommit(existing);
+        existing.forEach(timelineCache::evictAfterCommit);
+        AfterCommit.run(() -> existing.forEach(id -> {
+            searchIndex.remove(id);
+            readModel.remove(id);
+        }));
+        return existing.size();
     }
 
-    private PatientDTO convertToDTO(Patient patient) {
+    PatientDTO convertToDTO(Patient patient) {
         return new PatientDTO(
                 patient.getId(),
                 patient.getFirstName(),
@@ -110,11 +518,12 @@ public class PatientService {
                 patient.getDateOfBirth(),
                 patient.getEmail(),
                 patient.getPhoneNumber(),
-                patient.getAddress()
+                patient.getAddress(),
+                patient.getVersion()
         );
     }
 
-    private Patient convertToEntity(PatientDTO dto) {
+    Patient convertToEntity(PatientDTO dto) {
         return new Patient(
                 null,
                 dto.getFirstName(),
@@ -123,7 +532,8 @@ public class PatientService {
                 dto.getDateOfBirth(),
                 dto.getEmail(),
                 dto.getPhoneNumber(),
-                dto.getAddress()
+                dto.getAddress(),
+                0
         );
     }
 }
\ No newline at end of file
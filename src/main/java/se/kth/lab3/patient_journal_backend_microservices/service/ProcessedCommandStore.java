@@ -0,0 +1,195 @@
+package se.kth.lab3.patient_journal_backend_microservices.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Limit;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import se.kth.lab3.patient_journal_backend_microservices.entity.ProcessedCommand;
+import se.kth.lab3.patient_journal_backend_microservices.repository.ProcessedCommandRepository;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Vilka patient-kommandon (commandId) som redan utförts, för att en omleverans från
+ * patient.commands inte ska skriva till databasen eller skicka händelser igen.
+ * <p>
+ * Sanningen är tabellen processed_commands, där id:t skrivs i samma transaktion som
+ * kommandot och primärnyckeln stoppar dubbletter. Framför den ligger ett Bloom-filter med
+ * id:n från tabellen vid start och allt som committats i den här replikan sedan: "nej" betyder
+ * säkert nytt och kostar ingen fråga, bara "kanske" slås upp i tabellen. Kommandon som en
+ * annan replika utfört efter var start missas av filtret; de stoppas av primärnyckeln.
+ * Rader äldre än retentionen rensas, och filtret byggs då om från det som är kvar.
+ */
+@Component
+@Slf4j
+public class ProcessedCommandStore {
+
+    private static final int LOAD_PAGE_SIZE = 10_000;
+
+    private final ProcessedCommandRepository repository;
+    private final TransactionTemplate transactionTemplate;
+    private final Duration retention;
+    private final long expectedCommands;
+    private final double falsePositiveRate;
+
+    private final Counter newByFilter;
+    private final Counter newByTable;
+    private final Counter duplicates;
+
+    private volatile BloomFilter filter;
+    // Tills filtret fyllts från tabellen är det inte komplett, och allt slås upp
+    private volatile boolean filterComplete;
+    // Filtret som byggs vid ombyggnad; nya id:n läggs i båda så inget tappas vid bytet
+    private volatile BloomFilter rebuilding;
+
+    public ProcessedCommandStore(
+            ProcessedCommandRepository repository,
+            PlatformTransactionManager transactionManager,
+            MeterRegistry meterRegistry,
+            @Value("${patient.commands.dedup.retention:7d}") Duration retention,
+            @Value("${patient.commands.dedup.expected-commands:1000000}") long expectedCommands,
+            @Value("${patient.commands.dedup.false-positive-rate:0.01}") double falsePositiveRate) {
+        this.repository = repository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.retention = retention;
+        this.expectedCommands = expectedCommands;
+        this.falsePositiveRate = falsePositiveRate;
+        this.filter = new BloomFilter(expectedCommands, falsePositiveRate);
+
+        this.newByFilter = dedupCounter(meterRegistry, "new_filter");
+        this.newByTable = dedupCounter(meterRegistry, "new_table");
+        this.duplicates = dedupCounter(meterRegistry, "duplicate");
+    }
+
+    private static Counter dedupCounter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("patient.commands.dedup")
+                .description("Kommando-id:n som kontrollerats: nya enligt filtret, nya efter tabelluppslag, dubbletter")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    /**
+     * De av id:na som redan utförts. Högst en IN-fråga per 1000 id:n som filtret inte kan avfärda.
+     */
+    public Set<String> findProcessed(Collection<String> commandIds) {
+        List<String> maybe = new ArrayList<>();
+        BloomFilter current = filter;
+        boolean complete = filterComplete;
+        for (String commandId : commandIds) {
+            if (complete && !current.mightContain(commandId)) {
+                newByFilter.increment();
+            } else {
+                maybe.add(commandId);
+            }
+        }
+        Set<String> processed = new HashSet<>();
+        for (List<String> chunk : BatchSupport.chunks(maybe, BatchSupport.IN_CLAUSE_CHUNK_SIZE)) {
+            processed.addAll(repository.findExistingIds(chunk));
+        }
+        duplicates.increment(processed.size());
+        newByTable.increment(maybe.size() - processed.size());
+        return processed;
+    }
+
+    public boolean isProcessed(String commandId) {
+        return !findProcessed(List.of(commandId)).isEmpty();
+    }
+
+    /**
+     * Bara tabellen, efter en krock på primärnyckeln: är id:t där utfördes kommandot av
+     * någon annan, och filtret lär sig det.
+     */
+    public boolean isRecorded(String commandId) {
+        if (!repository.existsById(commandId)) {
+            return false;
+        }
+        add(commandId);
+        duplicates.increment();
+        return true;
+    }
+
+    /**
+     * Markerar kommandona som utförda i anroparens transaktion. Flushar direkt, så att ett
+     * id som redan finns ger DataIntegrityViolationException innan kommandot utförs.
+     */
+    public void record(Collection<String> commandIds) {
+        if (commandIds.isEmpty()) {
+            return;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        List<String> ids = List.copyOf(commandIds);
+        for (List<String> chunk : BatchSupport.chunks(ids, BatchSupport.JDBC_BATCH_SIZE)) {
+            repository.saveAll(chunk.stream().map(id -> new ProcessedCommand(id, now)).toList());
+            repository.flush();
+        }
+        AfterCommit.run(() -> ids.forEach(this::add));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    void onApplicationReady() {
+        Thread thread = new Thread(this::rebuildFilter, "processed-commands-filter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Scheduled(fixedDelayString = "${patient.commands.dedup.prune-interval-ms:600000}",
+            initialDelayString = "${patient.commands.dedup.prune-interval-ms:600000}")
+    void prune() {
+        Integer removed = transactionTemplate.execute(status ->
+                repository.deleteOlderThan(LocalDateTime.now().minus(retention)));
+        if (removed != null && removed > 0) {
+            log.info("Rensade {} utförda kommando-id:n äldre än {}", removed, retention);
+            rebuildFilter();
+        }
+    }
+
+    void rebuildFilter() {
+        long start = System.nanoTime();
+        try {
+            BloomFilter next = new BloomFilter(expectedCommands, falsePositiveRate);
+            rebuilding = next;
+            long loaded = 0;
+            String after = "";
+            List<String> page;
+            do {
+                page = repository.findIdsAfter(after, Limit.of(LOAD_PAGE_SIZE));
+                page.forEach(next::put);
+                loaded += page.size();
+                after = page.isEmpty() ? after : page.get(page.size() - 1);
+            } while (page.size() == LOAD_PAGE_SIZE);
+            filter = next;
+            filterComplete = true;
+            if (loaded > expectedCommands) {
+                log.warn("{} utförda kommando-id:n, fler än patient.commands.dedup.expected-commands={}: "
+                        + "filtret ger fler tabelluppslag", loaded, expectedCommands);
+            }
+            log.info("Filter för utförda kommandon byggt: {} id:n, {} kB, {} ms", loaded,
+                    next.sizeInBytes() / 1024, (System.nanoTime() - start) / 1_000_000);
+        } catch (Exception e) {
+            log.error("Kunde inte bygga filtret för utförda kommandon: {}", e.getMessage(), e);
+        } finally {
+            rebuilding = null;
+        }
+    }
+
+    private void add(String commandId) {
+        filter.put(commandId);
+        BloomFilter next = rebuilding;
+        if (next != null) {
+            next.put(commandId);
+        }
+    }
+}
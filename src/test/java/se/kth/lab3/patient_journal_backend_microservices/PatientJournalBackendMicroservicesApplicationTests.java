@@ -6,9 +6,6 @@ import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.security.oauth2.jwt.JwtDecoder;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
-import se.kth.lab3.patient_journal_backend_microservices.dto.JournalEntryDTO;
-import se.kth.lab3.patient_journal_backend_microservices.dto.PatientCommandDTO;
-import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
 
 @SpringBootTest(properties = {
         "kafka.topic.patient=test-patient-topic",
@@ -22,13 +19,7 @@ class PatientJournalBackendMicroservicesApplicationTests {
 
     // Mocka Kafka så att appen startar utan Kafka-server
     @MockitoBean
-    private KafkaTemplate<String, PatientDTO> patientKafkaTemplate;
-
-    @MockitoBean
-    private KafkaTemplate<String, JournalEntryDTO> journalKafkaTemplate;
-
-    @MockitoBean
-    private KafkaTemplate<String, PatientCommandDTO> commandKafkaTemplate;
+    private KafkaTemplate<String, Object> kafkaTemplate;
 
     // Mocka JwtDecoder så att SecurityConfig startar utan Keycloak
     @MockitoBean
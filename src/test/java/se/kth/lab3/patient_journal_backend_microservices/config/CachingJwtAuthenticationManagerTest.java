@@ -0,0 +1,77 @@
+package se.kth.lab3.patient_journal_backend_microservices.config;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.server.resource.InvalidBearerTokenException;
+import org.springframework.security.oauth2.server.resource.authentication.BearerTokenAuthenticationToken;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class CachingJwtAuthenticationManagerTest {
+
+    private AuthenticationManager delegate;
+    private CachingJwtAuthenticationManager manager;
+
+    @BeforeEach
+    void setUp() {
+        delegate = mock(AuthenticationManager.class);
+        manager = new CachingJwtAuthenticationManager(delegate, new SimpleMeterRegistry(), 100, Duration.ofMinutes(5));
+    }
+
+    private static JwtAuthenticationToken authenticated(String token, Instant expiresAt) {
+        Jwt jwt = Jwt.withTokenValue(token)
+                .header("alg", "RS256")
+                .subject("doctor")
+                .issuedAt(expiresAt.minusSeconds(300))
+                .expiresAt(expiresAt)
+                .build();
+        return new JwtAuthenticationToken(jwt, List.of(new SimpleGrantedAuthority("ROLE_DOCTOR")));
+    }
+
+    @Test
+    void testAuthenticate_SameTokenIsVerifiedOnce() {
+        when(delegate.authenticate(any())).thenReturn(authenticated("token-a", Instant.now().plusSeconds(300)));
+
+        Authentication first = manager.authenticate(new BearerTokenAuthenticationToken("token-a"));
+        Authentication second = manager.authenticate(new BearerTokenAuthenticationToken("token-a"));
+
+        verify(delegate, times(1)).authenticate(any());
+        assertNotSame(first, second);
+        assertEquals("doctor", second.getName());
+        assertTrue(second.getAuthorities().contains(new SimpleGrantedAuthority("ROLE_DOCTOR")));
+    }
+
+    @Test
+    void testAuthenticate_ExpiredTokenIsNotServedFromCache() {
+        when(delegate.authenticate(any())).thenReturn(authenticated("token-b", Instant.now().minusSeconds(1)));
+
+        manager.authenticate(new BearerTokenAuthenticationToken("token-b"));
+        manager.authenticate(new BearerTokenAuthenticationToken("token-b"));
+
+        verify(delegate, times(2)).authenticate(any());
+    }
+
+    @Test
+    void testAuthenticate_InvalidTokenIsNotCached() {
+        when(delegate.authenticate(any())).thenThrow(new InvalidBearerTokenException("Ogiltig signatur"));
+
+        assertThrows(InvalidBearerTokenException.class,
+                () -> manager.authenticate(new BearerTokenAuthenticationToken("forged")));
+        assertThrows(InvalidBearerTokenException.class,
+                () -> manager.authenticate(new BearerTokenAuthenticationToken("forged")));
+
+        verify(delegate, times(2)).authenticate(any());
+    }
+}
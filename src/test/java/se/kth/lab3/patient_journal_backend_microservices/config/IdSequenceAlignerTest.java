@@ -0,0 +1,60 @@
+package se.kth.lab3.patient_journal_backend_microservices.config;
+
+import org.hibernate.dialect.H2Dialect;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * En databas som skapats med IDENTITY och sedan fått sekvenser från 1 av ddl-auto=update.
+ */
+class IdSequenceAlignerTest {
+
+    private final JdbcTemplate jdbc = new JdbcTemplate(new DriverManagerDataSource(
+            "jdbc:h2:mem:sequence-aligner;DB_CLOSE_DELAY=-1", "sa", ""));
+
+    private final IdSequenceAligner aligner = new IdSequenceAligner(jdbc, new H2Dialect());
+
+    private final IdSequenceAligner.IdSequence patients =
+            new IdSequenceAligner.IdSequence("aligner_patients", "aligner_patients_seq", 50);
+
+    @BeforeEach
+    void setUp() {
+        jdbc.execute("DROP TABLE IF EXISTS aligner_patients");
+        jdbc.execute("DROP SEQUENCE IF EXISTS aligner_patients_seq");
+        jdbc.execute("CREATE TABLE aligner_patients (id BIGINT PRIMARY KEY)");
+        jdbc.execute("CREATE SEQUENCE aligner_patients_seq START WITH 1 INCREMENT BY 50");
+    }
+
+    @Test
+    void movesSequenceAboveExistingIds() {
+        jdbc.update("INSERT INTO aligner_patients (id) VALUES (1), (2), (137)");
+
+        aligner.align(patients);
+
+        long next = jdbc.queryForObject("SELECT NEXT VALUE FOR aligner_patients_seq", Long.class);
+        // Pooled-optimeraren delar ut next - 49 .. next, alla över 137
+        assertTrue(next - 50 >= 137, "nextval " + next);
+    }
+
+    @Test
+    void leavesSequenceAloneWhenAlreadyAhead() {
+        jdbc.update("INSERT INTO aligner_patients (id) VALUES (3)");
+        jdbc.execute("ALTER SEQUENCE aligner_patients_seq RESTART WITH 501");
+
+        aligner.align(patients);
+
+        // align förbrukade 501, nästa block börjar på 551
+        assertEquals(551L, jdbc.queryForObject("SELECT NEXT VALUE FOR aligner_patients_seq", Long.class));
+    }
+
+    @Test
+    void emptyTableNeedsNoRestart() {
+        aligner.align(patients);
+
+        assertEquals(51L, jdbc.queryForObject("SELECT NEXT VALUE FOR aligner_patients_seq", Long.class));
+    }
+}
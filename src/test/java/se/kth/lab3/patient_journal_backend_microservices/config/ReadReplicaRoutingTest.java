@@ -0,0 +1,122 @@
+package se.kth.lab3.patient_journal_backend_microservices.config;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
+import se.kth.lab3.patient_journal_backend_microservices.service.PatientService;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Två H2-databaser i minnet, primär och replik. "Replikeringen" görs för hand med SCRIPT,
+ * så att testet styr exakt vad repliken har sett, och fördröjningen läses från en tabell
+ * på repliken.
+ */
+@SpringBootTest(properties = {
+        "spring.datasource.url=" + ReadReplicaRoutingTest.PRIMARY_URL,
+        "spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect",
+        "app.datasource.replicas.urls=" + ReadReplicaRoutingTest.REPLICA_URL,
+        "app.datasource.replicas.lag-query=SELECT seconds FROM replica_lag",
+        "app.datasource.replicas.lag-check-interval-ms=3600000",
+        "kafka.topic.patient=test-patient-topic",
+        "kafka.topic.journal=test-journal-topic",
+        "kafka.topic.patient-commands=test-patient-commands"
+})
+@ActiveProfiles("test")
+class ReadReplicaRoutingTest {
+
+    static final String PRIMARY_URL = "jdbc:h2:mem:routing-primary;DB_CLOSE_DELAY=-1;DB_CLOSE_ON_EXIT=FALSE";
+    static final String REPLICA_URL = "jdbc:h2:mem:routing-replica;DB_CLOSE_DELAY=-1;DB_CLOSE_ON_EXIT=FALSE";
+    private static final AtomicInteger PERSONAL_NUMBERS = new AtomicInteger();
+
+    @MockitoBean
+    private KafkaTemplate<String, Object> kafkaTemplate;
+
+    @MockitoBean
+    private JwtDecoder jwtDecoder;
+
+    @Autowired
+    private PatientService patientService;
+
+    @Autowired
+    private ReplicaRoutingDataSource routingDataSource;
+
+    private final JdbcTemplate primary = new JdbcTemplate(new DriverManagerDataSource(PRIMARY_URL, "sa", ""));
+    private final JdbcTemplate replica = new JdbcTemplate(new DriverManagerDataSource(REPLICA_URL, "sa", ""));
+
+    @BeforeEach
+    void setUp() {
+        replicate();
+        replica.execute("CREATE TABLE IF NOT EXISTS replica_lag (seconds INT)");
+        replica.execute("DELETE FROM replica_lag");
+        replica.execute("INSERT INTO replica_lag VALUES (0)");
+        routingDataSource.checkLag();
+    }
+
+    private void replicate() {
+        List<String> script = primary.queryForList("SCRIPT DROP", String.class);
+        script.stream()
+                .filter(statement -> !statement.startsWith("CREATE USER"))
+                .forEach(replica::execute);
+    }
+
+    private PatientDTO createPatient() {
+        String personalNumber = String.format("19900101-%04d", PERSONAL_NUMBERS.incrementAndGet());
+        return patientService.createPatient(new PatientDTO(null, "Anna", "Andersson", personalNumber,
+                LocalDate.of(1990, 1, 1), "anna@example.com", "0701234567", "Storgatan 1", null));
+    }
+
+    private boolean listed(PatientDTO patient) {
+        return patientService.getAllPatients().stream().anyMatch(p -> p.getId().equals(patient.getId()));
+    }
+
+    @Test
+    void testReadOnlyQueries_GoToReplica() {
+        PatientDTO created = createPatient();
+
+        assertFalse(listed(created), "Repliken har inte sett skrivningen än");
+        replicate();
+        assertTrue(listed(created));
+    }
+
+    @Test
+    void testLaggingReplica_ReadsFallBackToPrimary() {
+        PatientDTO created = createPatient();
+        replica.update("UPDATE replica_lag SET seconds = 30");
+        routingDataSource.checkLag();
+
+        assertTrue(listed(created));
+
+        replica.update("UPDATE replica_lag SET seconds = 0");
+        routingDataSource.checkLag();
+        assertFalse(listed(created));
+    }
+
+    @Test
+    void testUnreachableReplica_ReadsFallBackToPrimary() {
+        PatientDTO created = createPatient();
+        replica.execute("DROP TABLE replica_lag");
+        routingDataSource.checkLag();
+
+        assertTrue(listed(created));
+    }
+
+    @Test
+    void testCachedReads_ComeFromPrimary() {
+        PatientDTO created = createPatient();
+
+        assertEquals(created.getPersonalNumber(), patientService.getPatientById(created.getId()).getPersonalNumber());
+    }
+}
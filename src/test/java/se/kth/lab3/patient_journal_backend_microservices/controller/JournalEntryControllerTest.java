@@ -8,18 +8,38 @@ import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.context.annotation.Import;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import se.kth.lab3.patient_journal_backend_microservices.config.ProtobufDtoHttpMessageConverter;
 import se.kth.lab3.patient_journal_backend_microservices.config.TestSecurityConfig;
+import se.kth.lab3.patient_journal_backend_microservices.dto.DtoProtobufCodec;
+import se.kth.lab3.patient_journal_backend_microservices.dto.JournalChangesDTO;
 import se.kth.lab3.patient_journal_backend_microservices.dto.JournalEntryDTO;
 import se.kth.lab3.patient_journal_backend_microservices.service.JournalEntryService;
 
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @WebMvcTest(JournalEntryController.class)
@@ -42,7 +62,8 @@ class JournalEntryControllerTest {
     void setUp() {
         testJournalEntryDTO = new JournalEntryDTO(
                 1L, 1L, "Patient klagade på huvudvärk",
-                LocalDateTime.now(), "Migrän", "Smärtstillande medicin"
+                LocalDateTime.now(), "Migrän", "Smärtstillande medicin",
+                0L
         );
     }
 
@@ -57,4 +78,84 @@ class JournalEntryControllerTest {
                 .andExpect(status().isCreated())
                 .andExpect(jsonPath("$.note").value("Patient klagade på huvudvärk"));
     }
-}
\ No newline at end of file
+
+    @Test
+    void testExportJournalEntries_StreamsNdjson() throws Exception {
+        doAnswer(invocation -> {
+            OutputStream out = invocation.getArgument(3);
+            out.write("{\"id\":1}\n{\"id\":2}\n".getBytes(StandardCharsets.UTF_8));
+            return 2L;
+        }).when(journalEntryService).exportJournalEntries(eq(1L), isNull(), isNull(), any(OutputStream.class));
+
+        MvcResult result = mockMvc.perform(get("/api/journal-entries/export").param("patientId", "1"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.APPLICATION_NDJSON))
+                .andExpect(content().string("{\"id\":1}\n{\"id\":2}\n"));
+    }
+
+    @Test
+    void testSearchJournalEntries_ReturnsRankedHits() throws Exception {
+        when(journalEntryService.searchJournalEntries("huvudvärk", 20)).thenReturn(List.of(testJournalEntryDTO));
+
+        mockMvc.perform(get("/api/journal-entries/search").param("q", "huvudvärk"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].diagnosis").value("Migrän"));
+    }
+
+    @Test
+    void testGetJournalEntriesByPatientId_WithSince_ReturnsDelta() throws Exception {
+        when(journalEntryService.getJournalEntryChanges(1L, 4L))
+                .thenReturn(new JournalChangesDTO(List.of(testJournalEntryDTO), List.of(3L), 7L));
+
+        mockMvc.perform(get("/api/journal-entries/patient/1").param("since", "4"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.changed[0].id").value(1))
+                .andExpect(jsonPath("$.deleted[0]").value(3))
+                .andExpect(jsonPath("$.syncToken").value(7));
+    }
+
+    @Test
+    void testGetJournalEntriesByPatientId_WithSince_AcceptProtobuf() throws Exception {
+        when(journalEntryService.getJournalEntryChanges(1L, 4L))
+                .thenReturn(new JournalChangesDTO(List.of(testJournalEntryDTO), List.of(3L), 7L));
+
+        byte[] body = mockMvc.perform(get("/api/journal-entries/patient/1").param("since", "4")
+                        .accept(ProtobufDtoHttpMessageConverter.APPLICATION_PROTOBUF))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(ProtobufDtoHttpMessageConverter.APPLICATION_PROTOBUF))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        JournalChangesDTO changes = DtoProtobufCodec.decodeJournalChanges(body);
+        assertEquals("Migrän", changes.getChanged().get(0).getDiagnosis());
+        assertEquals(testJournalEntryDTO.getCreatedAt().truncatedTo(ChronoUnit.MICROS),
+                changes.getChanged().get(0).getCreatedAt());
+        assertEquals(List.of(3L), changes.getDeleted());
+        assertEquals(7L, changes.getSyncToken());
+    }
+
+    @Test
+    void testGetJournalEntriesByPatientId_EmptyTimeline_AcceptProtobuf() throws Exception {
+        when(journalEntryService.getJournalEntriesByPatientId(1L)).thenReturn(List.of());
+
+        mockMvc.perform(get("/api/journal-entries/patient/1")
+                        .accept(ProtobufDtoHttpMessageConverter.APPLICATION_PROTOBUF))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(ProtobufDtoHttpMessageConverter.APPLICATION_PROTOBUF))
+                .andExpect(content().bytes(new byte[0]));
+    }
+
+    @Test
+    void testGetJournalEntryById_IfNoneMatchCurrentVersion_NotModified() throws Exception {
+        when(journalEntryService.getJournalEntryVersion(1L)).thenReturn(0L);
+
+        mockMvc.perform(get("/api/journal-entries/1").header(HttpHeaders.IF_NONE_MATCH, "W/\"0\", \"7\""))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"0\""));
+
+        verify(journalEntryService, never()).getJournalEntryById(any());
+    }
+}
@@ -1,6 +1,9 @@
 package se.kth.lab3.patient_journal_backend_microservices.controller;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -8,18 +11,30 @@ import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.context.annotation.Import;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.web.server.ResponseStatusException;
+import se.kth.lab3.patient_journal_backend_microservices.config.ProtobufDtoHttpMessageConverter;
 import se.kth.lab3.patient_journal_backend_microservices.config.TestControllerAdvice;
 import se.kth.lab3.patient_journal_backend_microservices.config.TestSecurityConfig;
+import se.kth.lab3.patient_journal_backend_microservices.dto.CursorPageDTO;
+import se.kth.lab3.patient_journal_backend_microservices.dto.DtoProtobufCodec;
 import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
 import se.kth.lab3.patient_journal_backend_microservices.service.PatientService;
 
 import java.time.LocalDate;
 import java.util.Arrays;
+import java.util.List;
 
+import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.hasSize;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
@@ -46,7 +61,8 @@ class PatientControllerTest {
         testPatientDTO = new PatientDTO(
                 1L, "Anna", "Andersson", "19900101-1234",
                 LocalDate.of(1990, 1, 1), "anna@example.com",
-                "0701234567", "Testgatan 1"
+                "0701234567", "Testgatan 1",
+                3L
         );
     }
 
@@ -71,18 +87,96 @@ class PatientControllerTest {
                 .andExpect(status().isBadRequest());
     }
 
+    @Test
+    void testCreatePatients_Batch_Success() throws Exception {
+        when(patientService.createPatients(anyList())).thenReturn(List.of(testPatientDTO));
+
+        mockMvc.perform(post("/api/patients/batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(List.of(testPatientDTO))))
+                .andExpect(status().isCreated())
+                .andExpect(jsonPath("$", hasSize(1)));
+    }
+
+    @Test
+    void testCreatePatients_Batch_InvalidElement_ReturnsBadRequest() throws Exception {
+        mockMvc.perform(post("/api/patients/batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(List.of(testPatientDTO, new PatientDTO()))))
+                .andExpect(status().isBadRequest());
+
+        verify(patientService, never()).createPatients(anyList());
+    }
+
     @Test
     void testGetPatientById_Success() throws Exception {
-        when(patientService.getPatientById(1L)).thenReturn(testPatientDTO);
+        when(patientService.getPatientById(1L, null)).thenReturn(testPatientDTO);
 
         mockMvc.perform(get("/api/patients/1"))
                 .andExpect(status().isOk())
+                .andExpect(header().stringValues(HttpHeaders.ETAG, "\"3\""))
                 .andExpect(jsonPath("$.firstName").value("Anna"));
     }
 
+    @Test
+    void testGetPatientById_IfNoneMatchCurrentVersion_NotModifiedWithoutLoading() throws Exception {
+        when(patientService.getPatientVersion(1L, null)).thenReturn(3L);
+
+        mockMvc.perform(get("/api/patients/1").header(HttpHeaders.IF_NONE_MATCH, "\"3\""))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"3\""))
+                .andExpect(content().string(""));
+
+        verify(patientService, never()).getPatientById(anyLong(), any());
+    }
+
+    @Test
+    void testGetPatientById_IfNoneMatchCborETag_NotModifiedWithCborETag() throws Exception {
+        when(patientService.getPatientVersion(1L, null)).thenReturn(3L);
+
+        mockMvc.perform(get("/api/patients/1")
+                        .accept(MediaType.APPLICATION_CBOR)
+                        .header(HttpHeaders.IF_NONE_MATCH, "\"3-cbor\""))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"3-cbor\""))
+                .andExpect(header().stringValues(HttpHeaders.VARY, hasItem(HttpHeaders.ACCEPT)));
+
+        verify(patientService, never()).getPatientById(anyLong(), any());
+    }
+
+    @Test
+    void testGetPatientById_Json_ETagWithoutSuffix() throws Exception {
+        when(patientService.getPatientById(1L, null)).thenReturn(testPatientDTO);
+
+        mockMvc.perform(get("/api/patients/1"))
+                .andExpect(status().isOk())
+                .andExpect(header().stringValues(HttpHeaders.ETAG, "\"3\""))
+                .andExpect(header().stringValues(HttpHeaders.VARY, hasItem(HttpHeaders.ACCEPT)));
+    }
+
+    @Test
+    void testGetPatientById_IfNoneMatchOldVersion_ReturnsPatient() throws Exception {
+        when(patientService.getPatientVersion(1L, null)).thenReturn(3L);
+        when(patientService.getPatientById(1L, null)).thenReturn(testPatientDTO);
+
+        mockMvc.perform(get("/api/patients/1").header(HttpHeaders.IF_NONE_MATCH, "\"2\""))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.version").value(3));
+    }
+
+    @Test
+    void testGetPatientById_ReadModelPositionPassedOnAndReturned() throws Exception {
+        when(patientService.getPatientById(1L, "0:41")).thenReturn(testPatientDTO);
+        when(patientService.getReadModelPosition()).thenReturn("0:42,1:7");
+
+        mockMvc.perform(get("/api/patients/1").header("X-Patient-Events-Offset", "0:41"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("X-Patient-Events-Offset", "0:42,1:7"));
+    }
+
     @Test
     void testGetPatientById_NotFound() throws Exception {
-        when(patientService.getPatientById(999L))
+        when(patientService.getPatientById(999L, null))
                 .thenThrow(new RuntimeException("Patient med ID 999 finns inte"));
 
         mockMvc.perform(get("/api/patients/999"))
@@ -90,12 +184,124 @@ class PatientControllerTest {
     }
 
     @Test
-    void testGetAllPatients_Success() throws Exception {
-        when(patientService.getAllPatients()).thenReturn(Arrays.asList(testPatientDTO));
+    void testSearchPatients_ReturnsMatches() throws Exception {
+        when(patientService.searchPatients("anders", 10)).thenReturn(Arrays.asList(testPatientDTO));
+
+        mockMvc.perform(get("/api/patients/search").param("q", "anders"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].lastName").value("Andersson"));
+    }
+
+    @Test
+    void testGetPatientByPersonalNumber_Success() throws Exception {
+        when(patientService.getPatientByPersonalNumber("19900101-1234")).thenReturn(testPatientDTO);
+
+        mockMvc.perform(get("/api/patients/personal-number/19900101-1234"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.personalNumber").value("19900101-1234"));
+    }
+
+    @Test
+    void testGetAllPatients_WithoutCursorOrLimit_ReturnsFirstPage() throws Exception {
+        when(patientService.getPatientsPage(null, CursorPageDTO.DEFAULT_LIMIT, null))
+                .thenReturn(new CursorPageDTO<>(Arrays.asList(testPatientDTO), "def"));
 
         mockMvc.perform(get("/api/patients"))
                 .andExpect(status().isOk())
-                .andExpect(jsonPath("$", hasSize(1)));
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(header().string(CursorPageDTO.NEXT_CURSOR_HEADER, "def"));
+        verify(patientService, never()).getAllPatients(any());
+    }
+
+    @Test
+    void testGetAllPatients_AllTrue_ReturnsFullList() throws Exception {
+        when(patientService.getAllPatients(null)).thenReturn(Arrays.asList(testPatientDTO));
+
+        mockMvc.perform(get("/api/patients").param("all", "true"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(header().doesNotExist(CursorPageDTO.NEXT_CURSOR_HEADER));
+        verify(patientService, never()).getPatientsPage(any(), anyInt(), any());
+    }
+
+    @Test
+    void testGetAllPatients_AllTrueWithLimit_ReturnsBadRequest() throws Exception {
+        mockMvc.perform(get("/api/patients").param("all", "true").param("limit", "10"))
+                .andExpect(status().isBadRequest());
+        verify(patientService, never()).getAllPatients(any());
+    }
+
+    @Test
+    void testGetAllPatients_LimitOnly_ReturnsFirstPage() throws Exception {
+        when(patientService.getPatientsPage(null, 1, null))
+                .thenReturn(new CursorPageDTO<>(Arrays.asList(testPatientDTO), "def"));
+
+        mockMvc.perform(get("/api/patients").param("limit", "1"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(header().string(CursorPageDTO.NEXT_CURSOR_HEADER, "def"));
+    }
+
+    @Test
+    void testGetAllPatients_WithCursor_ReturnsNextCursorHeader() throws Exception {
+        when(patientService.getPatientsPage("abc", 1, null))
+                .thenReturn(new CursorPageDTO<>(Arrays.asList(testPatientDTO), "def"));
+
+        mockMvc.perform(get("/api/patients").param("after", "abc").param("limit", "1"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(header().string(CursorPageDTO.NEXT_CURSOR_HEADER, "def"));
+    }
+
+    @Test
+    void testGetAllPatients_AcceptAny_ReturnsJson() throws Exception {
+        when(patientService.getPatientsPage(null, CursorPageDTO.DEFAULT_LIMIT, null))
+                .thenReturn(new CursorPageDTO<>(Arrays.asList(testPatientDTO), null));
+
+        mockMvc.perform(get("/api/patients").accept(MediaType.ALL))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.APPLICATION_JSON));
+    }
+
+    @Test
+    void testGetAllPatients_AcceptCbor_ReturnsCbor() throws Exception {
+        when(patientService.getPatientsPage(null, CursorPageDTO.DEFAULT_LIMIT, null))
+                .thenReturn(new CursorPageDTO<>(Arrays.asList(testPatientDTO), null));
+
+        byte[] body = mockMvc.perform(get("/api/patients").accept(MediaType.APPLICATION_CBOR))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.APPLICATION_CBOR))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        JsonNode patients = new ObjectMapper(new CBORFactory()).readTree(body);
+        assertEquals("Anna", patients.get(0).get("firstName").asText());
+        assertEquals("1990-01-01", patients.get(0).get("dateOfBirth").asText());
+    }
+
+    @Test
+    void testGetAllPatients_AcceptProtobuf_ReturnsPatientList() throws Exception {
+        when(patientService.getPatientsPage(null, CursorPageDTO.DEFAULT_LIMIT, null))
+                .thenReturn(new CursorPageDTO<>(Arrays.asList(testPatientDTO), null));
+
+        byte[] body = mockMvc.perform(get("/api/patients").accept(ProtobufDtoHttpMessageConverter.APPLICATION_PROTOBUF))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(ProtobufDtoHttpMessageConverter.APPLICATION_PROTOBUF))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        assertEquals(List.of(testPatientDTO), DtoProtobufCodec.decodePatients(body));
+    }
+
+    @Test
+    void testGetPatientById_AcceptSmile_ReturnsSmileWithFormatETag() throws Exception {
+        when(patientService.getPatientById(1L, null)).thenReturn(testPatientDTO);
+
+        byte[] body = mockMvc.perform(get("/api/patients/1").accept("application/x-jackson-smile"))
+                .andExpect(status().isOk())
+                .andExpect(header().stringValues(HttpHeaders.ETAG, "\"3-smile\""))
+                .andExpect(header().stringValues(HttpHeaders.VARY, hasItem(HttpHeaders.ACCEPT)))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        assertEquals(3, new ObjectMapper(new SmileFactory()).readTree(body).get("version").asLong());
     }
 
     @Test
@@ -108,6 +314,54 @@ class PatientControllerTest {
                 .andExpect(status().isOk());
     }
 
+    @Test
+    void testUpdatePatient_IfMatch_NoContentWithNewETag() throws Exception {
+        testPatientDTO.setVersion(4L);
+        when(patientService.updatePatient(eq(1L), any(PatientDTO.class), eq(3L))).thenReturn(testPatientDTO);
+
+        mockMvc.perform(put("/api/patients/1")
+                        .header(HttpHeaders.IF_MATCH, "\"3\"")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(testPatientDTO)))
+                .andExpect(status().isNoContent())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"4\""));
+    }
+
+    @Test
+    void testUpdatePatient_IfMatchProtobufETag_UsesVersion() throws Exception {
+        testPatientDTO.setVersion(4L);
+        when(patientService.updatePatient(eq(1L), any(PatientDTO.class), eq(3L))).thenReturn(testPatientDTO);
+
+        mockMvc.perform(put("/api/patients/1")
+                        .header(HttpHeaders.IF_MATCH, "\"3-protobuf\"")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(testPatientDTO)))
+                .andExpect(status().isNoContent());
+    }
+
+    @Test
+    void testUpdatePatient_IfMatchStale_PreconditionFailed() throws Exception {
+        when(patientService.updatePatient(eq(1L), any(PatientDTO.class), eq(2L)))
+                .thenThrow(new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, "Patient med ID 1 har ändrats"));
+
+        mockMvc.perform(put("/api/patients/1")
+                        .header(HttpHeaders.IF_MATCH, "\"2\"")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(testPatientDTO)))
+                .andExpect(status().isPreconditionFailed());
+    }
+
+    @Test
+    void testUpdatePatient_IfMatchWeakETag_PreconditionFailed() throws Exception {
+        mockMvc.perform(put("/api/patients/1")
+                        .header(HttpHeaders.IF_MATCH, "W/\"3\"")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(testPatientDTO)))
+                .andExpect(status().isPreconditionFailed());
+
+        verifyNoInteractions(patientService);
+    }
+
     @Test
     void testDeletePatient_Success() throws Exception {
         doNothing().when(patientService).deletePatient(1L);
@@ -0,0 +1,57 @@
+package se.kth.lab3.patient_journal_backend_microservices.dto;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DtoProtobufCodecTest {
+
+    private final PatientDTO patient = new PatientDTO(1L, "Åsa", "Öberg", "19450508-1234",
+            LocalDate.of(1945, 5, 8), "asa@example.com", null, "Storgatan 1", 3L);
+
+    private final JournalEntryDTO entry = new JournalEntryDTO(10L, 1L, "Huvudvärk i tre dagar",
+            LocalDateTime.of(2024, 3, 1, 10, 15, 30, 123_456_000), null, "Vila", 0L);
+
+    @Test
+    void testPatient_RoundTripKeepsNullsAndDatesBefore1970() throws Exception {
+        PatientDTO decoded = DtoProtobufCodec.decodePatient(DtoProtobufCodec.encode(patient));
+
+        assertEquals(patient, decoded);
+        assertNull(decoded.getPhoneNumber());
+    }
+
+    @Test
+    void testEmptyPatient_EncodesToNoBytes() throws Exception {
+        assertEquals(0, DtoProtobufCodec.encode(new PatientDTO()).length);
+        assertEquals(new PatientDTO(), DtoProtobufCodec.decodePatient(new byte[0]));
+    }
+
+    @Test
+    void testJournalEntries_RoundTripWithMicrosecondTimestamps() throws Exception {
+        JournalEntryDTO second = new JournalEntryDTO(11L, 1L, "Uppföljning", null, "Migrän", null, 2L);
+
+        List<JournalEntryDTO> decoded = DtoProtobufCodec.decodeJournalEntries(
+                DtoProtobufCodec.encodeJournalEntries(List.of(entry, second)));
+
+        assertEquals(List.of(entry, second), decoded);
+    }
+
+    @Test
+    void testDeletedJournalEntry_RoundTripKeepsFlag() throws Exception {
+        JournalEntryDTO deleted = new JournalEntryDTO(10L, 1L, null, null, null, null, 1L, true);
+
+        assertEquals(deleted, DtoProtobufCodec.decodeJournalEntry(DtoProtobufCodec.encode(deleted)));
+        assertNull(DtoProtobufCodec.decodeJournalEntry(DtoProtobufCodec.encode(entry)).getDeleted());
+    }
+
+    @Test
+    void testJournalChanges_RoundTripWithPackedDeletedIds() throws Exception {
+        JournalChangesDTO changes = new JournalChangesDTO(List.of(entry), List.of(3L, 300L, 70_000L), 42L);
+
+        assertEquals(changes, DtoProtobufCodec.decodeJournalChanges(DtoProtobufCodec.encode(changes)));
+    }
+}
@@ -0,0 +1,119 @@
+package se.kth.lab3.patient_journal_backend_microservices.kafka;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import se.kth.lab3.patient_journal_backend_microservices.dto.JournalEntryDTO;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientCommandDTO;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
+import se.kth.lab3.patient_journal_backend_microservices.kafka.SchemaRegistry.RegisteredSchema;
+import se.kth.lab3.patient_journal_backend_microservices.kafka.SchemaRegistry.SchemaField;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DtoSerdeTest {
+
+    private static final String TOPIC = "patient.commands";
+
+    private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+    private SchemaRegistry schemaRegistry;
+    private PatientCommandDTO command;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        schemaRegistry = new SchemaRegistry(objectMapper, new ClassPathResource("kafka-schemas.json"));
+        command = new PatientCommandDTO("UPDATE", 1L, new PatientDTO(1L, "Anna", "Andersson", "19900101-1234",
+                LocalDate.of(1990, 1, 1), "anna@example.com", null, "Storgatan 1", 2L), "c-1");
+    }
+
+    private PatientCommandDTO roundTrip(boolean binary) {
+        byte[] bytes = new DtoSerializer(schemaRegistry, binary).serialize(TOPIC, new RecordHeaders(), command);
+        return new DtoDeserializer<>(schemaRegistry, objectMapper, PatientCommandDTO.class).deserialize(TOPIC, bytes);
+    }
+
+    @Test
+    void testBinary_FramedWithSchemaIdAndSmallerThanJson() {
+        byte[] binary = new DtoSerializer(schemaRegistry, true).serialize(TOPIC, command);
+        byte[] json = new DtoSerializer(schemaRegistry, false).serialize(TOPIC, command);
+
+        assertEquals(0, binary[0]);
+        assertEquals(4, binary[4]);
+        assertTrue(binary.length < json.length / 2);
+        assertEquals(command, roundTrip(true));
+    }
+
+    @Test
+    void testBinary_OlderSchemaVersionWithoutCommandIdStillRead() {
+        // PatientCommand v1 (id 3) hade inget command_id; samma kodning utan fältet
+        byte[] binary = new DtoSerializer(schemaRegistry, true).serialize(TOPIC,
+                new PatientCommandDTO("DELETE", 7L, null));
+        binary[4] = 3;
+
+        PatientCommandDTO read = new DtoDeserializer<>(schemaRegistry, objectMapper, PatientCommandDTO.class)
+                .deserialize(TOPIC, binary);
+        assertEquals(7L, read.getPatientId());
+        assertNull(read.getCommandId());
+    }
+
+    @Test
+    void testJson_StillReadDuringMigration() {
+        assertEquals(command, roundTrip(false));
+    }
+
+    @Test
+    void testTombstone_StaysNull() {
+        assertNull(new DtoSerializer(schemaRegistry, true).serialize("patient.events", null));
+        assertNull(new DtoDeserializer<>(schemaRegistry, objectMapper, PatientDTO.class).deserialize("patient.events", null));
+    }
+
+    @Test
+    void testRawBytes_PassedThroughUnchanged() {
+        // Oläsbara poster till DLT:n och uppspelningar därifrån skickas som de lästes
+        byte[] raw = {1, 2, 3};
+        assertSame(raw, new DtoSerializer(schemaRegistry, true).serialize(TOPIC, raw));
+        assertSame(raw, new DtoSerializer(schemaRegistry, false).serialize(TOPIC, raw));
+    }
+
+    @Test
+    void testBinary_UnknownSchemaIdOrOtherSubject_Rejected() {
+        byte[] entry = new DtoSerializer(schemaRegistry, true).serialize("journal.events",
+                new JournalEntryDTO(1L, 1L, "Anteckning", LocalDateTime.of(2024, 3, 1, 10, 15), null, null, 0L));
+        DtoDeserializer<PatientDTO> patients = new DtoDeserializer<>(schemaRegistry, objectMapper, PatientDTO.class);
+
+        assertThrows(SerializationException.class, () -> patients.deserialize("journal.events", entry));
+        entry[4] = 99;
+        assertThrows(SerializationException.class, () -> patients.deserialize("journal.events", entry));
+    }
+
+    @Test
+    void testRegistry_FieldNumberMayNotChangeTypeAcrossVersions() {
+        List<RegisteredSchema> schemas = new ArrayList<>(List.of(
+                new RegisteredSchema(1, "Test", 1, List.of(new SchemaField(1, "id", "int64"))),
+                new RegisteredSchema(2, "Test", 2, List.of(new SchemaField(1, "id", "int64"),
+                        new SchemaField(2, "note", "string")))));
+        SchemaRegistry.validate(schemas);
+
+        // Fält 2 togs bort i v3 och återanvänds i v4 med en annan typ
+        schemas.add(new RegisteredSchema(3, "Test", 3, List.of(new SchemaField(1, "id", "int64"))));
+        schemas.add(new RegisteredSchema(4, "Test", 4, List.of(new SchemaField(1, "id", "int64"),
+                new SchemaField(2, "note", "int64"))));
+        assertThrows(IllegalStateException.class, () -> SchemaRegistry.validate(schemas));
+    }
+
+    @Test
+    void testRegistry_FieldMayNotMoveToNewNumber() {
+        List<RegisteredSchema> schemas = List.of(
+                new RegisteredSchema(1, "Test", 1, List.of(new SchemaField(1, "id", "int64"))),
+                new RegisteredSchema(2, "Test", 2, List.of(new SchemaField(2, "id", "int64"))));
+
+        assertThrows(IllegalStateException.class, () -> SchemaRegistry.validate(schemas));
+    }
+}
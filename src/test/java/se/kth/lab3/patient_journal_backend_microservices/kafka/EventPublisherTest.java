@@ -0,0 +1,78 @@
+package se.kth.lab3.patient_journal_backend_microservices.kafka;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class EventPublisherTest {
+
+    private KafkaTemplate<String, Object> kafkaTemplate;
+    private SimpleMeterRegistry meterRegistry;
+    private EventPublisher publisher;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        kafkaTemplate = mock(KafkaTemplate.class);
+        meterRegistry = new SimpleMeterRegistry();
+        publisher = new EventPublisher(kafkaTemplate, meterRegistry, 2);
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        publisher.shutdown();
+    }
+
+    @Test
+    void testPublish_CompletesWhenKafkaAcknowledges() throws Exception {
+        SendResult<String, Object> sendResult = new SendResult<>(null, null);
+        when(kafkaTemplate.send("patient.events", "1", "payload"))
+                .thenReturn(CompletableFuture.completedFuture(sendResult));
+
+        assertSame(sendResult, publisher.publish("patient.events", "1", "payload").get(5, TimeUnit.SECONDS));
+        assertEquals(1, meterRegistry.get("kafka.publish").tag("result", "success").timer().count());
+    }
+
+    @Test
+    void testPublish_RejectsWhenTooManyAwaitAcknowledgement() throws Exception {
+        CompletableFuture<SendResult<String, Object>> pending = new CompletableFuture<>();
+        when(kafkaTemplate.send(anyString(), anyString(), any())).thenReturn(pending);
+
+        CompletableFuture<SendResult<String, Object>> first = publisher.publish("patient.events", "1", "a");
+        publisher.publish("patient.events", "2", "b");
+        assertThrows(RejectedExecutionException.class, () -> publisher.publish("patient.events", "3", "c"));
+        assertEquals(1, meterRegistry.get("kafka.publish.rejected").counter().count());
+
+        // Kvittot släpper platserna igen
+        pending.complete(new SendResult<>(null, null));
+        first.get(5, TimeUnit.SECONDS);
+        assertDoesNotThrow(() -> publisher.publish("patient.events", "3", "c"));
+    }
+
+    @Test
+    void testPublish_FailedSendCompletesExceptionallyAndReleasesPermit() {
+        when(kafkaTemplate.send(anyString(), anyString(), any()))
+                .thenThrow(new TimeoutException("metadata saknas"));
+
+        for (int i = 0; i < 3; i++) {
+            CompletableFuture<SendResult<String, Object>> result = publisher.publish("patient.events", "1", "a");
+            ExecutionException error = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(TimeoutException.class, error.getCause());
+        }
+        assertEquals(3, meterRegistry.get("kafka.publish").tag("result", "failure").timer().count());
+    }
+}
@@ -0,0 +1,106 @@
+package se.kth.lab3.patient_journal_backend_microservices.kafka;
+
+import org.junit.jupiter.api.Test;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientCommandDTO;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
+
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PatientCommandCoalescerTest {
+
+    private PatientDTO patient(String lastName, String personalNumber) {
+        return new PatientDTO(null, "Anna", lastName, personalNumber,
+                LocalDate.of(1990, 1, 1), "anna@example.com", "0701234567", "Testgatan 1", null);
+    }
+
+    @Test
+    void testUpdateUpdateDelete_BecomesDelete() {
+        List<PatientCommandDTO> result = PatientCommandCoalescer.coalesce(List.of(
+                new PatientCommandDTO("UPDATE", 1L, patient("A", "19900101-1234")),
+                new PatientCommandDTO("UPDATE", 1L, patient("B", "19900101-1234")),
+                new PatientCommandDTO("DELETE", 1L, null)
+        ));
+
+        assertEquals(1, result.size());
+        assertEquals("DELETE", result.get(0).getCommandType());
+    }
+
+    @Test
+    void testUpdateUpdate_KeepsLastUpdate() {
+        List<PatientCommandDTO> result = PatientCommandCoalescer.coalesce(List.of(
+                new PatientCommandDTO("UPDATE", 1L, patient("A", "19900101-1234")),
+                new PatientCommandDTO("UPDATE", 1L, patient("B", "19900101-1234"))
+        ));
+
+        assertEquals(1, result.size());
+        assertEquals("B", result.get(0).getPatient().getLastName());
+    }
+
+    @Test
+    void testUpdateAfterDelete_IsDropped() {
+        List<PatientCommandDTO> result = PatientCommandCoalescer.coalesce(List.of(
+                new PatientCommandDTO("DELETE", 1L, null),
+                new PatientCommandDTO("UPDATE", 1L, patient("A", "19900101-1234"))
+        ));
+
+        assertEquals(1, result.size());
+        assertEquals("DELETE", result.get(0).getCommandType());
+    }
+
+    @Test
+    void testCommandsForDifferentPatients_AreKept() {
+        List<PatientCommandDTO> result = PatientCommandCoalescer.coalesce(List.of(
+                new PatientCommandDTO("CREATE", null, patient("A", "19900101-1234")),
+                new PatientCommandDTO("CREATE", null, patient("A", "19900101-1234")),
+                new PatientCommandDTO("UPDATE", 1L, patient("A", "19850505-5678")),
+                new PatientCommandDTO("DELETE", 2L, null),
+                new PatientCommandDTO("UNKNOWN", 3L, null)
+        ));
+
+        assertEquals(3, result.size());
+        assertEquals("CREATE", result.get(0).getCommandType());
+        assertEquals(1L, result.get(1).getPatientId());
+        assertEquals(2L, result.get(2).getPatientId());
+    }
+
+    @Test
+    void testDeleteThenCreate_KeepsOrderAcrossTypes() {
+        List<PatientCommandDTO> result = PatientCommandCoalescer.coalesce(List.of(
+                new PatientCommandDTO("CREATE", null, patient("A", "19850505-5678")),
+                new PatientCommandDTO("DELETE", 1L, null),
+                new PatientCommandDTO("CREATE", null, patient("A", "19900101-1234"))
+        ));
+
+        assertEquals(List.of("CREATE", "DELETE", "CREATE"),
+                result.stream().map(PatientCommandDTO::getCommandType).toList());
+        assertEquals("19900101-1234", result.get(2).getPatient().getPersonalNumber());
+    }
+
+    @Test
+    void testCreateAfterDelete_IsKeptForSamePersonalNumber() {
+        List<PatientCommandDTO> result = PatientCommandCoalescer.coalesce(List.of(
+                new PatientCommandDTO("CREATE", null, patient("A", "19900101-1234")),
+                new PatientCommandDTO("DELETE", 1L, null),
+                new PatientCommandDTO("CREATE", null, patient("B", "19900101-1234"))
+        ));
+
+        assertEquals(3, result.size());
+        assertEquals("B", result.get(2).getPatient().getLastName());
+    }
+
+    @Test
+    void testUpdateThenDelete_DeleteKeepsItsPosition() {
+        List<PatientCommandDTO> result = PatientCommandCoalescer.coalesce(List.of(
+                new PatientCommandDTO("UPDATE", 1L, patient("A", "19900101-1234")),
+                new PatientCommandDTO("CREATE", null, patient("A", "19850505-5678")),
+                new PatientCommandDTO("DELETE", 1L, null),
+                new PatientCommandDTO("DELETE", 1L, null)
+        ));
+
+        assertEquals(List.of("CREATE", "DELETE"),
+                result.stream().map(PatientCommandDTO::getCommandType).toList());
+    }
+}
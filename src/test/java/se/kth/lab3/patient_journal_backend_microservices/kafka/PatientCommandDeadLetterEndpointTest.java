@@ -0,0 +1,45 @@
+package se.kth.lab3.patient_journal_backend_microservices.kafka;
+
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.kafka.support.serializer.SerializationUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.StreamSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PatientCommandDeadLetterEndpointTest {
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testReplayHeaders_KeepsOriginalHeadersOnly() {
+        Headers headers = new RecordHeaders();
+        headers.add("traceparent", bytes("00-abc-def-01"));
+        headers.add(KafkaHeaders.DLT_ORIGINAL_TOPIC, bytes("patient.commands"));
+        headers.add(KafkaHeaders.DLT_EXCEPTION_MESSAGE, bytes("timeout"));
+        headers.add("retry_topic-attempts", new byte[]{0, 0, 0, 4});
+        headers.add(SerializationUtils.VALUE_DESERIALIZER_EXCEPTION_HEADER, new byte[]{1});
+
+        Headers replay = PatientCommandDeadLetterEndpoint.replayHeaders(headers);
+
+        List<String> names = StreamSupport.stream(replay.spliterator(), false).map(Header::key).toList();
+        assertEquals(List.of("traceparent"), names);
+    }
+
+    @Test
+    void testIsTransient_FollowsCauses() {
+        assertTrue(PatientCommandDeadLetters.isTransient(
+                new IllegalStateException("wrapper", new QueryTimeoutException("timeout"))));
+        assertFalse(PatientCommandDeadLetters.isTransient(
+                new RuntimeException("Patient med ID 1 hittades inte")));
+    }
+}
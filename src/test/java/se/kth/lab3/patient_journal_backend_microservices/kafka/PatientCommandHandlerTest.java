@@ -0,0 +1,87 @@
+package se.kth.lab3.patient_journal_backend_microservices.kafka;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientCommandDTO;
+import se.kth.lab3.patient_journal_backend_microservices.service.PatientService;
+import se.kth.lab3.patient_journal_backend_microservices.service.ProcessedCommandStore;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+class PatientCommandHandlerTest {
+
+    private PatientService patientService;
+    private ProcessedCommandStore processedCommands;
+    private SimpleMeterRegistry meterRegistry;
+    private PatientCommandHandler handler;
+
+    @BeforeEach
+    void setUp() {
+        patientService = mock(PatientService.class);
+        processedCommands = mock(ProcessedCommandStore.class);
+        meterRegistry = new SimpleMeterRegistry();
+        handler = new PatientCommandHandler(patientService, meterRegistry, processedCommands,
+                new TransactionTemplate(mock(PlatformTransactionManager.class)));
+    }
+
+    private double count(String result) {
+        return meterRegistry.timer("patient.commands.processing", "type", "DELETE", "result", result).count();
+    }
+
+    @Test
+    void testApply_NewCommand_RecordedWithChange() {
+        handler.apply(new PatientCommandDTO("DELETE", 1L, null, "c-1"));
+
+        verify(processedCommands).record(List.of("c-1"));
+        verify(patientService).deletePatient(1L);
+        assertEquals(1, count("success"));
+    }
+
+    @Test
+    void testApply_Redelivered_SkippedWithoutWrites() {
+        when(processedCommands.isProcessed("c-1")).thenReturn(true);
+
+        handler.apply(new PatientCommandDTO("DELETE", 1L, null, "c-1"));
+
+        verify(processedCommands, never()).record(any());
+        verify(patientService, never()).deletePatient(anyLong());
+        assertEquals(1, count("duplicate"));
+    }
+
+    @Test
+    void testApply_ConcurrentlyRecordedElsewhere_TreatedAsDuplicate() {
+        doThrow(new DataIntegrityViolationException("PRIMARY KEY")).when(processedCommands).record(List.of("c-1"));
+        when(processedCommands.isRecorded("c-1")).thenReturn(true);
+
+        handler.apply(new PatientCommandDTO("DELETE", 1L, null, "c-1"));
+
+        verify(patientService, never()).deletePatient(anyLong());
+        assertEquals(1, count("duplicate"));
+    }
+
+    @Test
+    void testApply_OtherIntegrityError_Rethrown() {
+        doThrow(new DataIntegrityViolationException("FK")).when(patientService).deletePatient(1L);
+
+        assertThrows(DataIntegrityViolationException.class,
+                () -> handler.apply(new PatientCommandDTO("DELETE", 1L, null, "c-1")));
+        assertEquals(1, count("failure"));
+    }
+
+    @Test
+    void testApply_WithoutCommandId_NotDeduplicated() {
+        handler.apply(new PatientCommandDTO("DELETE", 1L, null));
+
+        verifyNoInteractions(processedCommands);
+        verify(patientService).deletePatient(1L);
+    }
+}
@@ -0,0 +1,200 @@
+package se.kth.lab3.patient_journal_backend_microservices.kafka;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.kafka.KafkaException;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientCommandDTO;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class PatientCommandParallelConsumerTest {
+
+    private static final TopicPartition PARTITION = new TopicPartition("patient.commands", 0);
+
+    private PatientCommandHandler commandHandler;
+    private PatientCommandDeadLetters deadLetters;
+    private Consumer<?, ?> kafkaConsumer;
+    private PatientCommandParallelConsumer consumer;
+
+    @BeforeEach
+    void setUp() {
+        commandHandler = mock(PatientCommandHandler.class);
+        deadLetters = mock(PatientCommandDeadLetters.class);
+        kafkaConsumer = mock(Consumer.class);
+        consumer = new PatientCommandParallelConsumer(commandHandler, deadLetters, 4, 1000, 1000, false);
+    }
+
+    @AfterEach
+    void tearDown() {
+        consumer.shutdown();
+    }
+
+    private ConsumerRecord<String, PatientCommandDTO> record(long offset, long patientId) {
+        return new ConsumerRecord<>("patient.commands", 0, offset, String.valueOf(patientId),
+                new PatientCommandDTO("DELETE", patientId, null));
+    }
+
+    private void handleAndWait(List<ConsumerRecord<String, PatientCommandDTO>> records) throws InterruptedException {
+        consumer.handlePatientCommands(records, kafkaConsumer);
+        assertTrue(consumer.awaitIdle(Duration.ofSeconds(5)));
+        consumer.commitCompleted(kafkaConsumer);
+    }
+
+    @Test
+    void testHandlePatientCommands_KeepsOrderPerKey() throws Exception {
+        List<String> applied = Collections.synchronizedList(new ArrayList<>());
+        doAnswer(invocation -> {
+            PatientCommandDTO command = invocation.getArgument(0);
+            applied.add(command.getPatientId() + ":" + command.getPatient().getLastName());
+            return null;
+        }).when(commandHandler).apply(any());
+
+        List<ConsumerRecord<String, PatientCommandDTO>> records = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            PatientDTO patient = new PatientDTO();
+            patient.setLastName(String.valueOf(i));
+            long patientId = i % 3;
+            records.add(new ConsumerRecord<>("patient.commands", 0, i, String.valueOf(patientId),
+                    new PatientCommandDTO("UPDATE", patientId, patient)));
+        }
+
+        handleAndWait(records);
+
+        assertEquals(30, applied.size());
+        for (long patientId = 0; patientId < 3; patientId++) {
+            String prefix = patientId + ":";
+            List<Integer> offsets = applied.stream()
+                    .filter(entry -> entry.startsWith(prefix))
+                    .map(entry -> Integer.parseInt(entry.substring(prefix.length())))
+                    .toList();
+            assertEquals(offsets.stream().sorted().toList(), offsets);
+        }
+        verify(kafkaConsumer).commitSync(Map.of(PARTITION, new OffsetAndMetadata(30)));
+    }
+
+    @Test
+    void testHandlePatientCommands_SlowKey_OthersFinishAndCommitStopsBeforeIt() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch othersDone = new CountDownLatch(3);
+        doAnswer(invocation -> {
+            PatientCommandDTO command = invocation.getArgument(0);
+            if (command.getPatientId() == 1L) {
+                release.await(5, TimeUnit.SECONDS);
+            } else {
+                othersDone.countDown();
+            }
+            return null;
+        }).when(commandHandler).apply(any());
+        List<ConsumerRecord<String, PatientCommandDTO>> records = List.of(
+                record(0, 2), record(1, 1), record(2, 2), record(3, 3));
+
+        // Lyssnaren väntar inte på patient 1
+        consumer.handlePatientCommands(records, kafkaConsumer);
+        assertTrue(othersDone.await(5, TimeUnit.SECONDS));
+
+        // Offset 0 är klar, 1 körs fortfarande: commit stannar på 1 trots att 2 och 3 är klara
+        consumer.commitCompleted(kafkaConsumer);
+        verify(kafkaConsumer).commitSync(Map.of(PARTITION, new OffsetAndMetadata(1)));
+
+        release.countDown();
+        assertTrue(consumer.awaitIdle(Duration.ofSeconds(5)));
+        consumer.commitCompleted(kafkaConsumer);
+        verify(kafkaConsumer).commitSync(Map.of(PARTITION, new OffsetAndMetadata(4)));
+    }
+
+    @Test
+    void testHandlePatientCommands_TransientFailure_SendsRestOfKeyToRetry() throws Exception {
+        List<ConsumerRecord<String, PatientCommandDTO>> records = List.of(
+                record(0, 1), record(1, 2), record(2, 1), record(3, 2), record(4, 1));
+        doAnswer(invocation -> {
+            PatientCommandDTO command = invocation.getArgument(0);
+            if (command.getPatientId() == 2L) {
+                throw new QueryTimeoutException("timeout");
+            }
+            return null;
+        }).when(commandHandler).apply(any());
+
+        handleAndWait(records);
+
+        // Nyckel 2 går till omförsök i ordning, nyckel 1 körs klart
+        verify(commandHandler, times(3)).apply(argThat(command -> command.getPatientId() == 1L));
+        var inOrder = inOrder(deadLetters);
+        inOrder.verify(deadLetters).retryLater(eq(records.get(1)), any(QueryTimeoutException.class));
+        inOrder.verify(deadLetters).retryLater(eq(records.get(3)), any());
+        verify(deadLetters, never()).deadLetter(any(), any());
+        verify(kafkaConsumer).commitSync(Map.of(PARTITION, new OffsetAndMetadata(5)));
+    }
+
+    @Test
+    void testHandlePatientCommands_BusinessFailure_GoesToDeadLetterTopic() throws Exception {
+        doThrow(new RuntimeException("Patient med ID 1 hittades inte"))
+                .when(commandHandler).apply(any());
+        List<ConsumerRecord<String, PatientCommandDTO>> records = List.of(record(0, 1), record(1, 1));
+
+        handleAndWait(records);
+
+        verify(commandHandler, times(2)).apply(any());
+        verify(deadLetters).deadLetter(eq(records.get(0)), any(RuntimeException.class));
+        verify(deadLetters).deadLetter(eq(records.get(1)), any(RuntimeException.class));
+        verify(deadLetters, never()).retryLater(any(), any());
+    }
+
+    @Test
+    void testHandlePatientCommands_ForwardFails_KeyWaitsAndRetriesWhileOthersContinue() throws Exception {
+        List<ConsumerRecord<String, PatientCommandDTO>> records = List.of(
+                record(0, 1), record(1, 2), record(2, 1), record(3, 2), record(4, 1));
+        doAnswer(invocation -> {
+            PatientCommandDTO command = invocation.getArgument(0);
+            if (command.getPatientId() == 2L) {
+                throw new RuntimeException("Patient med ID 2 finns inte");
+            }
+            return null;
+        }).when(commandHandler).apply(any());
+        // Brokern är nere för första försöket, sedan går det
+        doThrow(new KafkaException("broker nere")).doNothing().when(deadLetters).deadLetter(any(), any());
+
+        handleAndWait(records);
+
+        // Nyckel 1 körs klart direkt; nyckel 2 försöker igen och fortsätter sedan i ordning
+        verify(commandHandler, times(3)).apply(argThat(command -> command.getPatientId() == 1L));
+        verify(commandHandler, times(2)).apply(argThat(command -> command.getPatientId() == 2L));
+        verify(deadLetters, times(2)).deadLetter(eq(records.get(1)), any(RuntimeException.class));
+        verify(deadLetters).deadLetter(eq(records.get(3)), any(RuntimeException.class));
+        verify(kafkaConsumer).commitSync(Map.of(PARTITION, new OffsetAndMetadata(5)));
+    }
+
+    @Test
+    void testRevoke_WaitsForInFlightAndCommits() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            started.countDown();
+            Thread.sleep(200);
+            return null;
+        }).when(commandHandler).apply(any());
+
+        consumer.handlePatientCommands(List.of(record(0, 1)), kafkaConsumer);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        consumer.onPartitionsRevokedBeforeCommit(kafkaConsumer, List.of(PARTITION));
+
+        verify(kafkaConsumer).commitSync(Map.of(PARTITION, new OffsetAndMetadata(1)));
+    }
+}
@@ -0,0 +1,247 @@
+package se.kth.lab3.patient_journal_backend_microservices.load;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.context.annotation.Import;
+import org.springframework.kafka.test.context.EmbeddedKafka;
+import org.springframework.security.oauth2.jwt.JwtEncoder;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import se.kth.lab3.patient_journal_backend_microservices.dto.JournalEntryDTO;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
+
+import java.io.File;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Reproducerbart lasttest mot hela appen i processen: H2, inbäddad Kafka-broker och lokalt
+ * signerade JWT:er, så att det går att köra utan molnmiljön. Körs inte i vanliga bygget:
+ * <pre>
+ * ./mvnw -Pload test -Dload.rate=400 -Dload.duration-seconds=60 -Dload.concurrency=64
+ * </pre>
+ * Blandningen av läsningar och skrivningar mot PatientController, JournalEntryController och
+ * PatientKafkaController körs med öppen modell (se {@link OpenLoopLoad}). Genomströmning och
+ * p50/p99/p99.9 per endpoint loggas och skrivs till target/load-test-result.json.
+ */
+@Slf4j
+@Tag("load")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "spring.datasource.url=jdbc:h2:mem:loadtest;DB_CLOSE_DELAY=-1;DB_CLOSE_ON_EXIT=FALSE",
+        "spring.datasource.driver-class-name=org.h2.Driver",
+        "spring.datasource.username=sa",
+        "spring.datasource.password=",
+        "spring.datasource.hikari.maximum-pool-size=20",
+        "spring.jpa.hibernate.ddl-auto=create-drop",
+        "spring.jpa.show-sql=false",
+        "spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect",
+        "spring.security.oauth2.resourceserver.jwt.issuer-uri=" + LoadTestJwtConfig.ISSUER,
+        "spring.security.oauth2.resourceserver.jwt.jwk-set-uri=",
+        "spring.kafka.consumer.group-id=load-test",
+        "logging.level.org.apache.kafka=WARN"
+})
+@EmbeddedKafka(partitions = 3,
+        topics = {"patient.commands", "patient.events", "journal.events"},
+        bootstrapServersProperty = "spring.kafka.bootstrap-servers")
+@Import(LoadTestJwtConfig.class)
+class ApiLoadTest {
+
+    private static final List<String> FIRST_NAMES = List.of(
+            "Anna", "Erik", "Maria", "Lars", "Karin", "Anders", "Sara", "Johan", "Eva", "Per");
+    private static final List<String> LAST_NAMES = List.of(
+            "Andersson", "Johansson", "Karlsson", "Nilsson", "Eriksson", "Larsson", "Olsson", "Persson");
+    private static final List<String> NOTES = List.of(
+            "Patienten har haft huvudvärk i tre dagar",
+            "Uppföljning av blodtryck, oförändrat",
+            "Feber och hosta sedan en vecka",
+            "Ont i knät efter fall, röntgen beställd");
+
+    private final double rate = Double.parseDouble(System.getProperty("load.rate", "200"));
+    private final Duration duration = Duration.ofSeconds(Long.getLong("load.duration-seconds", 30));
+    private final Duration warmup = Duration.ofSeconds(Long.getLong("load.warmup-seconds", 10));
+    private final int concurrency = Integer.getInteger("load.concurrency", 64);
+    private final int patientCount = Integer.getInteger("load.patients", 1000);
+
+    @LocalServerPort
+    private int port;
+
+    @DynamicPropertySource
+    static void jwks(DynamicPropertyRegistry registry) {
+        registry.add("app.security.jwks-location", LoadTestJwtConfig::jwksLocation);
+    }
+
+    @Autowired
+    private JwtEncoder jwtEncoder;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+    private final AtomicLong personalNumbers = new AtomicLong();
+    private String token;
+    private List<PatientDTO> patients;
+
+    @Test
+    void mixedWorkload() throws Exception {
+        token = LoadTestJwtConfig.issueToken(jwtEncoder, "load-doctor", List.of("DOCTOR"));
+        seed();
+
+        OpenLoopLoad load = new OpenLoopLoad(client, operations(), concurrency);
+        log.info("Uppvarmning {} s i {} anrop/s", warmup.toSeconds(), rate);
+        load.run(rate, warmup);
+        log.info("Mätning {} s i {} anrop/s med {} samtidiga", duration.toSeconds(), rate, concurrency);
+        List<OpenLoopLoad.Result> results = load.run(rate, duration);
+
+        report(results);
+        long total = results.stream().mapToLong(OpenLoopLoad.Result::count).sum();
+        long errors = results.stream().mapToLong(OpenLoopLoad.Result::errors).sum();
+        assertTrue(total > 0, "Inga anrop kördes");
+        assertTrue(errors <= total / 100, "För många fel: " + errors + " av " + total);
+    }
+
+    private List<OpenLoopLoad.Operation> operations() {
+        return List.of(
+                new OpenLoopLoad.Operation("GET /api/patients/{id}", 25,
+                        () -> get("/api/patients/" + randomPatient().getId())),
+                new OpenLoopLoad.Operation("GET /api/patients", 5,
+                        () -> get("/api/patients?limit=50")),
+                new OpenLoopLoad.Operation("GET /api/patients/search", 10,
+                        () -> get("/api/patients/search?q=" + randomPatient().getLastName().substring(0, 4).toLowerCase())),
+                new OpenLoopLoad.Operation("POST /api/patients", 5,
+                        () -> send("POST", "/api/patients", newPatient())),
+                new OpenLoopLoad.Operation("PUT /api/patients/{id}", 5,
+                        () -> {
+                            PatientDTO patient = changedPhone(randomPatient());
+                            return send("PUT", "/api/patients/" + patient.getId(), patient);
+                        }),
+                new OpenLoopLoad.Operation("GET /api/journal-entries/patient/{id}", 20,
+                        () -> get("/api/journal-entries/patient/" + randomPatient().getId())),
+                new OpenLoopLoad.Operation("POST /api/journal-entries", 10,
+                        () -> send("POST", "/api/journal-entries", newJournalEntry(randomPatient().getId()))),
+                new OpenLoopLoad.Operation("GET /api/journal-entries/search", 5,
+                        () -> get("/api/journal-entries/search?q=huvudvark")),
+                new OpenLoopLoad.Operation("POST /api/kafka/patients", 5,
+                        () -> send("POST", "/api/kafka/patients", newPatient())),
+                new OpenLoopLoad.Operation("PUT /api/kafka/patients/{id}", 10,
+                        () -> {
+                            PatientDTO patient = changedPhone(randomPatient());
+                            return send("PUT", "/api/kafka/patients/" + patient.getId(), patient);
+                        }));
+    }
+
+    /**
+     * Patienter med några anteckningar var, via bulk-endpointerna.
+     */
+    private void seed() throws Exception {
+        List<PatientDTO> toCreate = new ArrayList<>();
+        for (int i = 0; i < patientCount; i++) {
+            toCreate.add(newPatient());
+        }
+        HttpResponse<String> created = client.send(send("POST", "/api/patients/batch", toCreate),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(201, created.statusCode(), created.body());
+        patients = Arrays.asList(objectMapper.readValue(created.body(), PatientDTO[].class));
+
+        List<JournalEntryDTO> entries = new ArrayList<>();
+        for (PatientDTO patient : patients) {
+            for (int i = 0; i < 3; i++) {
+                entries.add(newJournalEntry(patient.getId()));
+            }
+        }
+        HttpResponse<String> journal = client.send(send("POST", "/api/journal-entries/batch", entries),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(201, journal.statusCode(), journal.body());
+    }
+
+    private PatientDTO randomPatient() {
+        return patients.get(ThreadLocalRandom.current().nextInt(patients.size()));
+    }
+
+    private PatientDTO newPatient() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long serial = personalNumbers.incrementAndGet();
+        String personalNumber = String.format("19%06d-%04d", serial / 10_000, serial % 10_000);
+        return new PatientDTO(null,
+                FIRST_NAMES.get(random.nextInt(FIRST_NAMES.size())),
+                LAST_NAMES.get(random.nextInt(LAST_NAMES.size())),
+                personalNumber,
+                LocalDate.of(1940 + random.nextInt(80), 1 + random.nextInt(12), 1 + random.nextInt(28)),
+                "patient" + serial + "@example.com",
+                "070" + serial,
+                "Storgatan " + random.nextInt(100) + ", Stockholm", null);
+    }
+
+    private static PatientDTO changedPhone(PatientDTO patient) {
+        return new PatientDTO(patient.getId(), patient.getFirstName(), patient.getLastName(),
+                patient.getPersonalNumber(), patient.getDateOfBirth(), patient.getEmail(),
+                "070" + ThreadLocalRandom.current().nextInt(10_000_000), patient.getAddress(), null);
+    }
+
+    private static JournalEntryDTO newJournalEntry(Long patientId) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return new JournalEntryDTO(null, patientId, NOTES.get(random.nextInt(NOTES.size())), null,
+                "Diagnos " + random.nextInt(50), "Behandling " + random.nextInt(50), null);
+    }
+
+    private HttpRequest get(String path) {
+        return request(path).GET().build();
+    }
+
+    private HttpRequest send(String method, String path, Object body) {
+        try {
+            return request(path)
+                    .header("Content-Type", "application/json")
+                    .method(method, HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(body)))
+                    .build();
+        } catch (Exception e) {
+            throw new IllegalStateException("Kunde inte serialisera " + body, e);
+        }
+    }
+
+    private HttpRequest.Builder request(String path) {
+        return HttpRequest.newBuilder(URI.create("http://localhost:" + port + path))
+                .timeout(Duration.ofSeconds(30))
+                .header("Authorization", "Bearer " + token);
+    }
+
+    private void report(List<OpenLoopLoad.Result> results) throws Exception {
+        StringBuilder table = new StringBuilder(String.format("%n%-40s %8s %6s %9s %9s %9s %9s %9s%n",
+                "endpoint", "anrop", "fel", "anrop/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+        for (OpenLoopLoad.Result result : results) {
+            table.append(String.format("%-40s %8d %6d %9.1f %9.2f %9.2f %9.2f %9.2f%n",
+                    result.name(), result.count(), result.errors(), result.throughput(),
+                    result.p50(), result.p99(), result.p999(), result.max()));
+        }
+        log.info("Lasttest {} anrop/s, {} s, {} samtidiga:{}", rate, duration.toSeconds(), concurrency, table);
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("rate", rate);
+        report.put("durationSeconds", duration.toSeconds());
+        report.put("concurrency", concurrency);
+        report.put("patients", patientCount);
+        report.put("results", results);
+        objectMapper.writer(SerializationFeature.INDENT_OUTPUT)
+                .writeValue(new File("target/load-test-result.json"), report);
+    }
+}
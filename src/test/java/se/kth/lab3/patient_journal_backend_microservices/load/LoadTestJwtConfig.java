@@ -0,0 +1,92 @@
+package se.kth.lab3.patient_journal_backend_microservices.load;
+
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.source.ImmutableJWKSet;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.security.oauth2.jose.jws.SignatureAlgorithm;
+import org.springframework.security.oauth2.jwt.JwsHeader;
+import org.springframework.security.oauth2.jwt.JwtClaimsSet;
+import org.springframework.security.oauth2.jwt.JwtEncoder;
+import org.springframework.security.oauth2.jwt.JwtEncoderParameters;
+import org.springframework.security.oauth2.jwt.NimbusJwtEncoder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lokal "Keycloak" för lasttestet: ett RSA-nyckelpar i minnet som signerar RS256-token med
+ * realm-roller. Den publika nyckeln skrivs som JWKS till en temporär fil som appens egen
+ * JwtDecoder läser via app.security.jwks-location (se {@link #jwksLocation()}). Till skillnad
+ * från TestSecurityConfig går anropen alltså genom den riktiga SecurityConfig.
+ */
+@TestConfiguration
+public class LoadTestJwtConfig {
+
+    static final String ISSUER = "http://localhost/realms/load-test";
+
+    private static final KeyPair KEY_PAIR = generateKeyPair();
+    private static final String KEY_ID = "load-test";
+
+    private static KeyPair generateKeyPair() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            return generator.generateKeyPair();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("RSA saknas i JVM:en", e);
+        }
+    }
+
+    /**
+     * Skriver den publika nyckeln som JWKS och returnerar platsen för app.security.jwks-location.
+     */
+    static String jwksLocation() {
+        RSAKey publicKey = new RSAKey.Builder((RSAPublicKey) KEY_PAIR.getPublic()).keyID(KEY_ID).build();
+        try {
+            Path file = Files.createTempFile("load-test-jwks", ".json");
+            file.toFile().deleteOnExit();
+            Files.writeString(file, new JWKSet(publicKey).toString());
+            return file.toUri().toString();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Kunde inte skriva JWKS-fil", e);
+        }
+    }
+
+    @Bean
+    public JwtEncoder jwtEncoder() {
+        RSAKey key = new RSAKey.Builder((RSAPublicKey) KEY_PAIR.getPublic())
+                .privateKey((RSAPrivateKey) KEY_PAIR.getPrivate())
+                .keyID(KEY_ID)
+                .build();
+        return new NimbusJwtEncoder(new ImmutableJWKSet<>(new JWKSet(key)));
+    }
+
+    /**
+     * Ett token per användare, giltigt lika länge som en Keycloak-session.
+     */
+    static String issueToken(JwtEncoder encoder, String username, List<String> roles) {
+        Instant now = Instant.now();
+        JwtClaimsSet claims = JwtClaimsSet.builder()
+                .issuer(ISSUER)
+                .subject(username)
+                .issuedAt(now)
+                .expiresAt(now.plusSeconds(3600))
+                .claim("preferred_username", username)
+                .claim("realm_access", Map.of("roles", roles))
+                .build();
+        JwsHeader header = JwsHeader.with(SignatureAlgorithm.RS256).keyId(KEY_ID).build();
+        return encoder.encode(JwtEncoderParameters.from(header, claims)).getTokenValue();
+    }
+}
@@ -0,0 +1,146 @@
+package se.kth.lab3.patient_journal_backend_microservices.load;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Lastgenerator med öppen modell: anropen startar i en fast takt oavsett hur snabbt servern
+ * svarar, och latensen mäts från den planerade starttiden. När servern inte hinner med
+ * syns kötiden därför i latensen i stället för att generatorn tyst saktar ner
+ * (coordinated omission). Antalet samtidiga anrop begränsas av arbetstrådarna.
+ */
+final class OpenLoopLoad {
+
+    private static final long MAX_LATENCY_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    private final HttpClient client;
+    private final List<Operation> operations;
+    private final int totalWeight;
+    private final int concurrency;
+
+    /**
+     * En typ av anrop i blandningen, med relativ vikt.
+     */
+    record Operation(String name, int weight, Supplier<HttpRequest> request) {
+    }
+
+    /**
+     * Utfall per anropstyp för en körning. Latenser i millisekunder.
+     */
+    record Result(String name, long count, long errors, double throughput,
+                  double p50, double p99, double p999, double max) {
+    }
+
+    private static final class Stats {
+        final Recorder recorder = new Recorder(MAX_LATENCY_NANOS, 3);
+        final LongAdder errors = new LongAdder();
+    }
+
+    OpenLoopLoad(HttpClient client, List<Operation> operations, int concurrency) {
+        this.client = client;
+        this.operations = List.copyOf(operations);
+        this.totalWeight = operations.stream().mapToInt(Operation::weight).sum();
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Kör blandningen med {@code ratePerSecond} anrop per sekund i {@code duration} och väntar
+     * in alla startade anrop.
+     */
+    List<Result> run(double ratePerSecond, Duration duration) throws InterruptedException {
+        Map<String, Stats> stats = new LinkedHashMap<>();
+        operations.forEach(operation -> stats.put(operation.name(), new Stats()));
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "load-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+        try {
+            for (long intended = start; intended < end; intended += intervalNanos) {
+                long wait = intended - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                Operation operation = pick();
+                Stats operationStats = stats.get(operation.name());
+                long plannedStart = intended;
+                workers.execute(() -> call(operation, operationStats, plannedStart));
+            }
+        } finally {
+            workers.shutdown();
+        }
+        if (!workers.awaitTermination(duration.toSeconds() + 120, TimeUnit.SECONDS)) {
+            workers.shutdownNow();
+            throw new IllegalStateException("Lastkörningen blev inte klar i tid");
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        List<Result> results = new ArrayList<>();
+        stats.forEach((name, operationStats) -> {
+            Histogram histogram = operationStats.recorder.getIntervalHistogram();
+            results.add(new Result(
+                    name,
+                    histogram.getTotalCount(),
+                    operationStats.errors.sum(),
+                    histogram.getTotalCount() / seconds,
+                    millis(histogram.getValueAtPercentile(50)),
+                    millis(histogram.getValueAtPercentile(99)),
+                    millis(histogram.getValueAtPercentile(99.9)),
+                    millis(histogram.getMaxValue())));
+        });
+        return results;
+    }
+
+    private Operation pick() {
+        int roll = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (Operation operation : operations) {
+            roll -= operation.weight();
+            if (roll < 0) {
+                return operation;
+            }
+        }
+        throw new IllegalStateException("Tom anropsblandning");
+    }
+
+    private void call(Operation operation, Stats stats, long plannedStart) {
+        try {
+            HttpResponse<Void> response = client.send(operation.request().get(), HttpResponse.BodyHandlers.discarding());
+            if (response.statusCode() >= 400) {
+                stats.errors.increment();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stats.errors.increment();
+        } catch (Exception e) {
+            stats.errors.increment();
+        }
+        stats.recorder.recordValue(Math.min(System.nanoTime() - plannedStart, MAX_LATENCY_NANOS));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
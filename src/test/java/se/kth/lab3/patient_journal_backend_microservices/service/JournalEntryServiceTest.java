@@ -1,24 +1,35 @@
 package se.kth.lab3.patient_journal_backend_microservices.service;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.persistence.EntityManager;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
-import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.data.domain.Limit;
 import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.server.ResponseStatusException;
+import se.kth.lab3.patient_journal_backend_microservices.dto.CursorPageDTO;
+import se.kth.lab3.patient_journal_backend_microservices.dto.JournalChangesDTO;
 import se.kth.lab3.patient_journal_backend_microservices.dto.JournalEntryDTO;
 import se.kth.lab3.patient_journal_backend_microservices.entity.JournalEntry;
 import se.kth.lab3.patient_journal_backend_microservices.entity.Patient;
 import se.kth.lab3.patient_journal_backend_microservices.repository.JournalEntryRepository;
 import se.kth.lab3.patient_journal_backend_microservices.repository.PatientRepository;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.*;
@@ -34,7 +45,20 @@ class JournalEntryServiceTest {
     private PatientRepository patientRepository;
 
     @Mock
-    private KafkaTemplate<String, JournalEntryDTO> kafkaTemplate;
+    private OutboxService outboxService;
+
+    @Mock
+    private EntityManager entityManager;
+
+    @Spy
+    private ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+
+    @Spy
+    private JournalTimelineCache timelineCache = new JournalTimelineCache(
+            objectMapper, new SimpleMeterRegistry(), 1024 * 1024, Duration.ofMinutes(5));
+
+    @Spy
+    private JournalSearchIndex searchIndex = new JournalSearchIndex();
 
     @InjectMocks
     private JournalEntryService journalEntryService;
@@ -55,7 +79,8 @@ class JournalEntryServiceTest {
                 LocalDate.of(1990, 1, 1),
                 "anna@example.com",
                 "0701234567",
-                "Testgatan 1"
+                "Testgatan 1",
+                0
         );
 
         testJournalEntry = new JournalEntry(
@@ -64,7 +89,10 @@ class JournalEntryServiceTest {
                 "Patient klagade på huvudvärk",
                 LocalDateTime.now(),
                 "Migrän",
-                "Smärtstillande medicin"
+                "Smärtstillande medicin",
+                1,
+                false,
+                0
         );
 
         testJournalEntryDTO = new JournalEntryDTO(
@@ -73,17 +101,31 @@ class JournalEntryServiceTest {
                 "Patient klagade på huvudvärk",
                 LocalDateTime.now(),
                 "Migrän",
-                "Smärtstillande medicin"
+                "Smärtstillande medicin",
+                null
         );
     }
 
+    private static JournalEntryRepository.LastChange lastChange(Long patientId, long changeSeq) {
+        return new JournalEntryRepository.LastChange() {
+            @Override
+            public Long getPatientId() {
+                return patientId;
+            }
+
+            @Override
+            public Long getChangeSeq() {
+                return changeSeq;
+            }
+        };
+    }
+
     @Test
     void testCreateJournalEntry_Success() {
         // Arrange
-        when(patientRepository.findById(1L)).thenReturn(Optional.of(testPatient));
+        when(patientRepository.lockExistingIds(List.of(1L))).thenReturn(List.of(1L));
+        when(patientRepository.getReferenceById(1L)).thenReturn(testPatient);
         when(journalEntryRepository.save(any(JournalEntry.class))).thenReturn(testJournalEntry);
-        when(kafkaTemplate.send(eq("test-journal-events"), eq("1"), any(JournalEntryDTO.class)))
-                .thenReturn(null);
 
         // Act
         JournalEntryDTO result = journalEntryService.createJournalEntry(testJournalEntryDTO);
@@ -94,16 +136,16 @@ class JournalEntryServiceTest {
         assertEquals("Patient klagade på huvudvärk", result.getNote());
         assertEquals("Migrän", result.getDiagnosis());
 
-        verify(patientRepository).findById(1L);
-        verify(journalEntryRepository).save(any(JournalEntry.class));
-        verify(kafkaTemplate).send(eq("test-journal-events"), eq("1"), any(JournalEntryDTO.class));
+        verify(patientRepository).lockExistingIds(List.of(1L));
+        verify(journalEntryRepository).save(argThat(entry -> entry.getChangeSeq() == 1));
+        verify(outboxService).enqueue(eq("test-journal-events"), eq("1"), any(JournalEntryDTO.class));
     }
 
     @Test
     void testCreateJournalEntry_PatientNotFound_ThrowsException() {
         // Arrange
-        when(patientRepository.findById(999L)).thenReturn(Optional.empty());
-        testJournalEntryDTO = new JournalEntryDTO(null, 999L, "Note", LocalDateTime.now(), "Diagnosis", "Treatment");
+        when(patientRepository.lockExistingIds(List.of(999L))).thenReturn(List.of());
+        testJournalEntryDTO = new JournalEntryDTO(null, 999L, "Note", LocalDateTime.now(), "Diagnosis", "Treatment", null);
 
         // Act & Assert
         RuntimeException exception = assertThrows(RuntimeException.class, () -> {
@@ -112,13 +154,28 @@ class JournalEntryServiceTest {
 
         assertTrue(exception.getMessage().contains("finns inte"));
         verify(journalEntryRepository, never()).save(any(JournalEntry.class));
-        verify(kafkaTemplate, never()).send(anyString(), anyString(), any(JournalEntryDTO.class));
+        verify(outboxService, never()).enqueue(anyString(), anyString(), any());
+    }
+
+    @Test
+    void testCreateJournalEntries_MissingPatient_RejectsWholeBatch() {
+        // Arrange
+        JournalEntryDTO unknownPatient = new JournalEntryDTO(null, 999L, "Note", null, null, null, null);
+        when(patientRepository.lockExistingIds(List.of(1L, 999L))).thenReturn(List.of(1L));
+
+        // Act & Assert
+        RuntimeException exception = assertThrows(RuntimeException.class, () -> {
+            journalEntryService.createJournalEntries(List.of(testJournalEntryDTO, unknownPatient));
+        });
+
+        assertTrue(exception.getMessage().contains("999"));
+        verify(journalEntryRepository, never()).saveAll(anyList());
     }
 
     @Test
     void testGetJournalEntryById_Success() {
         // Arrange
-        when(journalEntryRepository.findById(1L)).thenReturn(Optional.of(testJournalEntry));
+        when(journalEntryRepository.findDtoById(1L)).thenReturn(Optional.of(testJournalEntryDTO));
 
         // Act
         JournalEntryDTO result = journalEntryService.getJournalEntryById(1L);
@@ -127,13 +184,13 @@ class JournalEntryServiceTest {
         assertNotNull(result);
         assertEquals(1L, result.getId());
         assertEquals("Patient klagade på huvudvärk", result.getNote());
-        verify(journalEntryRepository).findById(1L);
+        verify(journalEntryRepository).findDtoById(1L);
     }
 
     @Test
     void testGetJournalEntryById_NotFound_ThrowsException() {
         // Arrange
-        when(journalEntryRepository.findById(999L)).thenReturn(Optional.empty());
+        when(journalEntryRepository.findDtoById(999L)).thenReturn(Optional.empty());
 
         // Act & Assert
         RuntimeException exception = assertThrows(RuntimeException.class, () -> {
@@ -146,10 +203,10 @@ class JournalEntryServiceTest {
     @Test
     void testGetAllJournalEntries_Success() {
         // Arrange
-        JournalEntry entry2 = new JournalEntry(2L, testPatient, "Följdbesök",
-                LocalDateTime.now(), "Förbättring", "Fortsatt behandling");
+        JournalEntryDTO entry2 = new JournalEntryDTO(2L, 1L, "Följdbesök",
+                LocalDateTime.now(), "Förbättring", "Fortsatt behandling", null);
 
-        when(journalEntryRepository.findAll()).thenReturn(Arrays.asList(testJournalEntry, entry2));
+        when(journalEntryRepository.findAllDtos()).thenReturn(Arrays.asList(testJournalEntryDTO, entry2));
 
         // Act
         List<JournalEntryDTO> results = journalEntryService.getAllJournalEntries();
@@ -159,12 +216,57 @@ class JournalEntryServiceTest {
         assertEquals(2, results.size());
     }
 
+    @Test
+    void testGetJournalEntriesPage_SecondPage_SeeksOnCreatedAtAndId() {
+        // Arrange
+        LocalDateTime createdAt = LocalDateTime.of(2024, 3, 1, 10, 0);
+        JournalEntryDTO newer = new JournalEntryDTO(2L, 1L, "Följdbesök",
+                createdAt.plusDays(1), "Förbättring", "Fortsatt behandling", null);
+        JournalEntryDTO older = new JournalEntryDTO(1L, 1L, "Första besöket",
+                createdAt, "Migrän", "Vila", null);
+
+        when(journalEntryRepository.findDtoPage(Limit.of(2)))
+                .thenReturn(Arrays.asList(newer, older));
+        when(journalEntryRepository.findDtoPageAfter(createdAt.plusDays(1), 2L, Limit.of(2)))
+                .thenReturn(List.of(older));
+
+        // Act
+        CursorPageDTO<JournalEntryDTO> first = journalEntryService.getJournalEntriesPage(null, 1);
+        CursorPageDTO<JournalEntryDTO> second = journalEntryService.getJournalEntriesPage(first.getNextCursor(), 1);
+
+        // Assert
+        assertEquals(2L, first.getItems().get(0).getId());
+        assertNotNull(first.getNextCursor());
+        assertEquals(1, second.getItems().size());
+        assertEquals(1L, second.getItems().get(0).getId());
+        assertNull(second.getNextCursor());
+    }
+
+    @Test
+    void testExportJournalEntries_WritesOneJsonLinePerEntry() throws Exception {
+        // Arrange
+        JournalEntryDTO entry2 = new JournalEntryDTO(2L, 1L, "Följdbesök",
+                LocalDateTime.now(), "Förbättring", "Fortsatt behandling", null);
+        when(journalEntryRepository.streamDtosForExport(1L, null, null))
+                .thenReturn(Stream.of(testJournalEntryDTO, entry2));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // Act
+        long count = journalEntryService.exportJournalEntries(1L, null, null, out);
+
+        // Assert
+        String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+        assertEquals(2, count);
+        assertEquals(2, lines.length);
+        assertEquals("Följdbesök", objectMapper.readValue(lines[1], JournalEntryDTO.class).getNote());
+    }
+
     @Test
     void testGetJournalEntriesByPatientId_Success() {
         // Arrange
         when(patientRepository.existsById(1L)).thenReturn(true);
-        when(journalEntryRepository.findByPatientIdOrderByCreatedAtDesc(1L))
-                .thenReturn(Arrays.asList(testJournalEntry));
+        when(journalEntryRepository.findDtosByPatientId(1L))
+                .thenReturn(Arrays.asList(testJournalEntryDTO));
 
         // Act
         List<JournalEntryDTO> results = journalEntryService.getJournalEntriesByPatientId(1L);
@@ -175,6 +277,58 @@ class JournalEntryServiceTest {
         assertEquals(1L, results.get(0).getPatientId());
     }
 
+    @Test
+    void testGetJournalEntriesByPatientId_SecondCallServedFromCache() {
+        // Arrange
+        when(patientRepository.existsById(1L)).thenReturn(true);
+        when(journalEntryRepository.findDtosByPatientId(1L))
+                .thenReturn(Arrays.asList(testJournalEntryDTO));
+
+        // Act
+        journalEntryService.getJournalEntriesByPatientId(1L);
+        List<JournalEntryDTO> results = journalEntryService.getJournalEntriesByPatientId(1L);
+
+        // Assert
+        assertEquals(1, results.size());
+        assertEquals("Migrän", results.get(0).getDiagnosis());
+        verify(patientRepository, times(1)).existsById(1L);
+        verify(journalEntryRepository, times(1)).findDtosByPatientId(1L);
+    }
+
+    @Test
+    void testCachedTimeline_UpdatedInPlaceByCreateUpdateAndDelete() {
+        // Arrange: tidslinjen cachas med en anteckning
+        when(patientRepository.existsById(1L)).thenReturn(true);
+        when(journalEntryRepository.findDtosByPatientId(1L))
+                .thenReturn(Arrays.asList(testJournalEntryDTO));
+        journalEntryService.getJournalEntriesByPatientId(1L);
+
+        JournalEntry newer = new JournalEntry(2L, testPatient, "Följdbesök",
+                testJournalEntry.getCreatedAt().plusDays(1), null, null, 2, false, 0);
+        when(patientRepository.lockExistingIds(List.of(1L))).thenReturn(List.of(1L));
+        when(patientRepository.getReferenceById(1L)).thenReturn(testPatient);
+        when(journalEntryRepository.save(any(JournalEntry.class))).thenReturn(newer);
+        when(journalEntryRepository.findLivePatientId(anyLong())).thenReturn(Optional.of(1L));
+        when(journalEntryRepository.findByIdAndDeletedFalse(1L)).thenReturn(Optional.of(testJournalEntry));
+        when(journalEntryRepository.findByIdAndDeletedFalse(2L)).thenReturn(Optional.of(newer));
+
+        // Act
+        journalEntryService.createJournalEntry(new JournalEntryDTO(null, 1L, "Följdbesök", null, null, null, null));
+        List<JournalEntryDTO> afterCreate = journalEntryService.getJournalEntriesByPatientId(1L);
+
+        // Flushen vid uppdateringen räknar upp versionen
+        newer.setVersion(1);
+        journalEntryService.updateJournalEntry(2L, new JournalEntryDTO(2L, 1L, "Följdbesök, utökad", null, null, null, null));
+        journalEntryService.deleteJournalEntry(1L);
+        List<JournalEntryDTO> afterDelete = journalEntryService.getJournalEntriesByPatientId(1L);
+
+        // Assert
+        assertEquals(List.of(2L, 1L), afterCreate.stream().map(JournalEntryDTO::getId).toList());
+        assertEquals(1, afterDelete.size());
+        assertEquals("Följdbesök, utökad", afterDelete.get(0).getNote());
+        verify(journalEntryRepository, times(1)).findDtosByPatientId(1L);
+    }
+
     @Test
     void testGetJournalEntriesByPatientId_PatientNotFound_ThrowsException() {
         // Arrange
@@ -188,17 +342,53 @@ class JournalEntryServiceTest {
         assertTrue(exception.getMessage().contains("finns inte"));
     }
 
+    @Test
+    void testGetJournalEntryChanges_ReturnsChangesUpToNewToken() {
+        // Arrange
+        when(patientRepository.existsById(1L)).thenReturn(true);
+        when(journalEntryRepository.findLastChangeSeq(1L)).thenReturn(7L);
+        when(journalEntryRepository.findDtoChanges(1L, 4, 7)).thenReturn(List.of(testJournalEntryDTO));
+        when(journalEntryRepository.findDeletedIds(1L, 4, 7)).thenReturn(List.of(3L));
+
+        // Act
+        JournalChangesDTO changes = journalEntryService.getJournalEntryChanges(1L, 4);
+
+        // Assert
+        assertEquals(List.of(1L), changes.getChanged().stream().map(JournalEntryDTO::getId).toList());
+        assertEquals(List.of(3L), changes.getDeleted());
+        assertEquals(7, changes.getSyncToken());
+    }
+
+    @Test
+    void testGetJournalEntryChanges_FirstSyncIncludesEntriesWithoutChangeSeq() {
+        // Arrange
+        when(patientRepository.existsById(1L)).thenReturn(true);
+        when(journalEntryRepository.findLastChangeSeq(1L)).thenReturn(0L);
+        when(journalEntryRepository.findDtoChanges(1L, -1, 0)).thenReturn(List.of(testJournalEntryDTO));
+
+        // Act
+        JournalChangesDTO changes = journalEntryService.getJournalEntryChanges(1L, 0);
+
+        // Assert
+        assertEquals(1, changes.getChanged().size());
+        assertTrue(changes.getDeleted().isEmpty());
+        assertEquals(0, changes.getSyncToken());
+        verify(journalEntryRepository, never()).findDeletedIds(anyLong(), anyLong(), anyLong());
+    }
+
     @Test
     void testUpdateJournalEntry_Success() {
         // Arrange
-        when(journalEntryRepository.findById(1L)).thenReturn(Optional.of(testJournalEntry));
+        when(journalEntryRepository.findLivePatientId(1L)).thenReturn(Optional.of(1L));
+        when(patientRepository.lockExistingIds(List.of(1L))).thenReturn(List.of(1L));
+        when(journalEntryRepository.findLastChanges(List.of(1L))).thenReturn(List.of(lastChange(1L, 3)));
+        when(journalEntryRepository.findByIdAndDeletedFalse(1L)).thenReturn(Optional.of(testJournalEntry));
         when(journalEntryRepository.save(any(JournalEntry.class))).thenReturn(testJournalEntry);
-        when(kafkaTemplate.send(eq("test-journal-events"), eq("1"), any(JournalEntryDTO.class)))
-                .thenReturn(null);
 
         JournalEntryDTO updateDTO = new JournalEntryDTO(
                 1L, 1L, "Uppdaterad anteckning",
-                LocalDateTime.now(), "Ny diagnos", "Ny behandling"
+                LocalDateTime.now(), "Ny diagnos", "Ny behandling",
+                null
         );
 
         // Act
@@ -206,29 +396,35 @@ class JournalEntryServiceTest {
 
         // Assert
         assertNotNull(result);
-        verify(journalEntryRepository).findById(1L);
-        verify(journalEntryRepository).save(any(JournalEntry.class));
-        verify(kafkaTemplate).send(eq("test-journal-events"), eq("1"), any(JournalEntryDTO.class));
+        verify(journalEntryRepository).findByIdAndDeletedFalse(1L);
+        verify(journalEntryRepository).save(argThat(entry -> entry.getChangeSeq() == 4));
+        verify(outboxService).enqueue(eq("test-journal-events"), eq("1"), any(JournalEntryDTO.class));
     }
 
     @Test
     void testDeleteJournalEntry_Success() {
         // Arrange
-        when(journalEntryRepository.existsById(1L)).thenReturn(true);
-        doNothing().when(journalEntryRepository).deleteById(1L);
+        when(journalEntryRepository.findLivePatientId(1L)).thenReturn(Optional.of(1L));
+        when(patientRepository.lockExistingIds(List.of(1L))).thenReturn(List.of(1L));
+        when(journalEntryRepository.findLastChanges(List.of(1L))).thenReturn(List.of(lastChange(1L, 3)));
+        when(journalEntryRepository.findByIdAndDeletedFalse(1L)).thenReturn(Optional.of(testJournalEntry));
 
         // Act
         journalEntryService.deleteJournalEntry(1L);
 
-        // Assert
-        verify(journalEntryRepository).existsById(1L);
-        verify(journalEntryRepository).deleteById(1L);
+        // Assert: raden finns kvar som markering för delta-synken
+        verify(journalEntryRepository).save(argThat(entry -> entry.isDeleted() && entry.getChangeSeq() == 4
+                && entry.getNote() == null && entry.getDiagnosis() == null && entry.getTreatment() == null));
+        verify(journalEntryRepository, never()).delete(any(JournalEntry.class));
+        verify(timelineCache).removeAfterCommit(1L, 1L);
+        verify(outboxService).enqueue(eq("test-journal-events"), eq("1"), argThat((JournalEntryDTO event) ->
+                event.getId() == 1L && event.getPatientId() == 1L && Boolean.TRUE.equals(event.getDeleted())));
     }
 
     @Test
     void testDeleteJournalEntry_NotFound_ThrowsException() {
         // Arrange
-        when(journalEntryRepository.existsById(999L)).thenReturn(false);
+        when(journalEntryRepository.findLivePatientId(999L)).thenReturn(Optional.empty());
 
         // Act & Assert
         RuntimeException exception = assertThrows(RuntimeException.class, () -> {
@@ -236,6 +432,31 @@ class JournalEntryServiceTest {
         });
 
         assertTrue(exception.getMessage().contains("finns inte"));
-        verify(journalEntryRepository, never()).deleteById(anyLong());
+        verify(journalEntryRepository, never()).save(any(JournalEntry.class));
+    }
+
+    @Test
+    void testSearchJournalEntries_LoadsRankedHitsAndDropsDeletedOnes() {
+        // Arrange
+        searchIndex.markReady();
+        searchIndex.put(new JournalEntryDTO(1L, 1L, "Patient klagade på huvudvärk", null, "Migrän", null, null));
+        searchIndex.put(new JournalEntryDTO(5L, 1L, "Huvudvärk", null, null, null, null));
+        when(journalEntryRepository.findDtosByIdIn(anyList())).thenReturn(List.of(testJournalEntryDTO));
+
+        // Act
+        List<JournalEntryDTO> results = journalEntryService.searchJournalEntries("huvudvärk", 10);
+
+        // Assert
+        assertEquals(1, results.size());
+        assertEquals(1L, results.get(0).getId());
+        verify(searchIndex).remove(5L);
+    }
+
+    @Test
+    void testSearchJournalEntries_IndexNotReady_ThrowsServiceUnavailable() {
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> journalEntryService.searchJournalEntries("huvudvärk", 10));
+
+        assertEquals(503, exception.getStatusCode().value());
     }
-}
\ No newline at end of file
+}
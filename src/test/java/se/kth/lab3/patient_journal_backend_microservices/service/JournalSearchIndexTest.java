@@ -0,0 +1,72 @@
+package se.kth.lab3.patient_journal_backend_microservices.service;
+
+import org.junit.jupiter.api.Test;
+import se.kth.lab3.patient_journal_backend_microservices.dto.JournalEntryDTO;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JournalSearchIndexTest {
+
+    private final JournalSearchIndex index = new JournalSearchIndex();
+
+    private JournalEntryDTO entry(long id, String note, String diagnosis) {
+        return new JournalEntryDTO(id, 1L, note, null, diagnosis, null, null);
+    }
+
+    @Test
+    void testTokenize_LowercasesAndDropsStopWords() {
+        assertEquals(List.of("huvudvärk", "migrän", "2024"),
+                JournalSearchIndex.tokenize("Huvudvärk och MIGRÄN, 2024!"));
+    }
+
+    @Test
+    void testSearch_RequiresAllTermsAndRanksByRelevance() {
+        index.putAll(List.of(
+                entry(1L, "Patient med huvudvärk", "Migrän"),
+                entry(2L, "Huvudvärk huvudvärk huvudvärk sedan igår", "Migrän"),
+                entry(3L, "Ont i knät", "Artros")));
+
+        assertEquals(List.of(2L, 1L), index.search("migrän huvudvärk", 10));
+        assertEquals(List.of(), index.search("migrän artros", 10));
+    }
+
+    @Test
+    void testPut_UpdatedEntryNoLongerMatchesOldText() {
+        index.put(entry(1L, "Feber", null));
+        index.put(entry(1L, "Hosta", null));
+
+        assertEquals(List.of(), index.search("feber", 10));
+        assertEquals(List.of(1L), index.search("hosta", 10));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    void testRemove_EntryIsNotReturned() {
+        index.put(entry(1L, "Feber", null));
+        index.remove(1L);
+
+        assertEquals(List.of(), index.search("feber", 10));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    void testPutAllIfAbsent_DoesNotOverwriteNewerWrite() {
+        index.put(entry(1L, "Hosta", null));
+        index.remove(2L);
+
+        index.putAllIfAbsent(List.of(
+                JournalSearchIndex.prepare(1L, "Feber"),
+                JournalSearchIndex.prepare(2L, "Feber")));
+
+        assertEquals(List.of(), index.search("feber", 10));
+        assertEquals(List.of(1L), index.search("hosta", 10));
+    }
+
+    @Test
+    void testMatchesPhrase_RequiresWordsInOrder() {
+        assertTrue(JournalSearchIndex.matchesPhrase("\"akut buksmärta\"", "Inkommer med akut buksmärta"));
+        assertFalse(JournalSearchIndex.matchesPhrase("\"akut buksmärta\"", "Buksmärta, ej akut"));
+    }
+}
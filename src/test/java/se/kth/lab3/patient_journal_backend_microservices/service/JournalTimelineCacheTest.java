@@ -0,0 +1,97 @@
+package se.kth.lab3.patient_journal_backend_microservices.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import se.kth.lab3.patient_journal_backend_microservices.dto.JournalEntryDTO;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JournalTimelineCacheTest {
+
+    private final JournalTimelineCache cache = new JournalTimelineCache(
+            new ObjectMapper().findAndRegisterModules(), new SimpleMeterRegistry(), 3 * 1024, Duration.ofMinutes(5));
+
+    private List<JournalEntryDTO> timeline(long patientId, int size) {
+        List<JournalEntryDTO> entries = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            entries.add(new JournalEntryDTO(patientId * 100 + i, patientId, "Anteckning " + i,
+                    LocalDateTime.of(2024, 1, 1, 12, 0).plusMinutes(i), null, null, null));
+        }
+        return entries;
+    }
+
+    @Test
+    void testGet_ReturnsNewestFirst() {
+        cache.putIfUnchanged(1L, timeline(1L, 3), cache.writeStamp());
+
+        List<JournalEntryDTO> result = cache.get(1L).orElseThrow();
+
+        assertEquals(List.of(102L, 101L, 100L), result.stream().map(JournalEntryDTO::getId).toList());
+    }
+
+    @Test
+    void testPutIfUnchanged_SkippedWhenWriteHappenedDuringLoad() {
+        long stamp = cache.writeStamp();
+        cache.evict(1L);
+
+        cache.putIfUnchanged(1L, timeline(1L, 1), stamp);
+
+        assertTrue(cache.get(1L).isEmpty());
+    }
+
+    @Test
+    void testAppend_GrowsBufferBeyondInitialCapacity() {
+        cache.putIfUnchanged(1L, timeline(1L, 1), cache.writeStamp());
+
+        cache.appendAfterCommit(timeline(1L, 12).subList(1, 12));
+
+        assertEquals(12, cache.get(1L).orElseThrow().size());
+    }
+
+    @Test
+    void testPut_EntryAlreadyLoaded_IsNotAddedTwice() {
+        List<JournalEntryDTO> entries = timeline(1L, 2);
+        // Laddningen efter commit hann före appendAfterCommit
+        cache.putIfUnchanged(1L, entries, cache.writeStamp());
+
+        cache.appendAfterCommit(List.of(entries.get(1)));
+        cache.put(entries.get(1));
+
+        assertEquals(List.of(101L, 100L), cache.get(1L).orElseThrow().stream().map(JournalEntryDTO::getId).toList());
+    }
+
+    @Test
+    void testPut_ReplacesOnlyWithNewerVersion() {
+        List<JournalEntryDTO> entries = timeline(1L, 1);
+        entries.get(0).setVersion(1L);
+        cache.putIfUnchanged(1L, entries, cache.writeStamp());
+
+        JournalEntryDTO newer = new JournalEntryDTO(100L, 1L, "Ny", entries.get(0).getCreatedAt(), null, null, 2L);
+        JournalEntryDTO older = new JournalEntryDTO(100L, 1L, "Gammal", entries.get(0).getCreatedAt(), null, null, 1L);
+        cache.put(newer);
+        cache.put(older);
+
+        List<JournalEntryDTO> result = cache.get(1L).orElseThrow();
+        assertEquals(1, result.size());
+        assertEquals("Ny", result.get(0).getNote());
+    }
+
+    @Test
+    void testBudget_EvictsLeastRecentlyUsedTimeline() {
+        cache.putIfUnchanged(1L, timeline(1L, 1), cache.writeStamp());
+        cache.putIfUnchanged(2L, timeline(2L, 1), cache.writeStamp());
+        cache.get(1L);
+
+        cache.putIfUnchanged(3L, timeline(3L, 1), cache.writeStamp());
+        cache.putIfUnchanged(4L, timeline(4L, 1), cache.writeStamp());
+
+        assertTrue(cache.get(1L).isPresent());
+        assertTrue(cache.get(2L).isEmpty());
+    }
+}
@@ -0,0 +1,114 @@
+package se.kth.lab3.patient_journal_backend_microservices.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.web.server.ResponseStatusException;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PatientReadModelTest {
+
+    private final PatientReadModel model = new PatientReadModel("offset", Duration.ofMillis(50));
+
+    private PatientDTO patient(long id, String personalNumber, long version) {
+        return new PatientDTO(id, "Anna", "Andersson", personalNumber,
+                LocalDate.of(1990, 1, 1), null, null, null, version);
+    }
+
+    @Test
+    void testServing_OnlyAfterCatchingUpToEndOffsetsAtStart() {
+        model.begin(Map.of(0, 2L, 1, 0L));
+        model.apply(1L, patient(1L, "19900101-1234", 0));
+        model.advance(0, 1L);
+        assertFalse(model.isServing());
+
+        model.apply(2L, patient(2L, "19851212-5678", 0));
+        model.advance(0, 2L);
+        model.advance(1, 0L);
+
+        assertTrue(model.isServing());
+        assertEquals(List.of(1L, 2L), model.page(null, 10).stream().map(PatientDTO::getId).toList());
+        assertEquals(List.of(2L), model.page(1L, 10).stream().map(PatientDTO::getId).toList());
+        assertEquals("0:2,1:0", model.position());
+    }
+
+    @Test
+    void testApply_OlderVersionDoesNotOverwriteLocalWrite() {
+        model.begin(Map.of(0, 0L));
+        model.put(patient(1L, "19900101-1234", 3));
+
+        model.apply(1L, patient(1L, "19900101-9999", 2));
+
+        assertEquals(3L, model.get(1L).getVersion());
+        assertNotNull(model.getByPersonalNumber("19900101-1234"));
+        assertNull(model.getByPersonalNumber("19900101-9999"));
+    }
+
+    @Test
+    void testApply_ChangedPersonalNumberMovesMapping() {
+        model.begin(Map.of(0, 0L));
+        model.apply(1L, patient(1L, "19900101-1234", 0));
+        model.apply(1L, patient(1L, "19900101-4321", 1));
+
+        assertNull(model.getByPersonalNumber("19900101-1234"));
+        assertEquals(1L, model.getByPersonalNumber("19900101-4321").getId());
+    }
+
+    @Test
+    void testRemove_LateEventDoesNotResurrectUntilTombstone() {
+        model.begin(Map.of(0, 0L));
+        model.apply(1L, patient(1L, "19900101-1234", 0));
+        model.remove(1L);
+
+        model.apply(1L, patient(1L, "19900101-1234", 1));
+        assertNull(model.get(1L));
+
+        model.apply(1L, null);
+        model.apply(1L, patient(1L, "19900101-1234", 2));
+        assertEquals(2L, model.get(1L).getVersion());
+    }
+
+    @Test
+    void testLocalWrites_IgnoredBeforeUpdaterStarted() {
+        model.put(patient(1L, "19900101-1234", 0));
+
+        assertEquals(0, model.size());
+        assertFalse(model.canServe(null));
+    }
+
+    @Test
+    void testCanServe_WaitsForRequestedPosition() {
+        model.begin(Map.of(0, 0L));
+        assertFalse(model.canServe("0:3"));
+
+        CompletableFuture<Boolean> waiting = CompletableFuture.supplyAsync(
+                () -> model.await(Map.of(0, 3L), Duration.ofSeconds(5)));
+        model.advance(0, 3L);
+
+        assertTrue(waiting.join());
+        assertTrue(model.canServe("0:3"));
+    }
+
+    @Test
+    void testCanServe_EventualIgnoresPosition() {
+        PatientReadModel eventual = new PatientReadModel("eventual", Duration.ofMillis(50));
+        eventual.begin(Map.of(0, 0L));
+
+        assertTrue(eventual.canServe("0:100"));
+    }
+
+    @Test
+    void testParsePosition_InvalidGivesBadRequest() {
+        assertEquals(Map.of(0, 5L, 1, 7L), PatientReadModel.parsePosition("0:5, 1:7"));
+
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> PatientReadModel.parsePosition("0-5"));
+        assertEquals(400, exception.getStatusCode().value());
+    }
+}
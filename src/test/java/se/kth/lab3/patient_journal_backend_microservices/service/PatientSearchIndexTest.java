@@ -0,0 +1,91 @@
+package se.kth.lab3.patient_journal_backend_microservices.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
+
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PatientSearchIndexTest {
+
+    private final PatientSearchIndex index = new PatientSearchIndex();
+
+    private PatientDTO patient(long id, String firstName, String lastName, String personalNumber) {
+        return new PatientDTO(id, firstName, lastName, personalNumber,
+                LocalDate.of(1990, 1, 1), null, null, null, null);
+    }
+
+    private List<Long> ids(String query) {
+        return index.search(query, 10).stream().map(PatientDTO::getId).toList();
+    }
+
+    @BeforeEach
+    void setUp() {
+        index.putAll(List.of(
+                patient(1L, "Anna", "Andersson", "19900101-1234"),
+                patient(2L, "Anders", "Östlund", "19851212-5678"),
+                patient(3L, "Erik", "Eriksson", "20010303-9012")));
+    }
+
+    @Test
+    void testSearch_PrefixOnName() {
+        assertEquals(List.of(1L, 2L), ids("and"));
+        assertEquals(List.of(1L), ids("anna and"));
+    }
+
+    @Test
+    void testSearch_ExactWordRanksBeforePrefix() {
+        assertEquals(List.of(2L, 1L), ids("anders"));
+    }
+
+    @Test
+    void testSearch_ToleratesTyposAndAccents() {
+        assertEquals(List.of(3L), ids("eriksosn"));
+        assertEquals(List.of(2L), ids("ostlund"));
+    }
+
+    @Test
+    void testSearch_PartialPersonalNumberWithAndWithoutCentury() {
+        assertEquals(List.of(1L), ids("19900101-12"));
+        assertEquals(List.of(1L), ids("900101"));
+    }
+
+    @Test
+    void testSearch_PersonalNumberMustMatchWithoutTypos() {
+        assertEquals(List.of(), ids("19900102-1234"));
+    }
+
+    @Test
+    void testSearch_ShortWordsMustMatchExactly() {
+        assertEquals(List.of(), ids("xnn"));
+    }
+
+    @Test
+    void testPutAndRemove_KeepIndexCurrent() {
+        index.put(patient(1L, "Anna", "Berg", "19900101-1234"));
+        index.remove(3L);
+
+        assertEquals(List.of(1L), ids("berg"));
+        assertEquals(List.of(), ids("andersson"));
+        assertEquals(List.of(), ids("erik"));
+    }
+
+    @Test
+    void testPutAllIfAbsent_DoesNotRestorePatientRemovedDuringBuild() {
+        PatientSearchIndex building = new PatientSearchIndex();
+        building.remove(1L);
+
+        building.putAllIfAbsent(List.of(patient(1L, "Anna", "Andersson", "19900101-1234")));
+
+        assertEquals(0, building.size());
+    }
+
+    @Test
+    void testPrefixEditDistance_CountsTransposition() {
+        assertEquals(1, PatientSearchIndex.prefixEditDistance("eriksosn", "eriksson", 2));
+        assertEquals(0, PatientSearchIndex.prefixEditDistance("erik", "eriksson", 2));
+    }
+}
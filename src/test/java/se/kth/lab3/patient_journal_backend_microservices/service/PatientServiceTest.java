@@ -1,20 +1,32 @@
 package se.kth.lab3.patient_journal_backend_microservices.service;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.persistence.EntityManager;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
-import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.data.domain.Limit;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
 import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.web.server.ResponseStatusException;
+import se.kth.lab3.patient_journal_backend_microservices.dto.CursorPageDTO;
+import se.kth.lab3.patient_journal_backend_microservices.dto.PatientCommandDTO;
 import se.kth.lab3.patient_journal_backend_microservices.dto.PatientDTO;
 import se.kth.lab3.patient_journal_backend_microservices.entity.Patient;
+import se.kth.lab3.patient_journal_backend_microservices.repository.JournalEntryRepository;
 import se.kth.lab3.patient_journal_backend_microservices.repository.PatientRepository;
 
+import java.time.Duration;
 import java.time.LocalDate;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -28,7 +40,29 @@ class PatientServiceTest {
     private PatientRepository patientRepository;
 
     @Mock
-    private KafkaTemplate<String, PatientDTO> kafkaTemplate;
+    private JournalEntryRepository journalEntryRepository;
+
+    @Mock
+    private OutboxService outboxService;
+
+    @Mock
+    private EntityManager entityManager;
+
+    @Mock
+    private JournalTimelineCache timelineCache;
+
+    @Spy
+    private PatientSearchIndex searchIndex = new PatientSearchIndex();
+
+    @Spy
+    private PatientCache patientCache = new PatientCache(new SimpleMeterRegistry(), 100, Duration.ofMinutes(10));
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    // Inte startad: läsningarna går till databasen tills ett test kör begin()
+    @Spy
+    private PatientReadModel readModel = new PatientReadModel("offset", Duration.ofMillis(50));
 
     @InjectMocks
     private PatientService patientService;
@@ -49,7 +83,8 @@ class PatientServiceTest {
                 LocalDate.of(1990, 1, 1),
                 "anna@example.com",
                 "0701234567",
-                "Testgatan 1"
+                "Testgatan 1",
+                0
         );
 
         testPatientDTO = new PatientDTO(
@@ -60,7 +95,8 @@ class PatientServiceTest {
                 LocalDate.of(1990, 1, 1),
                 "anna@example.com",
                 "0701234567",
-                "Testgatan 1"
+                "Testgatan 1",
+                null
         );
     }
 
@@ -69,8 +105,6 @@ class PatientServiceTest {
         // Arrange
         when(patientRepository.existsByPersonalNumber(anyString())).thenReturn(false);
         when(patientRepository.save(any(Patient.class))).thenReturn(testPatient);
-        when(kafkaTemplate.send(eq("test-patient-events"), eq("1"), any(PatientDTO.class)))
-                .thenReturn(null);
 
         // Act
         PatientDTO result = patientService.createPatient(testPatientDTO);
@@ -83,7 +117,7 @@ class PatientServiceTest {
 
         verify(patientRepository).existsByPersonalNumber("19900101-1234");
         verify(patientRepository).save(any(Patient.class));
-        verify(kafkaTemplate).send(eq("test-patient-events"), eq("1"), any(PatientDTO.class));
+        verify(outboxService).enqueue(eq("test-patient-events"), eq("1"), any(PatientDTO.class));
     }
 
     @Test
@@ -98,13 +132,135 @@ class PatientServiceTest {
 
         assertTrue(exception.getMessage().contains("finns redan"));
         verify(patientRepository, never()).save(any(Patient.class));
-        verify(kafkaTemplate, never()).send(anyString(), anyString(), any(PatientDTO.class));
+        verify(outboxService, never()).enqueue(anyString(), anyString(), any());
+    }
+
+    @Test
+    void testCreatePatients_Success() {
+        // Arrange
+        Patient patient2 = new Patient(2L, "Erik", "Eriksson", "19850505-5678",
+                LocalDate.of(1985, 5, 5), "erik@example.com", "0709876543", "Eriksgatan 2", 0);
+        PatientDTO patientDTO2 = new PatientDTO(null, "Erik", "Eriksson", "19850505-5678",
+                LocalDate.of(1985, 5, 5), "erik@example.com", "0709876543", "Eriksgatan 2", null);
+
+        when(patientRepository.findExistingPersonalNumbers(List.of("19900101-1234", "19850505-5678")))
+                .thenReturn(List.of());
+        when(patientRepository.saveAll(anyList())).thenReturn(Arrays.asList(testPatient, patient2));
+
+        // Act
+        List<PatientDTO> results = patientService.createPatients(Arrays.asList(testPatientDTO, patientDTO2));
+
+        // Assert
+        assertEquals(2, results.size());
+        assertEquals(2L, results.get(1).getId());
+        verify(patientRepository, never()).existsByPersonalNumber(anyString());
+        verify(patientRepository).flush();
+        verify(outboxService).enqueueAll(eq("test-patient-events"), eq(results), any());
+    }
+
+    @Test
+    void testCreatePatients_ExistingPersonalNumber_RejectsWholeBatch() {
+        // Arrange
+        when(patientRepository.findExistingPersonalNumbers(List.of("19900101-1234")))
+                .thenReturn(List.of("19900101-1234"));
+
+        // Act & Assert
+        RuntimeException exception = assertThrows(RuntimeException.class, () -> {
+            patientService.createPatients(List.of(testPatientDTO));
+        });
+
+        assertTrue(exception.getMessage().contains("finns redan"));
+        verify(patientRepository, never()).saveAll(anyList());
+    }
+
+    @Test
+    void testCreatePatients_DuplicateWithinBatch_ThrowsException() {
+        RuntimeException exception = assertThrows(RuntimeException.class, () -> {
+            patientService.createPatients(List.of(testPatientDTO, testPatientDTO));
+        });
+
+        assertTrue(exception.getMessage().contains("flera gånger"));
+        verify(patientRepository, never()).findExistingPersonalNumbers(anyList());
+    }
+
+    @Test
+    void testApplyCommands_AppliesEachTypeWithOneQuery() {
+        // Arrange
+        PatientDTO newPatient = new PatientDTO(null, "Erik", "Eriksson", "19850505-5678",
+                LocalDate.of(1985, 5, 5), "erik@example.com", "0709876543", "Eriksgatan 2", null);
+        Patient savedPatient = new Patient(3L, "Erik", "Eriksson", "19850505-5678",
+                LocalDate.of(1985, 5, 5), "erik@example.com", "0709876543", "Eriksgatan 2", 0);
+
+        when(patientRepository.findExistingPersonalNumbers(List.of("19850505-5678"))).thenReturn(List.of());
+        when(patientRepository.saveAll(anyList())).thenReturn(List.of(savedPatient));
+        when(patientRepository.findAllById(List.of(1L, 404L))).thenReturn(List.of(testPatient));
+        when(patientRepository.findExistingIds(List.of(2L))).thenReturn(List.of(2L));
+
+        PatientCommandDTO missing = new PatientCommandDTO("UPDATE", 404L, testPatientDTO);
+
+        // Act
+        PatientService.AppliedCommands result = patientService.applyCommands(List.of(
+                new PatientCommandDTO("CREATE", null, newPatient),
+                new PatientCommandDTO("UPDATE", 1L, testPatientDTO),
+                missing,
+                new PatientCommandDTO("DELETE", 2L, null)
+        ));
+
+        // Assert
+        assertEquals(3, result.applied());
+        assertEquals(1, result.skipped().size());
+        assertSame(missing, result.skipped().get(0).command());
+        verify(journalEntryRepository).deleteSoftDeletedByPatientIds(List.of(2L));
+        verify(patientRepository).deleteAllByIdInBatch(List.of(2L));
+        verify(outboxService).enqueueTombstones("test-patient-events", List.of("2"));
+        verify(patientRepository, never()).existsByPersonalNumber(anyString());
+        verify(patientRepository, never()).findById(anyLong());
+    }
+
+    @Test
+    void testApplyCommands_DeleteBeforeCreate_FreesPersonalNumberFirst() {
+        // Arrange
+        Patient recreated = new Patient(5L, "Anna", "Andersson", "19900101-1234",
+                LocalDate.of(1990, 1, 1), "anna@example.com", "0701234567", "Testgatan 1", 0);
+        when(patientRepository.findExistingIds(List.of(1L))).thenReturn(List.of(1L));
+        when(patientRepository.findExistingPersonalNumbers(List.of("19900101-1234"))).thenReturn(List.of());
+        when(patientRepository.saveAll(anyList())).thenReturn(List.of(recreated));
+
+        // Act
+        PatientService.AppliedCommands result = patientService.applyCommands(List.of(
+                new PatientCommandDTO("DELETE", 1L, null),
+                new PatientCommandDTO("CREATE", null, testPatientDTO)
+        ));
+
+        // Assert
+        assertEquals(2, result.applied());
+        assertTrue(result.skipped().isEmpty());
+        InOrder inOrder = inOrder(patientRepository);
+        inOrder.verify(patientRepository).deleteAllByIdInBatch(List.of(1L));
+        inOrder.verify(patientRepository).findExistingPersonalNumbers(List.of("19900101-1234"));
+        inOrder.verify(patientRepository).saveAll(anyList());
+    }
+
+    @Test
+    void testApplyCommands_ExistingPersonalNumber_IsReturnedAsSkipped() {
+        // Arrange
+        when(patientRepository.findExistingPersonalNumbers(List.of("19900101-1234")))
+                .thenReturn(List.of("19900101-1234"));
+        PatientCommandDTO duplicate = new PatientCommandDTO("CREATE", null, testPatientDTO);
+
+        // Act
+        PatientService.AppliedCommands result = patientService.applyCommands(List.of(duplicate));
+
+        // Assert
+        assertEquals(0, result.applied());
+        assertSame(duplicate, result.skipped().get(0).command());
+        assertTrue(result.skipped().get(0).reason().contains("finns redan"));
     }
 
     @Test
     void testGetPatientById_Success() {
         // Arrange
-        when(patientRepository.findById(1L)).thenReturn(Optional.of(testPatient));
+        when(patientRepository.findDtoById(1L)).thenReturn(Optional.of(testPatientDTO));
 
         // Act
         PatientDTO result = patientService.getPatientById(1L);
@@ -113,13 +269,13 @@ class PatientServiceTest {
         assertNotNull(result);
         assertEquals(1L, result.getId());
         assertEquals("Anna", result.getFirstName());
-        verify(patientRepository).findById(1L);
+        verify(patientRepository).findDtoById(1L);
     }
 
     @Test
     void testGetPatientById_NotFound_ThrowsException() {
         // Arrange
-        when(patientRepository.findById(999L)).thenReturn(Optional.empty());
+        when(patientRepository.findDtoById(999L)).thenReturn(Optional.empty());
 
         // Act & Assert
         RuntimeException exception = assertThrows(RuntimeException.class, () -> {
@@ -129,13 +285,146 @@ class PatientServiceTest {
         assertTrue(exception.getMessage().contains("finns inte"));
     }
 
+    @Test
+    void testGetPatientById_SecondCallServedFromCache() {
+        // Arrange
+        when(patientRepository.findDtoById(1L)).thenReturn(Optional.of(testPatientDTO));
+
+        // Act
+        patientService.getPatientById(1L);
+        PatientDTO result = patientService.getPatientById(1L);
+
+        // Assert
+        assertEquals("Anna", result.getFirstName());
+        verify(patientRepository, times(1)).findDtoById(1L);
+    }
+
+    @Test
+    void testGetPatientById_ReadModelEnabledButNotServing_ReadsDatabaseWithoutCache() {
+        // Arrange
+        ReflectionTestUtils.setField(patientService, "readModelEnabled", true);
+        when(patientRepository.findDtoById(1L)).thenReturn(Optional.of(testPatientDTO));
+        when(patientRepository.findById(1L)).thenReturn(Optional.of(testPatient));
+        when(patientRepository.save(any(Patient.class))).thenReturn(testPatient);
+
+        // Act
+        patientService.getPatientById(1L);
+        patientService.getPatientById(1L);
+        patientService.updatePatient(1L, testPatientDTO);
+
+        // Assert: läsmodellen är enda cachen, PatientCache används inte
+        verify(patientRepository, times(2)).findDtoById(1L);
+        verifyNoInteractions(patientCache);
+    }
+
+    @Test
+    void testGetPatientById_CaughtUpReadModel_ServedWithoutDatabase() {
+        // Arrange
+        readModel.begin(Map.of(0, 1L));
+        readModel.apply(1L, testPatientDTO);
+        readModel.advance(0, 1L);
+
+        // Act
+        PatientDTO result = patientService.getPatientById(1L, "0:1");
+
+        // Assert
+        assertEquals(testPatientDTO, result);
+        assertEquals("0:1", patientService.getReadModelPosition());
+        assertThrows(RuntimeException.class, () -> patientService.getPatientById(2L));
+        verifyNoInteractions(patientRepository, transactionManager);
+    }
+
+    @Test
+    void testGetPatientById_ReadModelBehindRequestedPosition_FallsBackToDatabase() {
+        // Arrange
+        readModel.begin(Map.of(0, 0L));
+        when(patientRepository.findDtoById(1L)).thenReturn(Optional.of(testPatientDTO));
+
+        // Act
+        PatientDTO result = patientService.getPatientById(1L, "0:5");
+
+        // Assert
+        assertEquals("Anna", result.getFirstName());
+        verify(patientRepository).findDtoById(1L);
+    }
+
+    @Test
+    void testCreatePatient_VisibleInReadModelBeforeEvent() {
+        // Arrange
+        readModel.begin(Map.of(0, 0L));
+        when(patientRepository.existsByPersonalNumber(anyString())).thenReturn(false);
+        when(patientRepository.save(any(Patient.class))).thenReturn(testPatient);
+        patientService.createPatient(testPatientDTO);
+        clearInvocations(patientRepository);
+
+        // Act
+        PatientDTO result = patientService.getPatientByPersonalNumber("19900101-1234");
+
+        // Assert
+        assertEquals(1L, result.getId());
+        assertEquals(1, patientService.getPatientsPage(null, 10).getItems().size());
+        verifyNoInteractions(patientRepository);
+    }
+
+    @Test
+    void testGetPatientByPersonalNumber_UsesCachedMapping() {
+        // Arrange
+        when(patientRepository.findDtoByPersonalNumber("19900101-1234")).thenReturn(Optional.of(testPatientDTO));
+
+        // Act
+        patientService.getPatientByPersonalNumber("19900101-1234");
+        PatientDTO result = patientService.getPatientByPersonalNumber("19900101-1234");
+
+        // Assert
+        assertEquals(1L, result.getId());
+        verify(patientRepository, times(1)).findDtoByPersonalNumber("19900101-1234");
+        verify(patientRepository, never()).findDtoById(anyLong());
+    }
+
+    @Test
+    void testGetPatientByPersonalNumber_NotFound_ThrowsException() {
+        when(patientRepository.findDtoByPersonalNumber("19000101-0000")).thenReturn(Optional.empty());
+
+        RuntimeException exception = assertThrows(RuntimeException.class, () -> {
+            patientService.getPatientByPersonalNumber("19000101-0000");
+        });
+
+        assertTrue(exception.getMessage().contains("finns inte"));
+    }
+
+    @Test
+    void testSearchPatients_AnsweredFromIndexWithoutDatabase() {
+        // Arrange
+        searchIndex.markReady();
+        when(patientRepository.existsByPersonalNumber(anyString())).thenReturn(false);
+        when(patientRepository.save(any(Patient.class))).thenReturn(testPatient);
+        patientService.createPatient(testPatientDTO);
+        clearInvocations(patientRepository);
+
+        // Act
+        List<PatientDTO> results = patientService.searchPatients("andersn", 10);
+
+        // Assert
+        assertEquals(1, results.size());
+        assertEquals("19900101-1234", results.get(0).getPersonalNumber());
+        verifyNoInteractions(patientRepository);
+    }
+
+    @Test
+    void testSearchPatients_IndexNotReady_ThrowsServiceUnavailable() {
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> patientService.searchPatients("anna", 10));
+
+        assertEquals(503, exception.getStatusCode().value());
+    }
+
     @Test
     void testGetAllPatients_Success() {
         // Arrange
-        Patient patient2 = new Patient(2L, "Erik", "Eriksson", "19850505-5678",
-                LocalDate.of(1985, 5, 5), "erik@example.com", "0709876543", "Eriksgatan 2");
+        PatientDTO patient2 = new PatientDTO(2L, "Erik", "Eriksson", "19850505-5678",
+                LocalDate.of(1985, 5, 5), "erik@example.com", "0709876543", "Eriksgatan 2", null);
 
-        when(patientRepository.findAll()).thenReturn(Arrays.asList(testPatient, patient2));
+        when(patientRepository.findAllDtos()).thenReturn(Arrays.asList(testPatientDTO, patient2));
 
         // Act
         List<PatientDTO> results = patientService.getAllPatients();
@@ -147,18 +436,59 @@ class PatientServiceTest {
         assertEquals("Erik", results.get(1).getFirstName());
     }
 
+    @Test
+    void testGetPatientsPage_FirstPage_ReturnsNextCursor() {
+        // Arrange
+        PatientDTO patient2 = new PatientDTO(2L, "Erik", "Eriksson", "19850505-5678",
+                LocalDate.of(1985, 5, 5), "erik@example.com", "0709876543", "Eriksgatan 2", null);
+
+        when(patientRepository.findDtoPage(Limit.of(2)))
+                .thenReturn(Arrays.asList(testPatientDTO, patient2));
+
+        // Act
+        CursorPageDTO<PatientDTO> page = patientService.getPatientsPage(null, 1);
+
+        // Assert
+        assertEquals(1, page.getItems().size());
+        assertEquals("Anna", page.getItems().get(0).getFirstName());
+        assertNotNull(page.getNextCursor());
+    }
+
+    @Test
+    void testGetPatientsPage_AfterCursor_SeeksFromLastId() {
+        // Arrange
+        when(patientRepository.findDtoPage(Limit.of(2)))
+                .thenReturn(Arrays.asList(testPatientDTO, testPatientDTO));
+        String cursor = patientService.getPatientsPage(null, 1).getNextCursor();
+
+        when(patientRepository.findDtoPageAfter(1L, Limit.of(2)))
+                .thenReturn(List.of());
+
+        // Act
+        CursorPageDTO<PatientDTO> page = patientService.getPatientsPage(cursor, 1);
+
+        // Assert
+        assertTrue(page.getItems().isEmpty());
+        assertNull(page.getNextCursor());
+        verify(patientRepository).findDtoPageAfter(1L, Limit.of(2));
+    }
+
+    @Test
+    void testGetPatientsPage_InvalidCursor_ThrowsException() {
+        assertThrows(ResponseStatusException.class, () -> patientService.getPatientsPage("inte-en-cursor", 10));
+    }
+
     @Test
     void testUpdatePatient_Success() {
         // Arrange
         when(patientRepository.findById(1L)).thenReturn(Optional.of(testPatient));
         when(patientRepository.save(any(Patient.class))).thenReturn(testPatient);
-        when(kafkaTemplate.send(eq("test-patient-events"), eq("1"), any(PatientDTO.class)))
-                .thenReturn(null);
 
         PatientDTO updateDTO = new PatientDTO(
                 1L, "Anna", "Andersson-Berg", "19900101-1234",
                 LocalDate.of(1990, 1, 1), "anna.berg@example.com",
-                "0701234567", "Nya gatan 5"
+                "0701234567", "Nya gatan 5",
+                null
         );
 
         // Act
@@ -168,7 +498,38 @@ class PatientServiceTest {
         assertNotNull(result);
         verify(patientRepository).findById(1L);
         verify(patientRepository).save(any(Patient.class));
-        verify(kafkaTemplate).send(eq("test-patient-events"), eq("1"), any(PatientDTO.class));
+        verify(outboxService).enqueue(eq("test-patient-events"), eq("1"), any(PatientDTO.class));
+        verify(patientCache).evictAfterCommit(List.of(1L));
+    }
+
+    @Test
+    void testUpdatePatient_StaleIfMatchVersion_PreconditionFailed() {
+        // Arrange
+        testPatient.setVersion(4);
+        when(patientRepository.findById(1L)).thenReturn(Optional.of(testPatient));
+
+        // Act & Assert
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> patientService.updatePatient(1L, testPatientDTO, 3L));
+
+        assertEquals(412, exception.getStatusCode().value());
+        verify(patientRepository, never()).save(any(Patient.class));
+        verify(outboxService, never()).enqueue(anyString(), anyString(), any());
+    }
+
+    @Test
+    void testUpdatePatient_ConcurrentUpdate_Conflict() {
+        // Arrange
+        when(patientRepository.findById(1L)).thenReturn(Optional.of(testPatient));
+        when(patientRepository.save(any(Patient.class))).thenReturn(testPatient);
+        doThrow(new ObjectOptimisticLockingFailureException(Patient.class, 1L)).when(patientRepository).flush();
+
+        // Act & Assert
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> patientService.updatePatient(1L, testPatientDTO));
+
+        assertEquals(409, exception.getStatusCode().value());
+        verify(outboxService, never()).enqueue(anyString(), anyString(), any());
     }
 
     @Test
@@ -182,7 +543,12 @@ class PatientServiceTest {
 
         // Assert
         verify(patientRepository).existsById(1L);
-        verify(patientRepository).deleteById(1L);
+        InOrder inOrder = inOrder(journalEntryRepository, patientRepository);
+        inOrder.verify(journalEntryRepository).deleteSoftDeletedByPatientIds(List.of(1L));
+        inOrder.verify(patientRepository).deleteById(1L);
+        verify(outboxService).enqueue("test-patient-events", "1", null);
+        verify(patientCache).evictAfterCommit(List.of(1L));
+        verify(timelineCache).evictAfterCommit(1L);
     }
 
     @Test
@@ -0,0 +1,74 @@
+package se.kth.lab3.patient_journal_backend_microservices.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Limit;
+import org.springframework.transaction.PlatformTransactionManager;
+import se.kth.lab3.patient_journal_backend_microservices.repository.ProcessedCommandRepository;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class ProcessedCommandStoreTest {
+
+    private ProcessedCommandRepository repository;
+    private ProcessedCommandStore store;
+
+    @BeforeEach
+    void setUp() {
+        repository = mock(ProcessedCommandRepository.class);
+        store = new ProcessedCommandStore(repository, mock(PlatformTransactionManager.class),
+                new SimpleMeterRegistry(), Duration.ofDays(7), 10_000, 0.01);
+    }
+
+    @Test
+    void testFindProcessed_BeforeFilterBuilt_AsksTable() {
+        when(repository.findExistingIds(List.of("a", "b"))).thenReturn(List.of("a"));
+
+        assertEquals(Set.of("a"), store.findProcessed(List.of("a", "b")));
+    }
+
+    @Test
+    void testFindProcessed_NewIdsAnsweredByFilterWithoutTable() {
+        when(repository.findIdsAfter(eq(""), any(Limit.class))).thenReturn(List.of("a"));
+        store.rebuildFilter();
+        when(repository.findExistingIds(List.of("a"))).thenReturn(List.of("a"));
+
+        assertEquals(Set.of("a"), store.findProcessed(List.of("a", "b", "c")));
+        verify(repository).findExistingIds(List.of("a"));
+    }
+
+    @Test
+    void testRecord_AddedToFilterAfterCommit() {
+        when(repository.findIdsAfter(eq(""), any(Limit.class))).thenReturn(List.of());
+        store.rebuildFilter();
+
+        store.record(List.of("x"));
+        store.findProcessed(List.of("x"));
+
+        verify(repository).saveAll(anyList());
+        verify(repository).findExistingIds(List.of("x"));
+    }
+
+    @Test
+    void testBloomFilter_NoFalseNegativesAndFewFalsePositives() {
+        BloomFilter filter = new BloomFilter(10_000, 0.01);
+        List<String> added = IntStream.range(0, 10_000)
+                .mapToObj(i -> UUID.randomUUID().toString()).toList();
+        added.forEach(filter::put);
+
+        assertTrue(added.stream().allMatch(filter::mightContain));
+        long falsePositives = IntStream.range(0, 10_000)
+                .filter(i -> filter.mightContain(UUID.randomUUID().toString()))
+                .count();
+        assertTrue(falsePositives < 300, "falska positiva: " + falsePositives);
+    }
+}